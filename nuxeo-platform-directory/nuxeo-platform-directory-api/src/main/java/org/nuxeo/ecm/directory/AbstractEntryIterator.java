@@ -0,0 +1,93 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.nuxeo.ecm.core.api.ClientRuntimeException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * Base class for entry iterators, subclasses only have to fetch the next
+ * entry.
+ *
+ * @since 5.8
+ */
+public abstract class AbstractEntryIterator implements EntryIterator {
+
+    private DocumentModel next;
+
+    private boolean done;
+
+    /**
+     * Fetches the next entry.
+     *
+     * @return the next entry, or {@code null} when there are no more entries
+     */
+    protected abstract DocumentModel fetchNext() throws DirectoryException;
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !done) {
+            try {
+                next = fetchNext();
+            } catch (DirectoryException e) {
+                throw new ClientRuntimeException(e);
+            }
+            done = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public DocumentModel next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        DocumentModel entry = next;
+        next = null;
+        return entry;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Iterator over already fetched entries.
+     */
+    public static class ListEntryIterator extends AbstractEntryIterator {
+
+        protected final Iterator<DocumentModel> it;
+
+        public ListEntryIterator(Iterable<DocumentModel> entries) {
+            it = entries.iterator();
+        }
+
+        @Override
+        protected DocumentModel fetchNext() {
+            return it.hasNext() ? it.next() : null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
@@ -178,4 +178,71 @@ public abstract class BaseSession implements Session {
         return new DocumentModelListImpl(entries.subList(offset, toIndex));
     }
 
+    /**
+     * Default implementation fetching the entries one by one.
+     *
+     * @since 5.8
+     */
+    @Override
+    public DocumentModelList getEntries(Collection<String> ids,
+            boolean fetchReferences) throws ClientException,
+            DirectoryException {
+        DocumentModelList entries = new DocumentModelListImpl();
+        for (String id : ids) {
+            DocumentModel entry = getEntry(id, fetchReferences);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Checks if {@link #getEntries(Collection, boolean)} fetches the entries
+     * in bulk rather than one by one, making it worth calling for many ids.
+     * The default implementation fetches them one by one.
+     *
+     * @since 5.8
+     */
+    public boolean hasBulkEntriesLookup() {
+        return false;
+    }
+
+    /**
+     * Default implementation fetching all the results before iterating over
+     * them.
+     *
+     * @since 5.8
+     */
+    @Override
+    public EntryIterator queryIterator(Map<String, Serializable> filter,
+            Set<String> fulltext, boolean fetchReferences, int fetchSize)
+            throws ClientException, DirectoryException {
+        return new AbstractEntryIterator.ListEntryIterator(query(filter,
+                fulltext, null, fetchReferences));
+    }
+
+    /**
+     * Default implementation iterating over the results of
+     * {@link #queryIterator(Map, Set, boolean, int)}.
+     *
+     * @since 5.8
+     */
+    @Override
+    public int queryCount(Map<String, Serializable> filter,
+            Set<String> fulltext, int max) throws ClientException,
+            DirectoryException {
+        EntryIterator it = queryIterator(filter, fulltext, false, 0);
+        try {
+            int count = 0;
+            while ((max <= 0 || count < max) && it.hasNext()) {
+                it.next();
+                count++;
+            }
+            return count;
+        } finally {
+            it.close();
+        }
+    }
+
 }
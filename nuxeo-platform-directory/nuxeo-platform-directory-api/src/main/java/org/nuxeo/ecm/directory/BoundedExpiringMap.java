@@ -0,0 +1,205 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Map holding at most a given number of entries, evicting the least recently
+ * used one when full, and whose entries expire after a time out.
+ * <p>
+ * Expiration is computed from {@link #nanoTime()}, which can be overridden to
+ * control time in tests. Values may be {@code null}, use
+ * {@link #containsKey(Object)} to tell them from missing entries.
+ * <p>
+ * This map is not thread safe: callers must synchronize the accesses to it.
+ *
+ * @since 5.8
+ */
+public class BoundedExpiringMap<K, V> {
+
+    protected final int maxSize;
+
+    // time out in nanoseconds of the entries, <= 0 means entries are kept
+    // till they are removed or evicted
+    protected final long timeout;
+
+    protected final Map<K, Entry<V>> entries;
+
+    /**
+     * @param maxSize the maximum number of entries, the least recently used
+     *            ones get evicted
+     * @param timeout the time after which an entry expires, 0 for no
+     *            expiration
+     */
+    public BoundedExpiringMap(int maxSize, long timeout, TimeUnit unit) {
+        this.maxSize = maxSize;
+        this.timeout = unit.toNanos(timeout);
+        entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > BoundedExpiringMap.this.maxSize) {
+                    entryEvicted(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the current time in nanoseconds, {@link System#nanoTime()} by
+     * default.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Returns the value of the entry, or {@code null} if it is missing or
+     * expired.
+     */
+    public V get(K key) {
+        Entry<V> entry = getEntry(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Returns {@code true} if the map holds a non expired entry for the key.
+     */
+    public boolean containsKey(K key) {
+        return getEntry(key) != null;
+    }
+
+    protected Entry<V> getEntry(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.isExpired(nanoTime())) {
+            entries.remove(key);
+            entryRemoved(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Adds an entry expiring after the time out of the map.
+     */
+    public void put(K key, V value) {
+        putEntry(key, value, timeout);
+    }
+
+    /**
+     * Adds an entry expiring after the given time out, 0 for no expiration.
+     */
+    public void put(K key, V value, long timeout, TimeUnit unit) {
+        putEntry(key, value, unit.toNanos(timeout));
+    }
+
+    protected void putEntry(K key, V value, long timeout) {
+        long expiration = 0;
+        if (timeout > 0) {
+            expiration = nanoTime() + timeout;
+            // 0 is reserved for entries that never expire
+            if (expiration == 0) {
+                expiration = 1;
+            }
+        }
+        if (entries.put(key, new Entry<V>(value, expiration)) == null) {
+            entryAdded(key);
+        }
+    }
+
+    /**
+     * Removes the entry of the key.
+     *
+     * @return {@code true} if there was an entry
+     */
+    public boolean remove(K key) {
+        if (entries.remove(key) != null) {
+            entryRemoved(key);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes all the entries.
+     *
+     * @return the number of removed entries
+     */
+    public int clear() {
+        int count = entries.size();
+        entries.clear();
+        return count;
+    }
+
+    /**
+     * Returns the number of entries, including the expired ones not removed
+     * yet.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns a live view of the keys, through which entries can be removed.
+     */
+    public Set<K> keySet() {
+        return entries.keySet();
+    }
+
+    /**
+     * Called when an entry is added for a new key.
+     */
+    protected void entryAdded(K key) {
+    }
+
+    /**
+     * Called when an entry is removed or found expired.
+     */
+    protected void entryRemoved(K key) {
+    }
+
+    /**
+     * Called when the least recently used entry is evicted.
+     */
+    protected void entryEvicted(K key) {
+    }
+
+    protected static class Entry<V> {
+
+        protected final V value;
+
+        // nanoTime() based expiration, 0 for no expiration
+        protected final long expiration;
+
+        protected Entry(V value, long expiration) {
+            this.value = value;
+            this.expiration = expiration;
+        }
+
+        protected boolean isExpired(long now) {
+            return expiration != 0 && now - expiration > 0;
+        }
+    }
+
+}
@@ -19,10 +19,13 @@
 package org.nuxeo.ecm.directory;
 
 import java.util.Arrays;
-import java.util.Calendar;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,16 +35,22 @@ import org.nuxeo.runtime.metrics.MetricsService;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
 
 /**
- * Very simple cache system to cache directory entry lookups (not search
- * queries).
+ * Cache system for directory entry lookups (not search queries).
+ * <p>
+ * Entries are kept in a bounded store split into independently locked
+ * segments, each of them evicting its least recently used entry when full.
+ * Expiration is computed from {@link #nanoTime()} and concurrent misses
+ * on the same entry only trigger a single fetch from the {@link EntrySource}.
+ * <p>
+ * Lookups of missing entries can also be remembered in a separate negative
+ * cache, with its own size and time out, so that repeated lookups of unknown
+ * ids do not hit the backend.
  * <p>
  * Beware that this cache is not transaction aware (which is not a problem for
  * LDAP directories anyway).
- * <p>
- * If we want to implement a smarter caching strategy we might prefer to base it
- * on jboss-cache instead of reinventing the wheel.
  *
  * @author Olivier Grisel <ogrisel@nuxeo.com>
  */
@@ -49,22 +58,52 @@ public class DirectoryCache {
 
     private final static Log log = LogFactory.getLog(DirectoryCache.class);
 
+    /**
+     * Maximum number of segments of an entry store.
+     *
+     * @since 5.8
+     */
+    protected static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Minimum number of entries a segment must be able to hold, so that small
+     * caches still get a meaningful LRU order.
+     *
+     * @since 5.8
+     */
+    protected static final int MIN_SEGMENT_CAPACITY = 32;
+
     protected final String name;
 
-    protected final Map<String, CachedEntry> entryStore = new HashMap<String, CachedEntry>();
+    protected volatile EntryStore entryStore;
+
+    protected volatile EntryStore entryStoreWithoutReferences;
 
-    protected final Map<String, CachedEntry> entryStoreWithoutReferences = new HashMap<String, CachedEntry>();
+    // @since 5.8
+    protected volatile EntryStore negativeEntryStore;
 
     protected final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
 
     protected final Counter hitsCounter;
 
+    // @since 5.8
+    protected final Counter negativeHitsCounter;
+
+    // @since 5.8
+    protected final Counter missesCounter;
+
+    // @since 5.8
+    protected final Counter evictionsCounter;
+
     protected final Counter invalidationsCounter;
 
     protected final Counter maxCounter;
 
     protected final Counter sizeCounter;
 
+    // @since 5.8
+    protected final Timer loadTimer;
+
     // time out in seconds an entry is kept in cache, entryCacheTimeout <= 0
     // means entries are kept in cache till manual invalidation
     protected int timeout = 0;
@@ -72,19 +111,44 @@ public class DirectoryCache {
     protected DirectoryCache(String name) {
         this.name = name;
         hitsCounter = metrics.counter(MetricRegistry.name("nuxeo", "directories", name, "cache", "hits"));
+        negativeHitsCounter = metrics.counter(MetricRegistry.name("nuxeo", "directories", name, "cache", "negativehits"));
+        missesCounter = metrics.counter(MetricRegistry.name("nuxeo", "directories", name, "cache", "misses"));
+        evictionsCounter = metrics.counter(MetricRegistry.name("nuxeo", "directories", name, "cache", "evictions"));
         invalidationsCounter = metrics.counter(MetricRegistry.name("nuxeo", "directories", name, "cache", "invalidations"));
         sizeCounter = metrics.counter(MetricRegistry.name("nuxeo", "directories", name, "cache", "size"));
         maxCounter = metrics.counter(MetricRegistry.name("nuxeo", "directories", name, "cache", "max"));
+        loadTimer = metrics.timer(MetricRegistry.name("nuxeo", "directories", name, "cache", "loads"));
+        entryStore = new EntryStore(0);
+        entryStoreWithoutReferences = new EntryStore(0);
+        negativeEntryStore = new EntryStore(0);
     }
 
     // maximum number of entries kept in cache, entryCacheMaxSize <= 0 means
-    // cache disabled; if the limit is reached, all entries get invalidated
+    // cache disabled; if the limit is reached, the least recently used
+    // entries get evicted
     protected int maxSize = 0;
 
+    // time out in seconds a missing entry is remembered, <= 0 means missing
+    // entries are remembered till manual invalidation
+    protected int negativeTimeout = 0;
+
+    // maximum number of missing entries remembered, <= 0 means negative
+    // caching disabled
+    protected int negativeMaxSize = 0;
+
     protected boolean isCacheEnabled() {
         return maxSize > 0;
     }
 
+    /**
+     * Returns {@code true} if lookups of missing entries are cached.
+     *
+     * @since 5.8
+     */
+    public boolean isNegativeCacheEnabled() {
+        return isCacheEnabled() && negativeMaxSize > 0;
+    }
+
     public DocumentModel getEntry(String entryId, EntrySource source)
             throws DirectoryException {
         return getEntry(entryId, source, true);
@@ -95,57 +159,24 @@ public class DirectoryCache {
         if (!isCacheEnabled()) {
             return source.getEntryFromSource(entryId, fetchReferences);
         }
-
-        DocumentModel dm;
-        if (fetchReferences) {
-            CachedEntry entry = entryStore.get(entryId);
-            if (entry == null || entry.isExpired()) {
-                // fetch the entry from the backend and cache it for later reuse
-                dm = source.getEntryFromSource(entryId, fetchReferences);
-                synchronized (this) {
-                    // check that the cache limit has not yet been reached
-                    if (maxSize > 0 && entryStore.size() >= maxSize) {
-                        log.warn("Directory cacheMaxSize for " + name
-                                + " is too small, flushing.");
-                        entryStore.clear();
-                    }
-                    entryStore.put(entryId, new CachedEntry(dm, timeout));
-                    sizeCounter.inc();
-                    if (sizeCounter.getCount() > maxCounter.getCount()) {
-                        maxCounter.inc();
-                    }
-                }
-            } else {
-                dm = entry.getDocumentModel();
-                hitsCounter.inc();
-            }
+        if (negativeEntryStore.contains(entryId)) {
+            hitsCounter.inc();
+            negativeHitsCounter.inc();
+            return null;
+        }
+        EntryStore store = fetchReferences ? entryStore
+                : entryStoreWithoutReferences;
+        DocumentModel dm = store.get(entryId);
+        if (dm != null) {
+            hitsCounter.inc();
         } else {
-            CachedEntry entry = entryStoreWithoutReferences.get(entryId);
-            if (entry == null || entry.isExpired()) {
-                // fetch the entry from the backend and cache it for later reuse
-                dm = source.getEntryFromSource(entryId, fetchReferences);
-                synchronized (this) {
-                    // check that the cache limit has not yet been reached
-                    if (maxSize > 0
-                            && entryStoreWithoutReferences.size() >= maxSize) {
-                        entryStoreWithoutReferences.clear();
-                    }
-                    entryStoreWithoutReferences.put(entryId, new CachedEntry(
-                            dm, timeout));
-                    sizeCounter.inc();
-                    if (sizeCounter.getCount() > maxCounter.getCount()) {
-                        maxCounter.inc();
-                    }
-                }
-            } else {
-                dm = entry.getDocumentModel();
-                hitsCounter.inc();
-            }
+            missesCounter.inc();
+            dm = store.load(entryId, source, fetchReferences);
+        }
+        if (dm == null) {
+            return null;
         }
         try {
-            if (dm == null) {
-                return null;
-            }
             DocumentModel clone = dm.clone();
             // DocumentModelImpl#clone does not copy context data, hence
             // propagate the read-only flag manually
@@ -159,15 +190,57 @@ public class DirectoryCache {
         }
     }
 
+    /**
+     * Tells whether the entry exists according to the cached data.
+     *
+     * @return {@link Boolean#TRUE} if the entry is cached,
+     *         {@link Boolean#FALSE} if it is known to be missing, or
+     *         {@code null} if the cache cannot tell
+     * @since 5.8
+     */
+    public Boolean hasEntry(String entryId) {
+        if (!isCacheEnabled()) {
+            return null;
+        }
+        if (negativeEntryStore.contains(entryId)) {
+            hitsCounter.inc();
+            negativeHitsCounter.inc();
+            return Boolean.FALSE;
+        }
+        if (entryStoreWithoutReferences.get(entryId) != null
+                || entryStore.get(entryId) != null) {
+            hitsCounter.inc();
+            return Boolean.TRUE;
+        }
+        return null;
+    }
+
+    /**
+     * Existence check going through the cache: if the cache cannot tell, the
+     * entry is fetched without references so that the positive or negative
+     * cache gets populated for the next calls.
+     * <p>
+     * Returns {@code null} if the negative cache is disabled, in which case
+     * callers should ask their backend directly.
+     *
+     * @since 5.8
+     */
+    public Boolean hasEntry(String entryId, EntrySource source)
+            throws DirectoryException {
+        Boolean cached = hasEntry(entryId);
+        if (cached != null || !isNegativeCacheEnabled()) {
+            return cached;
+        }
+        return Boolean.valueOf(getEntry(entryId, source, false) != null);
+    }
+
     public void invalidate(List<String> entryIds) {
         if (isCacheEnabled()) {
-            synchronized (this) {
-                for (String entryId : entryIds) {
-                    entryStore.remove(entryId);
-                    entryStoreWithoutReferences.remove(entryId);
-                    sizeCounter.dec();
-                    invalidationsCounter.inc();
-                }
+            for (String entryId : entryIds) {
+                entryStore.remove(entryId);
+                entryStoreWithoutReferences.remove(entryId);
+                negativeEntryStore.remove(entryId);
+                invalidationsCounter.inc();
             }
         }
     }
@@ -178,13 +251,10 @@ public class DirectoryCache {
 
     public void invalidateAll() {
         if (isCacheEnabled()) {
-            synchronized (this) {
-                long count = sizeCounter.getCount();
-                sizeCounter.dec(count);
-                invalidationsCounter.inc(count);
-                entryStore.clear();
-                entryStoreWithoutReferences.clear();
-            }
+            long count = entryStore.clear()
+                    + entryStoreWithoutReferences.clear()
+                    + negativeEntryStore.clear();
+            invalidationsCounter.inc(count);
         }
     }
 
@@ -192,28 +262,251 @@ public class DirectoryCache {
         this.timeout = timeout;
     }
 
-    public void setMaxSize(int maxSize) {
+    /**
+     * @since 5.8
+     */
+    public void setNegativeTimeout(int negativeTimeout) {
+        this.negativeTimeout = negativeTimeout;
+    }
+
+    /**
+     * @since 5.8
+     */
+    public synchronized void setNegativeMaxSize(int negativeMaxSize) {
+        if (negativeMaxSize == this.negativeMaxSize) {
+            return;
+        }
+        negativeEntryStore.clear();
+        negativeEntryStore = new EntryStore(negativeMaxSize);
+        this.negativeMaxSize = negativeMaxSize;
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize == this.maxSize) {
+            return;
+        }
+        // resizing starts over with empty stores
+        entryStore.clear();
+        entryStoreWithoutReferences.clear();
+        entryStore = new EntryStore(maxSize);
+        entryStoreWithoutReferences = new EntryStore(maxSize);
         this.maxSize = maxSize;
     }
 
-    protected static class CachedEntry {
+    /**
+     * Returns the current time in nanoseconds used for expiration,
+     * {@link System#nanoTime()} by default.
+     *
+     * @since 5.8
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
 
-        protected final DocumentModel entry;
+    protected void entryAdded() {
+        sizeCounter.inc();
+        if (sizeCounter.getCount() > maxCounter.getCount()) {
+            maxCounter.inc();
+        }
+    }
 
-        protected final Calendar expirationDate;
+    protected void entryRemoved() {
+        sizeCounter.dec();
+    }
 
-        CachedEntry(DocumentModel entry, int timeout) {
-            this.entry = entry;
-            expirationDate = Calendar.getInstance();
-            expirationDate.add(Calendar.SECOND, timeout);
+    protected void entryEvicted() {
+        sizeCounter.dec();
+        evictionsCounter.inc();
+    }
+
+    /**
+     * Bounded map of cached entries, split into segments by entry id hash.
+     * <p>
+     * Each segment is an access ordered map guarded by its own monitor, and
+     * in-flight fetches are registered per entry id so that concurrent misses
+     * wait for the same result instead of hitting the backend again.
+     *
+     * @since 5.8
+     */
+    protected class EntryStore {
+
+        protected final Segment[] segments;
+
+        protected final int segmentMask;
+
+        protected final ConcurrentMap<String, FutureTask<DocumentModel>> loads = new ConcurrentHashMap<String, FutureTask<DocumentModel>>();
+
+        protected EntryStore(int maxSize) {
+            int count = 1;
+            while (count < MAX_SEGMENTS
+                    && maxSize / (count * 2) >= MIN_SEGMENT_CAPACITY) {
+                count *= 2;
+            }
+            segments = new Segment[count];
+            segmentMask = count - 1;
+            for (int i = 0; i < count; i++) {
+                // spread the remainder over the first segments
+                int capacity = maxSize / count + (i < maxSize % count ? 1 : 0);
+                segments[i] = new Segment(capacity);
+            }
+        }
+
+        protected Segment segmentFor(String entryId) {
+            int h = entryId.hashCode();
+            // spread the high bits as the hash codes of ids often only differ
+            // by their last characters
+            h ^= (h >>> 20) ^ (h >>> 12);
+            h ^= (h >>> 7) ^ (h >>> 4);
+            return segments[h & segmentMask];
+        }
+
+        protected DocumentModel get(String entryId) {
+            Segment segment = segmentFor(entryId);
+            synchronized (segment) {
+                return segment.get(entryId);
+            }
+        }
+
+        protected boolean contains(String entryId) {
+            Segment segment = segmentFor(entryId);
+            synchronized (segment) {
+                return segment.containsKey(entryId);
+            }
+        }
+
+        protected DocumentModel load(final String entryId,
+                final EntrySource source, final boolean fetchReferences)
+                throws DirectoryException {
+            FutureTask<DocumentModel> task = new FutureTask<DocumentModel>(
+                    new Callable<DocumentModel>() {
+                        @Override
+                        public DocumentModel call() throws Exception {
+                            return source.getEntryFromSource(entryId,
+                                    fetchReferences);
+                        }
+                    });
+            FutureTask<DocumentModel> running = loads.putIfAbsent(entryId,
+                    task);
+            if (running == null) {
+                Timer.Context context = loadTimer.time();
+                try {
+                    task.run();
+                } finally {
+                    context.stop();
+                }
+                DocumentModel dm;
+                try {
+                    dm = waitFor(task);
+                } catch (DirectoryException | RuntimeException e) {
+                    // the failed fetch must not be shared with later callers
+                    loads.remove(entryId, task);
+                    throw e;
+                }
+                Segment segment = segmentFor(entryId);
+                synchronized (segment) {
+                    // only store the result if no invalidation occurred
+                    // during the fetch
+                    if (loads.remove(entryId, task)) {
+                        if (dm != null) {
+                            segment.put(entryId, dm, timeout,
+                                    TimeUnit.SECONDS);
+                        } else if (isNegativeCacheEnabled()) {
+                            // invalidations remove the entry from this store
+                            // before the negative one, so holding this lock
+                            // guarantees the missing entry is not stale
+                            negativeEntryStore.put(entryId, null,
+                                    negativeTimeout);
+                        }
+                    }
+                }
+                return dm;
+            }
+            return waitFor(running);
         }
 
-        public DocumentModel getDocumentModel() {
-            return entry;
+        protected DocumentModel waitFor(FutureTask<DocumentModel> task)
+                throws DirectoryException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DirectoryException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof DirectoryException) {
+                    throw (DirectoryException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new DirectoryException(cause);
+            }
+        }
+
+        protected void put(String entryId, DocumentModel dm, int timeout) {
+            Segment segment = segmentFor(entryId);
+            synchronized (segment) {
+                segment.put(entryId, dm, timeout, TimeUnit.SECONDS);
+            }
         }
 
-        public boolean isExpired() {
-            return expirationDate.before(Calendar.getInstance());
+        protected void remove(String entryId) {
+            Segment segment = segmentFor(entryId);
+            synchronized (segment) {
+                loads.remove(entryId);
+                segment.remove(entryId);
+            }
+        }
+
+        protected int clear() {
+            int count = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    int size = segment.clear();
+                    sizeCounter.dec(size);
+                    count += size;
+                }
+            }
+            loads.clear();
+            return count;
+        }
+    }
+
+    /**
+     * Bounded map of a part of the entries of a store, whose expiration and
+     * size changes are reported to the cache. Must be accessed while holding
+     * its monitor.
+     *
+     * @since 5.8
+     */
+    protected class Segment extends BoundedExpiringMap<String, DocumentModel> {
+
+        protected Segment(int capacity) {
+            super(capacity, 0, TimeUnit.SECONDS);
+        }
+
+        @Override
+        protected long nanoTime() {
+            return DirectoryCache.this.nanoTime();
+        }
+
+        @Override
+        protected void entryAdded(String entryId) {
+            DirectoryCache.this.entryAdded();
+        }
+
+        @Override
+        protected void entryRemoved(String entryId) {
+            DirectoryCache.this.entryRemoved();
+        }
+
+        @Override
+        protected void entryEvicted(String entryId) {
+            if (log.isDebugEnabled()) {
+                log.debug("Evicting entry " + entryId
+                        + " from cache of directory " + name);
+            }
+            DirectoryCache.this.entryEvicted();
         }
     }
 
@@ -0,0 +1,42 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import java.util.Iterator;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * Iterator over the entries returned by a directory query, fetching them
+ * lazily from the backend.
+ * <p>
+ * Errors occurring while fetching entries are thrown as
+ * {@link org.nuxeo.ecm.core.api.ClientRuntimeException}. The iterator must be
+ * closed to release the backend resources it holds, before closing the
+ * session it was obtained from.
+ *
+ * @see Session#queryIterator(java.util.Map, java.util.Set, boolean, int)
+ * @since 5.8
+ */
+public interface EntryIterator extends Iterator<DocumentModel> {
+
+    /**
+     * Releases the resources held by the iterator.
+     */
+    void close() throws DirectoryException;
+
+}
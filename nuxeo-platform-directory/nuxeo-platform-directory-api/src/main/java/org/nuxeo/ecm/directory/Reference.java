@@ -19,7 +19,9 @@
 
 package org.nuxeo.ecm.directory;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Base interface for references between directory fields.
@@ -60,6 +62,30 @@ public interface Reference {
     List<String> getSourceIdsForTarget(String targetId)
             throws DirectoryException;
 
+    /**
+     * Bulk version of {@link #getTargetIdsForSource(String)}, resolving the
+     * reference for several source entries with as few round trips as
+     * possible.
+     *
+     * @return a map with an entry (possibly an empty list) for each requested
+     *         source id
+     * @since 5.8
+     */
+    Map<String, List<String>> getTargetIdsForSources(
+            Collection<String> sourceIds) throws DirectoryException;
+
+    /**
+     * Bulk version of {@link #getSourceIdsForTarget(String)}, resolving the
+     * reference for several target entries with as few round trips as
+     * possible.
+     *
+     * @return a map with an entry (possibly an empty list) for each requested
+     *         target id
+     * @since 5.8
+     */
+    Map<String, List<String>> getSourceIdsForTargets(
+            Collection<String> targetIds) throws DirectoryException;
+
     void setTargetIdsForSource(String sourceId, List<String> targetIds)
             throws DirectoryException;
 
@@ -19,6 +19,7 @@
 package org.nuxeo.ecm.directory;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -78,6 +79,21 @@ public interface Session {
      */
     DocumentModelList getEntries() throws ClientException, DirectoryException;
 
+    /**
+     * Retrieves the entries with the given ids.
+     * <p>
+     * Ids without a matching entry are ignored. Unlike {@link #getEntries()}
+     * the query size limit configured on the directory does not apply.
+     * 
+     * @param ids the entry ids
+     * @param fetchReferences boolean stating if references have to be fetched
+     * @return the found entries, in no particular order
+     * @since 5.8
+     */
+    DocumentModelList getEntries(Collection<String> ids,
+            boolean fetchReferences) throws ClientException,
+            DirectoryException;
+
     /**
      * Creates an entry in a directory.
      * 
@@ -255,6 +271,42 @@ public interface Session {
             boolean fetchReferences, int limit, int offset)
             throws ClientException, DirectoryException;
 
+    /**
+     * Executes a query returning the entries lazily, without loading them
+     * all in memory.
+     * <p>
+     * Entries are returned in no particular order, and the query size limit
+     * configured on the directory does not apply. The returned iterator must
+     * be closed.
+     *
+     * @param fetchSize number of entries fetched from the backend at once,
+     *            or 0 for the implementation default
+     * @see #query(Map, Set, Map, boolean)
+     * @since 5.8
+     */
+    EntryIterator queryIterator(Map<String, Serializable> filter,
+            Set<String> fulltext, boolean fetchReferences, int fetchSize)
+            throws ClientException, DirectoryException;
+
+    /**
+     * Counts the entries matching a query, without reading more than
+     * {@code max} of them, for UIs showing "more than max results" instead of
+     * an exact count. The query size limit configured on the directory does
+     * not apply.
+     * <p>
+     * org.nuxeo.ecm.directory.BaseSession provides a default implementation
+     * iterating over the results.
+     *
+     * @param max the number of entries after which counting stops, or 0 for
+     *            an exact count
+     * @return the number of matching entries, or {@code max} if there are at
+     *         least {@code max} of them
+     * @see #query(Map, Set, Map, boolean)
+     * @since 5.8
+     */
+    int queryCount(Map<String, Serializable> filter, Set<String> fulltext,
+            int max) throws ClientException, DirectoryException;
+
     // TODO: create an API to allow sql AND/OR/NOT/LIKE conditions
     // public DocumentModelList query(Criteria criteria ) throws
     // DirectoryException;
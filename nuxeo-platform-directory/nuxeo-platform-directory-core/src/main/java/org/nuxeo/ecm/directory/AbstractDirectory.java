@@ -32,6 +32,8 @@ import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelComparator;
+import org.nuxeo.ecm.directory.cluster.DirectoryInvalidationService;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.metrics.MetricsService;
 
 import com.codahale.metrics.Counter;
@@ -82,6 +84,22 @@ public abstract class AbstractDirectory implements Directory {
         }
     }
 
+    /**
+     * Invalidate my cache and the caches of linked directories by references,
+     * then propagate the invalidation of the given modified entries to the
+     * other cluster nodes.
+     *
+     * @since 5.8
+     */
+    public void invalidateCaches(Collection<String> entryIds)
+            throws DirectoryException {
+        invalidateCaches();
+        DirectoryInvalidationService invalidationService = Framework.getLocalService(DirectoryInvalidationService.class);
+        if (invalidationService != null) {
+            invalidationService.invalidate(getName(), entryIds);
+        }
+    }
+
     public DirectoryFieldMapper getFieldMapper() {
         if (fieldMapper == null) {
             fieldMapper = new DirectoryFieldMapper();
@@ -19,6 +19,11 @@
 
 package org.nuxeo.ecm.directory;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.nuxeo.ecm.directory.api.DirectoryService;
 import org.nuxeo.runtime.api.Framework;
 
@@ -71,6 +76,42 @@ public abstract class AbstractReference implements Reference {
         this.targetDirectoryName = targetDirectoryName;
     }
 
+    /**
+     * Default implementation resolving each source id in turn, to be
+     * overridden by references able to fetch several entries at once.
+     *
+     * @since 5.8
+     */
+    @Override
+    public Map<String, List<String>> getTargetIdsForSources(
+            Collection<String> sourceIds) throws DirectoryException {
+        Map<String, List<String>> targetIds = new LinkedHashMap<String, List<String>>();
+        for (String sourceId : sourceIds) {
+            if (!targetIds.containsKey(sourceId)) {
+                targetIds.put(sourceId, getTargetIdsForSource(sourceId));
+            }
+        }
+        return targetIds;
+    }
+
+    /**
+     * Default implementation resolving each target id in turn, to be
+     * overridden by references able to fetch several entries at once.
+     *
+     * @since 5.8
+     */
+    @Override
+    public Map<String, List<String>> getSourceIdsForTargets(
+            Collection<String> targetIds) throws DirectoryException {
+        Map<String, List<String>> sourceIds = new LinkedHashMap<String, List<String>>();
+        for (String targetId : targetIds) {
+            if (!sourceIds.containsKey(targetId)) {
+                sourceIds.put(targetId, getSourceIdsForTarget(targetId));
+            }
+        }
+        return sourceIds;
+    }
+
     protected DirectoryServiceImpl getDirectoryService() {
         if (directoryService == null) {
             directoryService = (DirectoryServiceImpl) Framework.getRuntime().getComponent(
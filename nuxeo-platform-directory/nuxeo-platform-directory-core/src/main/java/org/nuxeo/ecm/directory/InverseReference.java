@@ -19,7 +19,9 @@
 
 package org.nuxeo.ecm.directory;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.nuxeo.common.xmap.annotation.XNode;
 import org.nuxeo.common.xmap.annotation.XObject;
@@ -127,6 +129,20 @@ public class InverseReference extends AbstractReference {
         return dualReference.getSourceIdsForTarget(sourceId);
     }
 
+    @Override
+    public Map<String, List<String>> getSourceIdsForTargets(
+            Collection<String> targetIds) throws DirectoryException {
+        checkDualReference();
+        return dualReference.getTargetIdsForSources(targetIds);
+    }
+
+    @Override
+    public Map<String, List<String>> getTargetIdsForSources(
+            Collection<String> sourceIds) throws DirectoryException {
+        checkDualReference();
+        return dualReference.getSourceIdsForTargets(sourceIds);
+    }
+
     public void setTargetIdsForSource(String sourceId, List<String> targetIds)
             throws DirectoryException {
         if (readOnly) {
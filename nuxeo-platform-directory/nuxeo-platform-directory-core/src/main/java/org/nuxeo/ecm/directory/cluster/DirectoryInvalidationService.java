@@ -0,0 +1,58 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.cluster;
+
+import java.util.Collection;
+
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Service propagating the directory cache invalidations to the other nodes
+ * of a cluster, and applying the invalidations they send to the local caches.
+ * <p>
+ * Invalidations are batched and exchanged periodically through the
+ * configured {@link InvalidationTransport}. Without transport, this service
+ * does nothing.
+ *
+ * @since 5.8
+ */
+public interface DirectoryInvalidationService {
+
+    /**
+     * Queues the invalidation of some entries of a directory for the other
+     * nodes.
+     */
+    void invalidate(String directoryName, Collection<String> entryIds);
+
+    /**
+     * Queues the invalidation of all the entries of a directory for the other
+     * nodes.
+     */
+    void invalidateAll(String directoryName);
+
+    /**
+     * Sends the queued invalidations, then applies the ones received from the
+     * other nodes. Called periodically, but can be called explicitly.
+     */
+    void flush() throws DirectoryException;
+
+    /**
+     * Returns {@code true} if a transport is configured.
+     */
+    boolean isEnabled();
+
+}
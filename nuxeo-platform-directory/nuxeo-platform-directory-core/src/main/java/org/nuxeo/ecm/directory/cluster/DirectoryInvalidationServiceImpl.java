@@ -0,0 +1,338 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.cluster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.directory.Directory;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.Reference;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.ComponentInstance;
+import org.nuxeo.runtime.model.DefaultComponent;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Default implementation of the {@link DirectoryInvalidationService}, polling
+ * the configured transport from a background thread.
+ * <p>
+ * Invalidations published inside a transaction are only queued once the
+ * transaction commits, so that other nodes never reload an entry before the
+ * change is visible to them, and never see changes that are rolled back.
+ *
+ * @since 5.8
+ */
+public class DirectoryInvalidationServiceImpl extends DefaultComponent
+        implements DirectoryInvalidationService {
+
+    private static final Log log = LogFactory.getLog(DirectoryInvalidationServiceImpl.class);
+
+    public static final String TRANSPORT_XP = "transport";
+
+    protected InvalidationTransportDescriptor descriptor;
+
+    protected InvalidationTransport transport;
+
+    protected ScheduledExecutorService scheduler;
+
+    // publishers must not wait for the transport, so pending invalidations
+    // have their own lock
+    protected final Object pendingLock = new Object();
+
+    // invalidations waiting to be sent, guarded by pendingLock
+    protected DirectoryInvalidations pending = new DirectoryInvalidations();
+
+    // invalidations of the running transactions, queued on commit
+    protected final Map<Transaction, DirectoryInvalidations> txInvalidations = new ConcurrentHashMap<Transaction, DirectoryInvalidations>();
+
+    @Override
+    public void registerContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor)
+            throws Exception {
+        if (TRANSPORT_XP.equals(extensionPoint)) {
+            // last contribution wins
+            descriptor = (InvalidationTransportDescriptor) contribution;
+        }
+    }
+
+    @Override
+    public void unregisterContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor)
+            throws Exception {
+        if (TRANSPORT_XP.equals(extensionPoint)
+                && descriptor == contribution) {
+            stop();
+            descriptor = null;
+        }
+    }
+
+    @Override
+    public void applicationStarted(ComponentContext context) throws Exception {
+        if (!isEnabled()) {
+            return;
+        }
+        start();
+        int interval = descriptor.getPollInterval();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,
+                        "Nuxeo-Directory-Invalidations");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception e) {
+                    log.error("Cannot exchange directory invalidations", e);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void deactivate(ComponentContext context) throws Exception {
+        stop();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return descriptor != null && descriptor.isEnabled()
+                && descriptor.getTransportClass() != null;
+    }
+
+    protected synchronized void start() throws DirectoryException {
+        if (transport != null) {
+            return;
+        }
+        String nodeId = descriptor.getNodeId();
+        if (nodeId == null || nodeId.trim().length() == 0) {
+            nodeId = UUID.randomUUID().toString();
+        }
+        InvalidationTransport newTransport;
+        try {
+            newTransport = descriptor.getTransportClass().newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new DirectoryException(
+                    "Cannot instantiate directory invalidation transport", e);
+        }
+        newTransport.activate(nodeId, descriptor.getParameters());
+        transport = newTransport;
+        log.info("Directory cache invalidations propagated by "
+                + transport.getClass().getName() + " for node " + nodeId);
+    }
+
+    protected void stop() throws DirectoryException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        synchronized (this) {
+            if (transport != null) {
+                try {
+                    transport.deactivate();
+                } finally {
+                    transport = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(String directoryName, Collection<String> entryIds) {
+        if (!isEnabled()) {
+            return;
+        }
+        DirectoryInvalidations invalidations = getTransactionInvalidations();
+        if (invalidations != null) {
+            synchronized (invalidations) {
+                invalidations.add(directoryName, entryIds);
+            }
+            return;
+        }
+        synchronized (pendingLock) {
+            pending.add(directoryName, entryIds);
+        }
+    }
+
+    @Override
+    public void invalidateAll(String directoryName) {
+        if (!isEnabled()) {
+            return;
+        }
+        DirectoryInvalidations invalidations = getTransactionInvalidations();
+        if (invalidations != null) {
+            synchronized (invalidations) {
+                invalidations.addAll(directoryName);
+            }
+            return;
+        }
+        synchronized (pendingLock) {
+            pending.addAll(directoryName);
+        }
+    }
+
+    /**
+     * Gets the invalidations collected for the current transaction,
+     * registering a synchronization queuing them on commit the first time.
+     *
+     * @return the invalidations, or {@code null} if there is no active
+     *         transaction and invalidations must be queued immediately
+     */
+    protected DirectoryInvalidations getTransactionInvalidations() {
+        if (!TransactionHelper.isTransactionActive()) {
+            return null;
+        }
+        final Transaction transaction;
+        try {
+            transaction = TransactionHelper.lookupTransactionManager().getTransaction();
+        } catch (NamingException | SystemException e) {
+            log.error("Cannot get current transaction, directory "
+                    + "invalidations will be sent immediately", e);
+            return null;
+        }
+        if (transaction == null) {
+            return null;
+        }
+        DirectoryInvalidations invalidations = txInvalidations.get(transaction);
+        if (invalidations != null) {
+            return invalidations;
+        }
+        // a transaction is only used by one thread at a time
+        invalidations = new DirectoryInvalidations();
+        try {
+            transaction.registerSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    DirectoryInvalidations committed = txInvalidations.remove(transaction);
+                    if (committed == null || status != Status.STATUS_COMMITTED) {
+                        return;
+                    }
+                    synchronized (pendingLock) {
+                        synchronized (committed) {
+                            pending.add(committed);
+                        }
+                    }
+                }
+            });
+        } catch (RollbackException | SystemException e) {
+            log.error("Cannot register transaction synchronization, "
+                    + "directory invalidations will be sent immediately", e);
+            return null;
+        }
+        txInvalidations.put(transaction, invalidations);
+        return invalidations;
+    }
+
+    @Override
+    public synchronized void flush() throws DirectoryException {
+        if (!isEnabled()) {
+            return;
+        }
+        start();
+        DirectoryInvalidations toSend;
+        synchronized (pendingLock) {
+            toSend = pending;
+            pending = new DirectoryInvalidations();
+        }
+        if (!toSend.isEmpty()) {
+            try {
+                transport.send(toSend);
+            } catch (DirectoryException e) {
+                // keep them for the next attempt
+                synchronized (pendingLock) {
+                    toSend.add(pending);
+                    pending = toSend;
+                }
+                throw e;
+            }
+        }
+        DirectoryInvalidations received = transport.receive();
+        if (!received.isEmpty()) {
+            apply(received);
+        }
+    }
+
+    /**
+     * Applies invalidations received from other nodes to the local caches,
+     * without propagating them again.
+     * <p>
+     * Like local writes, the caches of the directories targeted by references
+     * are fully invalidated as the changed entries may be referenced from
+     * there.
+     */
+    protected void apply(DirectoryInvalidations invalidations)
+            throws DirectoryException {
+        if (log.isDebugEnabled()) {
+            log.debug("Applying directory invalidations: " + invalidations);
+        }
+        DirectoryService directoryService = Framework.getLocalService(DirectoryService.class);
+        if (invalidations.isAllDirectories()) {
+            for (Directory directory : directoryService.getDirectories()) {
+                directory.invalidateDirectoryCache();
+            }
+            return;
+        }
+        for (String directoryName : invalidations.getDirectoryNames()) {
+            Directory directory = directoryService.getDirectory(directoryName);
+            if (directory == null) {
+                continue;
+            }
+            if (invalidations.isAll(directoryName)) {
+                directory.getCache().invalidateAll();
+            } else {
+                directory.getCache().invalidate(
+                        new ArrayList<String>(
+                                invalidations.getEntryIds(directoryName)));
+            }
+            for (Reference reference : directory.getReferences()) {
+                Directory targetDirectory = reference.getTargetDirectory();
+                if (targetDirectory != null) {
+                    targetDirectory.invalidateDirectoryCache();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.cluster;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A batch of directory cache invalidations, by directory name.
+ * <p>
+ * A directory is either invalidated for a set of entry ids, or for all its
+ * entries. Directories accumulating too many ids are switched to a full
+ * invalidation to keep batches small. A batch can also invalidate all the
+ * directories, when a node cannot know what it missed.
+ *
+ * @since 5.8
+ */
+public class DirectoryInvalidations implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Above this number of ids, a directory is fully invalidated.
+     */
+    public static final int MAX_IDS = 1000;
+
+    protected final Map<String, Set<String>> ids = new HashMap<String, Set<String>>();
+
+    protected final Set<String> all = new HashSet<String>();
+
+    protected boolean allDirectories;
+
+    public boolean isEmpty() {
+        return !allDirectories && ids.isEmpty() && all.isEmpty();
+    }
+
+    public void add(String directoryName, Collection<String> entryIds) {
+        if (allDirectories || all.contains(directoryName)) {
+            return;
+        }
+        Set<String> set = ids.get(directoryName);
+        if (set == null) {
+            set = new HashSet<String>();
+            ids.put(directoryName, set);
+        }
+        set.addAll(entryIds);
+        if (set.size() > MAX_IDS) {
+            addAll(directoryName);
+        }
+    }
+
+    public void addAll(String directoryName) {
+        if (allDirectories) {
+            return;
+        }
+        ids.remove(directoryName);
+        all.add(directoryName);
+    }
+
+    /**
+     * Invalidates all the entries of all the directories.
+     */
+    public void addAllDirectories() {
+        ids.clear();
+        all.clear();
+        allDirectories = true;
+    }
+
+    public boolean isAllDirectories() {
+        return allDirectories;
+    }
+
+    public void add(DirectoryInvalidations other) {
+        if (other.allDirectories) {
+            addAllDirectories();
+            return;
+        }
+        for (String directoryName : other.all) {
+            addAll(directoryName);
+        }
+        for (Map.Entry<String, Set<String>> es : other.ids.entrySet()) {
+            add(es.getKey(), es.getValue());
+        }
+    }
+
+    public Set<String> getDirectoryNames() {
+        Set<String> names = new HashSet<String>(ids.keySet());
+        names.addAll(all);
+        return names;
+    }
+
+    /**
+     * Returns {@code true} if all the entries of the directory are
+     * invalidated.
+     */
+    public boolean isAll(String directoryName) {
+        return allDirectories || all.contains(directoryName);
+    }
+
+    /**
+     * Returns the invalidated ids of the directory, an empty set if none or if
+     * all the entries are invalidated.
+     */
+    public Set<String> getEntryIds(String directoryName) {
+        Set<String> set = ids.get(directoryName);
+        if (set == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(set);
+    }
+
+    @Override
+    public String toString() {
+        if (allDirectories) {
+            return getClass().getSimpleName() + "(all directories)";
+        }
+        return getClass().getSimpleName() + "(ids=" + ids + ", all=" + all
+                + ")";
+    }
+
+}
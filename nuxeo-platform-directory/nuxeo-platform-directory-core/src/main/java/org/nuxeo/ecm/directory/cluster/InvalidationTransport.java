@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.cluster;
+
+import java.util.Map;
+
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Propagates directory cache invalidations between the nodes of a cluster.
+ * <p>
+ * Implementations are called from a single thread, they do not need to be
+ * thread safe.
+ *
+ * @since 5.8
+ */
+public interface InvalidationTransport {
+
+    /**
+     * Starts the transport for the given cluster node.
+     *
+     * @param nodeId the id of the current node, unique in the cluster
+     * @param parameters the parameters of the transport descriptor
+     */
+    void activate(String nodeId, Map<String, String> parameters)
+            throws DirectoryException;
+
+    /**
+     * Sends invalidations to the other nodes of the cluster.
+     */
+    void send(DirectoryInvalidations invalidations) throws DirectoryException;
+
+    /**
+     * Receives the invalidations sent by the other nodes since the last call.
+     *
+     * @return the invalidations, never {@code null}
+     */
+    DirectoryInvalidations receive() throws DirectoryException;
+
+    /**
+     * Stops the transport, removing the current node from the cluster.
+     */
+    void deactivate() throws DirectoryException;
+
+}
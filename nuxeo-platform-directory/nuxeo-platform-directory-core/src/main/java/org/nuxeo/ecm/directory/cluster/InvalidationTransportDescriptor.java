@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.cluster;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XNodeMap;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Configuration of the transport propagating directory cache invalidations
+ * between cluster nodes.
+ *
+ * @since 5.8
+ */
+@XObject("transport")
+public class InvalidationTransportDescriptor {
+
+    @XNode("@class")
+    protected Class<? extends InvalidationTransport> klass;
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    /**
+     * Id of the current node, a random one is generated if missing.
+     */
+    @XNode("nodeId")
+    protected String nodeId;
+
+    /**
+     * Delay in seconds between two exchanges with the other nodes.
+     */
+    @XNode("pollInterval")
+    protected int pollInterval = 10;
+
+    @XNodeMap(value = "parameter", key = "@name", type = HashMap.class, componentType = String.class)
+    protected Map<String, String> parameters = new HashMap<String, String>();
+
+    public Class<? extends InvalidationTransport> getTransportClass() {
+        return klass;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getPollInterval() {
+        return pollInterval;
+    }
+
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+}
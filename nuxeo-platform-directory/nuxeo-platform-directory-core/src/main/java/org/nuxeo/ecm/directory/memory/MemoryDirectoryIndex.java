@@ -0,0 +1,215 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.memory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Per-field indexes of the entries of a memory directory.
+ * <p>
+ * The index of a field is built the first time the field is queried, then
+ * maintained as entries are created, updated and deleted. It maps the values
+ * of the field to entry ids for equality matches, and keeps the lower-cased
+ * values sorted for prefix matches. Matching ids are returned in the order
+ * the entries were created.
+ *
+ * @since 5.8
+ */
+public class MemoryDirectoryIndex {
+
+    protected static class FieldIndex {
+
+        protected final Map<Object, Set<String>> values = new HashMap<Object, Set<String>>();
+
+        protected final NavigableMap<String, Set<String>> prefixes = new TreeMap<String, Set<String>>();
+
+        protected void add(String id, Object value) {
+            add(values, value, id);
+            if (value != null) {
+                add(prefixes, normalize(value), id);
+            }
+        }
+
+        protected void remove(String id, Object value) {
+            remove(values, value, id);
+            if (value != null) {
+                remove(prefixes, normalize(value), id);
+            }
+        }
+
+        protected Set<String> getIds(Object value) {
+            Set<String> ids = values.get(value);
+            return ids == null ? Collections.<String> emptySet() : ids;
+        }
+
+        protected Set<String> getIdsForPrefix(Object prefix) {
+            String key = normalize(prefix);
+            Set<String> ids = new HashSet<String>();
+            for (Entry<String, Set<String>> es : prefixes.tailMap(key, true).entrySet()) {
+                if (!es.getKey().startsWith(key)) {
+                    break;
+                }
+                ids.addAll(es.getValue());
+            }
+            return ids;
+        }
+
+        protected static <K> void add(Map<K, Set<String>> map, K key,
+                String id) {
+            Set<String> ids = map.get(key);
+            if (ids == null) {
+                ids = new HashSet<String>();
+                map.put(key, ids);
+            }
+            ids.add(id);
+        }
+
+        protected static <K> void remove(Map<K, Set<String>> map, K key,
+                String id) {
+            Set<String> ids = map.get(key);
+            if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    protected final Map<String, Map<String, Object>> data;
+
+    protected final Map<String, FieldIndex> fields = new HashMap<String, FieldIndex>();
+
+    // creation order of the entries
+    protected final Map<String, Long> positions = new HashMap<String, Long>();
+
+    protected long nextPosition;
+
+    /**
+     * @param data the entries of the directory, by id, synchronized on
+     *            itself
+     */
+    public MemoryDirectoryIndex(Map<String, Map<String, Object>> data) {
+        this.data = data;
+        synchronized (data) {
+            for (String id : data.keySet()) {
+                positions.put(id, Long.valueOf(nextPosition++));
+            }
+        }
+    }
+
+    /**
+     * Same lower-casing as the scan done before indexes were introduced.
+     */
+    protected static String normalize(Object value) {
+        return value.toString().toLowerCase();
+    }
+
+    public synchronized void add(String id, Map<String, Object> entry) {
+        positions.put(id, Long.valueOf(nextPosition++));
+        for (Entry<String, FieldIndex> es : fields.entrySet()) {
+            es.getValue().add(id, entry.get(es.getKey()));
+        }
+    }
+
+    public synchronized void remove(String id, Map<String, Object> entry) {
+        positions.remove(id);
+        for (Entry<String, FieldIndex> es : fields.entrySet()) {
+            es.getValue().remove(id, entry.get(es.getKey()));
+        }
+    }
+
+    public synchronized void update(String id, Map<String, Object> oldEntry,
+            Map<String, Object> newEntry) {
+        for (Entry<String, FieldIndex> es : fields.entrySet()) {
+            String fieldName = es.getKey();
+            Object oldValue = oldEntry.get(fieldName);
+            Object newValue = newEntry.get(fieldName);
+            if (oldValue == null ? newValue != null
+                    : !oldValue.equals(newValue)) {
+                es.getValue().remove(id, oldValue);
+                es.getValue().add(id, newValue);
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of the entries matching all the values of the filter,
+     * by equality or by case-insensitive prefix for the fulltext fields.
+     */
+    public synchronized List<String> match(Map<String, Object> filter,
+            Set<String> fulltext) {
+        List<Set<String>> candidates = new ArrayList<Set<String>>(
+                filter.size());
+        for (Entry<String, Object> es : filter.entrySet()) {
+            String fieldName = es.getKey();
+            Object expected = es.getValue();
+            FieldIndex index = getFieldIndex(fieldName);
+            Set<String> ids;
+            if (expected != null && fulltext != null
+                    && fulltext.contains(fieldName)) {
+                ids = index.getIdsForPrefix(expected);
+            } else {
+                ids = index.getIds(expected);
+            }
+            if (ids.isEmpty()) {
+                return new ArrayList<String>();
+            }
+            candidates.add(ids);
+        }
+        // intersect starting from the most selective field
+        Collections.sort(candidates, new Comparator<Set<String>>() {
+            @Override
+            public int compare(Set<String> s1, Set<String> s2) {
+                return s1.size() - s2.size();
+            }
+        });
+        List<String> ids = new ArrayList<String>(candidates.get(0));
+        for (int i = 1; i < candidates.size(); i++) {
+            ids.retainAll(candidates.get(i));
+        }
+        Collections.sort(ids, new Comparator<String>() {
+            @Override
+            public int compare(String id1, String id2) {
+                return positions.get(id1).compareTo(positions.get(id2));
+            }
+        });
+        return ids;
+    }
+
+    protected FieldIndex getFieldIndex(String fieldName) {
+        FieldIndex index = fields.get(fieldName);
+        if (index == null) {
+            index = new FieldIndex();
+            synchronized (data) {
+                for (Entry<String, Map<String, Object>> es : data.entrySet()) {
+                    index.add(es.getKey(), es.getValue().get(fieldName));
+                }
+            }
+            fields.put(fieldName, index);
+        }
+        return index;
+    }
+
+}
@@ -51,9 +51,18 @@ public class MemoryDirectorySession extends BaseSession {
 
     protected final Map<String, Map<String, Object>> data;
 
+    /**
+     * Indexes of the data. The data is only changed while holding the lock of
+     * the index, so that both stay consistent.
+     *
+     * @since 5.8
+     */
+    protected final MemoryDirectoryIndex index;
+
     public MemoryDirectorySession(MemoryDirectory directory) {
         this.directory = directory;
         data = Collections.synchronizedMap(new LinkedHashMap<String, Map<String, Object>>());
+        index = new MemoryDirectoryIndex(data);
     }
 
     public boolean authenticate(String username, String password)
@@ -88,13 +97,7 @@ public class MemoryDirectorySession extends BaseSession {
             throw new DirectoryException("Missing id");
         }
         String id = String.valueOf(rawId);
-        Map<String, Object> map = data.get(id);
-        if (map != null) {
-            throw new DirectoryException(String.format(
-                    "Entry with id %s already exists", id));
-        }
-        map = new HashMap<String, Object>();
-        data.put(id, map);
+        Map<String, Object> map = new HashMap<String, Object>();
         // put fields in map
         for (Entry<String, Object> e : fieldMap.entrySet()) {
             String fieldName = e.getKey();
@@ -103,9 +106,25 @@ public class MemoryDirectorySession extends BaseSession {
             }
             map.put(fieldName, e.getValue());
         }
+        synchronized (index) {
+            if (data.containsKey(id)) {
+                throw new DirectoryException(String.format(
+                        "Entry with id %s already exists", id));
+            }
+            data.put(id, map);
+            index.add(id, map);
+        }
         return getEntry(id);
     }
 
+    /**
+     * Looking up entries one by one in memory is as fast as it gets.
+     */
+    @Override
+    public boolean hasBulkEntriesLookup() {
+        return true;
+    }
+
     public DocumentModel getEntry(String id) throws DirectoryException {
         return getEntry(id, true);
     }
@@ -135,12 +154,20 @@ public class MemoryDirectorySession extends BaseSession {
             throw new DirectoryException(e);
         }
 
-        Map<String, Object> map = data.get(id);
-        if (map == null) {
-            throw new DirectoryException("UpdateEntry failed: entry '" + id
-                    + "' not found");
+        synchronized (index) {
+            Map<String, Object> map = data.get(id);
+            if (map == null) {
+                throw new DirectoryException("UpdateEntry failed: entry '"
+                        + id + "' not found");
+            }
+            Map<String, Object> oldMap = new HashMap<String, Object>(map);
+            updateFields(dataModel, map);
+            index.update(id, oldMap, map);
         }
+        dataModel.getDirtyFields().clear();
+    }
 
+    protected void updateFields(DataModel dataModel, Map<String, Object> map) {
         for (String fieldName : directory.schemaSet) {
             try {
                 if (!dataModel.isDirty(fieldName)
@@ -157,7 +184,6 @@ public class MemoryDirectorySession extends BaseSession {
                 throw new ClientRuntimeException(e);
             }
         }
-        dataModel.getDirtyFields().clear();
     }
 
     public DocumentModelList getEntries() throws DirectoryException {
@@ -169,7 +195,12 @@ public class MemoryDirectorySession extends BaseSession {
     }
 
     public void deleteEntry(String id) throws DirectoryException {
-        data.remove(id);
+        synchronized (index) {
+            Map<String, Object> map = data.remove(id);
+            if (map != null) {
+                index.remove(id, map);
+            }
+        }
     }
 
     // given our storage model this doesn't even make sense, as id field is
@@ -229,32 +260,20 @@ public class MemoryDirectorySession extends BaseSession {
             filt.put(fieldName, e.getValue());
         }
         // do the search
-        data_loop: for (Entry<String, Map<String, Object>> datae : data.entrySet()) {
-            String id = datae.getKey();
-            Map<String, Object> map = datae.getValue();
-            for (Entry<String, Object> e : filt.entrySet()) {
-                String fieldName = e.getKey();
-                Object expected = e.getValue();
-                Object value = map.get(fieldName);
-                if (value == null) {
-                    if (expected != null) {
-                        continue data_loop;
-                    }
-                } else {
-                    if (fulltext != null && fulltext.contains(fieldName)) {
-                        if (!value.toString().toLowerCase().startsWith(
-                                expected.toString().toLowerCase())) {
-                            continue data_loop;
-                        }
-                    } else {
-                        if (!value.equals(expected)) {
-                            continue data_loop;
-                        }
-                    }
-                }
+        List<String> ids;
+        if (filt.isEmpty()) {
+            synchronized (data) {
+                ids = new ArrayList<String>(data.keySet());
+            }
+        } else {
+            ids = index.match(filt, fulltext);
+        }
+        for (String id : ids) {
+            DocumentModel entry = getEntry(id);
+            if (entry != null) {
+                // this entry matches
+                results.add(entry);
             }
-            // this entry matches
-            results.add(getEntry(id));
         }
         // order entries
         if (orderBy != null && !orderBy.isEmpty()) {
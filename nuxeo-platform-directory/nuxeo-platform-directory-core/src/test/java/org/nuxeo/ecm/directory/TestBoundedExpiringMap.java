@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestBoundedExpiringMap {
+
+    protected long now;
+
+    protected final List<String> evicted = new ArrayList<String>();
+
+    protected BoundedExpiringMap<String, String> newMap(int maxSize,
+            long timeout) {
+        return new BoundedExpiringMap<String, String>(maxSize, timeout,
+                TimeUnit.SECONDS) {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+
+            @Override
+            protected void entryEvicted(String key) {
+                evicted.add(key);
+            }
+        };
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        BoundedExpiringMap<String, String> map = newMap(2, 0);
+        map.put("a", "1");
+        map.put("b", "2");
+        // touch a so that b becomes the eldest entry
+        assertEquals("1", map.get("a"));
+        map.put("c", "3");
+        assertEquals(2, map.size());
+        assertNull(map.get("b"));
+        assertEquals("1", map.get("a"));
+        assertEquals("3", map.get("c"));
+        assertEquals("[b]", evicted.toString());
+    }
+
+    @Test
+    public void testExpiration() {
+        BoundedExpiringMap<String, String> map = newMap(10, 1);
+        map.put("a", "1");
+        map.put("b", "2", 0, TimeUnit.SECONDS);
+        now += TimeUnit.MILLISECONDS.toNanos(999);
+        assertEquals("1", map.get("a"));
+        now += TimeUnit.MILLISECONDS.toNanos(2);
+        assertNull(map.get("a"));
+        assertEquals(1, map.size());
+        // entries put without time out never expire
+        now += TimeUnit.DAYS.toNanos(1);
+        assertEquals("2", map.get("b"));
+    }
+
+    @Test
+    public void testNullValues() {
+        BoundedExpiringMap<String, String> map = newMap(10, 1);
+        map.put("a", null);
+        assertNull(map.get("a"));
+        assertTrue(map.containsKey("a"));
+        assertFalse(map.containsKey("b"));
+        now += TimeUnit.SECONDS.toNanos(2);
+        assertFalse(map.containsKey("a"));
+    }
+
+    @Test
+    public void testRemoveAndClear() {
+        BoundedExpiringMap<String, String> map = newMap(10, 0);
+        map.put("a", "1");
+        map.put("b", "2");
+        assertTrue(map.remove("a"));
+        assertFalse(map.remove("a"));
+        assertEquals(1, map.clear());
+        assertEquals(0, map.size());
+    }
+
+}
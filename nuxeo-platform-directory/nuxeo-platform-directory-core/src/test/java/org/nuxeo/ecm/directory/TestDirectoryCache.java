@@ -0,0 +1,242 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.runtime.test.NXRuntimeTestCase;
+
+public class TestDirectoryCache extends NXRuntimeTestCase {
+
+    static final String SCHEMA_NAME = "myschema";
+
+    protected static class CountingSource implements EntrySource {
+
+        protected final AtomicInteger fetches = new AtomicInteger();
+
+        protected CountDownLatch latch;
+
+        @Override
+        public DocumentModel getEntryFromSource(String entryId,
+                boolean fetchReferences) throws DirectoryException {
+            fetches.incrementAndGet();
+            if (latch != null) {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new DirectoryException(e);
+                }
+            }
+            if (entryId.startsWith("missing")) {
+                return null;
+            }
+            return BaseSession.createEntryModel(null, SCHEMA_NAME, entryId,
+                    null);
+        }
+    }
+
+    protected DirectoryCache cache;
+
+    protected CountingSource source;
+
+    // time seen by the cache, in nanoseconds
+    protected long now;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        deployBundle("org.nuxeo.ecm.core.schema");
+        deployContrib("org.nuxeo.ecm.directory.core.tests", "test-schema.xml");
+        cache = new DirectoryCache("testcache") {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+        };
+        cache.setMaxSize(100);
+        source = new CountingSource();
+    }
+
+    @Test
+    public void testHitsAndInvalidation() throws Exception {
+        DocumentModel entry = cache.getEntry("1", source);
+        assertNotNull(entry);
+        assertEquals("1", entry.getId());
+        cache.getEntry("1", source);
+        assertEquals(1, source.fetches.get());
+
+        // entries without references are stored separately
+        cache.getEntry("1", source, false);
+        assertEquals(2, source.fetches.get());
+
+        cache.invalidate("1");
+        cache.getEntry("1", source);
+        cache.getEntry("1", source, false);
+        assertEquals(4, source.fetches.get());
+
+        cache.invalidateAll();
+        cache.getEntry("1", source);
+        assertEquals(5, source.fetches.get());
+    }
+
+    @Test
+    public void testNullEntriesAreNotCached() throws Exception {
+        assertNull(cache.getEntry("missing", source));
+        assertNull(cache.getEntry("missing", source));
+        assertEquals(2, source.fetches.get());
+    }
+
+    @Test
+    public void testNegativeCache() throws Exception {
+        cache.setNegativeMaxSize(10);
+        assertNull(cache.hasEntry("missing"));
+        assertNull(cache.getEntry("missing", source));
+        assertNull(cache.getEntry("missing", source));
+        assertNull(cache.getEntry("missing", source, false));
+        assertEquals(1, source.fetches.get());
+        assertEquals(Boolean.FALSE, cache.hasEntry("missing"));
+
+        // existence checks populate the caches
+        assertEquals(Boolean.TRUE, cache.hasEntry("1", source));
+        assertEquals(Boolean.TRUE, cache.hasEntry("1", source));
+        assertEquals(Boolean.FALSE, cache.hasEntry("missing2", source));
+        assertEquals(Boolean.FALSE, cache.hasEntry("missing2", source));
+        assertEquals(3, source.fetches.get());
+
+        // entry creation invalidates the missing entry
+        cache.invalidate("missing");
+        assertNull(cache.hasEntry("missing"));
+        cache.getEntry("missing", source);
+        assertEquals(4, source.fetches.get());
+        cache.invalidateAll();
+        cache.getEntry("missing", source);
+        assertEquals(5, source.fetches.get());
+    }
+
+    @Test
+    public void testNegativeCacheExpiration() throws Exception {
+        cache.setNegativeMaxSize(10);
+        cache.setNegativeTimeout(1);
+        cache.getEntry("missing", source);
+        cache.getEntry("missing", source);
+        assertEquals(1, source.fetches.get());
+        now += TimeUnit.MILLISECONDS.toNanos(999);
+        cache.getEntry("missing", source);
+        assertEquals(1, source.fetches.get());
+        now += TimeUnit.MILLISECONDS.toNanos(2);
+        cache.getEntry("missing", source);
+        assertEquals(2, source.fetches.get());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        cache.setMaxSize(3);
+        cache.getEntry("1", source);
+        cache.getEntry("2", source);
+        cache.getEntry("3", source);
+        // touch 1 so that 2 becomes the eldest entry
+        cache.getEntry("1", source);
+        cache.getEntry("4", source);
+        assertEquals(4, source.fetches.get());
+
+        cache.getEntry("1", source);
+        cache.getEntry("3", source);
+        cache.getEntry("4", source);
+        assertEquals(4, source.fetches.get());
+        cache.getEntry("2", source);
+        assertEquals(5, source.fetches.get());
+    }
+
+    @Test
+    public void testBoundedSize() throws Exception {
+        cache.setMaxSize(1000);
+        for (int i = 0; i < 5000; i++) {
+            cache.getEntry(String.valueOf(i), source);
+        }
+        source.fetches.set(0);
+        for (int i = 0; i < 5000; i++) {
+            cache.getEntry(String.valueOf(i), source);
+        }
+        // each entry fetched again counts as a miss
+        int cached = 5000 - source.fetches.get();
+        assertTrue("Too many cached entries: " + cached, cached <= 1000);
+    }
+
+    @Test
+    public void testConcurrentMissesFetchOnce() throws Exception {
+        source.latch = new CountDownLatch(1);
+        int nbThreads = 10;
+        final CountDownLatch started = new CountDownLatch(nbThreads);
+        final List<DocumentModel> results = Collections.synchronizedList(new ArrayList<DocumentModel>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < nbThreads; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        results.add(cache.getEntry("1", source));
+                    } catch (DirectoryException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        started.await(10, TimeUnit.SECONDS);
+        // give the threads a chance to register on the pending fetch
+        Thread.sleep(200);
+        source.latch.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals(nbThreads, results.size());
+        for (DocumentModel result : results) {
+            assertEquals("1", result.getId());
+        }
+        assertEquals(1, source.fetches.get());
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        cache.setTimeout(1);
+        cache.getEntry("1", source);
+        cache.getEntry("1", source);
+        assertEquals(1, source.fetches.get());
+        now += TimeUnit.MILLISECONDS.toNanos(999);
+        cache.getEntry("1", source);
+        assertEquals(1, source.fetches.get());
+        now += TimeUnit.MILLISECONDS.toNanos(2);
+        cache.getEntry("1", source);
+        assertEquals(2, source.fetches.get());
+    }
+
+}
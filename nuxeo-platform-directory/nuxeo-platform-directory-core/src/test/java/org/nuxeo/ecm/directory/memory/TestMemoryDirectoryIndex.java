@@ -0,0 +1,200 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMemoryDirectoryIndex {
+
+    private static final Log log = LogFactory.getLog(TestMemoryDirectoryIndex.class);
+
+    protected Map<String, Map<String, Object>> data;
+
+    protected MemoryDirectoryIndex index;
+
+    @Before
+    public void setUp() {
+        data = Collections.synchronizedMap(new LinkedHashMap<String, Map<String, Object>>());
+        index = new MemoryDirectoryIndex(data);
+    }
+
+    protected void add(String id, Object... fields) {
+        Map<String, Object> entry = new HashMap<String, Object>();
+        for (int i = 0; i < fields.length; i += 2) {
+            entry.put((String) fields[i], fields[i + 1]);
+        }
+        data.put(id, entry);
+        index.add(id, entry);
+    }
+
+    protected static Map<String, Object> filter(Object... fields) {
+        Map<String, Object> filter = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < fields.length; i += 2) {
+            filter.put((String) fields[i], fields[i + 1]);
+        }
+        return filter;
+    }
+
+    /**
+     * Matching as done by scanning all the entries.
+     */
+    protected List<String> scan(Map<String, Object> filter,
+            Set<String> fulltext) {
+        List<String> ids = new ArrayList<String>();
+        data_loop: for (Entry<String, Map<String, Object>> datae : data.entrySet()) {
+            for (Entry<String, Object> e : filter.entrySet()) {
+                Object expected = e.getValue();
+                Object value = datae.getValue().get(e.getKey());
+                if (value == null) {
+                    if (expected != null) {
+                        continue data_loop;
+                    }
+                } else if (fulltext.contains(e.getKey())) {
+                    if (!value.toString().toLowerCase().startsWith(
+                            expected.toString().toLowerCase())) {
+                        continue data_loop;
+                    }
+                } else if (!value.equals(expected)) {
+                    continue data_loop;
+                }
+            }
+            ids.add(datae.getKey());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testMatch() {
+        add("1", "label", "Paris", "country", "fr", "ordering", 1L);
+        add("2", "label", "Parma", "country", "it", "ordering", 2L);
+        add("3", "label", "Lyon", "country", "fr");
+        add("4", "label", "paris", "country", "us", "ordering", 4L);
+        Set<String> fulltext = Collections.singleton("label");
+        Set<String> none = Collections.emptySet();
+
+        assertEquals(Arrays.asList("1", "3"),
+                index.match(filter("country", "fr"), none));
+        assertEquals(Arrays.asList("1", "2", "4"),
+                index.match(filter("label", "PAR"), fulltext));
+        assertEquals(Arrays.asList("1", "4"),
+                index.match(filter("label", "paris"), fulltext));
+        assertEquals(Arrays.asList("1"),
+                index.match(filter("label", "Par", "country", "fr"), fulltext));
+        assertEquals(Arrays.asList("2"),
+                index.match(filter("ordering", 2L), none));
+        assertEquals(Arrays.asList("3"),
+                index.match(filter("ordering", null), none));
+        // no prefix match without fulltext
+        assertTrue(index.match(filter("label", "Par"), none).isEmpty());
+        assertTrue(index.match(filter("label", "x"), fulltext).isEmpty());
+    }
+
+    @Test
+    public void testMaintenance() {
+        add("1", "label", "Paris", "country", "fr");
+        add("2", "label", "Lyon", "country", "fr");
+        Set<String> fulltext = Collections.singleton("label");
+        // build the indexes
+        assertEquals(Arrays.asList("1", "2"),
+                index.match(filter("country", "fr"), fulltext));
+        assertEquals(Arrays.asList("1"),
+                index.match(filter("label", "p"), fulltext));
+
+        add("3", "label", "Pau", "country", "fr");
+        assertEquals(Arrays.asList("1", "3"),
+                index.match(filter("label", "p", "country", "fr"), fulltext));
+
+        // an update keeps the creation order
+        Map<String, Object> entry = data.get("1");
+        Map<String, Object> oldEntry = new HashMap<String, Object>(entry);
+        entry.put("label", "Lille");
+        index.update("1", oldEntry, entry);
+        assertEquals(Arrays.asList("1", "2"),
+                index.match(filter("label", "l"), fulltext));
+        assertEquals(Arrays.asList("3"),
+                index.match(filter("label", "p"), fulltext));
+
+        index.remove("2", data.remove("2"));
+        assertEquals(Arrays.asList("1"),
+                index.match(filter("label", "l"), fulltext));
+        assertEquals(Arrays.asList("1", "3"),
+                index.match(filter("country", "fr"), fulltext));
+    }
+
+    /**
+     * Compares the indexed matching with a scan of all the entries on a large
+     * vocabulary.
+     */
+    @Test
+    public void testLargeVocabulary() {
+        int nbEntries = 100000;
+        String[] countries = { "fr", "it", "us", "de", "jp" };
+        for (int i = 0; i < nbEntries; i++) {
+            add(String.valueOf(i), "label", "Label " + Integer.toString(i, 36),
+                    "country", countries[i % countries.length]);
+        }
+        Set<String> fulltext = Collections.singleton("label");
+        List<Map<String, Object>> filters = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 25; i++) {
+            String prefix = "label " + Integer.toString(i * 997, 36);
+            filters.add(filter("label", prefix));
+            filters.add(filter("label", prefix, "country", "fr"));
+        }
+        // warm up and build the indexes
+        for (Map<String, Object> filter : filters) {
+            assertEquals(scan(filter, fulltext), index.match(filter, fulltext));
+        }
+
+        // timings are only logged, they depend too much on the machine to
+        // be asserted
+        List<List<String>> scanResults = new ArrayList<List<String>>();
+        long start = System.nanoTime();
+        for (Map<String, Object> filter : filters) {
+            scanResults.add(scan(filter, fulltext));
+        }
+        long scanTime = System.nanoTime() - start;
+        List<List<String>> indexResults = new ArrayList<List<String>>();
+        start = System.nanoTime();
+        for (Map<String, Object> filter : filters) {
+            indexResults.add(index.match(filter, fulltext));
+        }
+        long indexTime = System.nanoTime() - start;
+        log.info(String.format(
+                "%s prefix queries on %s entries: %sms with a scan, %sms with indexes",
+                Integer.valueOf(filters.size()), Integer.valueOf(nbEntries),
+                Long.valueOf(scanTime / 1000000),
+                Long.valueOf(indexTime / 1000000)));
+        assertEquals(scanResults, indexResults);
+    }
+
+}
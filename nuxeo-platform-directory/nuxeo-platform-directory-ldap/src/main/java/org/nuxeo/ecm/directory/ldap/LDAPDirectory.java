@@ -35,10 +35,13 @@ import java.util.Properties;
 import java.util.Set;
 
 import javax.naming.Context;
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
+import javax.naming.ldap.InitialLdapContext;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
@@ -74,6 +77,8 @@ public class LDAPDirectory extends AbstractDirectory {
     // special field key to be able to read the DN of an LDAP entry
     public static final String DN_SPECIAL_ATTRIBUTE_KEY = "dn";
 
+    protected static final String SUPPORTED_CONTROL_ATTRIBUTE = "supportedControl";
+
     protected final LDAPDirectoryDescriptor config;
 
     protected final Properties contextProperties;
@@ -89,6 +94,13 @@ public class LDAPDirectory extends AbstractDirectory {
     // the following attribute is only used for testing purpose
     protected ContextProvider testServer;
 
+    /**
+     * Controls advertised by the server, lazily computed.
+     *
+     * @since 5.8
+     */
+    protected volatile Set<String> supportedControls;
+
     public LDAPDirectory(LDAPDirectoryDescriptor config) throws ClientException {
         super(config.name);
         this.config = config;
@@ -140,6 +152,8 @@ public class LDAPDirectory extends AbstractDirectory {
         // cache parameterization
         cache.setMaxSize(config.getCacheMaxSize());
         cache.setTimeout(config.getCacheTimeout());
+        cache.setNegativeMaxSize(config.getNegativeCacheMaxSize());
+        cache.setNegativeTimeout(config.getNegativeCacheTimeout());
 
         log.debug(String.format(
                 "initialized LDAP directory %s with fields [%s] and references [%s]",
@@ -303,7 +317,7 @@ public class LDAPDirectory extends AbstractDirectory {
                 String ldapUrls = serverConfig.getLdapUrls();
                 contextProperties.put(Context.PROVIDER_URL, ldapUrls);
             }
-            return new InitialDirContext(contextProperties);
+            return new InitialLdapContext(contextProperties, null);
         } catch (NamingException e) {
             throw new DirectoryException("Cannot connect to LDAP directory '"
                     + getName() + "': " + e.getMessage(), e);
@@ -382,8 +396,79 @@ public class LDAPDirectory extends AbstractDirectory {
         return schemaFieldMap;
     }
 
+    @Override
+    public void invalidateCaches() throws DirectoryException {
+        super.invalidateCaches();
+        invalidateDnCaches();
+    }
+
+    @Override
+    public void invalidateDirectoryCache() throws DirectoryException {
+        super.invalidateDirectoryCache();
+        invalidateDnCaches();
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        super.shutdown();
+        for (Reference reference : getReferences()) {
+            if (reference instanceof LDAPReference) {
+                ((LDAPReference) reference).shutdown();
+            }
+        }
+    }
+
+    /**
+     * Forgets the DN to id mappings cached by the references of this
+     * directory.
+     *
+     * @since 5.8
+     */
+    protected void invalidateDnCaches() {
+        for (Reference reference : getReferences()) {
+            if (reference instanceof LDAPReference) {
+                ((LDAPReference) reference).invalidateDnCache();
+            }
+        }
+    }
+
     public void setTestServer(ContextProvider testServer) {
         this.testServer = testServer;
+        supportedControls = null;
+    }
+
+    /**
+     * Checks if the server advertises support for a control in the
+     * {@code supportedControl} attribute of its root DSE. The server
+     * capabilities are read once, or again on the next call if they could
+     * not be read.
+     *
+     * @param oid the control OID
+     * @since 5.8
+     */
+    public boolean supportsControl(DirContext context, String oid) {
+        Set<String> controls = supportedControls;
+        if (controls == null) {
+            controls = new HashSet<String>();
+            try {
+                Attributes attributes = context.getAttributes("",
+                        new String[] { SUPPORTED_CONTROL_ATTRIBUTE });
+                Attribute attribute = attributes.get(SUPPORTED_CONTROL_ATTRIBUTE);
+                if (attribute != null) {
+                    NamingEnumeration<?> values = attribute.getAll();
+                    while (values.hasMore()) {
+                        controls.add(String.valueOf(values.next()));
+                    }
+                }
+            } catch (NamingException e) {
+                // don't remember a transient failure, retry next time
+                log.debug("Cannot read the controls supported by the server of directory "
+                        + getName() + ": " + e.getMessage());
+                return false;
+            }
+            supportedControls = controls;
+        }
+        return controls.contains(oid);
     }
 
     /**
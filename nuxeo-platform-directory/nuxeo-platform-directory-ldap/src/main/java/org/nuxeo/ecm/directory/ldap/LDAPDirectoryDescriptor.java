@@ -69,6 +69,18 @@ public class LDAPDirectoryDescriptor {
     @XNode("cacheMaxSize")
     public int cacheMaxSize = 0;
 
+    /**
+     * @since 5.8
+     */
+    @XNode("negativeCacheTimeout")
+    public int negativeCacheTimeout = 0;
+
+    /**
+     * @since 5.8
+     */
+    @XNode("negativeCacheMaxSize")
+    public int negativeCacheMaxSize = 0;
+
     @XNodeMap(value = "fieldMapping", key = "@name", type = HashMap.class, componentType = String.class)
     public Map<String, String> fieldMapping = new HashMap<String, String>();
 
@@ -336,6 +348,20 @@ public class LDAPDirectoryDescriptor {
         return cacheMaxSize;
     }
 
+    /**
+     * @since 5.8
+     */
+    public int getNegativeCacheTimeout() {
+        return negativeCacheTimeout;
+    }
+
+    /**
+     * @since 5.8
+     */
+    public int getNegativeCacheMaxSize() {
+        return negativeCacheMaxSize;
+    }
+
     public int getQuerySizeLimit() {
         return querySizeLimit;
     }
@@ -22,9 +22,21 @@ package org.nuxeo.ecm.directory.ldap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.naming.CompositeName;
 import javax.naming.InvalidNameException;
@@ -96,6 +108,45 @@ public class LDAPReference extends AbstractReference {
 
     protected LDAPDirectoryDescriptor targetDirectoryDescriptor;
 
+    /**
+     * Maximum number of member DNs resolved with a single LDAP search.
+     *
+     * @since 5.8
+     */
+    @XNode("@dnResolutionBatchSize")
+    protected int dnResolutionBatchSize = 100;
+
+    /**
+     * Number of threads used to run the batches of DN resolution
+     * concurrently, 1 to run them sequentially.
+     *
+     * @since 5.8
+     */
+    @XNode("@dnResolutionThreads")
+    protected int dnResolutionThreads = 1;
+
+    /**
+     * Maximum number of DN to id mappings kept in cache.
+     *
+     * @since 5.8
+     */
+    @XNode("@dnCacheMaxSize")
+    protected int dnCacheMaxSize = 10000;
+
+    /**
+     * Time in seconds after which cached DN to id mappings expire, 0 for
+     * never and a negative value to disable the cache.
+     *
+     * @since 5.8
+     */
+    @XNode("@dnCacheTimeout")
+    protected int dnCacheTimeout = 300;
+
+    protected volatile DnCache dnCache;
+
+    protected ExecutorService dnResolutionExecutor;
+
+
     /**
      * Resolve staticAttributeId as distinguished names (true by default) such
      * as in the uniqueMember field of groupOfUniqueNames. Set to false to
@@ -236,7 +287,7 @@ public class LDAPReference extends AbstractReference {
     @Override
     public void addLinks(String sourceId, List<String> targetIds)
             throws DirectoryException {
-
+        invalidateDnCache();
         if (targetIds.isEmpty()) {
             // optim: nothing to do, return silently without further creating
             // session instances
@@ -364,6 +415,7 @@ public class LDAPReference extends AbstractReference {
     @Override
     public void addLinks(List<String> sourceIds, String targetId)
             throws DirectoryException {
+        invalidateDnCache();
         String attributeId = getStaticAttributeId();
         if (attributeId == null && !sourceIds.isEmpty()) {
             log.warn("trying to edit a non-static reference: ignoring");
@@ -784,6 +836,7 @@ public class LDAPReference extends AbstractReference {
             }
 
             if (staticAttribute != null && staticAttributeIdIsDn) {
+                List<String> dns = new ArrayList<String>();
                 NamingEnumeration<?> targetDns = staticAttribute.getAll();
                 try {
                     while (targetDns.hasMore()) {
@@ -798,53 +851,23 @@ public class LDAPReference extends AbstractReference {
                             }
                             continue;
                         }
-                        // find the id of the referenced entry
-                        String id = null;
-
-                        if (targetSession.rdnMatchesIdField()) {
+                        if (targetSession.rdnMatchesIdField()
+                                && !forceDnConsistencyCheck) {
                             // optim: do not fetch the entry to get its true id
-                            // but
-                            // guess it by reading the targetDn
-                            LdapName name = new LdapName(targetDn);
-                            String rdn = name.get(name.size() - 1);
-                            int pos = rdn.indexOf("=");
-                            id = rdn.substring(pos + 1);
+                            // but guess it by reading the targetDn
+                            targetIds.add(getRdnValue(targetDn));
                         } else {
-                            id = getIdForDn(targetSession, targetDn);
-                            if (id == null) {
-                                log.warn(String.format(
-                                        "ignoring target '%s' (missing attribute '%s') while resolving reference '%s'",
-                                        targetDn, targetSession.idAttribute,
-                                        this));
-                                continue;
-                            }
-                        }
-                        if (forceDnConsistencyCheck) {
-                            // check that the referenced entry is actually part
-                            // of
-                            // the target directory (takes care of the filters
-                            // and
-                            // the scope)
-                            // this check can be very expensive on large groups
-                            // and thus not enabled by default
-                            if (!targetSession.hasEntry(id)) {
-                                if (log.isTraceEnabled()) {
-                                    log.trace(String.format(
-                                            "ignoring target '%s' when resolving '%s' (not part of target"
-                                                    + " directory by forced DN consistency check)",
-                                            targetDn, this));
-                                }
-                                continue;
-                            }
-                        }
-                        // NXP-2461: check that id field is filled
-                        if (id != null) {
-                            targetIds.add(id);
+                            dns.add(targetDn);
                         }
                     }
                 } finally {
                     targetDns.close();
                 }
+                if (!dns.isEmpty()) {
+                    // NXP-2461: only entries with a filled id field are
+                    // returned
+                    targetIds.addAll(getIdsForDns(targetSession, dns).values());
+                }
             }
             // step #2: fetched dynamically referenced ids
             String dynamicAttributeId = this.dynamicAttributeId;
@@ -961,6 +984,303 @@ public class LDAPReference extends AbstractReference {
         }
     }
 
+    protected static String getRdnValue(String dn) throws InvalidNameException {
+        LdapName name = new LdapName(dn);
+        String rdn = name.get(name.size() - 1);
+        int pos = rdn.indexOf("=");
+        return rdn.substring(pos + 1);
+    }
+
+    /**
+     * Resolves the ids of the target entries with the given DNs.
+     * <p>
+     * The DNs are looked up in batches of {@link #dnResolutionBatchSize}
+     * with a single search in the target directory per batch, which also
+     * takes care of the DN consistency check (filters and scope of the
+     * target directory) in the same pass. Batches are run concurrently when
+     * {@link #dnResolutionThreads} is greater than 1. Resolved ids are kept in
+     * a bounded cache.
+     *
+     * @return a map of the resolvable DNs to their target id
+     * @since 5.8
+     */
+    protected Map<String, String> getIdsForDns(LDAPSession targetSession,
+            List<String> dns) throws DirectoryException, NamingException {
+        Map<String, String> ids = new LinkedHashMap<String, String>();
+        List<String> missing = new ArrayList<String>();
+        DnCache cache = getDnCache();
+        for (String dn : dns) {
+            String cached = cache.get(pseudoNormalizeDn(dn));
+            if (cached == null) {
+                missing.add(dn);
+            } else if (cached != DnCache.NOT_FOUND) {
+                ids.put(dn, cached);
+            }
+        }
+        if (missing.isEmpty()) {
+            return ids;
+        }
+        Map<String, String> found = new HashMap<String, String>();
+        int batchSize = Math.max(1, dnResolutionBatchSize);
+        List<List<String>> batches = new ArrayList<List<String>>();
+        for (int i = 0; i < missing.size(); i += batchSize) {
+            batches.add(missing.subList(i,
+                    Math.min(i + batchSize, missing.size())));
+        }
+        if (batches.size() > 1 && dnResolutionThreads > 1) {
+            List<Future<Map<String, String>>> futures = new ArrayList<Future<Map<String, String>>>();
+            for (final List<String> batch : batches) {
+                futures.add(getDnResolutionExecutor().submit(
+                        new Callable<Map<String, String>>() {
+                            @Override
+                            public Map<String, String> call()
+                                    throws Exception {
+                                LDAPSession session = (LDAPSession) getTargetDirectory().getSession();
+                                try {
+                                    return searchIdsForDns(session, batch);
+                                } finally {
+                                    session.close();
+                                }
+                            }
+                        }));
+            }
+            try {
+                for (Future<Map<String, String>> future : futures) {
+                    found.putAll(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DirectoryException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof NamingException) {
+                    throw (NamingException) cause;
+                }
+                throw new DirectoryException(
+                        "error resolving LDAP references", cause);
+            } finally {
+                for (Future<Map<String, String>> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        } else {
+            for (List<String> batch : batches) {
+                found.putAll(searchIdsForDns(targetSession, batch));
+            }
+        }
+        for (String dn : missing) {
+            String id = found.get(dn);
+            if (id == null && !forceDnConsistencyCheck) {
+                // the entry may lie outside of the search scope of the
+                // target directory: fetch it directly
+                id = getIdForDn(targetSession, dn);
+                if (id == null) {
+                    log.warn(String.format(
+                            "ignoring target '%s' (missing attribute '%s') while resolving reference '%s'",
+                            dn, targetSession.idAttribute, this));
+                }
+            } else if (id == null && log.isTraceEnabled()) {
+                log.trace(String.format(
+                        "ignoring target '%s' when resolving '%s' (not part of target"
+                                + " directory by forced DN consistency check)",
+                        dn, this));
+            }
+            cache.put(pseudoNormalizeDn(dn), id);
+            if (id != null) {
+                ids.put(dn, id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Looks up the entries of the target directory with the given DNs using
+     * a single search whose filter ORs the RDNs of the DNs.
+     *
+     * @return a map of the found DNs to their target id
+     * @since 5.8
+     */
+    protected Map<String, String> searchIdsForDns(LDAPSession session,
+            List<String> dns) throws NamingException {
+        LDAPDirectory targetDirectory = (LDAPDirectory) session.getDirectory();
+        Map<String, String> normalizedDns = new HashMap<String, String>();
+        StringBuilder filterExpr = new StringBuilder("(&");
+        filterExpr.append(targetDirectory.getBaseFilter()).append("(|");
+        Object[] filterArgs = new Object[dns.size()];
+        int i = 0;
+        for (String dn : dns) {
+            normalizedDns.put(pseudoNormalizeDn(dn), dn);
+            LdapName name = new LdapName(dn);
+            Rdn rdn = name.getRdn(name.size() - 1);
+            filterExpr.append('(').append(rdn.getType()).append("={").append(
+                    i).append("})");
+            filterArgs[i++] = rdn.getValue().toString();
+        }
+        filterExpr.append("))");
+
+        SearchControls scts = new SearchControls();
+        scts.setSearchScope(targetDirectory.getConfig().getSearchScope());
+        scts.setReturningAttributes(new String[] { session.idAttribute });
+        String searchBaseDn = targetDirectory.getConfig().getSearchBaseDn();
+
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(
+                    "LDAPReference.searchIdsForDns(session, %s dns): LDAP search base='%s' filter='%s'"
+                            + " scope='%s' [%s]", dns.size(), searchBaseDn,
+                    filterExpr, scts.getSearchScope(), this));
+        }
+        Map<String, String> ids = new HashMap<String, String>();
+        NamingEnumeration<SearchResult> results = session.dirContext.search(
+                searchBaseDn, filterExpr.toString(), filterArgs, scts);
+        try {
+            while (results.hasMore()) {
+                SearchResult result = results.next();
+                String dn = normalizedDns.get(pseudoNormalizeDn(result.getNameInNamespace()));
+                if (dn == null) {
+                    // same rdn but another entry
+                    continue;
+                }
+                Attribute attr = result.getAttributes().get(
+                        session.idAttribute);
+                if (attr != null && attr.get() != null) {
+                    ids.put(dn, attr.get().toString());
+                }
+            }
+        } finally {
+            results.close();
+        }
+        return ids;
+    }
+
+    protected DnCache getDnCache() {
+        DnCache cache = dnCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = dnCache;
+                if (cache == null) {
+                    dnCache = cache = new DnCache(dnCacheMaxSize,
+                            dnCacheTimeout);
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Forgets the cached DN to id mappings, after a write in the source or
+     * target directory.
+     *
+     * @since 5.8
+     */
+    public void invalidateDnCache() {
+        DnCache cache = dnCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Stops the threads resolving DNs, when the directory is shut down.
+     *
+     * @since 5.8
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (dnResolutionExecutor != null) {
+                dnResolutionExecutor.shutdown();
+                dnResolutionExecutor = null;
+            }
+        }
+    }
+
+    protected ExecutorService getDnResolutionExecutor() {
+        synchronized (this) {
+            if (dnResolutionExecutor == null) {
+                // when all threads are busy and a few batches are waiting,
+                // the caller resolves the next batch itself
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                        dnResolutionThreads, dnResolutionThreads, 60,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(dnResolutionThreads),
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r,
+                                        "Nuxeo-LDAPReference-"
+                                                + sourceDirectoryName + "-"
+                                                + fieldName);
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        }, new RejectedExecutionHandler() {
+                            @Override
+                            public void rejectedExecution(Runnable r,
+                                    ThreadPoolExecutor executor) {
+                                // also when shut down, as the caller waits
+                                // for the result
+                                r.run();
+                            }
+                        });
+                executor.allowCoreThreadTimeOut(true);
+                dnResolutionExecutor = executor;
+            }
+            return dnResolutionExecutor;
+        }
+    }
+
+    /**
+     * Bounded LRU cache of the ids of target DNs, with expiration. DNs that
+     * cannot be resolved are cached as {@link #NOT_FOUND}.
+     *
+     * @since 5.8
+     */
+    protected static class DnCache {
+
+        protected static final String NOT_FOUND = new String();
+
+        protected final Map<String, Object[]> map;
+
+        protected final long timeoutMillis;
+
+        protected DnCache(final int maxSize, int timeout) {
+            timeoutMillis = timeout * 1000L;
+            map = new LinkedHashMap<String, Object[]>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, Object[]> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        protected synchronized String get(String dn) {
+            Object[] entry = map.get(dn);
+            if (entry == null) {
+                return null;
+            }
+            if (timeoutMillis > 0
+                    && System.currentTimeMillis() > (Long) entry[1]) {
+                map.remove(dn);
+                return null;
+            }
+            return (String) entry[0];
+        }
+
+        protected synchronized void put(String dn, String id) {
+            if (timeoutMillis < 0) {
+                return;
+            }
+            map.put(dn, new Object[] { id == null ? NOT_FOUND : id,
+                    System.currentTimeMillis() + timeoutMillis });
+        }
+
+        protected synchronized void clear() {
+            map.clear();
+        }
+    }
+
     protected String getIdForDn(LDAPSession session, String dn) {
         // the entry id is not based on the rdn, we thus need to
         // fetch the LDAP entry to grab it
@@ -1078,6 +1398,7 @@ public class LDAPReference extends AbstractReference {
      */
     @Override
     public void removeLinksForSource(String sourceId) throws DirectoryException {
+        invalidateDnCache();
         LDAPDirectory targetDirectory = (LDAPDirectory) getTargetDirectory();
         LDAPDirectory sourceDirectory = (LDAPDirectory) getSourceDirectory();
         LDAPSession sourceSession = (LDAPSession) sourceDirectory.getSession();
@@ -1190,6 +1511,7 @@ public class LDAPReference extends AbstractReference {
      */
     @Override
     public void removeLinksForTarget(String targetId) throws DirectoryException {
+        invalidateDnCache();
         if (!isStatic()) {
             // nothing to do: dynamic references cannot be updated
             return;
@@ -1380,6 +1702,10 @@ public class LDAPReference extends AbstractReference {
     public LDAPReference clone() {
         LDAPReference clone = (LDAPReference) super.clone();
         clone.forceDnConsistencyCheck = forceDnConsistencyCheck;
+        clone.dnResolutionBatchSize = dnResolutionBatchSize;
+        clone.dnResolutionThreads = dnResolutionThreads;
+        clone.dnCacheMaxSize = dnCacheMaxSize;
+        clone.dnCacheTimeout = dnCacheTimeout;
         clone.staticAttributeIdIsDn = staticAttributeIdIsDn;
         clone.staticAttributeId = staticAttributeId;
         clone.dynamicAttributeId = dynamicAttributeId;
@@ -50,7 +50,13 @@ import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.SortControl;
+import javax.naming.ldap.SortKey;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -67,11 +73,13 @@ import org.nuxeo.ecm.core.api.model.PropertyException;
 import org.nuxeo.ecm.core.schema.types.Field;
 import org.nuxeo.ecm.core.schema.types.Type;
 import org.nuxeo.ecm.core.utils.SIDGenerator;
+import org.nuxeo.ecm.directory.AbstractEntryIterator;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.ecm.directory.DirectoryFieldMapper;
 import org.nuxeo.ecm.directory.EntryAdaptor;
+import org.nuxeo.ecm.directory.EntryIterator;
 import org.nuxeo.ecm.directory.EntrySource;
 import org.nuxeo.ecm.directory.Reference;
 
@@ -102,6 +110,29 @@ public class LDAPSession extends BaseSession implements EntrySource {
 
     protected final Set<String> emptySet = Collections.emptySet();
 
+    /**
+     * Page size used by {@link #queryIterator} when none is given.
+     *
+     * @since 5.8
+     */
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * OID of the paged results control (RFC 2696).
+     *
+     * @since 5.8
+     */
+    public static final String PAGED_RESULTS_OID = PagedResultsControl.OID;
+
+    /**
+     * OID of the server side sort control (RFC 2891).
+     *
+     * @since 5.8
+     */
+    public static final String SORT_OID = SortControl.OID;
+
+    protected PagingState pagingState;
+
     protected final String sid;
 
     protected final Map<String, Field> schemaFieldMap;
@@ -222,7 +253,8 @@ public class LDAPSession extends BaseSession implements EntrySource {
                 // entry
                 fieldMap.put(dnFieldName, dn);
             }
-            directory.invalidateCaches();
+            String id = (String) fieldMap.get(getIdField());
+            directory.invalidateCaches(Collections.singletonList(id));
             return fieldMapToDocumentModel(fieldMap);
         } catch (Exception e) {
             handleException(e, "createEntry failed");
@@ -258,8 +290,11 @@ public class LDAPSession extends BaseSession implements EntrySource {
 
     @Override
     public boolean hasEntry(String id) throws DirectoryException {
+        Boolean cached = directory.getCache().hasEntry(id, this);
+        if (cached != null) {
+            return cached.booleanValue();
+        }
         try {
-            // TODO: check directory cache first
             return getLdapEntry(id) != null;
         } catch (NamingException e) {
             throw new DirectoryException("hasEntry failed: " + e.getMessage(),
@@ -462,7 +497,7 @@ public class LDAPSession extends BaseSession implements EntrySource {
         } catch (Exception e) {
             handleException(e, "updateEntry failed:");
         }
-        directory.invalidateCaches();
+        directory.invalidateCaches(Collections.singletonList(docModel.getId()));
     }
 
     protected void handleException(Exception e, String message)
@@ -505,7 +540,7 @@ public class LDAPSession extends BaseSession implements EntrySource {
         } catch (Exception e) {
             handleException(e, "deleteEntry failed for: " + id);
         }
-        directory.invalidateCaches();
+        directory.invalidateCaches(Collections.singletonList(id));
     }
 
     @Override
@@ -519,70 +554,9 @@ public class LDAPSession extends BaseSession implements EntrySource {
             Set<String> fulltext, boolean fetchReferences,
             Map<String, String> orderBy) throws DirectoryException {
         try {
-            // building the query using filterExpr / filterArgs to
-            // escape special characters and to fulltext search only on
-            // the explicitly specified fields
-            String[] filters = new String[filter.size()];
             String[] filterArgs = new String[filter.size()];
-
-            if (fulltext == null) {
-                fulltext = Collections.emptySet();
-            }
-
-            int index = 0;
-            for (String fieldName : filter.keySet()) {
-                if (directory.isReference(fieldName)) {
-                    log.warn(fieldName
-                            + " is a reference and will be ignored as a query criterion");
-                    continue;
-                }
-
-                String backendFieldName = directory.getFieldMapper().getBackendField(
-                        fieldName);
-                Object fieldValue = filter.get(fieldName);
-
-                StringBuilder currentFilter = new StringBuilder();
-                currentFilter.append("(");
-                if (fieldValue == null) {
-                    currentFilter.append("!(" + backendFieldName + "=*)");
-                } else if ("".equals(fieldValue)) {
-                    if (fulltext.contains(fieldName)) {
-                        currentFilter.append(backendFieldName + "=*");
-                    } else {
-                        currentFilter.append("!(" + backendFieldName + "=*)");
-                    }
-                } else {
-                    currentFilter.append(backendFieldName + "=");
-                    if (fulltext.contains(fieldName)) {
-                        if (LDAPSubstringMatchType.SUBFINAL.equals(substringMatchType)) {
-                            currentFilter.append("*{" + index + "}");
-                        } else if (LDAPSubstringMatchType.SUBANY.equals(substringMatchType)) {
-                            currentFilter.append("*{" + index + "}*");
-                        } else {
-                            // default behavior: subinitial
-                            currentFilter.append("{" + index + "}*");
-                        }
-                    } else {
-                        currentFilter.append("{" + index + "}");
-                    }
-                }
-                currentFilter.append(")");
-                filters[index] = currentFilter.toString();
-                if (fieldValue != null && !"".equals(fieldValue)) {
-                    if (fieldValue instanceof Blob) {
-                        // filter arg could be a sequence of \xx where xx is the
-                        // hexadecimal value of the byte
-                        log.warn("Binary search is not supported");
-                    } else {
-                        // XXX: what kind of Objects can we get here? Is
-                        // toString() enough?
-                        filterArgs[index] = fieldValue.toString();
-                    }
-                }
-                index++;
-            }
-            String filterExpr = "(&" + directory.getBaseFilter()
-                    + StringUtils.join(filters) + ')';
+            String filterExpr = buildFilterExpression(filter, fulltext,
+                    filterArgs);
             SearchControls scts = directory.getSearchControls();
 
             if (log.isDebugEnabled()) {
@@ -621,6 +595,80 @@ public class LDAPSession extends BaseSession implements EntrySource {
         }
     }
 
+    /**
+     * Builds the LDAP filter expression for a query, using placeholders for
+     * the values which are stored in {@code filterArgs} (sized as the filter)
+     * to escape special characters.
+     *
+     * @since 5.8
+     */
+    protected String buildFilterExpression(Map<String, Serializable> filter,
+            Set<String> fulltext, String[] filterArgs) {
+        // building the query using filterExpr / filterArgs to
+        // escape special characters and to fulltext search only on
+        // the explicitly specified fields
+        String[] filters = new String[filter.size()];
+
+        if (fulltext == null) {
+            fulltext = Collections.emptySet();
+        }
+
+        int index = 0;
+        for (String fieldName : filter.keySet()) {
+            if (directory.isReference(fieldName)) {
+                log.warn(fieldName
+                        + " is a reference and will be ignored as a query criterion");
+                continue;
+            }
+
+            String backendFieldName = directory.getFieldMapper().getBackendField(
+                    fieldName);
+            Object fieldValue = filter.get(fieldName);
+
+            StringBuilder currentFilter = new StringBuilder();
+            currentFilter.append("(");
+            if (fieldValue == null) {
+                currentFilter.append("!(" + backendFieldName + "=*)");
+            } else if ("".equals(fieldValue)) {
+                if (fulltext.contains(fieldName)) {
+                    currentFilter.append(backendFieldName + "=*");
+                } else {
+                    currentFilter.append("!(" + backendFieldName + "=*)");
+                }
+            } else {
+                currentFilter.append(backendFieldName + "=");
+                if (fulltext.contains(fieldName)) {
+                    if (LDAPSubstringMatchType.SUBFINAL.equals(substringMatchType)) {
+                        currentFilter.append("*{" + index + "}");
+                    } else if (LDAPSubstringMatchType.SUBANY.equals(substringMatchType)) {
+                        currentFilter.append("*{" + index + "}*");
+                    } else {
+                        // default behavior: subinitial
+                        currentFilter.append("{" + index + "}*");
+                    }
+                } else {
+                    currentFilter.append("{" + index + "}");
+                }
+            }
+            currentFilter.append(")");
+            filters[index] = currentFilter.toString();
+            if (fieldValue != null && !"".equals(fieldValue)) {
+                if (fieldValue instanceof Blob) {
+                    // filter arg could be a sequence of \xx where xx is the
+                    // hexadecimal value of the byte
+                    log.warn("Binary search is not supported");
+                } else {
+                    // XXX: what kind of Objects can we get here? Is
+                    // toString() enough?
+                    filterArgs[index] = fieldValue.toString();
+                }
+            }
+            index++;
+        }
+        return "(&" + directory.getBaseFilter() + StringUtils.join(filters)
+                + ')';
+    }
+
     @Override
     public DocumentModelList query(Map<String, Serializable> filter)
             throws DirectoryException {
@@ -649,6 +697,336 @@ public class LDAPSession extends BaseSession implements EntrySource {
         return query(filter, fulltext, new HashMap<String, String>());
     }
 
+    /**
+     * Returns the directory search controls without count limit: the paged
+     * results control takes over the query size limit.
+     *
+     * @since 5.8
+     */
+    protected SearchControls getPagedSearchControls() {
+        SearchControls defaultScts = directory.getSearchControls();
+        return new SearchControls(defaultScts.getSearchScope(), 0,
+                defaultScts.getTimeLimit(),
+                defaultScts.getReturningAttributes(),
+                defaultScts.getReturningObjFlag(),
+                defaultScts.getDerefLinkFlag());
+    }
+
+    protected static byte[] getPagedResultsCookie(Control[] controls) {
+        if (controls != null) {
+            for (Control control : controls) {
+                if (control instanceof PagedResultsResponseControl) {
+                    return ((PagedResultsResponseControl) control).getCookie();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Continuation of the last paged query of the session: the context and
+     * cookie to fetch the page following {@code position}.
+     *
+     * @since 5.8
+     */
+    protected static class PagingState {
+
+        protected final String key;
+
+        protected final int position;
+
+        protected final byte[] cookie;
+
+        protected final LdapContext context;
+
+        protected PagingState(String key, int position, byte[] cookie,
+                LdapContext context) {
+            this.key = key;
+            this.position = position;
+            this.cookie = cookie;
+            this.context = context;
+        }
+
+        protected void close() {
+            try {
+                context.close();
+            } catch (NamingException e) {
+                log.debug("Cannot close paging context: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Executes the query with the paged results control, and the server side
+     * sort control when an order is requested. When the server does not
+     * advertise these controls, the results are sorted and paged in memory.
+     * <p>
+     * The state of the last paged query is kept so that fetching the next
+     * page continues the search instead of skipping the previous pages
+     * again.
+     *
+     * @since 5.8
+     */
+    @Override
+    public DocumentModelList query(Map<String, Serializable> filter,
+            Set<String> fulltext, Map<String, String> orderBy,
+            boolean fetchReferences, int limit, int offset)
+            throws DirectoryException {
+        if (offset < 0) {
+            offset = 0;
+        }
+        boolean sort = orderBy != null && !orderBy.isEmpty();
+        if (limit <= 0 || !(dirContext instanceof LdapContext)
+                || !directory.supportsControl(dirContext, PAGED_RESULTS_OID)
+                || (sort && !directory.supportsControl(dirContext, SORT_OID))) {
+            DocumentModelList entries = query(filter, fulltext,
+                    fetchReferences, orderBy);
+            int toIndex = limit <= 0 ? entries.size() : Math.min(
+                    offset + limit, entries.size());
+            if (offset == 0 && toIndex == entries.size()) {
+                return entries;
+            }
+            return new DocumentModelListImpl(entries.subList(
+                    Math.min(offset, toIndex), toIndex));
+        }
+
+        String[] filterArgs = new String[filter.size()];
+        String filterExpr = buildFilterExpression(filter, fulltext, filterArgs);
+        SearchControls scts = getPagedSearchControls();
+        List<SortKey> sortKeys = new ArrayList<SortKey>();
+        if (sort) {
+            for (Map.Entry<String, String> e : orderBy.entrySet()) {
+                String backendFieldName = directory.getFieldMapper().getBackendField(
+                        e.getKey());
+                sortKeys.add(new SortKey(backendFieldName,
+                        !"desc".equalsIgnoreCase(e.getValue()), null));
+            }
+        }
+        String key = filterExpr + Arrays.toString(filterArgs) + orderBy
+                + limit;
+
+        int position = 0;
+        byte[] cookie = null;
+        LdapContext context = null;
+        PagingState state = pagingState;
+        pagingState = null;
+        if (state != null) {
+            if (state.key.equals(key) && state.position <= offset) {
+                position = state.position;
+                cookie = state.cookie;
+                context = state.context;
+            } else {
+                state.close();
+            }
+        }
+        boolean keepContext = false;
+        try {
+            if (context == null) {
+                context = ((LdapContext) dirContext).newInstance(null);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(String.format(
+                        "LDAPSession.query(...): LDAP paged search base='%s' filter='%s' args='%s' orderBy='%s' limit=%s offset=%s from=%s [%s]",
+                        searchBaseDn, filterExpr,
+                        StringUtils.join(filterArgs, ","), orderBy,
+                        Integer.valueOf(limit), Integer.valueOf(offset),
+                        Integer.valueOf(position), this));
+            }
+            DocumentModelList entries = new DocumentModelListImpl();
+            while (true) {
+                List<Control> controls = new ArrayList<Control>(2);
+                controls.add(new PagedResultsControl(limit, cookie,
+                        Control.CRITICAL));
+                if (sort) {
+                    controls.add(new SortControl(
+                            sortKeys.toArray(new SortKey[sortKeys.size()]),
+                            Control.CRITICAL));
+                }
+                context.setRequestControls(controls.toArray(new Control[controls.size()]));
+                NamingEnumeration<SearchResult> results = context.search(
+                        searchBaseDn, filterExpr, filterArgs, scts);
+                try {
+                    while (results.hasMore()) {
+                        SearchResult result = results.next();
+                        if (position >= offset && entries.size() < limit) {
+                            DocumentModel entry = ldapResultToDocumentModel(
+                                    result, null, fetchReferences);
+                            if (entry != null) {
+                                entries.add(entry);
+                            }
+                        }
+                        position++;
+                    }
+                } finally {
+                    results.close();
+                }
+                cookie = getPagedResultsCookie(context.getResponseControls());
+                if (cookie == null || cookie.length == 0) {
+                    break;
+                }
+                if (entries.size() >= limit) {
+                    // remember where we are for the next page
+                    pagingState = new PagingState(key, position, cookie,
+                            context);
+                    keepContext = true;
+                    break;
+                }
+            }
+            return entries;
+        } catch (NameNotFoundException nnfe) {
+            // see query(...)
+            log.error(
+                    "Unexpected response from server while performing query: "
+                            + nnfe.getMessage(), nnfe);
+            return new DocumentModelListImpl();
+        } catch (LimitExceededException e) {
+            throw new org.nuxeo.ecm.directory.SizeLimitExceededException(e);
+        } catch (NamingException e) {
+            throw new DirectoryException("executeQuery failed", e);
+        } catch (IOException e) {
+            throw new DirectoryException("executeQuery failed", e);
+        } finally {
+            if (!keepContext && context != null) {
+                try {
+                    context.close();
+                } catch (NamingException e) {
+                    log.debug("Cannot close paging context: "
+                            + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Iterates over the results using the paged results control (RFC 2696),
+     * so that only one page of entries is held in memory at a time. Servers
+     * not supporting the control return all the results at once.
+     *
+     * @since 5.8
+     */
+    @Override
+    public EntryIterator queryIterator(Map<String, Serializable> filter,
+            Set<String> fulltext, boolean fetchReferences, int fetchSize)
+            throws ClientException, DirectoryException {
+        if (!(dirContext instanceof LdapContext)) {
+            return super.queryIterator(filter, fulltext, fetchReferences,
+                    fetchSize);
+        }
+        String[] filterArgs = new String[filter.size()];
+        String filterExpr = buildFilterExpression(filter, fulltext, filterArgs);
+        SearchControls scts = getPagedSearchControls();
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(
+                    "LDAPSession.queryIterator(...): LDAP search base='%s' filter='%s' args='%s' scope='%s' [%s]",
+                    searchBaseDn, filterExpr,
+                    StringUtils.join(filterArgs, ","), scts.getSearchScope(),
+                    this));
+        }
+        if (fetchSize <= 0) {
+            fetchSize = DEFAULT_PAGE_SIZE;
+        }
+        try {
+            // use a dedicated context for the request controls
+            LdapContext context = ((LdapContext) dirContext).newInstance(null);
+            return new LDAPEntryIterator(context, filterExpr, filterArgs,
+                    scts, fetchReferences, fetchSize);
+        } catch (NamingException e) {
+            throw new DirectoryException("queryIterator failed", e);
+        }
+    }
+
+    /**
+     * Iterator fetching the results of a search one page at a time.
+     *
+     * @since 5.8
+     */
+    protected class LDAPEntryIterator extends AbstractEntryIterator {
+
+        protected final LdapContext context;
+
+        protected final String filterExpr;
+
+        protected final Object[] filterArgs;
+
+        protected final SearchControls scts;
+
+        protected final boolean fetchReferences;
+
+        protected final int pageSize;
+
+        protected NamingEnumeration<SearchResult> results;
+
+        protected byte[] cookie;
+
+        protected boolean lastPage;
+
+        protected LDAPEntryIterator(LdapContext context, String filterExpr,
+                Object[] filterArgs, SearchControls scts,
+                boolean fetchReferences, int pageSize) {
+            this.context = context;
+            this.filterExpr = filterExpr;
+            this.filterArgs = filterArgs;
+            this.scts = scts;
+            this.fetchReferences = fetchReferences;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        protected DocumentModel fetchNext() throws DirectoryException {
+            try {
+                while (true) {
+                    if (results == null) {
+                        if (lastPage) {
+                            return null;
+                        }
+                        context.setRequestControls(new Control[] { new PagedResultsControl(
+                                pageSize, cookie, Control.NONCRITICAL) });
+                        results = context.search(searchBaseDn, filterExpr,
+                                filterArgs, scts);
+                    }
+                    if (results.hasMore()) {
+                        DocumentModel entry = ldapResultToDocumentModel(
+                                results.next(), null, fetchReferences);
+                        if (entry != null) {
+                            return entry;
+                        }
+                        continue;
+                    }
+                    results.close();
+                    results = null;
+                    cookie = getPagedResultsCookie(context.getResponseControls());
+                    lastPage = cookie == null || cookie.length == 0;
+                }
+            } catch (NameNotFoundException e) {
+                // see query(...)
+                log.error(
+                        "Unexpected response from server while performing query: "
+                                + e.getMessage(), e);
+                lastPage = true;
+                results = null;
+                return null;
+            } catch (NamingException e) {
+                throw new DirectoryException("queryIterator failed", e);
+            } catch (IOException e) {
+                throw new DirectoryException("queryIterator failed", e);
+            }
+        }
+
+        @Override
+        public void close() throws DirectoryException {
+            lastPage = true;
+            try {
+                if (results != null) {
+                    results.close();
+                    results = null;
+                }
+                context.close();
+            } catch (NamingException e) {
+                throw new DirectoryException("Cannot close LDAP context", e);
+            }
+        }
+    }
+
     @Override
     public void commit() {
         // No LDAP support for transactions
@@ -661,6 +1039,10 @@ public class LDAPSession extends BaseSession implements EntrySource {
 
     @Override
     public void close() throws DirectoryException {
+        if (pagingState != null) {
+            pagingState.close();
+            pagingState = null;
+        }
         try {
             dirContext.close();
         } catch (NamingException e) {
@@ -49,7 +49,16 @@ public class LDAPDirectoryRegistry extends
             LDAPDirectoryDescriptor descriptor,
             LDAPDirectoryDescriptor newOrigContrib) {
         String descriptorName = descriptor.getName();
-        proxies.put(descriptorName, new LDAPDirectoryProxy(descriptor));
+        Directory previous = proxies.put(descriptorName,
+                new LDAPDirectoryProxy(descriptor));
+        if (previous != null) {
+            try {
+                previous.shutdown();
+            } catch (DirectoryException e) {
+                log.error(String.format(
+                        "Error while shutting down directory '%s'", id), e);
+            }
+        }
         log.info("directory registered: " + descriptorName);
     }
 
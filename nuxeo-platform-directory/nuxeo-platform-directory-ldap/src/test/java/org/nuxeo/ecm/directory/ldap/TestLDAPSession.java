@@ -49,6 +49,7 @@ import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.management.api.ProbeStatus;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryIterator;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.ldap.management.LDAPDirectoriesProbe;
 
@@ -239,6 +240,62 @@ public class TestLDAPSession extends LDAPDirectoryTestCase {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testGetEntryWithBatchedDnResolution() throws ClientException {
+        if (!USE_EXTERNAL_TEST_LDAP_SERVER) {
+            // LDAP references do not work with the internal test server
+            return;
+        }
+        LDAPReference reference = (LDAPReference) getLDAPDirectory(
+                "groupDirectory").getReference("members");
+        reference.forceDnConsistencyCheck = true;
+        reference.dnResolutionBatchSize = 1;
+        reference.dnResolutionThreads = 2;
+        Session session = getLDAPDirectory("groupDirectory").getSession();
+        try {
+            DocumentModel entry = session.getEntry("members");
+            List<String> members = (List<String>) entry.getProperty(
+                    GROUP_SCHEMANAME, "members");
+            assertEquals(3, members.size());
+            assertTrue(members.contains("Administrator"));
+            assertTrue(members.contains("user1"));
+        } finally {
+            session.close();
+            reference.forceDnConsistencyCheck = false;
+            reference.dnResolutionBatchSize = 100;
+            reference.dnResolutionThreads = 1;
+        }
+    }
+
+    @Test
+    public void testDnCache() throws Exception {
+        LDAPReference.DnCache cache = new LDAPReference.DnCache(2, 0);
+        cache.put("uid=user1,ou=people", "user1");
+        cache.put("uid=user2,ou=people", null);
+        assertEquals("user1", cache.get("uid=user1,ou=people"));
+        assertTrue(LDAPReference.DnCache.NOT_FOUND == cache.get("uid=user2,ou=people"));
+        // user1 is the most recently used
+        cache.get("uid=user1,ou=people");
+        cache.put("uid=user3,ou=people", "user3");
+        assertNull(cache.get("uid=user2,ou=people"));
+        assertEquals("user1", cache.get("uid=user1,ou=people"));
+        assertEquals("user3", cache.get("uid=user3,ou=people"));
+    }
+
+    @Test
+    public void testDnCacheInvalidation() throws Exception {
+        LDAPDirectory directory = getLDAPDirectory("groupDirectory");
+        LDAPReference reference = (LDAPReference) directory.getReference("members");
+        reference.getDnCache().put("uid=user1,ou=people", "user1");
+        directory.invalidateDirectoryCache();
+        assertNull(reference.getDnCache().get("uid=user1,ou=people"));
+
+        reference.getDnCache().put("uid=user1,ou=people", "user1");
+        directory.invalidateCaches();
+        assertNull(reference.getDnCache().get("uid=user1,ou=people"));
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     public void testGetEntry3() throws ClientException {
@@ -1039,6 +1096,76 @@ public class TestLDAPSession extends LDAPDirectoryTestCase {
         }
     }
 
+    @Test
+    public void testQueryPaging() throws ClientException {
+        if (!USE_EXTERNAL_TEST_LDAP_SERVER) {
+            // query does not work at all with internal apache
+            return;
+        }
+        Session session = getLDAPDirectory("userDirectory").getSession();
+        try {
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            Map<String, String> orderBy = new HashMap<String, String>();
+            orderBy.put("username", "desc");
+            List<String> expected = Arrays.asList("user3", "user2", "user1",
+                    "Administrator");
+            List<String> entryIds = new ArrayList<String>();
+            // consecutive pages continue the same paged search
+            for (int offset = 0; offset < 6; offset += 3) {
+                DocumentModelList entries = session.query(filter, emptySet(),
+                        orderBy, false, 3, offset);
+                for (DocumentModel entry : entries) {
+                    entryIds.add(entry.getId());
+                }
+            }
+            assertEquals(expected, entryIds);
+
+            // random access
+            DocumentModelList entries = session.query(filter, emptySet(),
+                    orderBy, false, 2, 1);
+            assertEquals(2, entries.size());
+            assertEquals("user2", entries.get(0).getId());
+            assertEquals("user1", entries.get(1).getId());
+
+            // past the end
+            entries = session.query(filter, emptySet(), orderBy, false, 2, 10);
+            assertEquals(0, entries.size());
+        } finally {
+            session.close();
+        }
+    }
+
+    protected static Set<String> emptySet() {
+        return Collections.emptySet();
+    }
+
+    @Test
+    public void testQueryIterator() throws ClientException {
+        if (!USE_EXTERNAL_TEST_LDAP_SERVER) {
+            // query does not work at all with internal apache
+            return;
+        }
+        Session session = getLDAPDirectory("userDirectory").getSession();
+        try {
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            // page size smaller than the number of entries
+            EntryIterator it = session.queryIterator(filter, null, false, 2);
+            List<String> entryIds = new ArrayList<String>();
+            try {
+                while (it.hasNext()) {
+                    entryIds.add(it.next().getId());
+                }
+            } finally {
+                it.close();
+            }
+            Collections.sort(entryIds);
+            assertEquals(Arrays.asList("Administrator", "user1", "user2",
+                    "user3"), entryIds);
+        } finally {
+            session.close();
+        }
+    }
+
     @Test
     public void testQuery2() throws ClientException {
         if (!USE_EXTERNAL_TEST_LDAP_SERVER) {
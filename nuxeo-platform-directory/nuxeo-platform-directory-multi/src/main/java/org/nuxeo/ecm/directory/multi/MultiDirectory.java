@@ -19,12 +19,23 @@
 
 package org.nuxeo.ecm.directory.multi;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.nuxeo.ecm.directory.AbstractDirectory;
 import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.ecm.directory.Reference;
 import org.nuxeo.ecm.directory.Session;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
 /**
  * @author Florent Guillaume
  *
@@ -33,6 +44,8 @@ public class MultiDirectory extends AbstractDirectory {
 
     private final MultiDirectoryDescriptor descriptor;
 
+    private ExecutorService executor;
+
     public MultiDirectory(MultiDirectoryDescriptor descriptor) {
         super(descriptor.name);
         this.descriptor = descriptor;
@@ -78,6 +91,69 @@ public class MultiDirectory extends AbstractDirectory {
         sessions.add(session);
     }
 
+    /**
+     * Returns the executor used to call the sub-directories concurrently, or
+     * {@code null} if they are called sequentially.
+     *
+     * @since 5.8
+     */
+    protected synchronized ExecutorService getExecutor() {
+        if (descriptor.parallelism == null
+                || descriptor.parallelism.intValue() < 2) {
+            return null;
+        }
+        if (executor == null) {
+            final int parallelism = descriptor.parallelism.intValue();
+            ThreadPoolExecutor tpe = new ThreadPoolExecutor(parallelism,
+                    parallelism, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(parallelism),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "Nuxeo-MultiDirectory-"
+                                    + getName() + "-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new RejectedExecutionHandler() {
+                        @Override
+                        public void rejectedExecution(Runnable r,
+                                ThreadPoolExecutor executor) {
+                            // busy or shut down, the calling thread makes
+                            // the call itself
+                            r.run();
+                        }
+                    });
+            tpe.allowCoreThreadTimeOut(true);
+            executor = tpe;
+        }
+        return executor;
+    }
+
+    /**
+     * Timer of the calls made to a sub-directory.
+     *
+     * @since 5.8
+     */
+    protected Timer getSubDirectoryTimer(String dirName) {
+        return registry.timer(MetricRegistry.name("nuxeo", "directories",
+                getName(), "subdirectories", dirName, "calls"));
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        try {
+            super.shutdown();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+    }
+
     @Override
     public Reference getReference(String referenceFieldName) {
         return new MultiReference(this, referenceFieldName);
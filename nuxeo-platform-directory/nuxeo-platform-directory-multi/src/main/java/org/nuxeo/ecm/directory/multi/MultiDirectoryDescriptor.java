@@ -47,6 +47,38 @@ public class MultiDirectoryDescriptor implements Cloneable {
     @XNode("querySizeLimit")
     public Integer querySizeLimit;
 
+    /**
+     * Number of threads used to call the sub-directories concurrently, the
+     * sub-directories are called sequentially when not set or lower than 2.
+     * Each concurrent call uses its own sub-directory session, with the
+     * login of the caller and in its own transaction if the caller is in a
+     * transaction.
+     *
+     * @since 5.8
+     */
+    @XNode("parallelism")
+    public Integer parallelism;
+
+    /**
+     * Maximum time in milliseconds a sub-directory call may take once
+     * started when running them concurrently, 0 or not set for no timeout.
+     *
+     * @since 5.8
+     */
+    @XNode("subDirectoryTimeout")
+    public Integer subDirectoryTimeout;
+
+    /**
+     * Maximum number of entries found in the required sub-directories of a
+     * source for which the optional sub-directories are looked up by id
+     * rather than read entirely, 0 to always read them entirely. Only
+     * applies to sub-directories able to look up entries in bulk.
+     *
+     * @since 5.8
+     */
+    @XNode("optionalLookupThreshold")
+    public Integer optionalLookupThreshold;
+
     @XNode("@remove")
     public boolean remove = false;
 
@@ -73,6 +105,15 @@ public class MultiDirectoryDescriptor implements Cloneable {
         if (other.querySizeLimit != null || overwrite) {
             querySizeLimit = other.querySizeLimit;
         }
+        if (other.parallelism != null || overwrite) {
+            parallelism = other.parallelism;
+        }
+        if (other.subDirectoryTimeout != null || overwrite) {
+            subDirectoryTimeout = other.subDirectoryTimeout;
+        }
+        if (other.optionalLookupThreshold != null || overwrite) {
+            optionalLookupThreshold = other.optionalLookupThreshold;
+        }
         if (other.sources != null || overwrite) {
             if (sources == null) {
                 sources = other.sources;
@@ -98,6 +139,9 @@ public class MultiDirectoryDescriptor implements Cloneable {
         clone.passwordField = passwordField;
         clone.readOnly = readOnly;
         clone.querySizeLimit = querySizeLimit;
+        clone.parallelism = parallelism;
+        clone.subDirectoryTimeout = subDirectoryTimeout;
+        clone.optionalLookupThreshold = optionalLookupThreshold;
         clone.remove = remove;
         if (sources != null) {
             clone.sources = new SourceDescriptor[sources.length];
@@ -21,6 +21,7 @@ package org.nuxeo.ecm.directory.multi;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -29,6 +30,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -36,15 +43,22 @@ import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.core.api.local.ClientLoginModule;
+import org.nuxeo.ecm.core.api.local.LoginStack;
 import org.nuxeo.ecm.core.api.model.PropertyException;
 import org.nuxeo.ecm.core.schema.SchemaManager;
 import org.nuxeo.ecm.core.schema.types.Field;
 import org.nuxeo.ecm.core.schema.types.Schema;
+import org.nuxeo.ecm.directory.AbstractEntryIterator;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryIterator;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+import com.codahale.metrics.Timer;
 
 /**
  * Directory session aggregating entries from different sources.
@@ -75,6 +89,17 @@ public class MultiDirectorySession extends BaseSession {
 
     private List<SourceInfo> sourceInfos;
 
+    // whether this session wrote to its sub-directories
+    private boolean written;
+
+    /**
+     * Default maximum number of entries of the required sub-directories for
+     * which the optional sub-directories are looked up by id.
+     *
+     * @since 5.8
+     */
+    public static final int DEFAULT_OPTIONAL_LOOKUP_THRESHOLD = 1000;
+
     public MultiDirectorySession(MultiDirectory directory) {
         directoryService = MultiDirectoryFactory.getDirectoryService();
         schemaManager = Framework.getLocalService(SchemaManager.class);
@@ -169,6 +194,428 @@ public class MultiDirectorySession extends BaseSession {
         }
     }
 
+    /**
+     * A call to the session of a sub-directory. The call is made at most
+     * once, either when its result is first needed or beforehand, together
+     * with other calls, by {@link MultiDirectorySession#prefetch} when the
+     * multi-directory calls its sub-directories concurrently.
+     *
+     * @since 5.8
+     */
+    protected abstract class SubDirectoryCall<T> {
+
+        final SubDirectoryInfo dirInfo;
+
+        private T result;
+
+        private boolean done;
+
+        SubDirectoryCall(SubDirectoryInfo dirInfo) {
+            this.dirInfo = dirInfo;
+        }
+
+        abstract T call(Session session) throws ClientException;
+
+        T get() throws ClientException {
+            if (!done) {
+                Timer.Context timerContext = directory.getSubDirectoryTimer(
+                        dirInfo.dirName).time();
+                try {
+                    result = call(dirInfo.getSession());
+                } finally {
+                    timerContext.stop();
+                }
+                done = true;
+            }
+            return result;
+        }
+
+        /**
+         * Makes the call from a thread of the executor, with a session of
+         * its own closed afterwards, so that the session of this
+         * multi-directory session is never used from two threads.
+         */
+        T callInOwnSession() throws ClientException {
+            Timer.Context timerContext = directory.getSubDirectoryTimer(
+                    dirInfo.dirName).time();
+            try {
+                Session session = directoryService.open(dirInfo.dirName);
+                try {
+                    return call(session);
+                } finally {
+                    session.close();
+                }
+            } finally {
+                timerContext.stop();
+            }
+        }
+
+        void setResult(T result) {
+            this.result = result;
+            done = true;
+        }
+    }
+
+    /**
+     * Makes a {@link SubDirectoryCall} from a thread of the executor, with
+     * the login of the calling thread and in a transaction of its own if the
+     * calling thread is in a transaction. If the executor is busy the call is
+     * made from the calling thread as usual.
+     *
+     * @since 5.8
+     */
+    protected static class PrefetchTask<T> implements Callable<T> {
+
+        final SubDirectoryCall<T> call;
+
+        final Thread callingThread;
+
+        final LoginStack.Entry login;
+
+        final boolean transaction;
+
+        // time at which the call started, 0 if not started yet
+        volatile long startNanos;
+
+        PrefetchTask(SubDirectoryCall<T> call) {
+            this.call = call;
+            callingThread = Thread.currentThread();
+            login = ClientLoginModule.getCurrentLogin();
+            transaction = TransactionHelper.isTransactionActive();
+        }
+
+        @Override
+        public T call() throws Exception {
+            startNanos = System.nanoTime();
+            if (Thread.currentThread() == callingThread) {
+                return call.get();
+            }
+            if (login != null) {
+                ClientLoginModule.getThreadLocalLogin().push(
+                        login.getPrincipal(), login.getCredential(),
+                        login.getSubject());
+            }
+            try {
+                boolean started = transaction
+                        && TransactionHelper.startTransaction();
+                try {
+                    return call.callInOwnSession();
+                } catch (ClientException | RuntimeException e) {
+                    if (started) {
+                        TransactionHelper.setTransactionRollbackOnly();
+                    }
+                    throw e;
+                } finally {
+                    if (started) {
+                        TransactionHelper.commitOrRollbackTransaction();
+                    }
+                }
+            } finally {
+                if (login != null) {
+                    ClientLoginModule.getThreadLocalLogin().pop();
+                }
+            }
+        }
+    }
+
+    protected class GetEntryCall extends SubDirectoryCall<DocumentModel> {
+
+        final String id;
+
+        final boolean fetchReferences;
+
+        GetEntryCall(SubDirectoryInfo dirInfo, String id,
+                boolean fetchReferences) {
+            super(dirInfo);
+            this.id = id;
+            this.fetchReferences = fetchReferences;
+        }
+
+        @Override
+        DocumentModel call(Session session) throws ClientException {
+            return session.getEntry(id, fetchReferences);
+        }
+    }
+
+    /**
+     * Reads all the entries of a sub-directory, or only the entries with the
+     * given lookup ids if set.
+     */
+    protected class GetEntriesCall extends SubDirectoryCall<DocumentModelList> {
+
+        Collection<String> lookupIds;
+
+        GetEntriesCall(SubDirectoryInfo dirInfo) {
+            super(dirInfo);
+        }
+
+        @Override
+        DocumentModelList call(Session session) throws ClientException {
+            if (lookupIds != null) {
+                return session.getEntries(lookupIds, false);
+            }
+            return session.getEntries();
+        }
+    }
+
+    /**
+     * Queries a sub-directory and, for an optional sub-directory whose
+     * default values match the filter, also fetches the ids of its existing
+     * entries.
+     * <p>
+     * If lookup ids are set, the entries of the sub-directory are only
+     * fetched for these ids: by id if the sub-directory is not filtered,
+     * and the existing ids are only checked among them.
+     */
+    protected class QueryCall extends SubDirectoryCall<DocumentModelList> {
+
+        final Map<String, Serializable> dirFilter;
+
+        final Set<String> dirFulltext;
+
+        final boolean fetchReferences;
+
+        final boolean matchesDefaultEntry;
+
+        Collection<String> lookupIds;
+
+        Set<String> existingIds;
+
+        QueryCall(SubDirectoryInfo dirInfo, Map<String, Serializable> filter,
+                Set<String> fulltext, boolean fetchReferences) {
+            super(dirInfo);
+            dirFilter = computeDirFilter(dirInfo, filter);
+            dirFulltext = computeDirFulltext(dirInfo, fulltext);
+            this.fetchReferences = fetchReferences;
+            matchesDefaultEntry = dirInfo.isOptional
+                    && matchesDefaultEntry(dirInfo, dirFilter);
+        }
+
+        @Override
+        DocumentModelList call(Session session) throws ClientException {
+            if (lookupIds != null) {
+                return lookup(session);
+            }
+            DocumentModelList entries = session.query(dirFilter, dirFulltext,
+                    null, fetchReferences);
+            if (matchesDefaultEntry) {
+                existingIds = new HashSet<String>(session.getProjection(
+                        Collections.<String, Serializable> emptyMap(),
+                        dirInfo.idField));
+            }
+            return entries;
+        }
+
+        DocumentModelList lookup(Session session) throws ClientException {
+            DocumentModelList entries;
+            if (dirFilter.isEmpty()) {
+                entries = session.getEntries(lookupIds, fetchReferences);
+                if (matchesDefaultEntry) {
+                    existingIds = getIds(entries);
+                }
+            } else {
+                entries = session.query(dirFilter, dirFulltext, null,
+                        fetchReferences);
+                if (matchesDefaultEntry) {
+                    existingIds = getIds(session.getEntries(lookupIds, false));
+                }
+            }
+            return entries;
+        }
+    }
+
+    protected class AuthenticateCall extends SubDirectoryCall<Boolean> {
+
+        final String username;
+
+        final String password;
+
+        AuthenticateCall(SubDirectoryInfo dirInfo, String username,
+                String password) {
+            super(dirInfo);
+            this.username = username;
+            this.password = password;
+        }
+
+        @Override
+        Boolean call(Session session) throws ClientException {
+            return Boolean.valueOf(session.authenticate(username, password));
+        }
+    }
+
+    protected static Set<String> getIds(List<DocumentModel> entries) {
+        Set<String> ids = new HashSet<String>();
+        for (DocumentModel entry : entries) {
+            ids.add(entry.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the ids found by all the given calls to the required
+     * sub-directories of a source.
+     *
+     * @since 5.8
+     */
+    protected static Set<String> getRequiredIds(
+            List<? extends SubDirectoryCall<DocumentModelList>> requiredCalls)
+            throws ClientException {
+        Set<String> ids = null;
+        for (SubDirectoryCall<DocumentModelList> call : requiredCalls) {
+            Set<String> callIds = getIds(call.get());
+            if (ids == null) {
+                ids = callIds;
+            } else {
+                ids.retainAll(callIds);
+            }
+        }
+        return ids == null ? new HashSet<String>() : ids;
+    }
+
+    /**
+     * Decides how to join the optional sub-directories of a source to its
+     * required ones: if the required sub-directories found few entries, the
+     * optional sub-directories are looked up for these ids only, otherwise
+     * they are read entirely. Only the sub-directories looking up entries in
+     * bulk, see {@link #hasBulkEntriesLookup(SubDirectoryInfo)}, use the
+     * returned ids.
+     *
+     * @return the ids to look up, or {@code null} to read the optional
+     *         sub-directories entirely
+     * @since 5.8
+     */
+    protected Collection<String> getOptionalLookupIds(
+            List<? extends SubDirectoryCall<DocumentModelList>> requiredCalls)
+            throws ClientException {
+        int threshold = descriptor.optionalLookupThreshold == null ? DEFAULT_OPTIONAL_LOOKUP_THRESHOLD
+                : descriptor.optionalLookupThreshold.intValue();
+        if (threshold <= 0) {
+            return null;
+        }
+        Set<String> ids = getRequiredIds(requiredCalls);
+        if (ids.size() > threshold) {
+            return null;
+        }
+        return ids;
+    }
+
+    /**
+     * Checks if the session of a sub-directory looks up entries in bulk.
+     * Otherwise each id would cost a round trip to the server, and reading
+     * the sub-directory entirely is cheaper.
+     *
+     * @since 5.8
+     */
+    protected static boolean hasBulkEntriesLookup(SubDirectoryInfo dirInfo)
+            throws DirectoryException {
+        Session session = dirInfo.getSession();
+        return session instanceof BaseSession
+                && ((BaseSession) session).hasBulkEntriesLookup();
+    }
+
+    /**
+     * Makes the given calls concurrently if the multi-directory is
+     * configured with a parallelism, otherwise does nothing and the calls
+     * are made sequentially when their results are needed.
+     * <p>
+     * The results are then merged in the same order as the sequential calls,
+     * so both modes return the same entries. As each concurrent call is made
+     * in its own transaction, the calls are made sequentially once this
+     * session has written in the current transaction, so that they see the
+     * changes.
+     * <p>
+     * Each call fails if it takes more than the configured sub-directory
+     * timeout once started. A call timing out keeps running, with its own
+     * session, until it completes.
+     *
+     * @since 5.8
+     */
+    protected void prefetch(List<? extends SubDirectoryCall<?>> calls)
+            throws ClientException {
+        ExecutorService executor = directory.getExecutor();
+        if (executor == null || calls.size() < 2
+                || (written && TransactionHelper.isTransactionActive())) {
+            return;
+        }
+        List<PrefetchTask<?>> tasks = new ArrayList<PrefetchTask<?>>(
+                calls.size());
+        List<Future<?>> futures = new ArrayList<Future<?>>(calls.size());
+        for (SubDirectoryCall<?> call : calls) {
+            PrefetchTask<?> task = newPrefetchTask(call);
+            tasks.add(task);
+            futures.add(executor.submit(task));
+        }
+        Integer timeout = descriptor.subDirectoryTimeout;
+        long timeoutNanos = timeout == null || timeout.intValue() <= 0 ? 0
+                : TimeUnit.MILLISECONDS.toNanos(timeout.intValue());
+        int i = 0;
+        try {
+            for (; i < futures.size(); i++) {
+                waitFor(tasks.get(i), futures.get(i), timeoutNanos);
+            }
+        } catch (TimeoutException e) {
+            throw new DirectoryException(String.format(
+                    "Timeout after %sms waiting for subdirectory '%s' of directory '%s'",
+                    timeout, calls.get(i).dirInfo.dirName, directory.getName()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DirectoryException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ClientException) {
+                throw (ClientException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new DirectoryException(cause);
+        } finally {
+            if (i < futures.size()) {
+                // calls not started yet are dropped, the others complete
+                // with their own session
+                for (Future<?> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+    }
+
+    protected static <T> PrefetchTask<T> newPrefetchTask(
+            SubDirectoryCall<T> call) {
+        return new PrefetchTask<T>(call);
+    }
+
+    /**
+     * Waits for a call to complete, for at most the given time once started
+     * if not 0, and keeps its result.
+     *
+     * @since 5.8
+     */
+    @SuppressWarnings("unchecked")
+    protected static <T> void waitFor(PrefetchTask<T> task, Future<?> future,
+            long timeoutNanos) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        if (timeoutNanos == 0) {
+            task.call.setResult((T) future.get());
+            return;
+        }
+        for (;;) {
+            long start = task.startNanos;
+            long wait = start == 0 ? timeoutNanos : start + timeoutNanos
+                    - System.nanoTime();
+            try {
+                task.call.setResult((T) future.get(Math.max(0, wait),
+                        TimeUnit.NANOSECONDS));
+                return;
+            } catch (TimeoutException e) {
+                // a call waiting for a thread has not timed out yet
+                start = task.startNanos;
+                if (start != 0 && System.nanoTime() - start >= timeoutNanos) {
+                    throw e;
+                }
+            }
+        }
+    }
+
     private void init() throws DirectoryException {
         if (sourceInfos == null) {
             recomputeSourceInfos();
@@ -386,24 +833,28 @@ public class MultiDirectorySession extends BaseSession {
     public boolean authenticate(String username, String password)
             throws ClientException {
         init();
+        List<AuthenticateCall> calls = new ArrayList<AuthenticateCall>();
         for (SourceInfo sourceInfo : sourceInfos) {
             for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
-                if (!dirInfo.isAuthenticating) {
-                    continue;
+                if (dirInfo.isAuthenticating) {
+                    calls.add(new AuthenticateCall(dirInfo, username, password));
                 }
-                if (dirInfo.getSession().authenticate(username, password)) {
+            }
+        }
+        prefetch(calls);
+        for (AuthenticateCall call : calls) {
+            SubDirectoryInfo dirInfo = call.dirInfo;
+            if (call.get().booleanValue()) {
+                return true;
+            }
+            if (dirInfo.isOptional
+                    && dirInfo.getSession().getEntry(username) == null) {
+                // check if given password equals to default value
+                String passwordField = dirInfo.getSession().getPasswordField();
+                String defaultPassword = (String) dirInfo.defaultEntry.get(passwordField);
+                if (defaultPassword != null && defaultPassword.equals(password)) {
                     return true;
                 }
-                if (dirInfo.isOptional
-                        && dirInfo.getSession().getEntry(username) == null) {
-                    // check if given password equals to default value
-                    String passwordField = dirInfo.getSession().getPasswordField();
-                    String defaultPassword = (String) dirInfo.defaultEntry.get(passwordField);
-                    if (defaultPassword != null
-                            && defaultPassword.equals(password)) {
-                        return true;
-                    }
-                }
             }
         }
         return false;
@@ -416,13 +867,39 @@ public class MultiDirectorySession extends BaseSession {
     public DocumentModel getEntry(String id, boolean fetchReferences)
             throws DirectoryException {
         init();
+        final List<List<GetEntryCall>> sourceCalls = new ArrayList<List<GetEntryCall>>(
+                sourceInfos.size());
+        final List<GetEntryCall> allCalls = new ArrayList<GetEntryCall>();
+        for (SourceInfo sourceInfo : sourceInfos) {
+            List<GetEntryCall> calls = new ArrayList<GetEntryCall>();
+            for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
+                calls.add(new GetEntryCall(dirInfo, id, fetchReferences));
+            }
+            sourceCalls.add(calls);
+            allCalls.addAll(calls);
+        }
+        try {
+            prefetch(allCalls);
+        } catch (DirectoryException e) {
+            throw e;
+        } catch (ClientException e) {
+            throw new DirectoryException(e);
+        }
+        int sourceIndex = 0;
         source_loop: for (SourceInfo sourceInfo : sourceInfos) {
             boolean isReadOnlyEntry = true;
             final Map<String, Object> map = new HashMap<String, Object>();
 
-            for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
-                final DocumentModel entry = dirInfo.getSession().getEntry(id,
-                        fetchReferences);
+            for (GetEntryCall call : sourceCalls.get(sourceIndex++)) {
+                final SubDirectoryInfo dirInfo = call.dirInfo;
+                final DocumentModel entry;
+                try {
+                    entry = call.get();
+                } catch (DirectoryException e) {
+                    throw e;
+                } catch (ClientException e) {
+                    throw new DirectoryException(e);
+                }
                 boolean isOptional = dirInfo.isOptional;
                 if (entry == null && !isOptional) {
                     // not in this source
@@ -486,13 +963,47 @@ public class MultiDirectorySession extends BaseSession {
         final Map<String, String> seen = new HashMap<String, String>();
         Set<String> readOnlyEntries = new HashSet<String>();
 
+        // required sub-directories first, then the optional ones joined to
+        // the entries found
+        final Map<SubDirectoryInfo, GetEntriesCall> calls = new HashMap<SubDirectoryInfo, GetEntriesCall>();
+        final List<GetEntriesCall> requiredCalls = new ArrayList<GetEntriesCall>();
+        for (SourceInfo sourceInfo : sourceInfos) {
+            for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
+                GetEntriesCall call = new GetEntriesCall(dirInfo);
+                calls.put(dirInfo, call);
+                if (!dirInfo.isOptional) {
+                    requiredCalls.add(call);
+                }
+            }
+        }
+        prefetch(requiredCalls);
+        final List<GetEntriesCall> optionalCalls = new ArrayList<GetEntriesCall>();
+        for (SourceInfo sourceInfo : sourceInfos) {
+            if (sourceInfo.optionalSubDirectoryInfos.isEmpty()) {
+                continue;
+            }
+            List<GetEntriesCall> sourceRequiredCalls = new ArrayList<GetEntriesCall>();
+            for (SubDirectoryInfo dirInfo : sourceInfo.requiredSubDirectoryInfos) {
+                sourceRequiredCalls.add(calls.get(dirInfo));
+            }
+            Collection<String> lookupIds = getOptionalLookupIds(sourceRequiredCalls);
+            for (SubDirectoryInfo dirInfo : sourceInfo.optionalSubDirectoryInfos) {
+                GetEntriesCall call = calls.get(dirInfo);
+                if (lookupIds != null && hasBulkEntriesLookup(dirInfo)) {
+                    call.lookupIds = lookupIds;
+                }
+                optionalCalls.add(call);
+            }
+        }
+        prefetch(optionalCalls);
+
         for (SourceInfo sourceInfo : sourceInfos) {
             // accumulated map for each entry
             final Map<String, Map<String, Object>> maps = new HashMap<String, Map<String, Object>>();
             // number of dirs seen for each entry
             final Map<String, Integer> counts = new HashMap<String, Integer>();
             for (SubDirectoryInfo dirInfo : sourceInfo.requiredSubDirectoryInfos) {
-                final DocumentModelList entries = dirInfo.getSession().getEntries();
+                final DocumentModelList entries = calls.get(dirInfo).get();
                 for (DocumentModel entry : entries) {
                     final String id = entry.getId();
                     // find or create map for this entry
@@ -516,7 +1027,7 @@ public class MultiDirectorySession extends BaseSession {
                 }
             }
             for (SubDirectoryInfo dirInfo : sourceInfo.optionalSubDirectoryInfos) {
-                final DocumentModelList entries = dirInfo.getSession().getEntries();
+                final DocumentModelList entries = calls.get(dirInfo).get();
                 Set<String> existingIds = new HashSet<String>();
                 for (DocumentModel entry : entries) {
                     final String id = entry.getId();
@@ -590,6 +1101,7 @@ public class MultiDirectorySession extends BaseSession {
                     "Entry is missing id field '%s'", schemaIdField));
         }
         final String id = String.valueOf(rawid); // XXX allow longs too
+        written = true;
         for (SourceInfo sourceInfo : sourceInfos) {
             if (!sourceInfo.source.creation) {
                 continue;
@@ -615,6 +1127,7 @@ public class MultiDirectorySession extends BaseSession {
 
     public void deleteEntry(String id) throws ClientException {
         init();
+        written = true;
         for (SourceInfo sourceInfo : sourceInfos) {
             for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
                 dirInfo.getSession().deleteEntry(id);
@@ -668,6 +1181,7 @@ public class MultiDirectorySession extends BaseSession {
             return;
         }
         init();
+        written = true;
         final String id = docModel.getId();
         Map<String, Object> fieldMap = docModel.getDataModel(schemaName).getMap();
         for (SourceInfo sourceInfo : sourceInfos) {
@@ -718,52 +1232,63 @@ public class MultiDirectorySession extends BaseSession {
         }
         Set<String> readOnlyEntries = new HashSet<String>();
 
+        // required sub-directories first, then the optional ones joined to
+        // the entries found
+        final List<List<QueryCall>> sourceCalls = new ArrayList<List<QueryCall>>(
+                sourceInfos.size());
+        final List<List<QueryCall>> sourceRequiredCalls = new ArrayList<List<QueryCall>>(
+                sourceInfos.size());
+        final List<QueryCall> requiredCalls = new ArrayList<QueryCall>();
+        for (SourceInfo sourceInfo : sourceInfos) {
+            List<QueryCall> calls = new ArrayList<QueryCall>();
+            List<QueryCall> required = new ArrayList<QueryCall>();
+            for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
+                QueryCall call = new QueryCall(dirInfo, filter, fulltext,
+                        fetchReferences);
+                calls.add(call);
+                if (!dirInfo.isOptional) {
+                    required.add(call);
+                }
+            }
+            sourceCalls.add(calls);
+            sourceRequiredCalls.add(required);
+            requiredCalls.addAll(required);
+        }
+        prefetch(requiredCalls);
+        final List<QueryCall> optionalCalls = new ArrayList<QueryCall>();
+        for (int i = 0; i < sourceInfos.size(); i++) {
+            if (sourceInfos.get(i).optionalSubDirectoryInfos.isEmpty()) {
+                continue;
+            }
+            Collection<String> lookupIds = getOptionalLookupIds(sourceRequiredCalls.get(i));
+            for (QueryCall call : sourceCalls.get(i)) {
+                if (call.dirInfo.isOptional) {
+                    if (lookupIds != null
+                            && hasBulkEntriesLookup(call.dirInfo)) {
+                        call.lookupIds = lookupIds;
+                    }
+                    optionalCalls.add(call);
+                }
+            }
+        }
+        prefetch(optionalCalls);
+
+        int sourceIndex = 0;
         for (SourceInfo sourceInfo : sourceInfos) {
             // accumulated map for each entry
             final Map<String, Map<String, Object>> maps = new HashMap<String, Map<String, Object>>();
             // number of dirs seen for each entry
             final Map<String, Integer> counts = new HashMap<String, Integer>();
 
-            // list of optional dirs where filter matches default values
-            List<SubDirectoryInfo> optionalDirsMatching = new ArrayList<SubDirectoryInfo>();
-            for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
-                // compute filter
-                final Map<String, Serializable> dirFilter = new HashMap<String, Serializable>();
-                for (Entry<String, Serializable> e : filter.entrySet()) {
-                    final String fieldName = dirInfo.fromSource.get(e.getKey());
-                    if (fieldName == null) {
-                        continue;
-                    }
-                    dirFilter.put(fieldName, e.getValue());
-                }
-                if (dirInfo.isOptional) {
-                    // check if filter matches directory default values
-                    boolean matches = true;
-                    for (Map.Entry<String, Serializable> dirFilterEntry : dirFilter.entrySet()) {
-                        Object defaultValue = dirInfo.defaultEntry.get(dirFilterEntry.getKey());
-                        Object filterValue = dirFilterEntry.getValue();
-                        if (defaultValue == null && filterValue != null) {
-                            matches = false;
-                        } else if (defaultValue != null
-                                && !defaultValue.equals(filterValue)) {
-                            matches = false;
-                        }
-                    }
-                    if (matches) {
-                        optionalDirsMatching.add(dirInfo);
-                    }
-                }
-                // compute fulltext
-                Set<String> dirFulltext = new HashSet<String>();
-                for (String sourceFieldName : fulltext) {
-                    final String fieldName = dirInfo.fromSource.get(sourceFieldName);
-                    if (fieldName != null) {
-                        dirFulltext.add(fieldName);
-                    }
-                }
+            // optional dirs where filter matches default values
+            List<QueryCall> optionalDirsMatching = new ArrayList<QueryCall>();
+            for (QueryCall call : sourceCalls.get(sourceIndex++)) {
+                final SubDirectoryInfo dirInfo = call.dirInfo;
                 // make query to subdirectory
-                DocumentModelList l = dirInfo.getSession().query(dirFilter,
-                        dirFulltext, null, fetchReferences);
+                DocumentModelList l = call.get();
+                if (call.matchesDefaultEntry) {
+                    optionalDirsMatching.add(call);
+                }
                 for (DocumentModel entry : l) {
                     final String id = entry.getId();
                     Map<String, Object> map = maps.get(id);
@@ -785,12 +1310,10 @@ public class MultiDirectorySession extends BaseSession {
                 }
             }
             // add default entry values for optional dirs
-            for (SubDirectoryInfo dirInfo : optionalDirsMatching) {
+            for (QueryCall call : optionalDirsMatching) {
+                final SubDirectoryInfo dirInfo = call.dirInfo;
                 // add entry for every data found in other dirs
-                Set<String> existingIds = new HashSet<String>(
-                        dirInfo.getSession().getProjection(
-                                Collections.<String, Serializable> emptyMap(),
-                                dirInfo.idField));
+                Set<String> existingIds = call.existingIds;
                 for (Entry<String, Map<String, Object>> result : maps.entrySet()) {
                     final String id = result.getKey();
                     if (!existingIds.contains(id)) {
@@ -839,6 +1362,242 @@ public class MultiDirectorySession extends BaseSession {
         return results;
     }
 
+    /**
+     * Maps a filter on the multi-directory fields to a filter on the fields
+     * of a sub-directory.
+     */
+    protected static Map<String, Serializable> computeDirFilter(
+            SubDirectoryInfo dirInfo, Map<String, Serializable> filter) {
+        final Map<String, Serializable> dirFilter = new HashMap<String, Serializable>();
+        for (Entry<String, Serializable> e : filter.entrySet()) {
+            final String fieldName = dirInfo.fromSource.get(e.getKey());
+            if (fieldName == null) {
+                continue;
+            }
+            dirFilter.put(fieldName, e.getValue());
+        }
+        return dirFilter;
+    }
+
+    protected static Set<String> computeDirFulltext(SubDirectoryInfo dirInfo,
+            Set<String> fulltext) {
+        Set<String> dirFulltext = new HashSet<String>();
+        for (String sourceFieldName : fulltext) {
+            final String fieldName = dirInfo.fromSource.get(sourceFieldName);
+            if (fieldName != null) {
+                dirFulltext.add(fieldName);
+            }
+        }
+        return dirFulltext;
+    }
+
+    /**
+     * Checks if a sub-directory filter matches the default values of the
+     * sub-directory.
+     */
+    protected static boolean matchesDefaultEntry(SubDirectoryInfo dirInfo,
+            Map<String, Serializable> dirFilter) {
+        boolean matches = true;
+        for (Map.Entry<String, Serializable> dirFilterEntry : dirFilter.entrySet()) {
+            Object defaultValue = dirInfo.defaultEntry.get(dirFilterEntry.getKey());
+            Object filterValue = dirFilterEntry.getValue();
+            if (defaultValue == null && filterValue != null) {
+                matches = false;
+            } else if (defaultValue != null
+                    && !defaultValue.equals(filterValue)) {
+                matches = false;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Streams the entries of the first required sub-directory of each source
+     * and completes them from the other sub-directories. Only the ids
+     * matching the filter in the other sub-directories are held in memory.
+     *
+     * @since 5.8
+     */
+    @Override
+    public EntryIterator queryIterator(Map<String, Serializable> filter,
+            Set<String> fulltext, boolean fetchReferences, int fetchSize)
+            throws ClientException, DirectoryException {
+        init();
+        if (fulltext == null) {
+            fulltext = Collections.emptySet();
+        }
+        return new MultiEntryIterator(filter, fulltext, fetchReferences,
+                fetchSize);
+    }
+
+    /**
+     * Lazy merge of the sub-directory entries, source after source.
+     *
+     * @since 5.8
+     */
+    protected class MultiEntryIterator extends AbstractEntryIterator {
+
+        protected final Map<String, Serializable> filter;
+
+        protected final Set<String> fulltext;
+
+        protected final boolean fetchReferences;
+
+        protected final int fetchSize;
+
+        protected final Iterator<SourceInfo> sources;
+
+        /** Ids already returned, only tracked with several sources. */
+        protected final Set<String> seen;
+
+        protected SourceInfo sourceInfo;
+
+        protected SubDirectoryInfo primaryInfo;
+
+        protected EntryIterator primaryEntries;
+
+        /** Ids matching the filter in the other sub-directories. */
+        protected Map<SubDirectoryInfo, Set<String>> matchingIds;
+
+        /**
+         * Ids present in the optional sub-directories whose default values
+         * match the filter.
+         */
+        protected Map<SubDirectoryInfo, Set<String>> existingIds;
+
+        protected boolean closed;
+
+        protected MultiEntryIterator(Map<String, Serializable> filter,
+                Set<String> fulltext, boolean fetchReferences, int fetchSize) {
+            this.filter = filter;
+            this.fulltext = fulltext;
+            this.fetchReferences = fetchReferences;
+            this.fetchSize = fetchSize;
+            sources = sourceInfos.iterator();
+            seen = sourceInfos.size() > 1 ? new HashSet<String>() : null;
+        }
+
+        @Override
+        protected DocumentModel fetchNext() throws DirectoryException {
+            try {
+                while (true) {
+                    if (primaryEntries == null) {
+                        if (closed || !sources.hasNext()) {
+                            return null;
+                        }
+                        startSource(sources.next());
+                    }
+                    if (!primaryEntries.hasNext()) {
+                        primaryEntries.close();
+                        primaryEntries = null;
+                        continue;
+                    }
+                    DocumentModel entry = computeEntry(primaryEntries.next());
+                    if (entry != null) {
+                        return entry;
+                    }
+                }
+            } catch (DirectoryException e) {
+                throw e;
+            } catch (ClientException e) {
+                throw new DirectoryException(e);
+            }
+        }
+
+        protected void startSource(SourceInfo source) throws ClientException {
+            sourceInfo = source;
+            primaryInfo = source.requiredSubDirectoryInfos.get(0);
+            matchingIds = new HashMap<SubDirectoryInfo, Set<String>>();
+            existingIds = new HashMap<SubDirectoryInfo, Set<String>>();
+            for (SubDirectoryInfo dirInfo : source.subDirectoryInfos) {
+                if (dirInfo == primaryInfo) {
+                    continue;
+                }
+                Map<String, Serializable> dirFilter = computeDirFilter(
+                        dirInfo, filter);
+                matchingIds.put(dirInfo, new HashSet<String>(
+                        dirInfo.getSession().getProjection(dirFilter,
+                                computeDirFulltext(dirInfo, fulltext),
+                                dirInfo.idField)));
+                if (dirInfo.isOptional
+                        && matchesDefaultEntry(dirInfo, dirFilter)) {
+                    existingIds.put(dirInfo, new HashSet<String>(
+                            dirInfo.getSession().getProjection(
+                                    Collections.<String, Serializable> emptyMap(),
+                                    dirInfo.idField)));
+                }
+            }
+            primaryEntries = primaryInfo.getSession().queryIterator(
+                    computeDirFilter(primaryInfo, filter),
+                    computeDirFulltext(primaryInfo, fulltext),
+                    fetchReferences, fetchSize);
+        }
+
+        protected DocumentModel computeEntry(DocumentModel primaryEntry)
+                throws ClientException {
+            final String id = primaryEntry.getId();
+            if (seen != null && seen.contains(id)) {
+                log.warn(String.format(
+                        "Entry '%s' is present in several sources of directory '%s'. "
+                                + "Only the first one is returned.", id,
+                        directory.getName()));
+                return null;
+            }
+            boolean readOnly = BaseSession.isReadOnlyEntry(primaryEntry);
+            final Map<String, Object> map = new HashMap<String, Object>();
+            for (Entry<String, String> e : primaryInfo.toSource.entrySet()) {
+                map.put(e.getValue(), primaryEntry.getProperty(
+                        primaryInfo.dirSchemaName, e.getKey()));
+            }
+            for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
+                if (dirInfo == primaryInfo) {
+                    continue;
+                }
+                if (matchingIds.get(dirInfo).contains(id)) {
+                    DocumentModel entry = dirInfo.getSession().getEntry(id,
+                            fetchReferences);
+                    if (entry == null) {
+                        return null;
+                    }
+                    for (Entry<String, String> e : dirInfo.toSource.entrySet()) {
+                        map.put(e.getValue(), entry.getProperty(
+                                dirInfo.dirSchemaName, e.getKey()));
+                    }
+                    if (BaseSession.isReadOnlyEntry(entry)) {
+                        readOnly = true;
+                    }
+                } else {
+                    Set<String> existing = existingIds.get(dirInfo);
+                    if (existing == null || existing.contains(id)) {
+                        // not matching the filter in this sub-directory
+                        return null;
+                    }
+                    // fill with default values for this directory
+                    for (Entry<String, String> e : dirInfo.toSource.entrySet()) {
+                        if (!map.containsKey(e.getValue())) {
+                            map.put(e.getValue(),
+                                    dirInfo.defaultEntry.get(e.getKey()));
+                        }
+                    }
+                }
+            }
+            if (seen != null) {
+                seen.add(id);
+            }
+            return BaseSession.createEntryModel(null, schemaName, id, map,
+                    readOnly);
+        }
+
+        @Override
+        public void close() throws DirectoryException {
+            if (primaryEntries != null) {
+                primaryEntries.close();
+                primaryEntries = null;
+            }
+            closed = true;
+        }
+    }
+
     public List<String> getProjection(Map<String, Serializable> filter,
             String columnName) throws ClientException {
         return getProjection(filter, Collections.<String> emptySet(),
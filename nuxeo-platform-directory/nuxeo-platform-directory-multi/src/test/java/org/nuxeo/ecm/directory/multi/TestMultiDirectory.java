@@ -20,6 +20,8 @@
 package org.nuxeo.ecm.directory.multi;
 
 import java.io.Serializable;
+import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -37,12 +39,16 @@ import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelComparator;
 import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.local.ClientLoginModule;
+import org.nuxeo.ecm.core.api.local.LoginStack;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryIterator;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
 import org.nuxeo.ecm.directory.memory.MemoryDirectory;
 import org.nuxeo.ecm.directory.memory.MemoryDirectoryFactory;
+import org.nuxeo.ecm.directory.memory.MemoryDirectorySession;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.NXRuntimeTestCase;
 
@@ -477,6 +483,179 @@ public class TestMultiDirectory extends NXRuntimeTestCase {
         assertEquals(4, entries.size());
     }
 
+    @Test
+    public void testQueryCount() throws Exception {
+        Map<String, Serializable> filter = new HashMap<String, Serializable>();
+        Set<String> fulltext = new HashSet<String>();
+        assertEquals(4, dir.queryCount(filter, fulltext, 0));
+        assertEquals(2, dir.queryCount(filter, fulltext, 2));
+        assertEquals(4, dir.queryCount(filter, fulltext, 10));
+        filter.put("thefoo", "foo1");
+        assertEquals(1, dir.queryCount(filter, fulltext, 10));
+    }
+
+    protected void assertSameEntries(Map<String, Serializable> filter,
+            Set<String> fulltext) throws Exception {
+        Map<String, String> expected = new HashMap<String, String>();
+        for (DocumentModel entry : dir.query(filter, fulltext)) {
+            expected.put(entry.getId(), entry.getProperty("schema3", "thefoo")
+                    + "/" + entry.getProperty("schema3", "thebar"));
+        }
+        Map<String, String> actual = new HashMap<String, String>();
+        EntryIterator it = dir.queryIterator(filter, fulltext, false, 1);
+        try {
+            while (it.hasNext()) {
+                DocumentModel entry = it.next();
+                assertNull(actual.put(entry.getId(),
+                        entry.getProperty("schema3", "thefoo") + "/"
+                                + entry.getProperty("schema3", "thebar")));
+            }
+        } finally {
+            it.close();
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testQueryIterator() throws Exception {
+        Map<String, Serializable> filter = new HashMap<String, Serializable>();
+        Set<String> fulltext = new HashSet<String>();
+        assertSameEntries(filter, fulltext);
+        filter.put("thefoo", "f");
+        assertSameEntries(filter, fulltext);
+        filter.put("thefoo", "foo1");
+        assertSameEntries(filter, fulltext);
+        filter.put("thefoo", "foo3");
+        assertSameEntries(filter, fulltext);
+        filter.put("thefoo", "foo1");
+        filter.put("thebar", "bar1");
+        assertSameEntries(filter, fulltext);
+        filter.put("thebar", "bar2");
+        assertSameEntries(filter, fulltext);
+        filter.clear();
+        filter.put("thebar", "bar");
+        fulltext.add("thebar");
+        assertSameEntries(filter, fulltext);
+    }
+
+    protected static List<String> describe(List<DocumentModel> entries)
+            throws ClientException {
+        List<String> list = new ArrayList<String>();
+        for (DocumentModel entry : entries) {
+            list.add(entry.getId() + ":"
+                    + entry.getProperty("schema3", "thefoo") + "/"
+                    + entry.getProperty("schema3", "thebar"));
+        }
+        return list;
+    }
+
+    @Test
+    public void testParallelSubDirectoryCalls() throws Exception {
+        MultiDirectory parallelMultiDir = (MultiDirectory) directoryService.getDirectory("parallelmulti");
+        assertNotNull(parallelMultiDir.getExecutor());
+        assertNull(multiDir.getExecutor());
+        Session parallelDir = parallelMultiDir.getSession();
+        try {
+            for (String id : Arrays.asList("1", "2", "3", "4", "no-such-entry")) {
+                DocumentModel expected = dir.getEntry(id);
+                DocumentModel actual = parallelDir.getEntry(id);
+                if (expected == null) {
+                    assertNull(actual);
+                } else {
+                    assertEquals(describe(Arrays.asList(expected)),
+                            describe(Arrays.asList(actual)));
+                }
+            }
+            assertEquals(describe(dir.getEntries()),
+                    describe(parallelDir.getEntries()));
+
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            assertEquals(describe(dir.query(filter)),
+                    describe(parallelDir.query(filter)));
+            filter.put("thefoo", "foo3");
+            assertEquals(describe(dir.query(filter)),
+                    describe(parallelDir.query(filter)));
+            filter.put("thefoo", "foo1");
+            filter.put("thebar", "bar1");
+            assertEquals(describe(dir.query(filter)),
+                    describe(parallelDir.query(filter)));
+
+            assertTrue(parallelDir.authenticate("1", "foo1"));
+            assertFalse(parallelDir.authenticate("1", "haha"));
+            assertTrue(parallelDir.authenticate("3", "foo3"));
+            assertFalse(parallelDir.authenticate("3", "haha"));
+
+            // per sub-directory latency
+            assertTrue(parallelMultiDir.getSubDirectoryTimer("dir3").getCount() > 0);
+        } finally {
+            parallelDir.close();
+        }
+    }
+
+    @Test
+    public void testParallelSubDirectoryCallsUseCallerLogin()
+            throws Exception {
+        // replace dir3 by a multi-tenant directory recording the principals
+        // calling it
+        final Set<String> callingPrincipals = Collections.synchronizedSet(new HashSet<String>());
+        memoryDirectoryFactory.unregisterDirectory(memdir3);
+        memdir3 = new MemoryDirectory("dir3", "schema3", new HashSet<String>(
+                Arrays.asList("uid", "thefoo", "thebar")), "uid", "thefoo") {
+            @Override
+            public boolean isMultiTenant() {
+                return true;
+            }
+
+            @Override
+            public Session getSession() {
+                if (session == null) {
+                    session = new MemoryDirectorySession(this) {
+                        @Override
+                        public DocumentModel getEntry(String id,
+                                boolean fetchReferences)
+                                throws DirectoryException {
+                            LoginStack.Entry login = ClientLoginModule.getCurrentLogin();
+                            callingPrincipals.add(login == null ? null
+                                    : login.getPrincipal().getName());
+                            return super.getEntry(id, fetchReferences);
+                        }
+                    };
+                }
+                addSession(session);
+                return session;
+            }
+        };
+        memoryDirectoryFactory.registerDirectory(memdir3);
+        Map<String, Object> e = new HashMap<String, Object>();
+        e.put("uid", "3");
+        e.put("thefoo", "foo3");
+        e.put("thebar", "bar3");
+        memdir3.getSession().createEntry(e);
+
+        Principal principal = new Principal() {
+            @Override
+            public String getName() {
+                return "tenantuser";
+            }
+        };
+        ClientLoginModule.getThreadLocalLogin().push(principal, null, null);
+        try {
+            MultiDirectory parallelMultiDir = (MultiDirectory) directoryService.getDirectory("parallelmulti");
+            Session parallelDir = parallelMultiDir.getSession();
+            try {
+                DocumentModel entry = parallelDir.getEntry("3");
+                assertNotNull(entry);
+                assertEquals("foo3", entry.getProperty("schema3", "thefoo"));
+                assertNotNull(parallelDir.getEntry("1"));
+            } finally {
+                parallelDir.close();
+            }
+        } finally {
+            ClientLoginModule.getThreadLocalLogin().pop();
+        }
+        assertEquals(Collections.singleton("tenantuser"), callingPrincipals);
+    }
+
     @Test
     public void testGetProjection() throws Exception {
         Map<String, Serializable> filter = new HashMap<String, Serializable>();
@@ -38,6 +38,7 @@ import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryIterator;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
 import org.nuxeo.ecm.directory.memory.MemoryDirectory;
@@ -436,6 +437,90 @@ public class TestMultiDirectoryOptional extends NXRuntimeTestCase {
         assertEquals("bar3", e.getProperty("schema3", "thebar"));
     }
 
+    protected static Map<String, String> describe(List<DocumentModel> entries)
+            throws ClientException {
+        Map<String, String> map = new HashMap<String, String>();
+        for (DocumentModel entry : entries) {
+            map.put(entry.getId(), entry.getProperty("schema3", "thefoo")
+                    + "/" + entry.getProperty("schema3", "thebar"));
+        }
+        return map;
+    }
+
+    @Test
+    public void testOptionalLookupSameAsFullScan() throws Exception {
+        Session fullScanDir = directoryService.open("multiOptionalFullScan");
+        try {
+            assertEquals(describe(fullScanDir.getEntries()),
+                    describe(dir.getEntries()));
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            assertEquals(describe(fullScanDir.query(filter)),
+                    describe(dir.query(filter)));
+            // filter on the optional sub-directory
+            filter.put("thefoo", "defaultFooValue");
+            assertEquals(describe(fullScanDir.query(filter)),
+                    describe(dir.query(filter)));
+            filter.put("thefoo", "foo2");
+            assertEquals(describe(fullScanDir.query(filter)),
+                    describe(dir.query(filter)));
+            // filter on the required sub-directory only
+            filter.clear();
+            filter.put("thebar", "bar1");
+            DocumentModelList entries = dir.query(filter);
+            assertEquals(describe(fullScanDir.query(filter)),
+                    describe(entries));
+            assertEquals(1, entries.size());
+            assertEquals("defaultFooValue",
+                    entries.get(0).getProperty("schema3", "thefoo"));
+        } finally {
+            fullScanDir.close();
+        }
+    }
+
+    protected void assertSameEntries(Map<String, Serializable> filter,
+            Set<String> fulltext) throws Exception {
+        Map<String, String> expected = new HashMap<String, String>();
+        for (DocumentModel entry : dir.query(filter, fulltext)) {
+            expected.put(entry.getId(), entry.getProperty("schema3", "thefoo")
+                    + "/" + entry.getProperty("schema3", "thebar"));
+        }
+        Map<String, String> actual = new HashMap<String, String>();
+        EntryIterator it = dir.queryIterator(filter, fulltext, false, 1);
+        try {
+            while (it.hasNext()) {
+                DocumentModel entry = it.next();
+                assertNull(actual.put(entry.getId(),
+                        entry.getProperty("schema3", "thefoo") + "/"
+                                + entry.getProperty("schema3", "thebar")));
+            }
+        } finally {
+            it.close();
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testQueryIterator() throws Exception {
+        Map<String, Serializable> filter = new HashMap<String, Serializable>();
+        Set<String> fulltext = new HashSet<String>();
+        assertSameEntries(filter, fulltext);
+        filter.put("thefoo", "f");
+        assertSameEntries(filter, fulltext);
+        filter.put("thefoo", "defaultFooValue");
+        assertSameEntries(filter, fulltext);
+        filter.put("thefoo", "foo3");
+        assertSameEntries(filter, fulltext);
+        filter.put("thefoo", "defaultFooValue");
+        filter.put("thebar", "bar1");
+        assertSameEntries(filter, fulltext);
+        filter.put("thebar", "bar2");
+        assertSameEntries(filter, fulltext);
+        filter.clear();
+        filter.put("thebar", "bar");
+        fulltext.add("thebar");
+        assertSameEntries(filter, fulltext);
+    }
+
     @Test
     public void testGetProjection() throws Exception {
         Map<String, Serializable> filter = new HashMap<String, Serializable>();
@@ -0,0 +1,767 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.sql;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * Bounded pool of the physical connections of a SQL directory that does not
+ * use a datasource.
+ * <p>
+ * Idle connections are validated before being reused if they have been idle
+ * for a while, and closed after a time out. Connections not returned to the
+ * pool after a time out are reported as leaked, with the stack trace of the
+ * code that acquired them.
+ * <p>
+ * Each pooled connection also caches the statements prepared from a plain SQL
+ * text: closing such a statement returns it to the cache instead of closing
+ * it, so that the callers do not have to change.
+ *
+ * @since 5.8
+ */
+public class SQLConnectionPool implements DataSource {
+
+    private static final Log log = LogFactory.getLog(SQLConnectionPool.class);
+
+    protected final String name;
+
+    protected final DataSource dataSource;
+
+    protected final SQLConnectionPoolDescriptor config;
+
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    protected final Condition available = lock.newCondition();
+
+    // most recently used first
+    protected final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+
+    protected final Set<PooledConnection> active = new HashSet<PooledConnection>();
+
+    // connections being opened, counted as active
+    protected int opening;
+
+    protected boolean closed;
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final String activeGaugeName;
+
+    protected final String idleGaugeName;
+
+    protected final Counter createdCount;
+
+    protected final Counter waitCount;
+
+    protected final Counter leakCount;
+
+    protected final Counter statementHitCount;
+
+    protected final Counter statementMissCount;
+
+    /**
+     * @param name the directory name, used for logs and metrics
+     * @param dataSource the datasource opening the physical connections
+     */
+    public SQLConnectionPool(String name, DataSource dataSource,
+            SQLConnectionPoolDescriptor config) {
+        this.name = name;
+        this.dataSource = dataSource;
+        this.config = config;
+        activeGaugeName = MetricRegistry.name("nuxeo", "directories", name,
+                "pool", "active");
+        idleGaugeName = MetricRegistry.name("nuxeo", "directories", name,
+                "pool", "idle");
+        // a directory with the same name may have been registered before
+        registry.remove(activeGaugeName);
+        registry.remove(idleGaugeName);
+        registry.register(activeGaugeName, new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return Integer.valueOf(getActiveCount());
+            }
+        });
+        registry.register(idleGaugeName, new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return Integer.valueOf(getIdleCount());
+            }
+        });
+        createdCount = registry.counter(MetricRegistry.name("nuxeo",
+                "directories", name, "pool", "created"));
+        waitCount = registry.counter(MetricRegistry.name("nuxeo",
+                "directories", name, "pool", "waits"));
+        leakCount = registry.counter(MetricRegistry.name("nuxeo",
+                "directories", name, "pool", "leaks"));
+        statementHitCount = registry.counter(MetricRegistry.name("nuxeo",
+                "directories", name, "pool", "statements", "hits"));
+        statementMissCount = registry.counter(MetricRegistry.name("nuxeo",
+                "directories", name, "pool", "statements", "misses"));
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(config.maxWait);
+        for (;;) {
+            PooledConnection pooled = null;
+            List<PooledConnection> evicted;
+            lock.lock();
+            try {
+                long now = nanoTime();
+                detectLeaks(now);
+                evicted = evictIdle(now);
+                for (;;) {
+                    if (closed) {
+                        throw new SQLException(
+                                "Connection pool of directory '" + name
+                                        + "' is closed");
+                    }
+                    pooled = idle.pollFirst();
+                    if (pooled != null) {
+                        active.add(pooled);
+                        break;
+                    }
+                    if (active.size() + opening < config.maxActive) {
+                        opening++;
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new SQLException(String.format(
+                                "Timed out after %sms waiting for a connection "
+                                        + "to directory '%s', %s connections in use",
+                                Long.valueOf(config.maxWait), name,
+                                Integer.valueOf(active.size())));
+                    }
+                    waitCount.inc();
+                    try {
+                        available.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("interrupted");
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            closeAll(evicted);
+            if (pooled == null) {
+                return open().checkout();
+            }
+            if (validate(pooled)) {
+                return pooled.checkout();
+            }
+            // try another one
+            discard(pooled);
+        }
+    }
+
+    /**
+     * Returns the current time in nanoseconds used to compute the idle and
+     * checked out durations of the connections, {@link System#nanoTime()} by
+     * default.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    protected PooledConnection open() throws SQLException {
+        PooledConnection pooled = null;
+        try {
+            pooled = new PooledConnection(dataSource.getConnection());
+            createdCount.inc();
+        } finally {
+            lock.lock();
+            try {
+                opening--;
+                if (pooled != null) {
+                    if (closed) {
+                        pooled.closePhysical();
+                        throw new SQLException(
+                                "Connection pool of directory '" + name
+                                        + "' is closed");
+                    }
+                    active.add(pooled);
+                } else {
+                    available.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return pooled;
+    }
+
+    protected boolean validate(PooledConnection pooled) {
+        long idleTime = nanoTime() - pooled.lastUsed;
+        if (idleTime < TimeUnit.SECONDS.toNanos(config.validationInterval)) {
+            return true;
+        }
+        try {
+            return pooled.connection.isValid(5);
+        } catch (SQLException | RuntimeException | AbstractMethodError e) {
+            // drivers not supporting JDBC 4 validation
+            return !pooled.isPhysicallyClosed();
+        }
+    }
+
+    /**
+     * Returns a connection to the pool, or closes it if it cannot be reused.
+     */
+    protected void release(PooledConnection pooled) {
+        boolean reuse = !pooled.broken && pooled.reset();
+        List<PooledConnection> evicted;
+        lock.lock();
+        try {
+            active.remove(pooled);
+            long now = nanoTime();
+            if (reuse && !closed && idle.size() < config.maxIdle) {
+                pooled.lastUsed = now;
+                idle.addFirst(pooled);
+            } else {
+                reuse = false;
+            }
+            evicted = evictIdle(now);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (!reuse) {
+            pooled.closePhysical();
+        }
+        closeAll(evicted);
+    }
+
+    protected void discard(PooledConnection pooled) {
+        lock.lock();
+        try {
+            active.remove(pooled);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        pooled.closePhysical();
+    }
+
+    /**
+     * Removes the connections idle for too long, to be closed outside of the
+     * lock.
+     */
+    protected List<PooledConnection> evictIdle(long now) {
+        List<PooledConnection> evicted = null;
+        long timeout = TimeUnit.SECONDS.toNanos(config.idleTimeout);
+        // the least recently used connections are at the end
+        for (Iterator<PooledConnection> it = idle.descendingIterator(); it.hasNext();) {
+            PooledConnection pooled = it.next();
+            if (now - pooled.lastUsed < timeout) {
+                break;
+            }
+            it.remove();
+            if (evicted == null) {
+                evicted = new ArrayList<PooledConnection>();
+            }
+            evicted.add(pooled);
+        }
+        return evicted;
+    }
+
+    protected void detectLeaks(long now) {
+        if (config.leakTimeout <= 0) {
+            return;
+        }
+        long timeout = TimeUnit.SECONDS.toNanos(config.leakTimeout);
+        for (PooledConnection pooled : active) {
+            if (pooled.acquired != null && !pooled.leakReported
+                    && now - pooled.checkedOut > timeout) {
+                pooled.leakReported = true;
+                leakCount.inc();
+                log.warn(String.format(
+                        "Connection to directory '%s' not returned to the pool after %ss",
+                        name, Integer.valueOf(config.leakTimeout)),
+                        pooled.acquired);
+            }
+        }
+    }
+
+    protected void closeAll(List<PooledConnection> connections) {
+        if (connections != null) {
+            for (PooledConnection pooled : connections) {
+                pooled.closePhysical();
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections, the connections in use are closed when
+     * they are returned.
+     */
+    public void close() {
+        List<PooledConnection> connections;
+        lock.lock();
+        try {
+            closed = true;
+            connections = new ArrayList<PooledConnection>(idle);
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        closeAll(connections);
+        registry.remove(activeGaugeName);
+        registry.remove(idleGaugeName);
+    }
+
+    public int getActiveCount() {
+        lock.lock();
+        try {
+            return active.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCreatedCount() {
+        return createdCount.getCount();
+    }
+
+    public long getLeakCount() {
+        return leakCount.getCount();
+    }
+
+    public long getStatementHitCount() {
+        return statementHitCount.getCount();
+    }
+
+    public long getStatementMissCount() {
+        return statementMissCount.getCount();
+    }
+
+    protected static Object invoke(Object target, Method method, Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * A physical connection and its statement cache.
+     */
+    protected class PooledConnection {
+
+        protected final Connection connection;
+
+        protected final Map<String, CachedStatement> statements;
+
+        protected long lastUsed = nanoTime();
+
+        protected long checkedOut;
+
+        protected Throwable acquired;
+
+        protected boolean leakReported;
+
+        protected boolean broken;
+
+        protected PooledConnection(Connection connection) {
+            this.connection = connection;
+            statements = new LinkedHashMap<String, CachedStatement>(16,
+                    0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, CachedStatement> eldest) {
+                    if (size() <= config.statementCacheSize) {
+                        return false;
+                    }
+                    CachedStatement statement = eldest.getValue();
+                    if (statement.inUse) {
+                        // closed when returned
+                        statement.evicted = true;
+                    } else {
+                        closeQuietly(statement.statement);
+                    }
+                    return true;
+                }
+            };
+        }
+
+        protected Connection checkout() {
+            checkedOut = nanoTime();
+            leakReported = false;
+            acquired = config.leakTimeout > 0 ? new Throwable(
+                    "Connection acquired here") : null;
+            ConnectionHandler handler = new ConnectionHandler(this);
+            handler.proxy = (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, handler);
+            return handler.proxy;
+        }
+
+        protected PreparedStatement prepareStatement(String sql,
+                ConnectionHandler handler) throws SQLException {
+            if (config.statementCacheSize <= 0) {
+                return handler.track(connection.prepareStatement(sql));
+            }
+            CachedStatement statement = statements.get(sql);
+            if (statement != null && statement.inUse) {
+                // already used by the caller, do not share it
+                return handler.track(connection.prepareStatement(sql));
+            }
+            if (statement != null) {
+                statementHitCount.inc();
+            } else {
+                statementMissCount.inc();
+                statement = new CachedStatement(sql,
+                        connection.prepareStatement(sql));
+                statements.put(sql, statement);
+            }
+            statement.inUse = true;
+            handler.cachedStatements.add(statement);
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    PreparedStatement.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class },
+                    new StatementHandler(statement, handler));
+        }
+
+        protected void returnStatement(CachedStatement statement) {
+            statement.inUse = false;
+            if (statement.evicted) {
+                closeQuietly(statement.statement);
+                return;
+            }
+            try {
+                ResultSet rs = statement.statement.getResultSet();
+                if (rs != null) {
+                    rs.close();
+                }
+                statement.statement.clearParameters();
+                statement.statement.clearBatch();
+                if (statement.maxRowsSet) {
+                    statement.statement.setMaxRows(0);
+                    statement.maxRowsSet = false;
+                }
+                statement.statement.clearWarnings();
+            } catch (SQLException e) {
+                statements.remove(statement.sql);
+                closeQuietly(statement.statement);
+            }
+        }
+
+        /**
+         * Puts the connection back in the state of a new one, returns
+         * {@code false} if it cannot be reused.
+         */
+        protected boolean reset() {
+            try {
+                if (connection.isClosed()) {
+                    return false;
+                }
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                }
+                connection.setAutoCommit(false);
+                connection.clearWarnings();
+                return true;
+            } catch (SQLException e) {
+                log.debug("Discarding connection to directory '" + name
+                        + "': " + e.getMessage());
+                return false;
+            }
+        }
+
+        protected boolean isPhysicallyClosed() {
+            try {
+                return connection.isClosed();
+            } catch (SQLException e) {
+                return true;
+            }
+        }
+
+        protected void closePhysical() {
+            for (CachedStatement statement : statements.values()) {
+                closeQuietly(statement.statement);
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.debug("Error closing connection to directory '" + name
+                        + "': " + e.getMessage());
+            }
+        }
+    }
+
+    protected static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // ignore
+        }
+    }
+
+    protected static class CachedStatement {
+
+        protected final String sql;
+
+        protected final PreparedStatement statement;
+
+        protected boolean inUse;
+
+        protected boolean evicted;
+
+        protected boolean maxRowsSet;
+
+        protected CachedStatement(String sql, PreparedStatement statement) {
+            this.sql = sql;
+            this.statement = statement;
+        }
+    }
+
+    /**
+     * The connection handed out to a caller, returned to the pool on close.
+     */
+    protected class ConnectionHandler implements InvocationHandler {
+
+        protected final PooledConnection pooled;
+
+        protected Connection proxy;
+
+        protected final List<CachedStatement> cachedStatements = new ArrayList<CachedStatement>();
+
+        protected final List<Statement> statements = new ArrayList<Statement>();
+
+        protected boolean closed;
+
+        protected ConnectionHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        protected <T extends Statement> T track(T statement) {
+            statements.add(statement);
+            return statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String methodName = method.getName();
+            switch (methodName) {
+            case "equals":
+                return Boolean.valueOf(proxy == args[0]);
+            case "hashCode":
+                return Integer.valueOf(System.identityHashCode(proxy));
+            case "toString":
+                return "Pooled connection to directory '" + name + "'";
+            case "close":
+                close();
+                return null;
+            case "isClosed":
+                return Boolean.valueOf(closed || pooled.isPhysicallyClosed());
+            default:
+                break;
+            }
+            if (closed) {
+                throw new SQLException("Connection is closed");
+            }
+            if ("prepareStatement".equals(methodName) && args.length == 1) {
+                return pooled.prepareStatement((String) args[0], this);
+            }
+            try {
+                Object result = SQLConnectionPool.invoke(pooled.connection,
+                        method, args);
+                if (result instanceof Statement) {
+                    track((Statement) result);
+                }
+                return result;
+            } catch (SQLException e) {
+                markBroken(e);
+                throw e;
+            }
+        }
+
+        protected void markBroken(SQLException e) {
+            // SQL state class 08: connection exception
+            String state = e.getSQLState();
+            if (state != null && state.startsWith("08")) {
+                pooled.broken = true;
+            }
+        }
+
+        protected void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Statement statement : statements) {
+                closeQuietly(statement);
+            }
+            for (CachedStatement statement : cachedStatements) {
+                if (statement.inUse) {
+                    pooled.returnStatement(statement);
+                }
+            }
+            release(pooled);
+        }
+    }
+
+    /**
+     * A cached statement handed out to a caller, returned to the cache on
+     * close.
+     */
+    protected class StatementHandler implements InvocationHandler {
+
+        protected final CachedStatement statement;
+
+        protected final ConnectionHandler connectionHandler;
+
+        protected boolean closed;
+
+        protected StatementHandler(CachedStatement statement,
+                ConnectionHandler connectionHandler) {
+            this.statement = statement;
+            this.connectionHandler = connectionHandler;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            switch (method.getName()) {
+            case "equals":
+                return Boolean.valueOf(proxy == args[0]);
+            case "hashCode":
+                return Integer.valueOf(System.identityHashCode(proxy));
+            case "toString":
+                return statement.statement.toString();
+            case "close":
+                if (!closed) {
+                    closed = true;
+                    connectionHandler.pooled.returnStatement(statement);
+                }
+                return null;
+            case "isClosed":
+                return Boolean.valueOf(closed);
+            case "getConnection":
+                return connectionHandler.proxy;
+            case "setMaxRows":
+                // reset when returned to the cache
+                statement.maxRowsSet = true;
+                break;
+            default:
+                break;
+            }
+            if (closed) {
+                throw new SQLException("Statement is closed");
+            }
+            try {
+                return SQLConnectionPool.invoke(statement.statement, method,
+                        args);
+            } catch (SQLException e) {
+                connectionHandler.markBroken(e);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password)
+            throws SQLException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        throw new UnsupportedOperationException();
+    }
+
+    // @Override in CommonDataSource for Java SE 7 / JDBC 4.1
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.sql;
+
+import java.io.Serializable;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Configuration of the connection pool of a SQL directory that does not use a
+ * datasource.
+ *
+ * @since 5.8
+ */
+@XObject(value = "connectionPool")
+public class SQLConnectionPoolDescriptor implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Maximum number of connections, idle or in use.
+     */
+    @XNode("@maxActive")
+    public int maxActive = 20;
+
+    /**
+     * Maximum number of idle connections kept open.
+     */
+    @XNode("@maxIdle")
+    public int maxIdle = 5;
+
+    /**
+     * Maximum time in milliseconds to wait for a connection when all of them
+     * are in use.
+     */
+    @XNode("@maxWait")
+    public long maxWait = 10000;
+
+    /**
+     * Time in seconds after which an idle connection is closed.
+     */
+    @XNode("@idleTimeout")
+    public int idleTimeout = 300;
+
+    /**
+     * Time in seconds after which an idle connection is validated before
+     * being reused.
+     */
+    @XNode("@validationInterval")
+    public int validationInterval = 30;
+
+    /**
+     * Time in seconds after which a connection not returned to the pool is
+     * reported as leaked, 0 to disable leak detection.
+     */
+    @XNode("@leakTimeout")
+    public int leakTimeout = 300;
+
+    /**
+     * Maximum number of prepared statements cached per connection, 0 to
+     * disable the statement cache.
+     */
+    @XNode("@statementCacheSize")
+    public int statementCacheSize = 50;
+
+    @Override
+    public SQLConnectionPoolDescriptor clone() {
+        SQLConnectionPoolDescriptor clone = new SQLConnectionPoolDescriptor();
+        clone.maxActive = maxActive;
+        clone.maxIdle = maxIdle;
+        clone.maxWait = maxWait;
+        clone.idleTimeout = idleTimeout;
+        clone.validationInterval = validationInterval;
+        clone.leakTimeout = leakTimeout;
+        clone.statementCacheSize = statementCacheSize;
+        return clone;
+    }
+
+}
@@ -216,6 +216,10 @@ public class SQLDirectory extends AbstractDirectory {
                     config.dataFileName,
                     config.getDataFileCharacterSeparator(),
                     config.createTablePolicy);
+            helper.setBatchSize(config.getDataFileBatchSize());
+            if (!managedSQLSession) {
+                helper.setCommitSize(config.getDataFileCommitSize());
+            }
             helper.setupTable();
 
             try {
@@ -234,6 +238,19 @@ public class SQLDirectory extends AbstractDirectory {
                 throw new DirectoryException(e);
             }
         }
+
+        // missing entries depend on the current tenant, they cannot be
+        // shared between tenants
+        if (isMultiTenant()) {
+            if (config.getNegativeCacheMaxSize() > 0) {
+                log.warn(String.format(
+                        "Negative cache ignored for multi tenant directory '%s'",
+                        getName()));
+            }
+        } else {
+            cache.setNegativeMaxSize(config.getNegativeCacheMaxSize());
+            cache.setNegativeTimeout(config.getNegativeCacheTimeout());
+        }
     }
 
     public SQLDirectoryDescriptor getConfig() {
@@ -257,6 +274,10 @@ public class SQLDirectory extends AbstractDirectory {
                 managedSQLSession = false;
                 dataSource = new SimpleDataSource(config.dbUrl,
                         config.dbDriver, config.dbUser, config.dbPassword);
+                if (config.connectionPool != null) {
+                    dataSource = new SQLConnectionPool(getName(), dataSource,
+                            config.connectionPool);
+                }
             }
             log.trace("found datasource: " + dataSource);
             return dataSource;
@@ -326,6 +347,15 @@ public class SQLDirectory extends AbstractDirectory {
         }
     }
 
+    @Override
+    public synchronized void shutdown() {
+        super.shutdown();
+        if (dataSource instanceof SQLConnectionPool) {
+            ((SQLConnectionPool) dataSource).close();
+            dataSource = null;
+        }
+    }
+
     @Override
     public String getName() {
         return config.getName();
@@ -71,6 +71,15 @@ public class SQLDirectoryDescriptor {
     @XNode("dbPassword")
     public String dbPassword;
 
+    /**
+     * Connection pool used when no datasource is configured, connections are
+     * opened for each session if {@code null}.
+     *
+     * @since 5.8
+     */
+    @XNode("connectionPool")
+    public SQLConnectionPoolDescriptor connectionPool;
+
     @XNode("table")
     public String tableName;
 
@@ -86,6 +95,23 @@ public class SQLDirectoryDescriptor {
     @XNode(value = "dataFileCharacterSeparator", trim = false)
     public String dataFileCharacterSeparator = ",";
 
+    /**
+     * Number of data file rows sent to the database at once.
+     *
+     * @since 5.8
+     */
+    @XNode("dataFileBatchSize")
+    public Integer dataFileBatchSize;
+
+    /**
+     * Number of data file rows after which the load is committed, 0 to
+     * commit once all rows are loaded. Ignored when a dataSource is used.
+     *
+     * @since 5.8
+     */
+    @XNode("dataFileCommitSize")
+    public Integer dataFileCommitSize;
+
     public String createTablePolicy;
 
     public SubstringMatchType substringMatchType;
@@ -120,6 +146,18 @@ public class SQLDirectoryDescriptor {
     @XNode("cacheMaxSize")
     public int cacheMaxSize = 0;
 
+    /**
+     * @since 5.8
+     */
+    @XNode("negativeCacheTimeout")
+    public int negativeCacheTimeout = 0;
+
+    /**
+     * @since 5.8
+     */
+    @XNode("negativeCacheMaxSize")
+    public int negativeCacheMaxSize = 0;
+
     @XNodeList(value = "filters/staticFilter", type = SQLStaticFilter[].class, componentType = SQLStaticFilter.class)
     private SQLStaticFilter[] staticFilters;
 
@@ -226,6 +264,21 @@ public class SQLDirectoryDescriptor {
         return idField;
     }
 
+    /**
+     * @since 5.8
+     */
+    public int getDataFileBatchSize() {
+        return dataFileBatchSize == null ? SQLHelper.DEFAULT_BATCH_SIZE
+                : dataFileBatchSize.intValue();
+    }
+
+    /**
+     * @since 5.8
+     */
+    public int getDataFileCommitSize() {
+        return dataFileCommitSize == null ? 0 : dataFileCommitSize.intValue();
+    }
+
     public String getCreateTablePolicy() {
         return createTablePolicy;
     }
@@ -344,6 +397,20 @@ public class SQLDirectoryDescriptor {
         return cacheMaxSize;
     }
 
+    /**
+     * @since 5.8
+     */
+    public int getNegativeCacheTimeout() {
+        return negativeCacheTimeout;
+    }
+
+    /**
+     * @since 5.8
+     */
+    public int getNegativeCacheMaxSize() {
+        return negativeCacheMaxSize;
+    }
+
     public SubstringMatchType getSubstringMatchType() {
         return substringMatchType == null ? SubstringMatchType.subinitial
                 : substringMatchType;
@@ -392,6 +459,9 @@ public class SQLDirectoryDescriptor {
         if (other.dbUser != null || overwite) {
             dbUser = other.dbUser;
         }
+        if (other.connectionPool != null || overwite) {
+            connectionPool = other.connectionPool;
+        }
         if (other.dbPassword != null || overwite) {
             dbPassword = other.dbPassword;
         }
@@ -417,6 +487,12 @@ public class SQLDirectoryDescriptor {
         if (other.dataFileCharacterSeparator != null || overwite) {
             dataFileCharacterSeparator = other.dataFileCharacterSeparator;
         }
+        if (other.dataFileBatchSize != null || overwite) {
+            dataFileBatchSize = other.dataFileBatchSize;
+        }
+        if (other.dataFileCommitSize != null || overwite) {
+            dataFileCommitSize = other.dataFileCommitSize;
+        }
         if (other.createTablePolicy != null || overwite) {
             createTablePolicy = other.createTablePolicy;
         }
@@ -453,6 +529,8 @@ public class SQLDirectoryDescriptor {
         if (overwite) {
             cacheTimeout = other.cacheTimeout;
             cacheMaxSize = other.cacheMaxSize;
+            negativeCacheTimeout = other.negativeCacheTimeout;
+            negativeCacheMaxSize = other.negativeCacheMaxSize;
         }
         if ((other.staticFilters != null && other.staticFilters.length != 0)
                 || overwite) {
@@ -475,6 +553,9 @@ public class SQLDirectoryDescriptor {
         clone.dbUrl = dbUrl;
         clone.dbUser = dbUser;
         clone.dbPassword = dbPassword;
+        if (connectionPool != null) {
+            clone.connectionPool = connectionPool.clone();
+        }
         clone.tableName = tableName;
         if (initDependencies != null) {
             clone.initDependencies = new ArrayList<String>(initDependencies);
@@ -482,6 +563,8 @@ public class SQLDirectoryDescriptor {
         clone.idField = idField;
         clone.dataFileName = dataFileName;
         clone.dataFileCharacterSeparator = dataFileCharacterSeparator;
+        clone.dataFileBatchSize = dataFileBatchSize;
+        clone.dataFileCommitSize = dataFileCommitSize;
         clone.createTablePolicy = createTablePolicy;
         clone.substringMatchType = substringMatchType;
         clone.autoincrementIdField = autoincrementIdField;
@@ -504,6 +587,8 @@ public class SQLDirectoryDescriptor {
         clone.remove = remove;
         clone.cacheTimeout = cacheTimeout;
         clone.cacheMaxSize = cacheMaxSize;
+        clone.negativeCacheTimeout = negativeCacheTimeout;
+        clone.negativeCacheMaxSize = negativeCacheMaxSize;
         if (staticFilters != null) {
             clone.staticFilters = new SQLStaticFilter[staticFilters.length];
             for (int i = 0; i < staticFilters.length; i++) {
@@ -29,6 +29,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
@@ -38,7 +39,6 @@ import java.util.Set;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.nuxeo.ecm.core.storage.sql.ColumnSpec;
 import org.nuxeo.ecm.core.storage.sql.ColumnType;
 import org.nuxeo.ecm.core.storage.sql.jdbc.JDBCLogger;
 import org.nuxeo.ecm.core.storage.sql.jdbc.db.Column;
@@ -75,6 +75,15 @@ public class SQLHelper {
 
     private JDBCLogger logger = new JDBCLogger("SQLDirectory");
 
+    /**
+     * @since 5.8
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    protected int batchSize = DEFAULT_BATCH_SIZE;
+
+    protected int commitSize;
+
     public SQLHelper(Connection connection, Table table, String dataFileName,
             char characterSeparator, String policy) {
         this.table = table;
@@ -90,6 +99,28 @@ public class SQLHelper {
         this(connection, table, dataFileName, ',', policy);
     }
 
+    /**
+     * Sets the number of data file rows sent to the database at once, 1 to
+     * insert them one by one.
+     *
+     * @since 5.8
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the number of data file rows after which the load is committed,
+     * or 0 to leave the commit to the caller. Must only be used with
+     * connections whose transactions are not managed by a transaction
+     * manager.
+     *
+     * @since 5.8
+     */
+    public void setCommitSize(int commitSize) {
+        this.commitSize = commitSize;
+    }
+
     public boolean setupTable() throws DirectoryException {
         log.debug(String.format("setting up table '%s', policy='%s'",
                 tableName, policy));
@@ -291,21 +322,37 @@ public class SQLHelper {
 
     private void loadData() throws DirectoryException {
         log.debug("loading data file: " + dataFileName);
-        CSVReader csvReader = null;
-        String[] columnValues = null;
-        PreparedStatement ps = null;
-        try {
-            InputStream is = getClass().getClassLoader().getResourceAsStream(
+        InputStream is = getClass().getClassLoader().getResourceAsStream(
+                dataFileName);
+        if (is == null) {
+            is = Framework.getResourceLoader().getResourceAsStream(
                     dataFileName);
             if (is == null) {
-                is = Framework.getResourceLoader().getResourceAsStream(
-                        dataFileName);
-                if (is == null) {
-                    throw new DirectoryException("data file not found: "
-                            + dataFileName);
-                }
+                throw new DirectoryException("data file not found: "
+                        + dataFileName);
             }
+        }
+        loadData(is);
+    }
 
+    /**
+     * Inserts the rows of a CSV stream in the table, the first row holding
+     * the column names. The stream is closed when done.
+     * <p>
+     * Rows are sent to the database in batches of {@link #setBatchSize}
+     * rows, and committed every {@link #setCommitSize} rows if the
+     * connection is not in auto-commit mode.
+     *
+     * @return the number of rows inserted
+     * @since 5.8
+     */
+    public int loadData(InputStream is) throws DirectoryException {
+        long start = System.currentTimeMillis();
+        CSVReader csvReader = null;
+        String[] columnValues = null;
+        PreparedStatement ps = null;
+        int count = 0;
+        try {
             csvReader = new CSVReader(new InputStreamReader(is,
                     SQL_SCRIPT_CHARSET), characterSeparator);
 
@@ -322,11 +369,25 @@ public class SQLHelper {
                 columns.add(table.getColumn(trimmedColumnName));
                 insert.addColumn(column);
             }
+            // resolve the conversion of each column once
+            ValueConverter[] converters = new ValueConverter[columnNames.length];
+            for (int i = 0; i < columnNames.length; i++) {
+                converters[i] = getValueConverter(columns.get(i));
+            }
             String insertSql = insert.getStatement();
             log.debug("insert statement: " + insertSql);
 
+            int batchSize = this.batchSize;
+            if (batchSize > 1
+                    && !connection.getMetaData().supportsBatchUpdates()) {
+                batchSize = 1;
+            }
+            int commitSize = connection.getAutoCommit() ? 0 : this.commitSize;
             ps = connection.prepareStatement(insertSql);
 
+            int batched = 0;
+            int uncommitted = 0;
+            Serializable[] values = new Serializable[columnNames.length];
             while ((columnValues = csvReader.readNext()) != null) {
                 if (columnValues.length == 0
                         || (columnValues.length == 1 && "".equals(columnValues[0]))) {
@@ -341,81 +402,50 @@ public class SQLHelper {
                     continue;
                 }
 
-                if (logger.isLogEnabled()) {
-                    List<Serializable> values = new ArrayList<Serializable>(
-                            columnNames.length);
-                    for (int i = 0; i < columnNames.length; i++) {
-                        String value = columnValues[i];
-                        if (SQL_NULL_MARKER.equals(value)) {
-                            value = null;
-                        }
-                        values.add(value);
-                    }
-                    logger.logSQL(insertSql, values);
-                }
-
                 for (int i = 0; i < columnNames.length; i++) {
                     Column column = columns.get(i);
-                    String value = columnValues[i];
-                    // int columnLength = column.getLength();
-                    // if (value != null && value.length() > columnLength) {
-                    // log.warn(String.format(
-                    // "Possible invalid value (length > %s): %s",
-                    // columnLength, value));
-                    // }
-                    Serializable v;
-                    if (column.getType().spec == ColumnSpec.STRING) {
-                        v = SQL_NULL_MARKER.equals(value) ? null : value;
-                    } else if (column.getType().spec == ColumnSpec.BOOLEAN) {
-                        v = Boolean.valueOf(value);
-                    } else if (column.getType().spec == ColumnSpec.LONG) {
-                        try {
-                            v = Long.valueOf(value);
-                        } catch (NumberFormatException e) {
-                            throw new DirectoryException(
-                                    String.format(
-                                            "failed to set column '%s' on table '%s', values: %s",
-                                            column.getPhysicalName(),
-                                            table.getPhysicalName(),
-                                            formatColumnValues(columnValues)),
-                                    e);
-                        }
-                    } else if (column.getType().spec == ColumnSpec.TIMESTAMP) {
-                        try {
-                            Calendar cal = new GregorianCalendar();
-                            cal.setTime(Timestamp.valueOf(value));
-                            v = cal;
-                        } catch (IllegalArgumentException e) {
-                            throw new DirectoryException(
-                                    String.format(
-                                            "failed to set column '%s' on table '%s', values: %s",
-                                            column.getPhysicalName(),
-                                            table.getPhysicalName(),
-                                            formatColumnValues(columnValues)),
-                                    e);
-                        }
-                    } else if (column.getType().spec == ColumnSpec.DOUBLE) {
-                        try {
-                            v = Double.valueOf(value);
-                        } catch (NumberFormatException e) {
-                            throw new DirectoryException(
-                                    String.format(
-                                            "failed to set column '%s' on table '%s', values: %s",
-                                            column.getPhysicalName(),
-                                            table.getPhysicalName(),
-                                            formatColumnValues(columnValues)),
-                                    e);
-                        }
-                    } else {
+                    try {
+                        values[i] = converters[i].convert(columnValues[i]);
+                    } catch (IllegalArgumentException e) {
                         throw new DirectoryException(
-                                "unrecognized column type: " + column.getType()
-                                        + ", values: "
-                                        + formatColumnValues(columnValues));
+                                String.format(
+                                        "failed to set column '%s' on table '%s', values: %s",
+                                        column.getPhysicalName(),
+                                        table.getPhysicalName(),
+                                        formatColumnValues(columnValues)), e);
                     }
-                    column.setToPreparedStatement(ps, i + 1, v);
+                    column.setToPreparedStatement(ps, i + 1, values[i]);
                 }
-                ps.execute();
+                if (logger.isLogEnabled()) {
+                    logger.logSQL(insertSql, Arrays.asList(values));
+                }
+
+                count++;
+                if (batchSize <= 1) {
+                    ps.execute();
+                } else {
+                    ps.addBatch();
+                    if (++batched == batchSize) {
+                        executeBatch(ps, count - batched, count);
+                        batched = 0;
+                    }
+                }
+                if (commitSize > 0 && ++uncommitted >= commitSize
+                        && batched == 0) {
+                    connection.commit();
+                    uncommitted = 0;
+                }
+            }
+            if (batched > 0) {
+                executeBatch(ps, count - batched, count);
             }
+            if (log.isDebugEnabled()) {
+                log.debug(String.format(
+                        "Table '%s': %s rows loaded in %sms", tableName,
+                        Integer.valueOf(count),
+                        Long.valueOf(System.currentTimeMillis() - start)));
+            }
+            return count;
         } catch (IOException e) {
             throw new DirectoryException("Read error while reading data file: "
                     + dataFileName, e);
@@ -428,6 +458,8 @@ public class SQLHelper {
             try {
                 if (csvReader != null) {
                     csvReader.close();
+                } else {
+                    is.close();
                 }
                 if (ps != null) {
                     ps.close();
@@ -441,6 +473,93 @@ public class SQLHelper {
         }
     }
 
+    private void executeBatch(PreparedStatement ps, int first, int last)
+            throws DirectoryException {
+        try {
+            ps.executeBatch();
+        } catch (SQLException e) {
+            // the failing row is not known, report the whole batch
+            SQLException next = e.getNextException();
+            throw new DirectoryException(String.format(
+                    "Table '%s' initialization failed: %s, rows %s to %s of data file: %s",
+                    table.getPhysicalName(), next == null ? e.getMessage()
+                            : next.getMessage(), Integer.valueOf(first + 1),
+                    Integer.valueOf(last), dataFileName), e);
+        }
+    }
+
+    /**
+     * Converts a data file value to the value stored in a column.
+     *
+     * @since 5.8
+     */
+    protected interface ValueConverter {
+
+        /**
+         * @throws IllegalArgumentException if the value cannot be converted
+         */
+        Serializable convert(String value);
+
+    }
+
+    protected static final ValueConverter STRING_CONVERTER = new ValueConverter() {
+        @Override
+        public Serializable convert(String value) {
+            return SQL_NULL_MARKER.equals(value) ? null : value;
+        }
+    };
+
+    protected static final ValueConverter BOOLEAN_CONVERTER = new ValueConverter() {
+        @Override
+        public Serializable convert(String value) {
+            return Boolean.valueOf(value);
+        }
+    };
+
+    protected static final ValueConverter LONG_CONVERTER = new ValueConverter() {
+        @Override
+        public Serializable convert(String value) {
+            return Long.valueOf(value);
+        }
+    };
+
+    protected static final ValueConverter TIMESTAMP_CONVERTER = new ValueConverter() {
+        @Override
+        public Serializable convert(String value) {
+            Calendar cal = new GregorianCalendar();
+            cal.setTime(Timestamp.valueOf(value));
+            return cal;
+        }
+    };
+
+    protected static final ValueConverter DOUBLE_CONVERTER = new ValueConverter() {
+        @Override
+        public Serializable convert(String value) {
+            return Double.valueOf(value);
+        }
+    };
+
+    protected ValueConverter getValueConverter(Column column)
+            throws DirectoryException {
+        switch (column.getType().spec) {
+        case STRING:
+            return STRING_CONVERTER;
+        case BOOLEAN:
+            return BOOLEAN_CONVERTER;
+        case LONG:
+            return LONG_CONVERTER;
+        case TIMESTAMP:
+            return TIMESTAMP_CONVERTER;
+        case DOUBLE:
+            return DOUBLE_CONVERTER;
+        default:
+            throw new DirectoryException("unrecognized column type: "
+                    + column.getType() + " for column '"
+                    + column.getPhysicalName() + "' of table '"
+                    + table.getPhysicalName() + "'");
+        }
+    }
+
     public static Table addTable(String name, Dialect dialect,
             boolean nativeCase) {
         String physicalName = dialect.getTableName(name);
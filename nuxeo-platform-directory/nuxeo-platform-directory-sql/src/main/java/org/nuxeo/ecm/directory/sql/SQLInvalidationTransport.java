@@ -0,0 +1,456 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.sql;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.storage.StorageException;
+import org.nuxeo.ecm.core.storage.sql.ColumnType;
+import org.nuxeo.ecm.core.storage.sql.jdbc.JDBCLogger;
+import org.nuxeo.ecm.core.storage.sql.jdbc.db.Table;
+import org.nuxeo.ecm.core.storage.sql.jdbc.dialect.Dialect;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.cluster.DirectoryInvalidations;
+import org.nuxeo.ecm.directory.cluster.InvalidationTransport;
+import org.nuxeo.runtime.api.DataSourceHelper;
+
+/**
+ * Invalidation transport using tables of a database shared by all the nodes.
+ * <p>
+ * Each node registers itself in a nodes table. Sending invalidations inserts
+ * one row per invalidated entry and per other node in an invalidations table,
+ * in a single transaction, and each node regularly reads and deletes the rows
+ * addressed to it. Nodes that did not poll for {@code nodeTimeout} seconds are
+ * unregistered.
+ * <p>
+ * The database is configured by a {@code dataSource} parameter, or by
+ * {@code dbDriver}, {@code dbUrl}, {@code dbUser} and {@code dbPassword}
+ * parameters like standalone SQL directories.
+ *
+ * @since 5.8
+ */
+public class SQLInvalidationTransport implements InvalidationTransport {
+
+    private static final Log log = LogFactory.getLog(SQLInvalidationTransport.class);
+
+    public static final String NODES_TABLE = "dir_cluster_nodes";
+
+    public static final String INVALIDATIONS_TABLE = "dir_cluster_invals";
+
+    public static final String COL_NODE_ID = "nodeid";
+
+    public static final String COL_LAST_SEEN = "lastseen";
+
+    public static final String COL_BATCH_ID = "batchid";
+
+    public static final String COL_DIRECTORY = "directory";
+
+    public static final String COL_ENTRY_ID = "entryid";
+
+    public static final String PARAM_DATA_SOURCE = "dataSource";
+
+    public static final String PARAM_DB_DRIVER = "dbDriver";
+
+    public static final String PARAM_DB_URL = "dbUrl";
+
+    public static final String PARAM_DB_USER = "dbUser";
+
+    public static final String PARAM_DB_PASSWORD = "dbPassword";
+
+    public static final String PARAM_NODE_TIMEOUT = "nodeTimeout";
+
+    public static final int DEFAULT_NODE_TIMEOUT = 3600;
+
+    protected final JDBCLogger logger = new JDBCLogger("SQLDirectory");
+
+    protected String nodeId;
+
+    protected DataSource dataSource;
+
+    protected long nodeTimeoutMillis;
+
+    protected Table nodesTable;
+
+    protected Table invalidationsTable;
+
+    @Override
+    public void activate(String nodeId, Map<String, String> parameters)
+            throws DirectoryException {
+        this.nodeId = nodeId;
+        String timeout = parameters.get(PARAM_NODE_TIMEOUT);
+        nodeTimeoutMillis = 1000L * (timeout == null ? DEFAULT_NODE_TIMEOUT
+                : Integer.parseInt(timeout.trim()));
+        String dataSourceName = parameters.get(PARAM_DATA_SOURCE);
+        try {
+            if (dataSourceName != null) {
+                dataSource = DataSourceHelper.getDataSource(dataSourceName);
+            } else {
+                dataSource = new SimpleDataSource(
+                        parameters.get(PARAM_DB_URL),
+                        parameters.get(PARAM_DB_DRIVER),
+                        parameters.get(PARAM_DB_USER),
+                        parameters.get(PARAM_DB_PASSWORD));
+            }
+        } catch (Exception e) {
+            throw new DirectoryException("dataSource lookup failed", e);
+        }
+        Connection connection = getConnection();
+        try {
+            Dialect dialect = Dialect.createDialect(connection, null, null);
+            nodesTable = SQLHelper.addTable(NODES_TABLE, dialect, false);
+            SQLHelper.addColumn(nodesTable, COL_NODE_ID, ColumnType.STRING,
+                    false);
+            SQLHelper.addColumn(nodesTable, COL_LAST_SEEN, ColumnType.LONG,
+                    false);
+            invalidationsTable = SQLHelper.addTable(INVALIDATIONS_TABLE,
+                    dialect, false);
+            for (String col : Arrays.asList(COL_NODE_ID, COL_BATCH_ID,
+                    COL_DIRECTORY, COL_ENTRY_ID)) {
+                SQLHelper.addColumn(invalidationsTable, col, ColumnType.STRING,
+                        false);
+            }
+            new SQLHelper(connection, nodesTable, null, "on_missing_columns").setupTable();
+            new SQLHelper(connection, invalidationsTable, null,
+                    "on_missing_columns").setupTable();
+            // start from a clean state if the node id is reused
+            unregisterNode(connection, nodeId);
+            registerNode(connection);
+            connection.commit();
+        } catch (StorageException e) {
+            throw new DirectoryException(e);
+        } catch (SQLException e) {
+            rollback(connection);
+            throw new DirectoryException("Cannot register cluster node "
+                    + nodeId, e);
+        } finally {
+            close(connection);
+        }
+    }
+
+    @Override
+    public void deactivate() throws DirectoryException {
+        Connection connection = getConnection();
+        try {
+            unregisterNode(connection, nodeId);
+            connection.commit();
+        } catch (SQLException e) {
+            rollback(connection);
+            throw new DirectoryException("Cannot unregister cluster node "
+                    + nodeId, e);
+        } finally {
+            close(connection);
+        }
+    }
+
+    @Override
+    public void send(DirectoryInvalidations invalidations)
+            throws DirectoryException {
+        Connection connection = getConnection();
+        try {
+            List<String> otherNodes = getOtherNodes(connection);
+            if (otherNodes.isEmpty()) {
+                return;
+            }
+            String batchId = UUID.randomUUID().toString();
+            String sql = String.format(
+                    "INSERT INTO %s (%s, %s, %s, %s) VALUES (?, ?, ?, ?)",
+                    invalidationsTable.getQuotedName(),
+                    quoted(invalidationsTable, COL_NODE_ID),
+                    quoted(invalidationsTable, COL_BATCH_ID),
+                    quoted(invalidationsTable, COL_DIRECTORY),
+                    quoted(invalidationsTable, COL_ENTRY_ID));
+            PreparedStatement ps = connection.prepareStatement(sql);
+            try {
+                for (String node : otherNodes) {
+                    if (invalidations.isAllDirectories()) {
+                        addRow(ps, sql, node, batchId, null, null);
+                        continue;
+                    }
+                    for (String directoryName : invalidations.getDirectoryNames()) {
+                        if (invalidations.isAll(directoryName)) {
+                            addRow(ps, sql, node, batchId, directoryName,
+                                    null);
+                            continue;
+                        }
+                        for (String entryId : invalidations.getEntryIds(directoryName)) {
+                            addRow(ps, sql, node, batchId, directoryName,
+                                    entryId);
+                        }
+                    }
+                }
+                ps.executeBatch();
+            } finally {
+                ps.close();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            rollback(connection);
+            throw new DirectoryException(
+                    "Cannot send directory invalidations", e);
+        } finally {
+            close(connection);
+        }
+    }
+
+    protected void addRow(PreparedStatement ps, String sql, String node,
+            String batchId, String directoryName, String entryId)
+            throws SQLException {
+        if (logger.isLogEnabled()) {
+            logger.logSQL(sql, Arrays.<Serializable> asList(node, batchId,
+                    directoryName, entryId));
+        }
+        ps.setString(1, node);
+        ps.setString(2, batchId);
+        ps.setString(3, directoryName);
+        ps.setString(4, entryId);
+        ps.addBatch();
+    }
+
+    @Override
+    public DirectoryInvalidations receive() throws DirectoryException {
+        DirectoryInvalidations invalidations = new DirectoryInvalidations();
+        Connection connection = getConnection();
+        try {
+            if (!heartbeat(connection)) {
+                // we have been considered dead and missed invalidations
+                log.warn("Cluster node " + nodeId
+                        + " was unregistered, invalidating all directories");
+                registerNode(connection);
+                invalidations.addAllDirectories();
+            }
+            // a batch is inserted in a single transaction, so it is either
+            // fully visible or not at all
+            String sql = String.format(
+                    "SELECT %s, %s, %s FROM %s WHERE %s = ?",
+                    quoted(invalidationsTable, COL_BATCH_ID),
+                    quoted(invalidationsTable, COL_DIRECTORY),
+                    quoted(invalidationsTable, COL_ENTRY_ID),
+                    invalidationsTable.getQuotedName(),
+                    quoted(invalidationsTable, COL_NODE_ID));
+            if (logger.isLogEnabled()) {
+                logger.logSQL(sql, Arrays.<Serializable> asList(nodeId));
+            }
+            Set<String> batchIds = new HashSet<String>();
+            PreparedStatement ps = connection.prepareStatement(sql);
+            try {
+                ps.setString(1, nodeId);
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    batchIds.add(rs.getString(1));
+                    String directoryName = rs.getString(2);
+                    String entryId = rs.getString(3);
+                    if (directoryName == null) {
+                        invalidations.addAllDirectories();
+                    } else if (entryId == null) {
+                        invalidations.addAll(directoryName);
+                    } else {
+                        invalidations.add(directoryName,
+                                Arrays.asList(entryId));
+                    }
+                }
+            } finally {
+                ps.close();
+            }
+            if (!batchIds.isEmpty()) {
+                sql = String.format("DELETE FROM %s WHERE %s = ? AND %s = ?",
+                        invalidationsTable.getQuotedName(),
+                        quoted(invalidationsTable, COL_NODE_ID),
+                        quoted(invalidationsTable, COL_BATCH_ID));
+                ps = connection.prepareStatement(sql);
+                try {
+                    for (String batchId : batchIds) {
+                        if (logger.isLogEnabled()) {
+                            logger.logSQL(sql, Arrays.<Serializable> asList(
+                                    nodeId, batchId));
+                        }
+                        ps.setString(1, nodeId);
+                        ps.setString(2, batchId);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                } finally {
+                    ps.close();
+                }
+            }
+            unregisterDeadNodes(connection);
+            connection.commit();
+        } catch (SQLException e) {
+            rollback(connection);
+            throw new DirectoryException(
+                    "Cannot receive directory invalidations", e);
+        } finally {
+            close(connection);
+        }
+        return invalidations;
+    }
+
+    protected List<String> getOtherNodes(Connection connection)
+            throws SQLException {
+        String sql = String.format("SELECT %s FROM %s WHERE %s <> ?",
+                quoted(nodesTable, COL_NODE_ID), nodesTable.getQuotedName(),
+                quoted(nodesTable, COL_NODE_ID));
+        if (logger.isLogEnabled()) {
+            logger.logSQL(sql, Arrays.<Serializable> asList(nodeId));
+        }
+        List<String> nodes = new ArrayList<String>();
+        PreparedStatement ps = connection.prepareStatement(sql);
+        try {
+            ps.setString(1, nodeId);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                nodes.add(rs.getString(1));
+            }
+        } finally {
+            ps.close();
+        }
+        return nodes;
+    }
+
+    protected void registerNode(Connection connection) throws SQLException {
+        String sql = String.format("INSERT INTO %s (%s, %s) VALUES (?, ?)",
+                nodesTable.getQuotedName(), quoted(nodesTable, COL_NODE_ID),
+                quoted(nodesTable, COL_LAST_SEEN));
+        Long now = Long.valueOf(System.currentTimeMillis());
+        if (logger.isLogEnabled()) {
+            logger.logSQL(sql, Arrays.<Serializable> asList(nodeId, now));
+        }
+        PreparedStatement ps = connection.prepareStatement(sql);
+        try {
+            ps.setString(1, nodeId);
+            ps.setLong(2, now.longValue());
+            ps.execute();
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**
+     * Updates the last time this node was seen.
+     *
+     * @return {@code false} if this node is not registered anymore
+     */
+    protected boolean heartbeat(Connection connection) throws SQLException {
+        String sql = String.format("UPDATE %s SET %s = ? WHERE %s = ?",
+                nodesTable.getQuotedName(), quoted(nodesTable, COL_LAST_SEEN),
+                quoted(nodesTable, COL_NODE_ID));
+        Long now = Long.valueOf(System.currentTimeMillis());
+        if (logger.isLogEnabled()) {
+            logger.logSQL(sql, Arrays.<Serializable> asList(now, nodeId));
+        }
+        PreparedStatement ps = connection.prepareStatement(sql);
+        try {
+            ps.setLong(1, now.longValue());
+            ps.setString(2, nodeId);
+            return ps.executeUpdate() > 0;
+        } finally {
+            ps.close();
+        }
+    }
+
+    protected void unregisterDeadNodes(Connection connection)
+            throws SQLException {
+        String sql = String.format("SELECT %s FROM %s WHERE %s < ?",
+                quoted(nodesTable, COL_NODE_ID), nodesTable.getQuotedName(),
+                quoted(nodesTable, COL_LAST_SEEN));
+        Long limit = Long.valueOf(System.currentTimeMillis()
+                - nodeTimeoutMillis);
+        if (logger.isLogEnabled()) {
+            logger.logSQL(sql, Arrays.<Serializable> asList(limit));
+        }
+        List<String> deadNodes = new ArrayList<String>();
+        PreparedStatement ps = connection.prepareStatement(sql);
+        try {
+            ps.setLong(1, limit.longValue());
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                deadNodes.add(rs.getString(1));
+            }
+        } finally {
+            ps.close();
+        }
+        for (String deadNode : deadNodes) {
+            log.info("Unregistering dead cluster node " + deadNode);
+            unregisterNode(connection, deadNode);
+        }
+    }
+
+    protected void unregisterNode(Connection connection, String node)
+            throws SQLException {
+        for (Table table : Arrays.asList(invalidationsTable, nodesTable)) {
+            String sql = String.format("DELETE FROM %s WHERE %s = ?",
+                    table.getQuotedName(), quoted(table, COL_NODE_ID));
+            if (logger.isLogEnabled()) {
+                logger.logSQL(sql, Arrays.<Serializable> asList(node));
+            }
+            PreparedStatement ps = connection.prepareStatement(sql);
+            try {
+                ps.setString(1, node);
+                ps.execute();
+            } finally {
+                ps.close();
+            }
+        }
+    }
+
+    protected static String quoted(Table table, String columnName) {
+        return table.getColumn(columnName).getQuotedName();
+    }
+
+    protected Connection getConnection() throws DirectoryException {
+        try {
+            Connection connection = dataSource.getConnection();
+            connection.setAutoCommit(false);
+            return connection;
+        } catch (SQLException e) {
+            throw new DirectoryException(
+                    "Cannot connect to the directory invalidations database: "
+                            + e.getMessage(), e);
+        }
+    }
+
+    protected void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            log.error("Cannot rollback connection", e);
+        }
+    }
+
+    protected void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.error("Cannot close connection", e);
+        }
+    }
+
+}
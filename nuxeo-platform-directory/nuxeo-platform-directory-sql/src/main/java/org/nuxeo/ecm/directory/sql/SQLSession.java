@@ -26,10 +26,12 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -58,9 +60,11 @@ import org.nuxeo.ecm.core.storage.sql.jdbc.db.Table;
 import org.nuxeo.ecm.core.storage.sql.jdbc.db.Update;
 import org.nuxeo.ecm.core.storage.sql.jdbc.dialect.Dialect;
 import org.nuxeo.ecm.core.utils.SIDGenerator;
+import org.nuxeo.ecm.directory.AbstractEntryIterator;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryIterator;
 import org.nuxeo.ecm.directory.EntrySource;
 import org.nuxeo.ecm.directory.OperationNotAllowedException;
 import org.nuxeo.ecm.directory.Reference;
@@ -114,6 +118,13 @@ public class SQLSession extends BaseSession implements EntrySource {
 
     protected JDBCLogger logger = new JDBCLogger("SQLDirectory");;
 
+    /**
+     * Number of rows fetched at once by {@link #queryIterator}.
+     *
+     * @since 5.8
+     */
+    public static final int DEFAULT_FETCH_SIZE = 100;
+
     public SQLSession(SQLDirectory directory, SQLDirectoryDescriptor config,
             boolean managedSQLSession) throws DirectoryException {
         this.directory = directory;
@@ -290,7 +301,7 @@ public class SQLSession extends BaseSession implements EntrySource {
                 reference.addLinks(sourceId, targetIds);
             }
         }
-        directory.invalidateCaches();
+        directory.invalidateCaches(Collections.singletonList(sourceId));
         return entry;
     }
 
@@ -388,18 +399,8 @@ public class SQLSession extends BaseSession implements EntrySource {
                 fieldMap.put(fieldName, value);
             }
 
-            if (isMultiTenant()) {
-                // check that the entry is from the current tenant, or no tenant
-                // at all
-                String tenantId = getCurrentTenantId();
-                if (!StringUtils.isBlank(tenantId)) {
-                    String entryTenantId = (String) fieldMap.get(TENANT_ID_FIELD);
-                    if (!StringUtils.isBlank(entryTenantId)) {
-                        if (!entryTenantId.equals(tenantId)) {
-                            return null;
-                        }
-                    }
-                }
+            if (!isFromCurrentTenant(fieldMap)) {
+                return null;
             }
 
             DocumentModel entry = fieldMapToDocumentModel(fieldMap);
@@ -436,6 +437,85 @@ public class SQLSession extends BaseSession implements EntrySource {
         return query(emptyMap);
     }
 
+    @Override
+    public boolean hasBulkEntriesLookup() {
+        return true;
+    }
+
+    /**
+     * Fetches the entries with {@code IN} queries on the primary column, by
+     * chunks of {@link TableReference#MAX_IDS_PER_QUERY} ids.
+     *
+     * @since 5.8
+     */
+    @Override
+    public DocumentModelList getEntries(Collection<String> ids,
+            boolean fetchReferences) throws ClientException {
+        DocumentModelList entries = new DocumentModelListImpl();
+        if (ids.isEmpty()) {
+            return entries;
+        }
+        acquireConnection();
+        List<String> idList = new ArrayList<String>(new LinkedHashSet<String>(
+                ids));
+        Column primaryColumn = table.getPrimaryColumn();
+        try {
+            for (int start = 0; start < idList.size(); start += TableReference.MAX_IDS_PER_QUERY) {
+                List<String> chunk = idList.subList(start, Math.min(start
+                        + TableReference.MAX_IDS_PER_QUERY, idList.size()));
+                StringBuilder where = new StringBuilder();
+                where.append(primaryColumn.getQuotedName()).append(" IN (");
+                for (int i = 0; i < chunk.size(); i++) {
+                    where.append(i == 0 ? "?" : ", ?");
+                }
+                where.append(')');
+                Select select = new Select(table);
+                select.setWhat("*");
+                select.setFrom(table.getQuotedName());
+                select.setWhere(addFilterWhereClause(where.toString()));
+                String sql = select.getStatement();
+
+                if (logger.isLogEnabled()) {
+                    List<Serializable> values = new ArrayList<Serializable>(
+                            chunk);
+                    addFilterValuesForLog(values);
+                    logger.logSQL(sql, values);
+                }
+
+                PreparedStatement ps = null;
+                try {
+                    ps = sqlConnection.prepareStatement(sql);
+                    int index = 1;
+                    for (String id : chunk) {
+                        setFieldValue(ps, index++, primaryColumn, id);
+                    }
+                    addFilterValues(ps, index);
+                    ResultSet rs = ps.executeQuery();
+                    while (rs.next()) {
+                        Map<String, Object> fieldMap = new HashMap<String, Object>();
+                        for (String fieldName : storedFieldNames) {
+                            fieldMap.put(fieldName,
+                                    getFieldValue(rs, fieldName));
+                        }
+                        if (isFromCurrentTenant(fieldMap)) {
+                            entries.add(fieldMapToDocumentModel(fieldMap));
+                        }
+                    }
+                } finally {
+                    if (ps != null) {
+                        ps.close();
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new DirectoryException("getEntries failed", e);
+        }
+        if (fetchReferences) {
+            fetchReferenceFields(entries);
+        }
+        return entries;
+    }
+
     @Override
     public void updateEntry(DocumentModel docModel) throws ClientException {
 
@@ -553,7 +633,7 @@ public class SQLSession extends BaseSession implements EntrySource {
                 reference.setTargetIdsForSource(docModel.getId(), targetIds);
             }
         }
-        directory.invalidateCaches();
+        directory.invalidateCaches(Collections.singletonList(docModel.getId()));
     }
 
     @Override
@@ -613,7 +693,7 @@ public class SQLSession extends BaseSession implements EntrySource {
                 throw new DirectoryException(sqle);
             }
         }
-        directory.invalidateCaches();
+        directory.invalidateCaches(Collections.singletonList(id));
     }
 
     protected boolean canDeleteMultiTenantEntry(String entryId)
@@ -714,7 +794,7 @@ public class SQLSession extends BaseSession implements EntrySource {
                 throw new DirectoryException(sqle);
             }
         }
-        directory.invalidateCaches();
+        directory.invalidateCaches(Collections.singletonList(id));
     }
 
     @Override
@@ -738,122 +818,13 @@ public class SQLSession extends BaseSession implements EntrySource {
             boolean fetchReferences, int limit, int offset)
             throws ClientException, DirectoryException {
         acquireConnection();
-        Map<String, Object> filterMap = new LinkedHashMap<String, Object>(
-                filter);
-
-        if (isMultiTenant()) {
-            // filter entries on the tenantId field also
-            String tenantId = getCurrentTenantId();
-            if (!StringUtils.isBlank(tenantId)) {
-                filterMap.put(TENANT_ID_FIELD, tenantId);
-            }
-        }
+        Map<String, Object> filterMap = getFilterMap(filter);
 
         try {
-            // build count query statement
-            StringBuilder whereClause = new StringBuilder();
-            String separator = "";
             List<Column> orderedColumns = new LinkedList<Column>();
-            for (String columnName : filterMap.keySet()) {
-
-                if (directory.isReference(columnName)) {
-                    log.warn(columnName + " is a reference and will be ignored"
-                            + " as a query criterion");
-                    continue;
-                }
-
-                Object value = filterMap.get(columnName);
-                Column column = table.getColumn(columnName);
-                if (null == column) {
-                    // this might happen if we have a case like a chain
-                    // selection and a directory without parent column
-                    throw new ClientException("cannot find column '"
-                            + columnName + "' for table: " + table);
-                }
-                String leftSide = column.getQuotedName();
-                String rightSide = "?";
-                String operator;
-                boolean substring = fulltext != null
-                        && fulltext.contains(columnName);
-                if ("".equals(value) && dialect.hasNullEmptyString()
-                        && !substring) {
-                    // see NXP-6172, empty values are Null in Oracle
-                    value = null;
-                }
-                if (value != null) {
-                    if (value instanceof SQLComplexFilter) {
-                        SQLComplexFilter complexFilter = (SQLComplexFilter) value;
-                        operator = complexFilter.getOperator();
-                        rightSide = complexFilter.getRightSide();
-                    } else if (substring) {
-                        // NB : remove double % in like query NXGED-833
-                        String searchedValue = null;
-                        switch (substringMatchType) {
-                        case subany:
-                            searchedValue = '%' + String.valueOf(value).toLowerCase() + '%';
-                            break;
-                        case subinitial:
-                            searchedValue = String.valueOf(value).toLowerCase() + '%';
-                            break;
-                        case subfinal:
-                            searchedValue = '%' + String.valueOf(value).toLowerCase();
-                            break;
-                        }
-                        filterMap.put(columnName, searchedValue);
-                        if (dialect.supportsIlike()) {
-                            operator = " ILIKE "; // postgresql rules
-                        } else {
-                            leftSide = "LOWER(" + leftSide + ')';
-                            operator = " LIKE ";
-                        }
-                    } else {
-                        operator = " = ";
-                    }
-                } else {
-                    operator = " IS NULL";
-                }
-                whereClause.append(separator).append(leftSide).append(operator);
-                if (value != null) {
-                    whereClause.append(rightSide);
-                    orderedColumns.add(column);
-                }
-                separator = " AND ";
-            }
-
-            int queryLimitSize = directory.getConfig().getQuerySizeLimit();
-            if (queryLimitSize != 0 && (limit <= 0 || limit > queryLimitSize)) {
-                PreparedStatement ps = null;
-                try {
-                    // create a preparedStatement for counting and bind the
-                    // values
-                    // String countQuery = new StringBuilder("SELECT count(*)
-                    // FROM ")
-                    // .append(table.getQuotedName(dialect)).append(whereClause).toString();
-                    Select select = new Select(table);
-                    select.setWhat("count(*)");
-                    select.setFrom(table.getQuotedName());
-
-                    String where = whereClause.toString();
-                    where = addFilterWhereClause(where);
-                    select.setWhere(where);
-
-                    String countQuery = select.getStatement();
-                    ps = sqlConnection.prepareStatement(countQuery);
-                    fillPreparedStatementFields(filterMap, orderedColumns, ps);
-
-                    ResultSet rs = ps.executeQuery();
-                    rs.next();
-                    int count = rs.getInt(1);
-                    if (count > queryLimitSize) {
-                        throw new SizeLimitExceededException(
-                                "too many rows in result: " + count);
-                    }
-                } finally {
-                    if (ps != null) {
-                        ps.close();
-                    }
-                }
-            }
+            String where = buildWhereClause(filterMap, fulltext,
+                    orderedColumns);
+            int querySizeLimit = getQuerySizeLimit(limit);
 
             // create a preparedStatement and bind the values
             // String query = new StringBuilder("SELECT * FROM
@@ -863,9 +834,6 @@ public class SQLSession extends BaseSession implements EntrySource {
             Select select = new Select(table);
             select.setWhat("*");
             select.setFrom(table.getQuotedName());
-
-            String where = whereClause.toString();
-            where = addFilterWhereClause(where);
             select.setWhere(where);
 
             StringBuilder orderby = new StringBuilder(128);
@@ -881,40 +849,21 @@ public class SQLSession extends BaseSession implements EntrySource {
                 }
             }
             select.setOrderBy(orderby.toString());
-            String query = select.getStatement();
-            if (limit > 0) {
-                if (!dialect.supportsPaging()) {
-                    throw new UnsupportedOperationException("Trying to use paging with an unsupported dialect: " +
-                            dialect.getClass().getName());
-                }
-
-                if (offset < 0) {
-                    offset = 0;
-                }
-
-                query = dialect.addPagingClause(query, limit, offset);
-            }
-
-            if (logger.isLogEnabled()) {
-                List<Serializable> values = new ArrayList<Serializable>(
-                        orderedColumns.size());
-                for (Column column : orderedColumns) {
-                    Object value = filterMap.get(column.getKey());
-                    values.add((Serializable) value);
-                }
-                addFilterValuesForLog(values);
-                logger.logSQL(query, values);
-            }
+            String query = addPagingClause(select.getStatement(), limit,
+                    offset);
+            logQuery(query, filterMap, orderedColumns);
 
             PreparedStatement ps = null;
             try {
                 ps = sqlConnection.prepareStatement(query);
                 fillPreparedStatementFields(filterMap, orderedColumns, ps);
+                setMaxRows(ps, querySizeLimit);
 
                 // execute the query and create a documentModel list
                 ResultSet rs = ps.executeQuery();
                 DocumentModelList list = new DocumentModelListImpl();
                 while (rs.next()) {
+                    checkQuerySizeLimit(list.size(), querySizeLimit);
 
                     // fetch values for stored fields
                     Map<String, Object> map = new HashMap<String, Object>();
@@ -924,17 +873,13 @@ public class SQLSession extends BaseSession implements EntrySource {
                     }
 
                     DocumentModel docModel = fieldMapToDocumentModel(map);
-
-                    // fetch the reference fields
-                    if (fetchReferences) {
-                        for (Reference reference : directory.getReferences()) {
-                            List<String> targetIds = reference.getTargetIdsForSource(docModel.getId());
-                            docModel.setProperty(schemaName,
-                                    reference.getFieldName(), targetIds);
-                        }
-                    }
                     list.add(docModel);
                 }
+
+                // fetch the reference fields for the whole page at once
+                if (fetchReferences) {
+                    fetchReferenceFields(list);
+                }
                 return list;
             } finally {
                 if (ps != null) {
@@ -951,6 +896,270 @@ public class SQLSession extends BaseSession implements EntrySource {
         }
     }
 
+    /**
+     * Fills the reference fields of the given entries, resolving each
+     * reference for all the entries at once.
+     *
+     * @since 5.8
+     */
+    protected void fetchReferenceFields(List<DocumentModel> entries)
+            throws DirectoryException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<String> ids = new ArrayList<String>(entries.size());
+        for (DocumentModel entry : entries) {
+            ids.add(entry.getId());
+        }
+        for (Reference reference : directory.getReferences()) {
+            Map<String, List<String>> targetIds = reference.getTargetIdsForSources(ids);
+            for (DocumentModel entry : entries) {
+                List<String> entryTargetIds = targetIds.get(entry.getId());
+                if (entryTargetIds == null) {
+                    entryTargetIds = new ArrayList<String>();
+                }
+                try {
+                    entry.setProperty(schemaName, reference.getFieldName(),
+                            entryTargetIds);
+                } catch (ClientException e) {
+                    throw new DirectoryException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the query filter, restricting it to the current tenant if
+     * needed.
+     *
+     * @since 5.8
+     */
+    protected Map<String, Object> getFilterMap(Map<String, Serializable> filter) {
+        Map<String, Object> filterMap = new LinkedHashMap<String, Object>(
+                filter);
+
+        if (isMultiTenant()) {
+            // filter entries on the tenantId field also
+            String tenantId = getCurrentTenantId();
+            if (!StringUtils.isBlank(tenantId)) {
+                filterMap.put(TENANT_ID_FIELD, tenantId);
+            }
+        }
+        return filterMap;
+    }
+
+    /**
+     * Builds the WHERE clause matching the filter, fulltext and static
+     * filters. The columns to bind are added to {@code orderedColumns}, and
+     * substring values are rewritten in {@code filterMap}.
+     *
+     * @since 5.8
+     */
+    protected String buildWhereClause(Map<String, Object> filterMap,
+            Set<String> fulltext, List<Column> orderedColumns)
+            throws ClientException {
+        StringBuilder whereClause = new StringBuilder();
+        String separator = "";
+        for (String columnName : filterMap.keySet()) {
+
+            if (directory.isReference(columnName)) {
+                log.warn(columnName + " is a reference and will be ignored"
+                        + " as a query criterion");
+                continue;
+            }
+
+            Object value = filterMap.get(columnName);
+            Column column = table.getColumn(columnName);
+            if (null == column) {
+                // this might happen if we have a case like a chain
+                // selection and a directory without parent column
+                throw new ClientException("cannot find column '"
+                        + columnName + "' for table: " + table);
+            }
+            String leftSide = column.getQuotedName();
+            String rightSide = "?";
+            String operator;
+            boolean substring = fulltext != null
+                    && fulltext.contains(columnName);
+            if ("".equals(value) && dialect.hasNullEmptyString()
+                    && !substring) {
+                // see NXP-6172, empty values are Null in Oracle
+                value = null;
+            }
+            if (value != null) {
+                if (value instanceof SQLComplexFilter) {
+                    SQLComplexFilter complexFilter = (SQLComplexFilter) value;
+                    operator = complexFilter.getOperator();
+                    rightSide = complexFilter.getRightSide();
+                } else if (substring) {
+                    // NB : remove double % in like query NXGED-833
+                    String searchedValue = null;
+                    switch (substringMatchType) {
+                    case subany:
+                        searchedValue = '%' + String.valueOf(value).toLowerCase() + '%';
+                        break;
+                    case subinitial:
+                        searchedValue = String.valueOf(value).toLowerCase() + '%';
+                        break;
+                    case subfinal:
+                        searchedValue = '%' + String.valueOf(value).toLowerCase();
+                        break;
+                    }
+                    filterMap.put(columnName, searchedValue);
+                    if (dialect.supportsIlike()) {
+                        operator = " ILIKE "; // postgresql rules
+                    } else {
+                        leftSide = "LOWER(" + leftSide + ')';
+                        operator = " LIKE ";
+                    }
+                } else {
+                    operator = " = ";
+                }
+            } else {
+                operator = " IS NULL";
+            }
+            whereClause.append(separator).append(leftSide).append(operator);
+            if (value != null) {
+                whereClause.append(rightSide);
+                orderedColumns.add(column);
+            }
+            separator = " AND ";
+        }
+        return addFilterWhereClause(whereClause.toString());
+    }
+
+    /**
+     * Returns the query size limit that applies to a query, or 0 if there is
+     * none or if a smaller limit is requested.
+     * <p>
+     * The matching rows are not counted beforehand: at most one row more than
+     * the limit is fetched, and the query fails when that row is read.
+     *
+     * @since 5.8
+     */
+    protected int getQuerySizeLimit(int limit) {
+        int queryLimitSize = directory.getConfig().getQuerySizeLimit();
+        if (queryLimitSize != 0 && (limit <= 0 || limit > queryLimitSize)) {
+            return queryLimitSize;
+        }
+        return 0;
+    }
+
+    /**
+     * Tells the driver not to send more rows than needed to detect that the
+     * query size limit is exceeded.
+     *
+     * @since 5.8
+     */
+    protected static void setMaxRows(PreparedStatement ps, int querySizeLimit)
+            throws SQLException {
+        if (querySizeLimit > 0 && querySizeLimit < Integer.MAX_VALUE) {
+            ps.setMaxRows(querySizeLimit + 1);
+        }
+    }
+
+    /**
+     * Fails if a row is read when {@code count} rows were already read and
+     * the query size limit is reached.
+     *
+     * @since 5.8
+     */
+    protected static void checkQuerySizeLimit(int count, int querySizeLimit)
+            throws SizeLimitExceededException {
+        if (querySizeLimit > 0 && count >= querySizeLimit) {
+            throw new SizeLimitExceededException(
+                    "too many rows in result: more than " + querySizeLimit);
+        }
+    }
+
+    /**
+     * Counts the entries with a {@code count(*)} query, or by reading at most
+     * {@code max} ids when bounded. The query size limit does not apply.
+     *
+     * @since 5.8
+     */
+    @Override
+    public int queryCount(Map<String, Serializable> filter,
+            Set<String> fulltext, int max) throws ClientException,
+            DirectoryException {
+        acquireConnection();
+        Map<String, Object> filterMap = getFilterMap(filter);
+        try {
+            List<Column> orderedColumns = new LinkedList<Column>();
+            String where = buildWhereClause(filterMap, fulltext,
+                    orderedColumns);
+            Select select = new Select(table);
+            if (max > 0) {
+                select.setWhat(table.getColumn(getIdField()).getQuotedName());
+            } else {
+                select.setWhat("count(*)");
+            }
+            select.setFrom(table.getQuotedName());
+            select.setWhere(where);
+            String query = select.getStatement();
+            logQuery(query, filterMap, orderedColumns);
+
+            PreparedStatement ps = null;
+            try {
+                ps = sqlConnection.prepareStatement(query);
+                fillPreparedStatementFields(filterMap, orderedColumns, ps);
+                if (max > 0) {
+                    ps.setMaxRows(max);
+                }
+                ResultSet rs = ps.executeQuery();
+                if (max <= 0) {
+                    rs.next();
+                    return rs.getInt(1);
+                }
+                int count = 0;
+                while (count < max && rs.next()) {
+                    count++;
+                }
+                return count;
+            } finally {
+                if (ps != null) {
+                    ps.close();
+                }
+            }
+        } catch (SQLException e) {
+            try {
+                sqlConnection.close();
+            } catch (SQLException e1) {
+            }
+            throw new DirectoryException("queryCount failed", e);
+        }
+    }
+
+    protected String addPagingClause(String query, int limit, int offset) {
+        if (limit > 0) {
+            if (!dialect.supportsPaging()) {
+                throw new UnsupportedOperationException("Trying to use paging with an unsupported dialect: " +
+                        dialect.getClass().getName());
+            }
+
+            if (offset < 0) {
+                offset = 0;
+            }
+
+            query = dialect.addPagingClause(query, limit, offset);
+        }
+        return query;
+    }
+
+    protected void logQuery(String query, Map<String, Object> filterMap,
+            List<Column> orderedColumns) {
+        if (logger.isLogEnabled()) {
+            List<Serializable> values = new ArrayList<Serializable>(
+                    orderedColumns.size());
+            for (Column column : orderedColumns) {
+                Object value = filterMap.get(column.getKey());
+                values.add((Serializable) value);
+            }
+            addFilterValuesForLog(values);
+            logger.logSQL(query, values);
+        }
+    }
+
     protected void fillPreparedStatementFields(Map<String, Object> filterMap,
             List<Column> orderedColumns, PreparedStatement ps)
             throws DirectoryException {
@@ -974,6 +1183,178 @@ public class SQLSession extends BaseSession implements EntrySource {
         return query(filter, emptySet);
     }
 
+    @Override
+    public EntryIterator queryIterator(Map<String, Serializable> filter,
+            Set<String> fulltext, boolean fetchReferences, int fetchSize)
+            throws ClientException, DirectoryException {
+        acquireConnection();
+        Map<String, Object> filterMap = getFilterMap(filter);
+        List<Column> orderedColumns = new LinkedList<Column>();
+        String where = buildWhereClause(filterMap, fulltext, orderedColumns);
+
+        Select select = new Select(table);
+        select.setWhat("*");
+        select.setFrom(table.getQuotedName());
+        select.setWhere(where);
+        String query = select.getStatement();
+        logQuery(query, filterMap, orderedColumns);
+
+        if (fetchSize <= 0) {
+            fetchSize = DEFAULT_FETCH_SIZE;
+        }
+        Connection connection = sqlConnection;
+        Connection ownConnection = null;
+        PreparedStatement ps = null;
+        try {
+            if (sqlConnection.getAutoCommit()) {
+                // drivers like PostgreSQL's ignore the fetch size in
+                // autocommit mode, so iterate on a connection of our own
+                ownConnection = directory.getConnection();
+                ownConnection.setAutoCommit(false);
+                connection = ownConnection;
+            }
+            ps = connection.prepareStatement(query,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(getStreamingFetchSize(connection, fetchSize));
+            fillPreparedStatementFields(filterMap, orderedColumns, ps);
+            ResultSet rs = ps.executeQuery();
+            EntryIterator it = new SQLEntryIterator(ps, rs, ownConnection,
+                    fetchReferences, fetchSize);
+            ps = null;
+            ownConnection = null;
+            return it;
+        } catch (SQLException e) {
+            throw new DirectoryException("query failed", e);
+        } finally {
+            if (ps != null) {
+                try {
+                    ps.close();
+                } catch (SQLException e) {
+                    log.error("Cannot close statement", e);
+                }
+            }
+            if (ownConnection != null) {
+                try {
+                    ownConnection.close();
+                } catch (SQLException e) {
+                    log.error("Cannot close connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the fetch size to set on a statement for its result set to be
+     * streamed: the MySQL driver only streams rows with
+     * {@link Integer#MIN_VALUE}, and otherwise reads the whole result set.
+     *
+     * @since 5.8
+     */
+    protected static int getStreamingFetchSize(Connection connection,
+            int fetchSize) throws SQLException {
+        String product = connection.getMetaData().getDatabaseProductName();
+        if (product != null && product.toLowerCase().contains("mysql")) {
+            return Integer.MIN_VALUE;
+        }
+        return fetchSize;
+    }
+
+    /**
+     * Iterates over a forward-only result set, building the entries (and
+     * resolving their references) one batch of {@code fetchSize} rows at a
+     * time.
+     * <p>
+     * When the session connection is in autocommit mode, the result set is
+     * read in a read-only transaction on a connection of its own, closed
+     * with the iterator.
+     *
+     * @since 5.8
+     */
+    protected class SQLEntryIterator extends AbstractEntryIterator {
+
+        protected final PreparedStatement ps;
+
+        protected final ResultSet rs;
+
+        // null when iterating on the session connection
+        protected final Connection connection;
+
+        protected final boolean fetchReferences;
+
+        protected final int fetchSize;
+
+        protected final LinkedList<DocumentModel> batch = new LinkedList<DocumentModel>();
+
+        protected boolean exhausted;
+
+        protected SQLEntryIterator(PreparedStatement ps, ResultSet rs,
+                Connection connection, boolean fetchReferences, int fetchSize) {
+            this.ps = ps;
+            this.rs = rs;
+            this.connection = connection;
+            this.fetchReferences = fetchReferences;
+            this.fetchSize = fetchSize;
+        }
+
+        @Override
+        protected DocumentModel fetchNext() throws DirectoryException {
+            while (batch.isEmpty() && !exhausted) {
+                try {
+                    while (batch.size() < fetchSize) {
+                        if (!rs.next()) {
+                            exhausted = true;
+                            break;
+                        }
+                        Map<String, Object> map = new HashMap<String, Object>();
+                        for (String fieldName : storedFieldNames) {
+                            map.put(fieldName, getFieldValue(rs, fieldName));
+                        }
+                        DocumentModel entry = fieldMapToDocumentModel(map);
+                        if (entry != null) {
+                            batch.add(entry);
+                        }
+                    }
+                } catch (SQLException e) {
+                    throw new DirectoryException("query failed", e);
+                }
+                if (fetchReferences) {
+                    fetchReferenceFields(batch);
+                }
+            }
+            return batch.poll();
+        }
+
+        /**
+         * Returns the number of entries built but not returned yet.
+         */
+        protected int getBatchSize() {
+            return batch.size();
+        }
+
+        @Override
+        public void close() throws DirectoryException {
+            batch.clear();
+            exhausted = true;
+            try {
+                ps.close();
+                if (connection != null) {
+                    // nothing was written
+                    connection.rollback();
+                }
+            } catch (SQLException e) {
+                throw new DirectoryException("Cannot close statement", e);
+            } finally {
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    } catch (SQLException e) {
+                        log.error("Cannot close connection", e);
+                    }
+                }
+            }
+        }
+    }
+
     private Object getFieldValue(ResultSet rs, String fieldName)
             throws DirectoryException {
         try {
@@ -1067,19 +1448,86 @@ public class SQLSession extends BaseSession implements EntrySource {
     @Override
     public List<String> getProjection(Map<String, Serializable> filter,
             Set<String> fulltext, String columnName) throws ClientException {
-        DocumentModelList docList = query(filter, fulltext);
-        List<String> result = new ArrayList<String>();
-        for (DocumentModel docModel : docList) {
-            Object obj = docModel.getProperty(schemaName, columnName);
-            String propValue;
-            if (obj instanceof String) {
-                propValue = (String) obj;
-            } else {
-                propValue = String.valueOf(obj);
+        return getProjection(filter, fulltext, columnName, -1, -1);
+    }
+
+    /**
+     * Returns the values of a single column for the entries matching the
+     * filter, reading them straight from the result set without building
+     * entry models.
+     *
+     * @param limit maximum number of values, or {@code -1} for no limit
+     * @param offset number of values to skip when a limit is given
+     * @since 5.8
+     */
+    public List<String> getProjection(Map<String, Serializable> filter,
+            Set<String> fulltext, String columnName, int limit, int offset)
+            throws ClientException {
+        Column projected = table.getColumn(columnName);
+        if (projected == null || directory.isReference(columnName)) {
+            // not a stored field, go through the entry models
+            DocumentModelList docList = query(filter, fulltext, null, false,
+                    limit, offset);
+            List<String> result = new ArrayList<String>(docList.size());
+            for (DocumentModel docModel : docList) {
+                Object obj = docModel.getProperty(schemaName, columnName);
+                result.add(projectionValue(obj));
+            }
+            return result;
+        }
+
+        acquireConnection();
+        Map<String, Object> filterMap = getFilterMap(filter);
+        try {
+            List<Column> orderedColumns = new LinkedList<Column>();
+            String where = buildWhereClause(filterMap, fulltext,
+                    orderedColumns);
+            int querySizeLimit = getQuerySizeLimit(limit);
+
+            Select select = new Select(table);
+            select.setWhat(projected.getQuotedName());
+            select.setFrom(table.getQuotedName());
+            select.setWhere(where);
+            if (limit > 0) {
+                // paging needs a stable order
+                select.setOrderBy(projected.getQuotedName());
+            }
+            String query = addPagingClause(select.getStatement(), limit,
+                    offset);
+            logQuery(query, filterMap, orderedColumns);
+
+            PreparedStatement ps = null;
+            try {
+                ps = sqlConnection.prepareStatement(query);
+                fillPreparedStatementFields(filterMap, orderedColumns, ps);
+                setMaxRows(ps, querySizeLimit);
+                ResultSet rs = ps.executeQuery();
+                List<String> result = new ArrayList<String>();
+                while (rs.next()) {
+                    checkQuerySizeLimit(result.size(), querySizeLimit);
+                    result.add(projectionValue(projected.getFromResultSet(rs,
+                            1)));
+                }
+                return result;
+            } finally {
+                if (ps != null) {
+                    ps.close();
+                }
             }
-            result.add(propValue);
+        } catch (SQLException e) {
+            try {
+                sqlConnection.close();
+            } catch (SQLException e1) {
+            }
+            throw new DirectoryException("getProjection failed", e);
         }
-        return result;
+    }
+
+    protected static String projectionValue(Object obj) {
+        if (obj instanceof String) {
+            return (String) obj;
+        }
+        return String.valueOf(obj);
     }
 
     @Override
@@ -1135,6 +1583,13 @@ public class SQLSession extends BaseSession implements EntrySource {
 
     @Override
     public boolean hasEntry(String id) throws ClientException {
+        if (staticFilters.length == 0 && !isMultiTenant()) {
+            // same semantics as getEntry, the cache can be used
+            Boolean cached = directory.getCache().hasEntry(id, this);
+            if (cached != null) {
+                return cached.booleanValue();
+            }
+        }
         acquireConnection();
         Select select = new Select(table);
         select.setFrom(table.getQuotedName());
@@ -1176,6 +1631,25 @@ public class SQLSession extends BaseSession implements EntrySource {
         return sqlConnection;
     }
 
+    /**
+     * Checks that an entry is from the current tenant, or from no tenant at
+     * all.
+     *
+     * @since 5.8
+     */
+    protected boolean isFromCurrentTenant(Map<String, Object> fieldMap) {
+        if (!isMultiTenant()) {
+            return true;
+        }
+        String tenantId = getCurrentTenantId();
+        if (StringUtils.isBlank(tenantId)) {
+            return true;
+        }
+        String entryTenantId = (String) fieldMap.get(TENANT_ID_FIELD);
+        return StringUtils.isBlank(entryTenantId)
+                || entryTenantId.equals(tenantId);
+    }
+
     /**
      * Returns {@code true} if this directory supports multi tenancy,
      * {@code false} otherwise.
@@ -21,11 +21,16 @@ import java.io.Serializable;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.nuxeo.common.xmap.annotation.XNode;
@@ -55,6 +60,14 @@ public class TableReference extends AbstractReference {
         this.targetDirectoryName = targetDirectoryName;
     }
 
+    /**
+     * Maximum number of ids bound in a single {@code IN} clause when
+     * resolving the reference for several entries at once.
+     *
+     * @since 5.8
+     */
+    public static final int MAX_IDS_PER_QUERY = 500;
+
     @XNode("@table")
     protected String tableName;
 
@@ -128,9 +141,8 @@ public class TableReference extends AbstractReference {
         if (targetIds == null) {
             return;
         }
-        for (String targetId : targetIds) {
-            addLink(sourceId, targetId, session, true);
-        }
+        addLinks(targetColumn, targetIds, sourceColumn, sourceId, session,
+                true);
     }
 
     public void addLinks(List<String> sourceIds, String targetId,
@@ -138,8 +150,205 @@ public class TableReference extends AbstractReference {
         if (sourceIds == null) {
             return;
         }
-        for (String sourceId : sourceIds) {
-            addLink(sourceId, targetId, session, true);
+        addLinks(sourceColumn, sourceIds, targetColumn, targetId, session,
+                true);
+    }
+
+    /**
+     * Links the given ids to an entry with batched inserts, skipping the ids
+     * already linked if {@code checkExisting} is {@code true}.
+     *
+     * @param idsColumn the column of the ids to link
+     * @param filterColumn the column of the entry they are linked to
+     * @since 5.8
+     */
+    protected void addLinks(String idsColumn, Collection<String> ids,
+            String filterColumn, String filterValue, SQLSession session,
+            boolean checkExisting) throws DirectoryException {
+        Set<String> idsToAdd = new LinkedHashSet<String>(ids);
+        idsToAdd.remove(null);
+        if (checkExisting && !idsToAdd.isEmpty()) {
+            idsToAdd.removeAll(getLinkedIds(idsColumn, idsToAdd, filterColumn,
+                    filterValue, session));
+        }
+        if (idsToAdd.isEmpty()) {
+            return;
+        }
+        boolean filterIsSource = filterColumn.equals(sourceColumn);
+
+        Table table = getTable();
+        Insert insert = new Insert(table);
+        insert.addColumn(table.getColumn(sourceColumn));
+        insert.addColumn(table.getColumn(targetColumn));
+        String insertSql = insert.getStatement();
+
+        PreparedStatement ps = null;
+        try {
+            ps = session.sqlConnection.prepareStatement(insertSql);
+            int batched = 0;
+            for (String id : idsToAdd) {
+                String sourceId = filterIsSource ? filterValue : id;
+                String targetId = filterIsSource ? id : filterValue;
+                if (session.logger.isLogEnabled()) {
+                    session.logger.logSQL(insertSql,
+                            Arrays.<Serializable> asList(sourceId, targetId));
+                }
+                ps.setString(1, sourceId);
+                ps.setString(2, targetId);
+                ps.addBatch();
+                if (++batched == MAX_IDS_PER_QUERY) {
+                    ps.executeBatch();
+                    batched = 0;
+                }
+            }
+            if (batched > 0) {
+                ps.executeBatch();
+            }
+        } catch (SQLException e) {
+            throw new DirectoryException("error adding links to "
+                    + filterValue, e);
+        } finally {
+            try {
+                if (ps != null) {
+                    ps.close();
+                }
+            } catch (SQLException sqle) {
+                throw new DirectoryException(sqle);
+            }
+        }
+    }
+
+    /**
+     * Returns the ids among the given ones that are linked to an entry,
+     * issuing one query per chunk of {@link #MAX_IDS_PER_QUERY} ids.
+     *
+     * @since 5.8
+     */
+    protected Set<String> getLinkedIds(String idsColumn,
+            Collection<String> ids, String filterColumn, String filterValue,
+            SQLSession session) throws DirectoryException {
+        Set<String> linkedIds = new HashSet<String>();
+        Table table = getTable();
+        String idsColumnName = table.getColumn(idsColumn).getQuotedName();
+        List<String> values = new ArrayList<String>(ids);
+        for (int start = 0; start < values.size(); start += MAX_IDS_PER_QUERY) {
+            List<String> chunk = values.subList(start,
+                    Math.min(start + MAX_IDS_PER_QUERY, values.size()));
+
+            // SELECT idsColumn FROM table
+            // WHERE filterColumn = ? AND idsColumn IN (?, ..., ?)
+            Select select = new Select(table);
+            select.setWhat(idsColumnName);
+            select.setFrom(table.getQuotedName());
+            select.setWhere(table.getColumn(filterColumn).getQuotedName()
+                    + " = ? AND " + getInClause(idsColumnName, chunk.size()));
+
+            String sql = select.getStatement();
+            List<Serializable> params = new ArrayList<Serializable>(
+                    chunk.size() + 1);
+            params.add(filterValue);
+            params.addAll(chunk);
+            if (session.logger.isLogEnabled()) {
+                session.logger.logSQL(sql, params);
+            }
+
+            PreparedStatement ps = null;
+            try {
+                ps = session.sqlConnection.prepareStatement(sql);
+                setStrings(ps, params);
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    linkedIds.add(rs.getString(1));
+                }
+            } catch (SQLException e) {
+                throw new DirectoryException("error reading links to "
+                        + filterValue, e);
+            } finally {
+                try {
+                    if (ps != null) {
+                        ps.close();
+                    }
+                } catch (SQLException sqle) {
+                    throw new DirectoryException(sqle);
+                }
+            }
+        }
+        return linkedIds;
+    }
+
+    /**
+     * Removes the links between an entry and the given ids, issuing one
+     * statement per chunk of {@link #MAX_IDS_PER_QUERY} ids.
+     *
+     * @since 5.8
+     */
+    protected void removeLinks(String idsColumn, Collection<String> ids,
+            String filterColumn, String filterValue, SQLSession session)
+            throws DirectoryException {
+        Table table = getTable();
+        String idsColumnName = table.getColumn(idsColumn).getQuotedName();
+        List<String> values = new ArrayList<String>(ids);
+        for (int start = 0; start < values.size(); start += MAX_IDS_PER_QUERY) {
+            List<String> chunk = values.subList(start,
+                    Math.min(start + MAX_IDS_PER_QUERY, values.size()));
+
+            // DELETE FROM table
+            // WHERE filterColumn = ? AND idsColumn IN (?, ..., ?)
+            Delete delete = new Delete(table);
+            delete.setWhere(table.getColumn(filterColumn).getQuotedName()
+                    + " = ? AND " + getInClause(idsColumnName, chunk.size()));
+            String sql = delete.getStatement();
+            List<Serializable> params = new ArrayList<Serializable>(
+                    chunk.size() + 1);
+            params.add(filterValue);
+            params.addAll(chunk);
+            if (session.logger.isLogEnabled()) {
+                session.logger.logSQL(sql, params);
+            }
+            executeUpdate(sql, params, session, "failed to remove links for "
+                    + filterValue);
+        }
+    }
+
+    /**
+     * Returns a {@code column IN (?, ..., ?)} clause.
+     */
+    protected static String getInClause(String columnName, int size) {
+        StringBuilder buf = new StringBuilder(columnName);
+        buf.append(" IN (");
+        for (int i = 0; i < size; i++) {
+            buf.append(i == 0 ? "?" : ", ?");
+        }
+        buf.append(')');
+        return buf.toString();
+    }
+
+    protected static void setStrings(PreparedStatement ps,
+            List<Serializable> params) throws SQLException {
+        int i = 1;
+        for (Serializable param : params) {
+            ps.setString(i++, (String) param);
+        }
+    }
+
+    protected void executeUpdate(String sql, List<Serializable> params,
+            SQLSession session, String errorMessage)
+            throws DirectoryException {
+        PreparedStatement ps = null;
+        try {
+            ps = session.sqlConnection.prepareStatement(sql);
+            setStrings(ps, params);
+            ps.execute();
+        } catch (SQLException e) {
+            throw new DirectoryException(errorMessage, e);
+        } finally {
+            try {
+                if (ps != null) {
+                    ps.close();
+                }
+            } catch (SQLException sqle) {
+                throw new DirectoryException(sqle);
+            }
         }
     }
 
@@ -282,6 +491,81 @@ public class TableReference extends AbstractReference {
         }
     }
 
+    /**
+     * Fetches the ids linked to several filter values, issuing one query per
+     * chunk of {@link #MAX_IDS_PER_QUERY} values.
+     *
+     * @since 5.8
+     */
+    protected Map<String, List<String>> getIdsFor(String valueColumn,
+            String filterColumn, Collection<String> filterValues)
+            throws DirectoryException {
+        Map<String, List<String>> ids = new LinkedHashMap<String, List<String>>();
+        for (String filterValue : filterValues) {
+            if (filterValue != null && !ids.containsKey(filterValue)) {
+                ids.put(filterValue, new ArrayList<String>());
+            }
+        }
+        if (ids.isEmpty()) {
+            return ids;
+        }
+        List<String> values = new ArrayList<String>(ids.keySet());
+
+        SQLSession session = getSQLSession();
+        try {
+            Table table = getTable();
+            String filterColumnName = table.getColumn(filterColumn).getQuotedName();
+            for (int start = 0; start < values.size(); start += MAX_IDS_PER_QUERY) {
+                List<String> chunk = values.subList(start,
+                        Math.min(start + MAX_IDS_PER_QUERY, values.size()));
+
+                // SELECT filterColumn, valueColumn FROM table
+                // WHERE filterColumn IN (?, ..., ?)
+                Select select = new Select(table);
+                select.setWhat(filterColumnName + ", "
+                        + table.getColumn(valueColumn).getQuotedName());
+                select.setFrom(table.getQuotedName());
+                select.setWhere(getInClause(filterColumnName, chunk.size()));
+
+                String sql = select.getStatement();
+                if (session.logger.isLogEnabled()) {
+                    session.logger.logSQL(sql,
+                            new ArrayList<Serializable>(chunk));
+                }
+
+                PreparedStatement ps = null;
+                try {
+                    ps = session.sqlConnection.prepareStatement(sql);
+                    int i = 1;
+                    for (String value : chunk) {
+                        ps.setString(i++, value);
+                    }
+                    ResultSet rs = ps.executeQuery();
+                    while (rs.next()) {
+                        List<String> list = ids.get(rs.getString(1));
+                        if (list != null) {
+                            list.add(rs.getString(2));
+                        }
+                    }
+                } catch (SQLException e) {
+                    throw new DirectoryException(
+                            "error fetching reference values: ", e);
+                } finally {
+                    try {
+                        if (ps != null) {
+                            ps.close();
+                        }
+                    } catch (SQLException sqle) {
+                        throw new DirectoryException(sqle);
+                    }
+                }
+            }
+            return ids;
+        } finally {
+            session.close();
+        }
+    }
+
     @Override
     public List<String> getSourceIdsForTarget(String targetId)
             throws DirectoryException {
@@ -294,6 +578,18 @@ public class TableReference extends AbstractReference {
         return getIdsFor(targetColumn, sourceColumn, sourceId);
     }
 
+    @Override
+    public Map<String, List<String>> getSourceIdsForTargets(
+            Collection<String> targetIds) throws DirectoryException {
+        return getIdsFor(sourceColumn, targetColumn, targetIds);
+    }
+
+    @Override
+    public Map<String, List<String>> getTargetIdsForSources(
+            Collection<String> sourceIds) throws DirectoryException {
+        return getIdsFor(targetColumn, sourceColumn, sourceIds);
+    }
+
     public void removeLinksFor(String column, String entryId, SQLSession session)
             throws DirectoryException {
         Table table = getTable();
@@ -321,6 +617,50 @@ public class TableReference extends AbstractReference {
         }
     }
 
+    /**
+     * Removes the links of several entries, issuing one statement per chunk
+     * of {@link #MAX_IDS_PER_QUERY} entries.
+     *
+     * @since 5.8
+     */
+    public void removeLinksFor(String column, Collection<String> entryIds,
+            SQLSession session) throws DirectoryException {
+        Table table = getTable();
+        String columnName = table.getColumn(column).getQuotedName();
+        List<String> values = new ArrayList<String>(new LinkedHashSet<String>(
+                entryIds));
+        values.remove(null);
+        for (int start = 0; start < values.size(); start += MAX_IDS_PER_QUERY) {
+            List<Serializable> chunk = new ArrayList<Serializable>(
+                    values.subList(start,
+                            Math.min(start + MAX_IDS_PER_QUERY, values.size())));
+            Delete delete = new Delete(table);
+            delete.setWhere(getInClause(columnName, chunk.size()));
+            String sql = delete.getStatement();
+            if (session.logger.isLogEnabled()) {
+                session.logger.logSQL(sql, chunk);
+            }
+            executeUpdate(sql, chunk, session, "error remove links to "
+                    + chunk);
+        }
+    }
+
+    /**
+     * @since 5.8
+     */
+    public void removeLinksForSources(Collection<String> sourceIds,
+            SQLSession session) throws DirectoryException {
+        removeLinksFor(sourceColumn, sourceIds, session);
+    }
+
+    /**
+     * @since 5.8
+     */
+    public void removeLinksForTargets(Collection<String> targetIds,
+            SQLSession session) throws DirectoryException {
+        removeLinksFor(targetColumn, targetIds, session);
+    }
+
     public void removeLinksForSource(String sourceId, SQLSession session)
             throws DirectoryException {
         removeLinksFor(sourceColumn, sourceId, session);
@@ -399,54 +739,14 @@ public class TableReference extends AbstractReference {
 
         if (!idsToDelete.isEmpty()) {
             // remove unwanted links
-
-            // String deleteSql = String.format(
-            // "DELETE FROM %s WHERE %s = ? AND %s = ?", tableName,
-            // filterColumn, idsColumn);
-            Delete delete = new Delete(table);
-            String whereString = String.format("%s = ? AND %s = ?",
-                    table.getColumn(filterColumn).getQuotedName(),
-                    table.getColumn(idsColumn).getQuotedName());
-            delete.setWhere(whereString);
-            String deleteSql = delete.getStatement();
-
-            try {
-                ps = session.sqlConnection.prepareStatement(deleteSql);
-                for (String unwantedId : idsToDelete) {
-                    if (session.logger.isLogEnabled()) {
-                        session.logger.logSQL(deleteSql,
-                                Arrays.<Serializable> asList(filterValue,
-                                        unwantedId));
-                    }
-                    ps.setString(1, filterValue);
-                    ps.setString(2, unwantedId);
-                    ps.execute();
-                }
-            } catch (SQLException e) {
-                throw new DirectoryException(
-                        "failed to remove unwanted links for " + filterValue, e);
-            } finally {
-                try {
-                    if (ps != null) {
-                        ps.close();
-                    }
-                } catch (SQLException sqle) {
-                    throw new DirectoryException(sqle);
-                }
-            }
+            removeLinks(idsColumn, idsToDelete, filterColumn, filterValue,
+                    session);
         }
 
         if (!idsToAdd.isEmpty()) {
             // add missing links
-            if (filterColumn.equals(sourceColumn)) {
-                for (String missingId : idsToAdd) {
-                    addLink(filterValue, missingId, session, false);
-                }
-            } else {
-                for (String missingId : idsToAdd) {
-                    addLink(missingId, filterValue, session, false);
-                }
-            }
+            addLinks(idsColumn, idsToAdd, filterColumn, filterValue, session,
+                    false);
         }
     }
 
@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.core.test.TransactionalFeature;
+import org.nuxeo.ecm.core.test.annotations.TransactionalConfig;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.cluster.DirectoryInvalidationService;
+import org.nuxeo.ecm.directory.cluster.DirectoryInvalidations;
+import org.nuxeo.ecm.directory.cluster.InvalidationTransport;
+import org.nuxeo.runtime.api.ConnectionHelper;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.LocalDeploy;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Checks that the cluster invalidations of a directory session write are only
+ * sent once the transaction commits.
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ TransactionalFeature.class, CoreFeature.class })
+@Deploy({ "org.nuxeo.ecm.core.schema", "org.nuxeo.ecm.core.api",
+        "org.nuxeo.ecm.core", "org.nuxeo.ecm.directory",
+        "org.nuxeo.ecm.directory.sql" })
+@LocalDeploy({
+        "org.nuxeo.ecm.directory:test-sql-directories-schema-override.xml",
+        "org.nuxeo.ecm.directory.sql:test-sql-directories-bundle.xml",
+        "org.nuxeo.ecm.directory.sql:test-directory-invalidation-transport.xml" })
+@TransactionalConfig(autoStart = false)
+public class TestDirectoryInvalidationsAfterCommit {
+
+    /**
+     * Transport keeping what is sent in memory.
+     */
+    public static class RecordingTransport implements InvalidationTransport {
+
+        protected static final List<DirectoryInvalidations> sent = Collections.synchronizedList(new ArrayList<DirectoryInvalidations>());
+
+        @Override
+        public void activate(String nodeId, Map<String, String> parameters) {
+        }
+
+        @Override
+        public void send(DirectoryInvalidations invalidations) {
+            sent.add(invalidations);
+        }
+
+        @Override
+        public DirectoryInvalidations receive() {
+            return new DirectoryInvalidations();
+        }
+
+        @Override
+        public void deactivate() {
+        }
+
+    }
+
+    protected DirectoryInvalidationService invalidationService;
+
+    protected String savedSingleDS;
+
+    @Before
+    public void setUp() throws Exception {
+        savedSingleDS = System.getProperty(ConnectionHelper.SINGLE_DS);
+        System.setProperty(ConnectionHelper.SINGLE_DS, "jdbc/NuxeoTestDS");
+        invalidationService = Framework.getLocalService(DirectoryInvalidationService.class);
+        assertTrue(invalidationService.isEnabled());
+        invalidationService.flush();
+        RecordingTransport.sent.clear();
+    }
+
+    @After
+    public void tearDown() {
+        if (savedSingleDS == null || savedSingleDS.isEmpty()) {
+            System.clearProperty(ConnectionHelper.SINGLE_DS);
+        } else {
+            System.setProperty(ConnectionHelper.SINGLE_DS, savedSingleDS);
+        }
+    }
+
+    protected void updateUser(String username, String company)
+            throws Exception {
+        Session session = TestSQLDirectory.getSession("userDirectory");
+        try {
+            DocumentModel entry = session.getEntry(username);
+            entry.setProperty("user", "company", company);
+            session.updateEntry(entry);
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testSentAfterCommit() throws Exception {
+        assertTrue(TransactionHelper.startTransaction());
+        try {
+            updateUser("user_1", "committed");
+            invalidationService.flush();
+            assertTrue(RecordingTransport.sent.isEmpty());
+        } finally {
+            TransactionHelper.commitOrRollbackTransaction();
+        }
+        invalidationService.flush();
+        assertEquals(1, RecordingTransport.sent.size());
+        DirectoryInvalidations invalidations = RecordingTransport.sent.get(0);
+        assertTrue(invalidations.getEntryIds("userDirectory").contains(
+                "user_1"));
+    }
+
+    @Test
+    public void testNothingSentOnRollback() throws Exception {
+        assertTrue(TransactionHelper.startTransaction());
+        try {
+            updateUser("user_1", "rolledback");
+        } finally {
+            TransactionHelper.setTransactionRollbackOnly();
+            TransactionHelper.commitOrRollbackTransaction();
+        }
+        invalidationService.flush();
+        assertTrue(RecordingTransport.sent.isEmpty());
+    }
+
+    @Test
+    public void testSentImmediatelyWithoutTransaction() throws Exception {
+        updateUser("user_1", "notx");
+        invalidationService.flush();
+        assertEquals(1, RecordingTransport.sent.size());
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSQLConnectionPool {
+
+    /**
+     * State of a fake physical connection.
+     */
+    protected static class FakeConnection implements InvocationHandler {
+
+        protected boolean closed;
+
+        protected boolean valid = true;
+
+        protected boolean autoCommit = false;
+
+        protected int rollbacks;
+
+        protected final List<String> prepared = new ArrayList<String>();
+
+        protected final List<FakeStatement> statements = new ArrayList<FakeStatement>();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            switch (method.getName()) {
+            case "close":
+                closed = true;
+                return null;
+            case "isClosed":
+                return Boolean.valueOf(closed);
+            case "isValid":
+                return Boolean.valueOf(valid);
+            case "getAutoCommit":
+                return Boolean.valueOf(autoCommit);
+            case "setAutoCommit":
+                autoCommit = ((Boolean) args[0]).booleanValue();
+                return null;
+            case "rollback":
+                rollbacks++;
+                return null;
+            case "prepareStatement":
+                prepared.add((String) args[0]);
+                FakeStatement statement = new FakeStatement();
+                statements.add(statement);
+                return Proxy.newProxyInstance(
+                        PreparedStatement.class.getClassLoader(),
+                        new Class<?>[] { PreparedStatement.class }, statement);
+            default:
+                return null;
+            }
+        }
+    }
+
+    protected static class FakeStatement implements InvocationHandler {
+
+        protected boolean closed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            switch (method.getName()) {
+            case "close":
+                closed = true;
+                return null;
+            case "isClosed":
+                return Boolean.valueOf(closed);
+            default:
+                if (closed) {
+                    throw new SQLException("closed");
+                }
+                return null;
+            }
+        }
+    }
+
+    protected static class FakeDataSource implements DataSource {
+
+        protected final List<FakeConnection> connections = new ArrayList<FakeConnection>();
+
+        @Override
+        public synchronized Connection getConnection() {
+            FakeConnection connection = new FakeConnection();
+            connections.add(connection);
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, connection);
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PrintWriter getLogWriter() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getLoginTimeout() {
+            throw new UnsupportedOperationException();
+        }
+
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    protected FakeDataSource dataSource;
+
+    protected SQLConnectionPoolDescriptor config;
+
+    protected SQLConnectionPool pool;
+
+    // metrics are shared, use a different pool name for each test
+    protected static int poolCount;
+
+    // time seen by the pool, in nanoseconds
+    protected long now;
+
+    @Before
+    public void setUp() {
+        dataSource = new FakeDataSource();
+        config = new SQLConnectionPoolDescriptor();
+        config.maxActive = 2;
+        config.maxIdle = 2;
+        config.maxWait = 100;
+        config.statementCacheSize = 2;
+        pool = new SQLConnectionPool("testPool" + poolCount++, dataSource,
+                config) {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        Connection c1 = pool.getConnection();
+        c1.setAutoCommit(true);
+        assertEquals(1, pool.getActiveCount());
+        c1.close();
+        assertTrue(c1.isClosed());
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+
+        Connection c2 = pool.getConnection();
+        assertNotSame(c1, c2);
+        assertFalse(c2.isClosed());
+        assertEquals(1, dataSource.connections.size());
+        // returned in the state of a new connection
+        assertFalse(c2.getAutoCommit());
+        c2.close();
+        // uncommitted work is rolled back
+        assertEquals(1, dataSource.connections.get(0).rollbacks);
+
+        try {
+            c1.commit();
+            fail("closed connection used");
+        } catch (SQLException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testMaxActive() throws Exception {
+        Connection c1 = pool.getConnection();
+        Connection c2 = pool.getConnection();
+        try {
+            pool.getConnection();
+            fail("pool should be exhausted");
+        } catch (SQLException e) {
+            // ok
+        }
+        c1.close();
+        Connection c3 = pool.getConnection();
+        assertEquals(2, dataSource.connections.size());
+        c2.close();
+        c3.close();
+    }
+
+    @Test
+    public void testStatementCache() throws Exception {
+        Connection c = pool.getConnection();
+        PreparedStatement ps1 = c.prepareStatement("SELECT 1");
+        ps1.close();
+        PreparedStatement ps2 = c.prepareStatement("SELECT 1");
+        FakeConnection physical = dataSource.connections.get(0);
+        assertEquals(1, physical.prepared.size());
+        assertEquals(1, pool.getStatementHitCount());
+        assertSame(c, ps2.getConnection());
+
+        // a statement in use is not shared
+        PreparedStatement ps3 = c.prepareStatement("SELECT 1");
+        assertEquals(2, physical.prepared.size());
+        ps3.close();
+        assertTrue(physical.statements.get(1).closed);
+        ps2.close();
+        assertFalse(physical.statements.get(0).closed);
+
+        // the least recently used statement is evicted
+        c.prepareStatement("SELECT 2").close();
+        c.prepareStatement("SELECT 3").close();
+        assertTrue(physical.statements.get(0).closed);
+        c.close();
+
+        // the cache is kept with the connection
+        c = pool.getConnection();
+        c.prepareStatement("SELECT 3").close();
+        assertEquals(4, physical.prepared.size());
+        c.close();
+    }
+
+    @Test
+    public void testValidationAndIdleTimeout() throws Exception {
+        config.validationInterval = 0;
+        Connection c = pool.getConnection();
+        c.close();
+        dataSource.connections.get(0).valid = false;
+        c = pool.getConnection();
+        assertEquals(2, dataSource.connections.size());
+        assertTrue(dataSource.connections.get(0).closed);
+        c.close();
+
+        config.idleTimeout = 0;
+        c = pool.getConnection();
+        c.close();
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void testLeakDetection() throws Exception {
+        config.leakTimeout = 1;
+        Connection c = pool.getConnection();
+        now += TimeUnit.MILLISECONDS.toNanos(999);
+        pool.getConnection().close();
+        assertEquals(0, pool.getLeakCount());
+        now += TimeUnit.MILLISECONDS.toNanos(2);
+        pool.getConnection().close();
+        assertEquals(1, pool.getLeakCount());
+        c.close();
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        Connection c1 = pool.getConnection();
+        Connection c2 = pool.getConnection();
+        c1.close();
+        pool.close();
+        assertTrue(dataSource.connections.get(0).closed);
+        c2.close();
+        assertTrue(dataSource.connections.get(1).closed);
+        try {
+            pool.getConnection();
+            fail("pool is closed");
+        } catch (SQLException e) {
+            // ok
+        }
+    }
+
+}
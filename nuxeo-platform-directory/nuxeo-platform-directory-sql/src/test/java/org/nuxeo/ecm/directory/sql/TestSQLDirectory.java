@@ -20,8 +20,11 @@
 package org.nuxeo.ecm.directory.sql;
 
 import java.io.Serializable;
+import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -40,8 +43,10 @@ import org.nuxeo.ecm.directory.AbstractDirectory;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryIterator;
 import org.nuxeo.ecm.directory.Reference;
 import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.SizeLimitExceededException;
 
 /**
  * @author <a href="mailto:glefter@nuxeo.com">George Lefter</a>
@@ -172,6 +177,124 @@ public class TestSQLDirectory extends SQLDirectoryTestCase {
         }
     }
 
+    @Test
+    public void testTableReferenceBulk() throws Exception {
+        Reference groupsRef = getDirectory("userDirectory").getReference(
+                "groups");
+        Map<String, List<String>> groups = groupsRef.getTargetIdsForSources(Arrays.asList(
+                "Administrator", "user_1", "user_2", "user_1"));
+        assertEquals(3, groups.size());
+        assertEquals(Arrays.asList("administrators"),
+                groups.get("Administrator"));
+        assertEquals(new HashSet<String>(Arrays.asList("group_1", "members")),
+                new HashSet<String>(groups.get("user_1")));
+        assertTrue(groups.get("user_2").isEmpty());
+
+        // inverse reference delegates to the bulk API of the table reference
+        Reference membersRef = getDirectory("groupDirectory").getReference(
+                "members");
+        Map<String, List<String>> members = membersRef.getTargetIdsForSources(Arrays.asList(
+                "administrators", "members", "group_1"));
+        assertEquals(Arrays.asList("Administrator"),
+                members.get("administrators"));
+        assertEquals(Arrays.asList("user_1"), members.get("members"));
+        assertEquals(Arrays.asList("user_1"), members.get("group_1"));
+
+        // more ids than fit in a single query
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < TableReference.MAX_IDS_PER_QUERY * 2 + 1; i++) {
+            ids.add("user_" + i);
+        }
+        groups = groupsRef.getTargetIdsForSources(ids);
+        assertEquals(ids.size(), groups.size());
+        assertEquals(2, groups.get("user_1").size());
+    }
+
+    @Test
+    public void testTableReferenceLargeUpdates() throws Exception {
+        TableReference membersRef = (TableReference) getDirectory(
+                "groupDirectory").getReference("members");
+
+        // more ids than fit in a single statement
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < TableReference.MAX_IDS_PER_QUERY * 2 + 1; i++) {
+            ids.add("user_" + i);
+        }
+        membersRef.setTargetIdsForSource("group_1", ids);
+        assertEquals(new HashSet<String>(ids), new HashSet<String>(
+                membersRef.getTargetIdsForSource("group_1")));
+
+        // keep one id out of two and add new ones
+        List<String> newIds = new ArrayList<String>();
+        for (int i = 0; i < ids.size(); i += 2) {
+            newIds.add(ids.get(i));
+            newIds.add("new_" + i);
+        }
+        membersRef.setTargetIdsForSource("group_1", newIds);
+        List<String> members = membersRef.getTargetIdsForSource("group_1");
+        assertEquals(newIds.size(), members.size());
+        assertEquals(new HashSet<String>(newIds), new HashSet<String>(members));
+
+        // adding existing or duplicate links does not duplicate them
+        List<String> added = new ArrayList<String>(ids);
+        added.add("user_1");
+        membersRef.addLinks("group_1", added);
+        members = membersRef.getTargetIdsForSource("group_1");
+        Set<String> expected = new HashSet<String>(newIds);
+        expected.addAll(ids);
+        assertEquals(expected.size(), members.size());
+        assertEquals(expected, new HashSet<String>(members));
+
+        SQLSession session = membersRef.getSQLSession();
+        try {
+            membersRef.removeLinksForSources(
+                    Arrays.asList("group_1", "administrators"), session);
+            session.commit();
+        } finally {
+            session.close();
+        }
+        assertTrue(membersRef.getTargetIdsForSource("group_1").isEmpty());
+        assertTrue(membersRef.getTargetIdsForSource("administrators").isEmpty());
+        assertEquals(Arrays.asList("user_1"),
+                membersRef.getTargetIdsForSource("members"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testGetEntriesByIds() throws Exception {
+        Session session = getSession();
+        try {
+            DocumentModelList entries = session.getEntries(Arrays.asList(
+                    "Administrator", "user_1", "no-such-user", "user_1"),
+                    true);
+            assertEquals(2, entries.size());
+            Map<String, DocumentModel> byId = new HashMap<String, DocumentModel>();
+            for (DocumentModel entry : entries) {
+                byId.put(entry.getId(), entry);
+            }
+            assertEquals(
+                    Arrays.asList("administrators"),
+                    byId.get("Administrator").getProperty(SCHEMA, "groups"));
+            assertEquals(new HashSet<String>(Arrays.asList("group_1",
+                    "members")), new HashSet<String>(
+                    (List<String>) byId.get("user_1").getProperty(SCHEMA,
+                            "groups")));
+
+            // more ids than fit in a single query
+            List<String> ids = new ArrayList<String>();
+            for (int i = 0; i < TableReference.MAX_IDS_PER_QUERY * 2 + 1; i++) {
+                ids.add("user_" + i);
+            }
+            ids.add("Administrator");
+            // user_1, user_3 and Administrator
+            assertEquals(3, session.getEntries(ids, false).size());
+            assertTrue(session.getEntries(Collections.<String> emptyList(),
+                    false).isEmpty());
+        } finally {
+            session.close();
+        }
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     public void testCreateEntry() throws Exception {
@@ -504,6 +627,94 @@ public class TestSQLDirectory extends SQLDirectoryTestCase {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testQueryIterator() throws Exception {
+        Session session = getSession();
+        try {
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            Map<String, Set<String>> expected = new HashMap<String, Set<String>>();
+            for (DocumentModel entry : session.query(filter, null, null, true)) {
+                expected.put(entry.getId(), new HashSet<String>(
+                        (List<String>) entry.getProperty(SCHEMA, "groups")));
+            }
+            assertEquals(3, expected.size());
+
+            // fetch size smaller than the number of entries
+            Map<String, Set<String>> actual = new HashMap<String, Set<String>>();
+            EntryIterator it = session.queryIterator(filter, null, true, 2);
+            try {
+                while (it.hasNext()) {
+                    DocumentModel entry = it.next();
+                    actual.put(entry.getId(), new HashSet<String>(
+                            (List<String>) entry.getProperty(SCHEMA, "groups")));
+                }
+            } finally {
+                it.close();
+            }
+            assertEquals(expected, actual);
+
+            filter.put("username", "user");
+            it = session.queryIterator(filter,
+                    Collections.singleton("username"), false, 0);
+            try {
+                Set<String> ids = new HashSet<String>();
+                while (it.hasNext()) {
+                    ids.add(it.next().getId());
+                }
+                assertEquals(new HashSet<String>(Arrays.asList("user_1",
+                        "user_3")), ids);
+            } finally {
+                it.close();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testQueryIteratorIsBounded() throws Exception {
+        int count = 2000;
+        int fetchSize = 50;
+        Session session = getSession();
+        try {
+            for (int i = 0; i < count; i++) {
+                Map<String, Object> map = new HashMap<String, Object>();
+                map.put("username", "bulk_" + i);
+                map.put("password", "pass_" + i);
+                session.createEntry(map);
+            }
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            filter.put("username", "bulk_");
+            SQLSession.SQLEntryIterator it = (SQLSession.SQLEntryIterator) session.queryIterator(
+                    filter, Collections.singleton("username"), false,
+                    fetchSize);
+            Connection connection = it.connection;
+            try {
+                // the session connection is in autocommit mode, in which
+                // some drivers read the whole result set
+                assertNotNull(connection);
+                assertFalse(connection.getAutoCommit());
+                int n = 0;
+                int maxBatchSize = 0;
+                while (it.hasNext()) {
+                    assertNotNull(it.next());
+                    n++;
+                    maxBatchSize = Math.max(maxBatchSize, it.getBatchSize());
+                }
+                assertEquals(count, n);
+                // at most one batch of entries is held at a time
+                assertTrue(String.valueOf(maxBatchSize),
+                        maxBatchSize < fetchSize);
+            } finally {
+                it.close();
+            }
+            assertTrue(connection.isClosed());
+        } finally {
+            session.close();
+        }
+    }
+
     @Test
     public void testQuerySubAny() throws Exception {
         Session session = getSession();
@@ -566,6 +777,81 @@ public class TestSQLDirectory extends SQLDirectoryTestCase {
         }
     }
 
+    @Test
+    public void testGetProjectionPaging() throws Exception {
+        SQLSession session = (SQLSession) getSQLDirectory().getSession();
+        try {
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            List<String> list = session.getProjection(filter, "username");
+            assertEquals(new HashSet<String>(Arrays.asList("Administrator",
+                    "user_1", "user_3")), new HashSet<String>(list));
+
+            // values are ordered when paging
+            list = session.getProjection(filter,
+                    Collections.<String> emptySet(), "username", 2,
+                    0);
+            assertEquals(Arrays.asList("Administrator", "user_1"), list);
+            list = session.getProjection(filter,
+                    Collections.<String> emptySet(), "username", 2,
+                    2);
+            assertEquals(Arrays.asList("user_3"), list);
+
+            // fulltext and non string columns
+            filter.put("username", "user");
+            list = session.getProjection(filter,
+                    Collections.singleton("username"), "intField");
+            assertEquals(new HashSet<String>(Arrays.asList("3", "4")),
+                    new HashSet<String>(list));
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testQuerySizeLimit() throws Exception {
+        SQLDirectory directory = getSQLDirectory();
+        directory.getConfig().setQuerySizeLimit(2);
+        SQLSession session = (SQLSession) directory.getSession();
+        try {
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            Set<String> fulltext = Collections.<String> emptySet();
+            try {
+                session.query(filter);
+                fail("size limit should be exceeded");
+            } catch (SizeLimitExceededException e) {
+                // ok
+            }
+            try {
+                session.getProjection(filter, "username");
+                fail("size limit should be exceeded");
+            } catch (SizeLimitExceededException e) {
+                // ok
+            }
+            // the limit does not apply to smaller pages
+            assertEquals(2, session.query(filter, fulltext,
+                    Collections.singletonMap("username", "asc"), false, 2, 1).size());
+            assertEquals(Arrays.asList("user_1", "user_3"),
+                    session.getProjection(filter, fulltext, "username", 2, 1));
+
+            // a query matching the limit exactly succeeds
+            filter.put("username", "user");
+            assertEquals(2,
+                    session.query(filter, Collections.singleton("username")).size());
+
+            // bounded and exact counts
+            filter.clear();
+            assertEquals(3, session.queryCount(filter, fulltext, 0));
+            assertEquals(2, session.queryCount(filter, fulltext, 2));
+            assertEquals(3, session.queryCount(filter, fulltext, 10));
+            filter.put("username", "user");
+            assertEquals(2, session.queryCount(filter,
+                    Collections.singleton("username"), 10));
+        } finally {
+            session.close();
+            directory.getConfig().setQuerySizeLimit(0);
+        }
+    }
+
     @Test
     public void testSearch() throws Exception {
         Session session = getSession();
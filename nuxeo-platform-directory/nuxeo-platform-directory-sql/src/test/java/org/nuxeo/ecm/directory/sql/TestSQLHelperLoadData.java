@@ -0,0 +1,187 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.ColumnType;
+import org.nuxeo.ecm.core.storage.sql.jdbc.db.Column;
+import org.nuxeo.ecm.core.storage.sql.jdbc.db.Table;
+import org.nuxeo.ecm.directory.DirectoryException;
+
+public class TestSQLHelperLoadData extends SQLDirectoryTestCase {
+
+    private static final Log log = LogFactory.getLog(TestSQLHelperLoadData.class);
+
+    protected Connection connection;
+
+    protected Table table;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        SQLDirectory directory = (SQLDirectory) getDirectory("userDirectory");
+        connection = directory.getConnection();
+        table = SQLHelper.addTable("bulkload", directory.getDialect(), false);
+        Column id = SQLHelper.addColumn(table, "id", ColumnType.STRING, false);
+        id.setPrimary(true);
+        id.setNullable(false);
+        SQLHelper.addColumn(table, "label", ColumnType.STRING, false);
+        SQLHelper.addColumn(table, "ordering", ColumnType.LONG, false);
+        SQLHelper.addColumn(table, "obsolete", ColumnType.BOOLEAN, false);
+        SQLHelper.addColumn(table, "created", ColumnType.TIMESTAMP, false);
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        connection.close();
+        super.tearDown();
+    }
+
+    protected static ByteArrayInputStream generateData(int nbRows) {
+        StringBuilder buf = new StringBuilder(
+                "id,label,ordering,obsolete,created\n");
+        for (int i = 0; i < nbRows; i++) {
+            buf.append("entry").append(i).append(',');
+            buf.append(i % 10 == 0 ? SQLHelper.SQL_NULL_MARKER : "Entry " + i);
+            buf.append(',').append(i).append(',').append(i % 2 == 0);
+            buf.append(",2013-01-01 12:00:00.0\n");
+        }
+        return new ByteArrayInputStream(buf.toString().getBytes(
+                Charset.forName("UTF-8")));
+    }
+
+    protected SQLHelper createTable(int batchSize) throws Exception {
+        SQLHelper helper = new SQLHelper(connection, table, null, "always");
+        helper.setupTable();
+        helper.setBatchSize(batchSize);
+        return helper;
+    }
+
+    protected int countRows() throws Exception {
+        Statement st = connection.createStatement();
+        try {
+            ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM "
+                    + table.getQuotedName());
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            st.close();
+        }
+    }
+
+    @Test
+    public void testLoadData() throws Exception {
+        // the last batch is incomplete
+        SQLHelper helper = createTable(7);
+        assertEquals(25, helper.loadData(generateData(25)));
+        connection.commit();
+        assertEquals(25, countRows());
+
+        Statement st = connection.createStatement();
+        try {
+            ResultSet rs = st.executeQuery("SELECT "
+                    + table.getColumn("label").getQuotedName() + ", "
+                    + table.getColumn("ordering").getQuotedName() + ", "
+                    + table.getColumn("obsolete").getQuotedName() + " FROM "
+                    + table.getQuotedName() + " WHERE "
+                    + table.getColumn("id").getQuotedName()
+                    + " IN ('entry10', 'entry13')"
+                    + " ORDER BY 2");
+            assertTrue(rs.next());
+            assertNull(rs.getString(1));
+            assertEquals(10, rs.getLong(2));
+            assertTrue(rs.getBoolean(3));
+            assertTrue(rs.next());
+            assertEquals("Entry 13", rs.getString(1));
+            assertFalse(rs.getBoolean(3));
+            assertFalse(rs.next());
+        } finally {
+            st.close();
+        }
+    }
+
+    @Test
+    public void testInvalidValue() throws Exception {
+        SQLHelper helper = createTable(10);
+        String data = "id,ordering\nentry1,1\nentry2,two\n";
+        try {
+            helper.loadData(new ByteArrayInputStream(data.getBytes("UTF-8")));
+            fail("invalid value should fail");
+        } catch (DirectoryException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ordering"));
+        }
+    }
+
+    @Test
+    public void testDuplicateRowInBatch() throws Exception {
+        SQLHelper helper = createTable(10);
+        String data = "id,ordering\nentry1,1\nentry2,2\nentry1,3\n";
+        try {
+            helper.loadData(new ByteArrayInputStream(data.getBytes("UTF-8")));
+            fail("duplicate id should fail");
+        } catch (DirectoryException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("rows 1 to 3"));
+        }
+    }
+
+    /**
+     * Compares the time needed to populate a large directory table, row by
+     * row as done before and with batches.
+     */
+    // benchmark only logging timings, disabled by default
+    @Test
+    @Ignore
+    public void testLoadTime() throws Exception {
+        int nbRows = 20000;
+        long[] times = new long[2];
+        int[] batchSizes = { 1, SQLHelper.DEFAULT_BATCH_SIZE };
+        for (int i = 0; i < batchSizes.length; i++) {
+            SQLHelper helper = createTable(batchSizes[i]);
+            ByteArrayInputStream data = generateData(nbRows);
+            long start = System.currentTimeMillis();
+            assertEquals(nbRows, helper.loadData(data));
+            connection.commit();
+            times[i] = System.currentTimeMillis() - start;
+            assertEquals(nbRows, countRows());
+        }
+        log.info(String.format(
+                "Loaded %s rows in %sms one by one, %sms in batches of %s",
+                Integer.valueOf(nbRows), Long.valueOf(times[0]),
+                Long.valueOf(times[1]),
+                Integer.valueOf(SQLHelper.DEFAULT_BATCH_SIZE)));
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.directory.cluster.DirectoryInvalidations;
+import org.nuxeo.runtime.test.NXRuntimeTestCase;
+
+public class TestSQLInvalidationTransport extends NXRuntimeTestCase {
+
+    protected SQLInvalidationTransport node1;
+
+    protected SQLInvalidationTransport node2;
+
+    protected static Map<String, String> getParameters() {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put(SQLInvalidationTransport.PARAM_DB_DRIVER,
+                "org.h2.Driver");
+        parameters.put(SQLInvalidationTransport.PARAM_DB_URL,
+                "jdbc:h2:mem:dirinvals;DB_CLOSE_DELAY=-1");
+        parameters.put(SQLInvalidationTransport.PARAM_DB_USER, "sa");
+        parameters.put(SQLInvalidationTransport.PARAM_DB_PASSWORD, "");
+        return parameters;
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        node1 = new SQLInvalidationTransport();
+        node1.activate("node1", getParameters());
+        node2 = new SQLInvalidationTransport();
+        node2.activate("node2", getParameters());
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        node1.deactivate();
+        node2.deactivate();
+        super.tearDown();
+    }
+
+    @Test
+    public void testSendReceive() throws Exception {
+        DirectoryInvalidations invalidations = new DirectoryInvalidations();
+        invalidations.add("userDirectory", Arrays.asList("user1", "user2"));
+        invalidations.addAll("groupDirectory");
+        node1.send(invalidations);
+
+        // not for the sender
+        assertTrue(node1.receive().isEmpty());
+
+        DirectoryInvalidations received = node2.receive();
+        assertEquals(
+                new HashSet<String>(Arrays.asList("userDirectory",
+                        "groupDirectory")), received.getDirectoryNames());
+        assertFalse(received.isAll("userDirectory"));
+        assertEquals(new HashSet<String>(Arrays.asList("user1", "user2")),
+                received.getEntryIds("userDirectory"));
+        assertTrue(received.isAll("groupDirectory"));
+
+        // received only once
+        assertTrue(node2.receive().isEmpty());
+    }
+
+    @Test
+    public void testBothDirections() throws Exception {
+        DirectoryInvalidations invalidations = new DirectoryInvalidations();
+        invalidations.add("userDirectory", Arrays.asList("user1"));
+        node1.send(invalidations);
+        invalidations = new DirectoryInvalidations();
+        invalidations.add("userDirectory", Arrays.asList("user2"));
+        node2.send(invalidations);
+
+        DirectoryInvalidations received = node2.receive();
+        assertEquals(new HashSet<String>(Arrays.asList("user1")),
+                received.getEntryIds("userDirectory"));
+        received = node1.receive();
+        assertEquals(new HashSet<String>(Arrays.asList("user2")),
+                received.getEntryIds("userDirectory"));
+    }
+
+    @Test
+    public void testNodeJoiningLater() throws Exception {
+        DirectoryInvalidations invalidations = new DirectoryInvalidations();
+        invalidations.add("userDirectory", Arrays.asList("user1"));
+        node1.send(invalidations);
+
+        SQLInvalidationTransport node3 = new SQLInvalidationTransport();
+        node3.activate("node3", getParameters());
+        try {
+            assertTrue(node3.receive().isEmpty());
+            node2.send(invalidations);
+            assertEquals(new HashSet<String>(Arrays.asList("user1")),
+                    node3.receive().getEntryIds("userDirectory"));
+        } finally {
+            node3.deactivate();
+        }
+    }
+
+    @Test
+    public void testUnregisteredNodeInvalidatesEverything() throws Exception {
+        // node3 considers all the other nodes dead and unregisters them
+        Map<String, String> parameters = getParameters();
+        parameters.put(SQLInvalidationTransport.PARAM_NODE_TIMEOUT, "-1");
+        SQLInvalidationTransport node3 = new SQLInvalidationTransport();
+        node3.activate("node3", parameters);
+        try {
+            node3.receive();
+        } finally {
+            node3.deactivate();
+        }
+        DirectoryInvalidations received = node2.receive();
+        assertTrue(received.isAllDirectories());
+        assertTrue(node2.receive().isEmpty());
+    }
+
+}
@@ -0,0 +1,487 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.NuxeoGroup;
+
+/**
+ * In-memory index of the group hierarchy.
+ * <p>
+ * Each group name is mapped to an int id, and the parent and sub-group
+ * relations of a group are kept as arrays of ids. Groups are loaded lazily
+ * through a {@link GroupLoader}, and the ancestor and descendant closures
+ * computed from them are memoized until a group they involve changes.
+ * <p>
+ * {@link #invalidate(String)} only reloads the changed group and drops its
+ * previous and new neighbors, the rest of the graph is kept. The whole graph
+ * is dropped once it knows more than a maximum number of group names.
+ * <p>
+ * Group names are used as is, the index must not be shared between tenants
+ * seeing different groups for the same name.
+ *
+ * @since 5.8
+ */
+public class GroupClosureIndex {
+
+    private static final Log log = LogFactory.getLog(GroupClosureIndex.class);
+
+    /**
+     * Loads a group from the underlying storage.
+     */
+    public interface GroupLoader {
+
+        /**
+         * Returns the group with the given name, or {@code null} if it does
+         * not exist.
+         */
+        NuxeoGroup loadGroup(String groupName) throws ClientException;
+
+    }
+
+    protected static final int[] NO_IDS = new int[0];
+
+    /**
+     * A loaded group. The name is the one returned by the storage, or
+     * {@code null} if the group does not exist.
+     */
+    protected static class Node {
+
+        protected final String name;
+
+        protected final int[] parents;
+
+        protected final int[] children;
+
+        protected final long loaded;
+
+        protected Node(String name, int[] parents, int[] children, long loaded) {
+            this.name = name;
+            this.parents = parents;
+            this.children = children;
+            this.loaded = loaded;
+        }
+    }
+
+    /**
+     * Memoized closure of a group, including the group itself, in
+     * breadth-first order.
+     */
+    protected static class Closure {
+
+        protected final int[] ids;
+
+        protected final long loaded;
+
+        protected Closure(int[] ids, long loaded) {
+            this.ids = ids;
+            this.loaded = loaded;
+        }
+    }
+
+    /**
+     * The loaded part of the group hierarchy. Operations work on the graph
+     * that was current when they started, so that dropping the whole graph
+     * does not change the meaning of the ids they hold.
+     */
+    protected static class Graph {
+
+        protected final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+        protected String[] keys = new String[16];
+
+        protected Node[] nodes = new Node[16];
+
+        protected Closure[] ancestors = new Closure[16];
+
+        protected Closure[] descendants = new Closure[16];
+
+        protected int size;
+    }
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    protected final GroupLoader loader;
+
+    protected final long timeout;
+
+    protected final int maxSize;
+
+    protected Graph graph = new Graph();
+
+    /**
+     * Incremented each time loaded groups are dropped, to discard the loads
+     * and closures computed concurrently.
+     */
+    protected long generation;
+
+    /**
+     * @param loader the loader for groups not yet in the index
+     * @param timeout the time in milliseconds after which a loaded group is
+     *            loaded again, or 0 to keep it until it is invalidated
+     */
+    public GroupClosureIndex(GroupLoader loader, long timeout) {
+        this(loader, timeout, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param loader the loader for groups not yet in the index
+     * @param timeout the time in milliseconds after which a loaded group is
+     *            loaded again, or 0 to keep it until it is invalidated
+     * @param maxSize the number of group names known by the index above which
+     *            it is cleared
+     */
+    public GroupClosureIndex(GroupLoader loader, long timeout, int maxSize) {
+        this.loader = loader;
+        this.timeout = timeout;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the current graph, replacing it by an empty one first if it
+     * knows too many groups.
+     */
+    protected synchronized Graph getGraph() {
+        if (graph.size >= maxSize) {
+            if (log.isDebugEnabled()) {
+                log.debug("Group index reached " + graph.size
+                        + " groups, clearing it");
+            }
+            generation++;
+            graph = new Graph();
+        }
+        return graph;
+    }
+
+    /**
+     * Returns the existing groups among the given ones along with all their
+     * ancestors, using the names returned by the storage.
+     *
+     * @param groupNames the groups to start from
+     * @param missingGroups a collection to which the names of the given or
+     *            ancestor groups that do not exist are added
+     */
+    public List<String> getAncestorGroups(Collection<String> groupNames,
+            Collection<String> missingGroups) throws ClientException {
+        Graph g = getGraph();
+        Set<String> groups = new LinkedHashSet<String>();
+        BitSet seen = new BitSet();
+        for (String groupName : groupNames) {
+            if (groupName == null) {
+                continue;
+            }
+            for (int id : getClosure(g, getId(g, groupName), true)) {
+                if (seen.get(id)) {
+                    continue;
+                }
+                seen.set(id);
+                Node node = getNode(g, id);
+                if (node.name != null) {
+                    groups.add(node.name);
+                } else if (missingGroups != null) {
+                    missingGroups.add(getKey(g, id));
+                }
+            }
+        }
+        return new ArrayList<String>(groups);
+    }
+
+    /**
+     * Returns the given group along with all its sub-groups, using the names
+     * returned by the storage, or an empty list if the group does not exist.
+     */
+    public List<String> getDescendantGroups(String groupName)
+            throws ClientException {
+        Set<String> groups = new LinkedHashSet<String>();
+        if (groupName == null) {
+            return new ArrayList<String>(groups);
+        }
+        Graph g = getGraph();
+        for (int id : getClosure(g, getId(g, groupName), false)) {
+            Node node = getNode(g, id);
+            if (node.name != null) {
+                groups.add(node.name);
+            }
+        }
+        return new ArrayList<String>(groups);
+    }
+
+    /**
+     * Drops the given group from the index, along with the groups it was
+     * related to, then loads it again so that the groups it is now related to
+     * are dropped too.
+     */
+    public void invalidate(String groupName) {
+        if (groupName == null) {
+            return;
+        }
+        List<Integer> invalidated = new ArrayList<Integer>();
+        Graph g;
+        synchronized (this) {
+            g = graph;
+            for (int id = 0; id < g.size; id++) {
+                Node node = g.nodes[id];
+                if (g.keys[id].equalsIgnoreCase(groupName)
+                        || (node != null && groupName.equalsIgnoreCase(node.name))) {
+                    invalidated.add(Integer.valueOf(id));
+                }
+            }
+            if (invalidated.isEmpty()) {
+                // new group, loading it drops the groups it is related to
+                invalidated.add(Integer.valueOf(getId(g, groupName)));
+            }
+            for (Integer id : invalidated) {
+                Node node = g.nodes[id.intValue()];
+                if (node != null) {
+                    drop(g, node.parents);
+                    drop(g, node.children);
+                }
+                g.nodes[id.intValue()] = null;
+            }
+            clearClosures(g);
+        }
+        try {
+            for (Integer id : invalidated) {
+                getNode(g, id.intValue());
+            }
+        } catch (ClientException e) {
+            log.warn("Failed to reload group " + groupName
+                    + ", clearing the group index: " + e.getMessage());
+            invalidateAll();
+        }
+    }
+
+    /**
+     * Drops all the groups from the index.
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        graph = new Graph();
+    }
+
+    /**
+     * Returns the number of groups currently loaded in the index.
+     */
+    public synchronized int getLoadedCount() {
+        int count = 0;
+        for (int id = 0; id < graph.size; id++) {
+            if (graph.nodes[id] != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of group names currently known by the index, loaded
+     * or not.
+     */
+    public synchronized int getSize() {
+        return graph.size;
+    }
+
+    protected synchronized int getId(Graph g, String groupName) {
+        Integer id = g.ids.get(groupName);
+        if (id != null) {
+            return id.intValue();
+        }
+        if (g.size == g.keys.length) {
+            int capacity = g.size * 2;
+            g.keys = Arrays.copyOf(g.keys, capacity);
+            g.nodes = Arrays.copyOf(g.nodes, capacity);
+            g.ancestors = Arrays.copyOf(g.ancestors, capacity);
+            g.descendants = Arrays.copyOf(g.descendants, capacity);
+        }
+        g.keys[g.size] = groupName;
+        g.ids.put(groupName, Integer.valueOf(g.size));
+        return g.size++;
+    }
+
+    protected synchronized String getKey(Graph g, int id) {
+        return g.keys[id];
+    }
+
+    protected int[] getIds(Graph g, List<String> groupNames) {
+        if (groupNames == null || groupNames.isEmpty()) {
+            return NO_IDS;
+        }
+        int[] res = new int[groupNames.size()];
+        int i = 0;
+        for (String groupName : groupNames) {
+            if (groupName != null) {
+                res[i++] = getId(g, groupName);
+            }
+        }
+        return i == res.length ? res : Arrays.copyOf(res, i);
+    }
+
+    protected boolean isFresh(long loaded) {
+        return timeout <= 0 || System.currentTimeMillis() - loaded < timeout;
+    }
+
+    /**
+     * Returns the loaded group for an id, loading it if needed. The loader is
+     * called outside of the index lock.
+     */
+    protected Node getNode(Graph g, int id) throws ClientException {
+        String key;
+        long gen;
+        synchronized (this) {
+            Node node = g.nodes[id];
+            if (node != null && isFresh(node.loaded)) {
+                return node;
+            }
+            key = g.keys[id];
+            gen = generation;
+        }
+        long loaded = System.currentTimeMillis();
+        NuxeoGroup group = loader.loadGroup(key);
+        synchronized (this) {
+            Node node;
+            if (group == null) {
+                node = new Node(null, NO_IDS, NO_IDS, loaded);
+            } else {
+                node = new Node(group.getName(), getIds(g,
+                        group.getParentGroups()), getIds(g,
+                        group.getMemberGroups()), loaded);
+            }
+            if (gen == generation) {
+                store(g, id, node);
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Stores a loaded group, dropping the related groups that do not agree
+     * with it anymore.
+     */
+    protected void store(Graph g, int id, Node node) {
+        Node previous = g.nodes[id];
+        g.nodes[id] = node;
+        boolean changed = previous != null;
+        if (previous != null) {
+            changed |= reconcile(g, id, node, previous.parents);
+            changed |= reconcile(g, id, node, previous.children);
+        }
+        changed |= reconcile(g, id, node, node.parents);
+        changed |= reconcile(g, id, node, node.children);
+        if (changed) {
+            clearClosures(g);
+        }
+    }
+
+    protected boolean reconcile(Graph g, int id, Node node, int[] related) {
+        boolean dropped = false;
+        for (int other : related) {
+            Node otherNode = g.nodes[other];
+            if (otherNode == null || other == id) {
+                continue;
+            }
+            boolean parent = contains(node.parents, other) == contains(
+                    otherNode.children, id);
+            boolean child = contains(node.children, other) == contains(
+                    otherNode.parents, id);
+            if (!parent || !child) {
+                g.nodes[other] = null;
+                dropped = true;
+            }
+        }
+        return dropped;
+    }
+
+    protected static boolean contains(int[] array, int value) {
+        for (int i : array) {
+            if (i == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected void drop(Graph g, int[] related) {
+        for (int other : related) {
+            g.nodes[other] = null;
+        }
+    }
+
+    protected void clearClosures(Graph g) {
+        generation++;
+        Arrays.fill(g.ancestors, null);
+        Arrays.fill(g.descendants, null);
+    }
+
+    /**
+     * Returns the ancestor or descendant closure of a group, including the
+     * group itself. Cycles are only followed once.
+     */
+    protected int[] getClosure(Graph g, int id, boolean up)
+            throws ClientException {
+        long gen;
+        synchronized (this) {
+            Closure closure = up ? g.ancestors[id] : g.descendants[id];
+            if (closure != null && isFresh(closure.loaded)) {
+                return closure.ids;
+            }
+            gen = generation;
+        }
+        BitSet visited = new BitSet();
+        int[] queue = new int[16];
+        int count = 0;
+        long loaded = Long.MAX_VALUE;
+        visited.set(id);
+        queue[count++] = id;
+        for (int i = 0; i < count; i++) {
+            Node node = getNode(g, queue[i]);
+            loaded = Math.min(loaded, node.loaded);
+            for (int next : up ? node.parents : node.children) {
+                if (visited.get(next)) {
+                    continue;
+                }
+                visited.set(next);
+                if (count == queue.length) {
+                    queue = Arrays.copyOf(queue, count * 2);
+                }
+                queue[count++] = next;
+            }
+        }
+        int[] res = Arrays.copyOf(queue, count);
+        synchronized (this) {
+            if (gen == generation) {
+                if (up) {
+                    g.ancestors[id] = new Closure(res, loaded);
+                } else {
+                    g.descendants[id] = new Closure(res, loaded);
+                }
+            }
+        }
+        return res;
+    }
+
+}
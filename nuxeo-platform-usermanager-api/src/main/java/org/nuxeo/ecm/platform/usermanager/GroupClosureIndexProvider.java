@@ -0,0 +1,34 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+/**
+ * Implemented by the {@link UserManager}s keeping an index of the group
+ * hierarchy, used by {@link NuxeoPrincipalImpl} to compute the groups of a
+ * principal. User managers not implementing it resolve the groups one by one.
+ *
+ * @since 5.8
+ */
+public interface GroupClosureIndexProvider {
+
+    /**
+     * Returns the index of the group hierarchy, or {@code null} if groups are
+     * not indexed.
+     */
+    GroupClosureIndex getGroupClosureIndex();
+
+}
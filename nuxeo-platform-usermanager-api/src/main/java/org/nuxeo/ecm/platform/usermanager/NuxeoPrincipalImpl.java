@@ -20,7 +20,9 @@
 package org.nuxeo.ecm.platform.usermanager;
 
 import java.security.Principal;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -39,6 +41,7 @@ import org.nuxeo.ecm.core.api.impl.DataModelImpl;
 import org.nuxeo.ecm.core.api.impl.DocumentModelImpl;
 import org.nuxeo.ecm.core.api.model.PropertyException;
 import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.runtime.api.Framework;
 
@@ -318,13 +321,80 @@ public class NuxeoPrincipalImpl implements NuxeoPrincipal {
         } catch (Exception e) {
             throw new ClientException(e);
         }
+        List<String> resultingGroups = null;
+        GroupClosureIndex index = null;
+        if (userManager instanceof GroupClosureIndexProvider) {
+            index = ((GroupClosureIndexProvider) userManager).getGroupClosureIndex();
+        }
+        if (index != null) {
+            try {
+                resultingGroups = computeAllGroups(index);
+            } catch (DirectoryException de) {
+                if (virtualGroups.isEmpty()) {
+                    throw de;
+                }
+                // resolve groups one by one to tolerate virtual groups
+                log.debug("Failed to get groups from index for user "
+                        + getName() + ": " + de.getMessage());
+            }
+        }
+        if (resultingGroups == null) {
+            resultingGroups = computeAllGroups(userManager);
+        }
+
+        allGroups = new ArrayList<String>(resultingGroups);
+
+        // set isAdministrator boolean according to groups declared on user
+        // manager
+        if (!isAdministrator() && userManager != null) {
+            List<String> adminGroups = userManager.getAdministratorsGroups();
+            for (String adminGroup : adminGroups) {
+                if (allGroups.contains(adminGroup)) {
+                    isAdministrator = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes all the groups of the principal from the group index.
+     *
+     * @since 5.8
+     */
+    protected List<String> computeAllGroups(GroupClosureIndex index)
+            throws ClientException {
+        List<String> missingGroups = new ArrayList<String>();
+        List<String> resultingGroups = index.getAncestorGroups(getGroups(),
+                missingGroups);
+        for (String groupName : missingGroups) {
+            if (virtualGroups.contains(groupName)) {
+                // just add the virtual group as is
+                resultingGroups.add(groupName);
+            } else {
+                // XXX this should only happens in case of
+                // inconsistency in DB
+                log.error("User " + getName() + " references the "
+                        + groupName + " group that does not exists");
+            }
+        }
+        return resultingGroups;
+    }
+
+    /**
+     * Computes all the groups of the principal by looking up each group.
+     *
+     * @since 5.8
+     */
+    protected List<String> computeAllGroups(UserManager userManager)
+            throws ClientException {
         Set<String> checkedGroups = new HashSet<String>();
-        List<String> groupsToProcess = new ArrayList<String>();
+        Deque<String> groupsToProcess = new ArrayDeque<String>();
         List<String> resultingGroups = new ArrayList<String>();
-        groupsToProcess.addAll(getGroups());
+        addGroupsToProcess(groupsToProcess, getGroups());
 
         while (!groupsToProcess.isEmpty()) {
-            String groupName = groupsToProcess.remove(0);
+            String groupName = groupsToProcess.poll();
             if (!checkedGroups.contains(groupName)) {
                 checkedGroups.add(groupName);
                 NuxeoGroup nxGroup = null;
@@ -356,7 +426,8 @@ public class NuxeoPrincipalImpl implements NuxeoPrincipal {
                                 + groupName + " group that does not exists");
                     }
                 } else {
-                    groupsToProcess.addAll(nxGroup.getParentGroups());
+                    addGroupsToProcess(groupsToProcess,
+                            nxGroup.getParentGroups());
                     // fetch the group name from the returned entry in case
                     // it does not have the same case than the actual entry in
                     // directory (for case insensitive directories)
@@ -367,18 +438,15 @@ public class NuxeoPrincipalImpl implements NuxeoPrincipal {
                 }
             }
         }
+        return resultingGroups;
+    }
 
-        allGroups = new ArrayList<String>(resultingGroups);
-
-        // set isAdministrator boolean according to groups declared on user
-        // manager
-        if (!isAdministrator() && userManager != null) {
-            List<String> adminGroups = userManager.getAdministratorsGroups();
-            for (String adminGroup : adminGroups) {
-                if (allGroups.contains(adminGroup)) {
-                    isAdministrator = true;
-                    break;
-                }
+    protected static void addGroupsToProcess(Deque<String> groupsToProcess,
+            List<String> groups) {
+        for (String group : groups) {
+            // the queue does not accept null elements
+            if (group != null) {
+                groupsToProcess.add(group);
             }
         }
     }
@@ -446,4 +514,43 @@ public class NuxeoPrincipalImpl implements NuxeoPrincipal {
         origUserName = originatingUser;
     }
 
+    /**
+     * Returns a copy of a principal that can be modified without affecting
+     * the original, or the principal itself if it is not a plain
+     * {@link NuxeoPrincipalImpl}.
+     *
+     * @since 5.8
+     */
+    public static NuxeoPrincipal copy(NuxeoPrincipal principal)
+            throws ClientException {
+        if (principal == null || principal.getClass() != NuxeoPrincipalImpl.class) {
+            return principal;
+        }
+        NuxeoPrincipalImpl original = (NuxeoPrincipalImpl) principal;
+        NuxeoPrincipalImpl copy = new NuxeoPrincipalImpl(original.getName(),
+                original.isAnonymous(), original.isAdministrator, false);
+        copy.setConfig(original.getConfig());
+        DocumentModel model = original.getModel();
+        DocumentModel modelCopy;
+        try {
+            modelCopy = model.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new ClientException(e);
+        }
+        // DocumentModelImpl#clone does not copy context data, hence
+        // propagate the read-only flag manually
+        if (BaseSession.isReadOnlyEntry(model)) {
+            BaseSession.setReadOnlyEntry(modelCopy);
+        }
+        copy.setModel(modelCopy, false);
+        copy.virtualGroups = new ArrayList<String>(original.virtualGroups);
+        if (original.allGroups != null) {
+            copy.allGroups = new ArrayList<String>(original.allGroups);
+        }
+        copy.roles.addAll(original.roles);
+        copy.principalId = original.principalId;
+        copy.origUserName = original.origUserName;
+        return copy;
+    }
+
 }
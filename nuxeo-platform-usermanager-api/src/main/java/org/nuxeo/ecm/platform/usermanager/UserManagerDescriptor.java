@@ -130,6 +130,24 @@ public class UserManagerDescriptor implements Serializable {
     @XNode("users/anonymousUser")
     public VirtualUserDescriptor anonymousUser;
 
+    /**
+     * Maximum number of principals kept in cache, 0 (the default) to disable
+     * the cache.
+     *
+     * @since 5.8
+     */
+    @XNode("users/principalCache@maxSize")
+    public Integer principalCacheMaxSize;
+
+    /**
+     * Time in seconds a principal is kept in cache, 0 to keep it until the
+     * user or a group changes.
+     *
+     * @since 5.8
+     */
+    @XNode("users/principalCache@timeout")
+    public Integer principalCacheTimeout;
+
     @XNodeMap(value = "users/virtualUser", key = "@id",
             type = HashMap.class, componentType = VirtualUserDescriptor.class)
     public Map<String, VirtualUserDescriptor> virtualUsers;
@@ -152,6 +170,32 @@ public class UserManagerDescriptor implements Serializable {
     @XNode("groups/listingMode")
     public String groupListingMode;
 
+    /**
+     * Enables the index of the group hierarchy, disabled by default.
+     *
+     * @since 5.8
+     */
+    @XNode("groups/closureIndex@enabled")
+    public Boolean groupClosureIndexEnabled;
+
+    /**
+     * Time in seconds after which an indexed group is loaded again, 0 to keep
+     * it until it changes.
+     *
+     * @since 5.8
+     */
+    @XNode("groups/closureIndex@timeout")
+    public Integer groupClosureIndexTimeout;
+
+    /**
+     * Number of group names known by the group index above which it is
+     * cleared.
+     *
+     * @since 5.8
+     */
+    @XNode("groups/closureIndex@maxSize")
+    public Integer groupClosureIndexMaxSize;
+
     public boolean groupSearchFieldsPresent = false;
 
     @XNode("groups/searchFields")
@@ -181,6 +225,24 @@ public class UserManagerDescriptor implements Serializable {
         }
     }
 
+    /**
+     * Maximum number of ACE principals whose users are kept in cache by
+     * {@link UserManager#getUsersForPermission}, 0 to disable the cache.
+     *
+     * @since 5.8
+     */
+    @XNode("permissionUsersCache@maxSize")
+    public Integer permissionUsersCacheMaxSize;
+
+    /**
+     * Time in seconds the users of an ACE principal are kept in cache, 0 to
+     * keep them until a user or group changes.
+     *
+     * @since 5.8
+     */
+    @XNode("permissionUsersCache@timeout")
+    public Integer permissionUsersCacheTimeout;
+
     @XNode("digestAuthDirectory")
     public String digestAuthDirectory;
 
@@ -245,6 +307,12 @@ public class UserManagerDescriptor implements Serializable {
                 userSearchFields = other.userSearchFields;
             }
         }
+        if (other.principalCacheMaxSize != null) {
+            principalCacheMaxSize = other.principalCacheMaxSize;
+        }
+        if (other.principalCacheTimeout != null) {
+            principalCacheTimeout = other.principalCacheTimeout;
+        }
         if (other.userPasswordPattern != null) {
             userPasswordPattern = other.userPasswordPattern;
         }
@@ -263,6 +331,15 @@ public class UserManagerDescriptor implements Serializable {
         if (other.groupParentGroupsField != null) {
             groupParentGroupsField = other.groupParentGroupsField;
         }
+        if (other.groupClosureIndexEnabled != null) {
+            groupClosureIndexEnabled = other.groupClosureIndexEnabled;
+        }
+        if (other.groupClosureIndexTimeout != null) {
+            groupClosureIndexTimeout = other.groupClosureIndexTimeout;
+        }
+        if (other.groupClosureIndexMaxSize != null) {
+            groupClosureIndexMaxSize = other.groupClosureIndexMaxSize;
+        }
         if (other.groupSearchFieldsPresent) {
             if (other.groupSearchFieldsAppend) {
                 groupSearchFields.putAll(other.groupSearchFields);
@@ -291,6 +368,12 @@ public class UserManagerDescriptor implements Serializable {
                 }
             }
         }
+        if (other.permissionUsersCacheMaxSize != null) {
+            permissionUsersCacheMaxSize = other.permissionUsersCacheMaxSize;
+        }
+        if (other.permissionUsersCacheTimeout != null) {
+            permissionUsersCacheTimeout = other.permissionUsersCacheTimeout;
+        }
         if (other.digestAuthDirectory != null) {
             digestAuthDirectory = other.digestAuthDirectory;
         }
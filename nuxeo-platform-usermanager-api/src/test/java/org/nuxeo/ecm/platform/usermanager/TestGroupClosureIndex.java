@@ -0,0 +1,222 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.NuxeoGroup;
+import org.nuxeo.ecm.core.api.impl.NuxeoGroupImpl;
+
+public class TestGroupClosureIndex {
+
+    protected final Map<String, NuxeoGroup> groups = new HashMap<String, NuxeoGroup>();
+
+    protected int loads;
+
+    protected GroupClosureIndex index;
+
+    @Before
+    public void setUp() {
+        index = new GroupClosureIndex(new GroupClosureIndex.GroupLoader() {
+            @Override
+            public NuxeoGroup loadGroup(String groupName)
+                    throws ClientException {
+                loads++;
+                return groups.get(groupName);
+            }
+        }, 0);
+    }
+
+    protected NuxeoGroup getOrCreateGroup(String name) {
+        NuxeoGroup group = groups.get(name);
+        if (group == null) {
+            group = new NuxeoGroupImpl(name);
+            group.setParentGroups(new ArrayList<String>());
+            group.setMemberGroups(new ArrayList<String>());
+            groups.put(name, group);
+        }
+        return group;
+    }
+
+    protected void addSubGroup(String parent, String child) {
+        getOrCreateGroup(parent).getMemberGroups().add(child);
+        getOrCreateGroup(child).getParentGroups().add(parent);
+    }
+
+    protected void removeSubGroup(String parent, String child) {
+        getOrCreateGroup(parent).getMemberGroups().remove(child);
+        getOrCreateGroup(child).getParentGroups().remove(parent);
+    }
+
+    protected static void assertGroups(List<String> expected,
+            List<String> actual) {
+        assertEquals(new HashSet<String>(expected), new HashSet<String>(
+                actual));
+        assertEquals(expected.size(), actual.size());
+    }
+
+    protected List<String> getAncestors(String... groupNames)
+            throws ClientException {
+        return index.getAncestorGroups(Arrays.asList(groupNames), null);
+    }
+
+    @Test
+    public void testClosures() throws Exception {
+        addSubGroup("b", "a");
+        addSubGroup("c", "b");
+        addSubGroup("d", "b");
+        addSubGroup("e", "d");
+
+        assertGroups(Arrays.asList("a", "b", "c", "d", "e"), getAncestors("a"));
+        assertGroups(Arrays.asList("d", "e"), getAncestors("d"));
+        assertGroups(Arrays.asList("e", "d", "b", "a"),
+                index.getDescendantGroups("e"));
+        assertEquals(5, loads);
+
+        // everything comes from the index now
+        getAncestors("a", "c");
+        index.getDescendantGroups("c");
+        assertEquals(5, loads);
+        assertEquals(5, index.getLoadedCount());
+    }
+
+    @Test
+    public void testCycles() throws Exception {
+        addSubGroup("b", "a");
+        addSubGroup("c", "b");
+        addSubGroup("a", "c");
+
+        assertGroups(Arrays.asList("a", "b", "c"), getAncestors("a"));
+        assertGroups(Arrays.asList("a", "b", "c"),
+                index.getDescendantGroups("b"));
+        assertEquals(3, loads);
+    }
+
+    @Test
+    public void testMissingGroups() throws Exception {
+        addSubGroup("b", "a");
+        getOrCreateGroup("a").getParentGroups().add("unknown");
+        List<String> missing = new ArrayList<String>();
+        List<String> ancestors = index.getAncestorGroups(
+                Arrays.asList("a", "virtual"), missing);
+        assertGroups(Arrays.asList("a", "b"), ancestors);
+        assertGroups(Arrays.asList("unknown", "virtual"), missing);
+        assertEquals(Collections.emptyList(),
+                index.getDescendantGroups("virtual"));
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        addSubGroup("b", "a");
+        addSubGroup("c", "b");
+        assertGroups(Arrays.asList("a", "b", "c"), getAncestors("a"));
+
+        // new parent group
+        addSubGroup("d", "c");
+        index.invalidate("d");
+        assertGroups(Arrays.asList("a", "b", "c", "d"), getAncestors("a"));
+        assertGroups(Arrays.asList("d", "c", "b", "a"),
+                index.getDescendantGroups("d"));
+
+        // sub-group removed from its parent
+        removeSubGroup("b", "a");
+        index.invalidate("b");
+        assertGroups(Arrays.asList("a"), getAncestors("a"));
+        assertGroups(Arrays.asList("d", "c", "b"),
+                index.getDescendantGroups("d"));
+
+        // sub-group added to an existing group
+        addSubGroup("d", "a");
+        index.invalidate("d");
+        assertGroups(Arrays.asList("a", "d"), getAncestors("a"));
+
+        // deleted group
+        removeSubGroup("d", "a");
+        removeSubGroup("d", "c");
+        groups.remove("d");
+        index.invalidate("d");
+        assertGroups(Arrays.asList("a"), getAncestors("a"));
+        assertGroups(Arrays.asList("b", "c"), getAncestors("b"));
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        index = new GroupClosureIndex(new GroupClosureIndex.GroupLoader() {
+            @Override
+            public NuxeoGroup loadGroup(String groupName)
+                    throws ClientException {
+                loads++;
+                return groups.get(groupName);
+            }
+        }, 0, 4);
+        addSubGroup("b", "a");
+        addSubGroup("c", "b");
+        addSubGroup("d", "c");
+        assertGroups(Arrays.asList("a", "b", "c", "d"), getAncestors("a"));
+        assertEquals(4, index.getSize());
+        assertEquals(4, loads);
+
+        // the index is cleared before being used again
+        assertGroups(Arrays.asList("c", "d"), getAncestors("c"));
+        // c, d and the member group b
+        assertEquals(3, index.getSize());
+        assertEquals(6, loads);
+        assertGroups(Arrays.asList("c", "d"), getAncestors("c"));
+        assertEquals(6, loads);
+    }
+
+    @Test
+    public void testIncrementalReload() throws Exception {
+        // a deep hierarchy with a wide bottom level
+        int depth = 50;
+        int width = 20;
+        for (int i = 1; i < depth; i++) {
+            addSubGroup("level" + i, "level" + (i - 1));
+        }
+        for (int i = 0; i < width; i++) {
+            addSubGroup("level0", "leaf" + i);
+        }
+        int nbGroups = depth + width;
+        for (int i = 0; i < width; i++) {
+            assertEquals(depth + 1, getAncestors("leaf" + i).size());
+        }
+        assertEquals(nbGroups, loads);
+
+        // moving a group only reloads the groups around it
+        loads = 0;
+        removeSubGroup("level20", "level19");
+        addSubGroup("level40", "level19");
+        index.invalidate("level19");
+        for (int i = 0; i < width; i++) {
+            assertEquals(depth - 19, getAncestors("leaf" + i).size());
+        }
+        assertTrue("Too many groups loaded: " + loads, loads <= 4);
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.computedgroups;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.ecm.directory.BoundedExpiringMap;
+
+/**
+ * Bounded cache of the groups computed by a {@link GroupComputer}, keyed by
+ * user name.
+ * <p>
+ * Each invalidation starts a new generation: groups computed before it are
+ * not stored, so that a computation racing with a change cannot bring back
+ * outdated groups. {@link #markStale()} starts a new generation but keeps the
+ * cached groups, which are then served until they are computed again.
+ *
+ * @since 5.8
+ */
+public class ComputedGroupsCache {
+
+    protected final BoundedExpiringMap<String, CachedGroups> entries;
+
+    protected long generation;
+
+    /**
+     * @param maxSize the maximum number of users kept in cache, the least
+     *            recently used ones get evicted
+     * @param timeout the time in seconds groups are kept in cache, 0 to keep
+     *            them till invalidation
+     */
+    public ComputedGroupsCache(int maxSize, int timeout) {
+        entries = new BoundedExpiringMap<String, CachedGroups>(maxSize,
+                timeout, TimeUnit.SECONDS) {
+            @Override
+            protected long nanoTime() {
+                return ComputedGroupsCache.this.nanoTime();
+            }
+        };
+    }
+
+    /**
+     * Returns the current time in nanoseconds used for expiration,
+     * {@link System#nanoTime()} by default.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Returns a copy of the cached groups of the user, or {@code null} if
+     * they are not cached or expired.
+     */
+    public synchronized List<String> get(String username) {
+        CachedGroups cached = entries.get(username);
+        if (cached == null) {
+            return null;
+        }
+        return new ArrayList<String>(cached.groups);
+    }
+
+    /**
+     * Returns {@code true} if the groups of the user are cached and were
+     * computed in the current generation.
+     */
+    public synchronized boolean isFresh(String username) {
+        CachedGroups cached = entries.get(username);
+        return cached != null && cached.generation == generation;
+    }
+
+    /**
+     * Returns the current generation, to be passed to
+     * {@link #put(String, List, long)} once the groups are computed.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Stores the groups computed for a user, unless the cache was invalidated
+     * since the given generation.
+     *
+     * @return {@code true} if the groups were stored
+     */
+    public synchronized boolean put(String username, List<String> groups,
+            long generation) {
+        if (generation != this.generation) {
+            return false;
+        }
+        entries.put(username, new CachedGroups(new ArrayList<String>(groups),
+                generation));
+        return true;
+    }
+
+    /**
+     * Removes the groups of the given user.
+     */
+    public synchronized void invalidate(String username) {
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().equalsIgnoreCase(username)) {
+                it.remove();
+            }
+        }
+        generation++;
+    }
+
+    /**
+     * Removes the groups of all users.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        generation++;
+    }
+
+    /**
+     * Keeps the cached groups but makes them stale, so that they are served
+     * until they are computed again.
+     */
+    public synchronized void markStale() {
+        generation++;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    protected static class CachedGroups {
+
+        protected final List<String> groups;
+
+        protected final long generation;
+
+        protected CachedGroups(List<String> groups, long generation) {
+            this.groups = groups;
+            this.generation = generation;
+        }
+    }
+
+}
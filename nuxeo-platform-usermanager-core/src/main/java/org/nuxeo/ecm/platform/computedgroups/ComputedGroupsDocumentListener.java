@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.computedgroups;
+
+import static org.nuxeo.ecm.core.api.LifeCycleConstants.TRANSITION_EVENT;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.ABOUT_TO_REMOVE;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.BEFORE_DOC_UPDATE;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_CREATED;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_CREATED_BY_COPY;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Core event listener invalidating the cached groups of the
+ * {@link DocumentGroupComputer}s when a document they depend on is created,
+ * modified, removed or follows a life cycle transition.
+ *
+ * @since 5.8
+ */
+public class ComputedGroupsDocumentListener implements EventListener {
+
+    @Override
+    public void handleEvent(Event event) throws ClientException {
+        EventContext ctx = event.getContext();
+        if (!(ctx instanceof DocumentEventContext)) {
+            return;
+        }
+        String eventId = event.getName();
+        boolean modification = BEFORE_DOC_UPDATE.equals(eventId);
+        if (!modification && !DOCUMENT_CREATED.equals(eventId)
+                && !DOCUMENT_CREATED_BY_COPY.equals(eventId)
+                && !ABOUT_TO_REMOVE.equals(eventId)
+                && !TRANSITION_EVENT.equals(eventId)) {
+            return;
+        }
+        ComputedGroupsService service = Framework.getLocalService(ComputedGroupsService.class);
+        if (!(service instanceof ComputedGroupsServiceImpl)) {
+            return;
+        }
+        DocumentModel doc = ((DocumentEventContext) ctx).getSourceDocument();
+        if (doc != null) {
+            ((ComputedGroupsServiceImpl) service).invalidateComputedGroups(
+                    doc, modification);
+        }
+    }
+
+}
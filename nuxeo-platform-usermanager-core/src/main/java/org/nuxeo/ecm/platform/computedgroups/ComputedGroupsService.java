@@ -81,4 +81,15 @@ public interface ComputedGroupsService {
     List<String> searchComputedGroups(Map<String, Serializable> filter,
             Set<String> fulltext);
 
+    /**
+     * Drops the groups cached for the given computer, so that they are
+     * computed again.
+     *
+     * @param computerName the name of the computer
+     * @param username the user whose groups changed, or {@code null} for all
+     *            users
+     * @since 5.8
+     */
+    void invalidateComputedGroups(String computerName, String username);
+
 }
@@ -20,21 +20,40 @@ package org.nuxeo.ecm.platform.computedgroups;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.NuxeoGroup;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
 import org.nuxeo.ecm.platform.usermanager.NuxeoPrincipalImpl;
+import org.nuxeo.ecm.platform.usermanager.UserManager;
+import org.nuxeo.ecm.platform.usermanager.UserManagerImpl;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.ComponentInstance;
 import org.nuxeo.runtime.model.DefaultComponent;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
 /**
  * {@link ComputedGroupsService} implementation
@@ -57,6 +76,23 @@ public class ComputedGroupsServiceImpl extends DefaultComponent implements
 
     protected static Log log = LogFactory.getLog(ComputedGroupsServiceImpl.class);
 
+    /**
+     * Caches of the groups computed for each user, by computer name, for the
+     * computers having their cache enabled.
+     *
+     * @since 5.8
+     */
+    protected final Map<String, ComputedGroupsCache> caches = new ConcurrentHashMap<String, ComputedGroupsCache>();
+
+    // runs the precomputations, only started with the application
+    protected ScheduledExecutorService precomputeScheduler;
+
+    // computers whose precomputation is scheduled but not started yet
+    protected final Set<String> pendingPrecomputes = Collections.synchronizedSet(new HashSet<String>());
+
+    // computers to invalidate again once the current transaction commits
+    protected final Map<Transaction, Set<String>> txInvalidations = new ConcurrentHashMap<Transaction, Set<String>>();
+
     @Override
     public void activate(ComponentContext context) throws Exception {
         super.activate(context);
@@ -77,7 +113,9 @@ public class ComputedGroupsServiceImpl extends DefaultComponent implements
                     log.debug("Add " + desc.getName() + " from component "
                             + contributor.getName());
                     computers.put(desc.getName(), desc);
+                    setupCache(desc);
                 } else {
+                    caches.remove(desc.getName());
                     if (computers.containsKey(desc.getName())) {
                         log.debug("Remove " + desc.getName()
                                 + " from component " + contributor.getName());
@@ -110,13 +148,310 @@ public class ComputedGroupsServiceImpl extends DefaultComponent implements
                 + contributor.getName());
     }
 
+    protected void setupCache(GroupComputerDescriptor desc) {
+        if (!desc.isCacheEnabled()) {
+            caches.remove(desc.getName());
+            return;
+        }
+        // precomputed groups are refreshed instead of expiring
+        int timeout = desc.isPrecompute() ? 0 : desc.getCacheTimeout();
+        caches.put(desc.getName(),
+                new ComputedGroupsCache(desc.getCacheMaxSize(), timeout));
+    }
+
+    @Override
+    public void applicationStarted(ComponentContext context) throws Exception {
+        if (Framework.isTestModeSet()) {
+            // precomputations are run explicitly when testing
+            return;
+        }
+        for (String computerName : computerNames) {
+            GroupComputerDescriptor desc = computers.get(computerName);
+            if (desc != null && desc.isPrecompute()
+                    && caches.containsKey(computerName)) {
+                startPrecompute(computerName, desc.getCacheTimeout());
+            }
+        }
+    }
+
+    protected synchronized void startPrecompute(final String computerName,
+            int interval) {
+        if (precomputeScheduler == null) {
+            precomputeScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r,
+                            "Nuxeo-ComputedGroups-Precompute");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        schedulePrecompute(computerName, 0);
+        if (interval > 0) {
+            precomputeScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    ComputedGroupsCache cache = caches.get(computerName);
+                    if (cache != null) {
+                        cache.markStale();
+                        runPrecompute(computerName);
+                    }
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Schedules a precomputation of the groups of the given computer after the
+     * given delay in seconds, unless one is already scheduled and not started
+     * yet, in which case it will handle this request too.
+     */
+    protected synchronized void schedulePrecompute(final String computerName,
+            int delay) {
+        if (precomputeScheduler == null
+                || !pendingPrecomputes.add(computerName)) {
+            return;
+        }
+        precomputeScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                pendingPrecomputes.remove(computerName);
+                runPrecompute(computerName);
+            }
+        }, delay, TimeUnit.SECONDS);
+    }
+
+    protected void runPrecompute(String computerName) {
+        try {
+            long t0 = System.currentTimeMillis();
+            int count = precompute(computerName);
+            log.debug("Computed the groups of " + count + " users for "
+                    + computerName + " in "
+                    + (System.currentTimeMillis() - t0) + " ms");
+        } catch (Exception e) {
+            log.error("Error while precomputing the groups of computer "
+                    + computerName, e);
+        }
+    }
+
+    /**
+     * Computes and caches the groups of all the users for the given computer,
+     * if its cache is enabled. The users whose groups were already computed
+     * since the last invalidation are skipped.
+     *
+     * @return the number of users whose groups were computed
+     * @since 5.8
+     */
+    public int precompute(String computerName) throws ClientException {
+        GroupComputerDescriptor desc = computers.get(computerName);
+        ComputedGroupsCache cache = caches.get(computerName);
+        if (desc == null || cache == null) {
+            return 0;
+        }
+        UserManager userManager = Framework.getLocalService(UserManager.class);
+        GroupComputer computer = desc.getComputer();
+        int count = 0;
+        Set<String> changed = new HashSet<String>();
+        for (String userId : userManager.getUserIds()) {
+            if (cache.isFresh(userId)) {
+                continue;
+            }
+            // building a principal not cached yet computes its groups
+            NuxeoPrincipal principal = userManager.getPrincipal(userId);
+            if (!(principal instanceof NuxeoPrincipalImpl)
+                    || cache.isFresh(principal.getName())) {
+                continue;
+            }
+            long generation = cache.getGeneration();
+            List<String> previous = cache.get(principal.getName());
+            List<String> groups;
+            try {
+                groups = computer.getGroupsForUser((NuxeoPrincipalImpl) principal);
+            } catch (ClientException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ClientException(e);
+            }
+            if (groups != null
+                    && cache.put(principal.getName(), groups, generation)) {
+                count++;
+                if (previous == null
+                        || !new HashSet<String>(previous).equals(
+                                new HashSet<String>(groups))) {
+                    changed.add(principal.getName());
+                }
+            }
+        }
+        // only the principals built from groups that changed are outdated
+        invalidatePrincipals(changed);
+        return count;
+    }
+
+    /**
+     * Returns the groups of the user computed by the given computer, from the
+     * cache if enabled.
+     *
+     * @since 5.8
+     */
+    protected List<String> getGroupsForUser(String computerName,
+            NuxeoPrincipalImpl nuxeoPrincipal) throws Exception {
+        GroupComputer computer = computers.get(computerName).getComputer();
+        ComputedGroupsCache cache = caches.get(computerName);
+        if (cache == null) {
+            return computer.getGroupsForUser(nuxeoPrincipal);
+        }
+        String username = nuxeoPrincipal.getName();
+        List<String> groups = cache.get(username);
+        if (groups == null) {
+            long generation = cache.getGeneration();
+            groups = computer.getGroupsForUser(nuxeoPrincipal);
+            if (groups != null) {
+                cache.put(username, groups, generation);
+            }
+        }
+        return groups;
+    }
+
+    @Override
+    public void invalidateComputedGroups(String computerName, String username) {
+        ComputedGroupsCache cache = caches.get(computerName);
+        if (cache == null) {
+            return;
+        }
+        GroupComputerDescriptor desc = computers.get(computerName);
+        if (username == null && desc != null && desc.isPrecompute()
+                && precomputeScheduler != null) {
+            // keep serving the current groups until they are computed again
+            cache.markStale();
+            schedulePrecompute(computerName, desc.getPrecomputeDelay());
+            return;
+        }
+        if (username == null) {
+            cache.invalidateAll();
+        } else {
+            cache.invalidate(username);
+        }
+        invalidatePrincipals(username);
+    }
+
+    /**
+     * Invalidates the cached groups of the {@link DocumentGroupComputer}s
+     * affected by the change of the given document.
+     * <p>
+     * As the change is not visible to other sessions before the current
+     * transaction commits, the groups may be computed again from the old
+     * state in the meantime, so they are invalidated again after the commit.
+     *
+     * @param modification {@code true} if the document is being modified,
+     *            {@code false} if it is created or removed
+     * @since 5.8
+     */
+    public void invalidateComputedGroups(DocumentModel doc,
+            boolean modification) throws ClientException {
+        for (String computerName : caches.keySet()) {
+            GroupComputerDescriptor desc = computers.get(computerName);
+            if (desc == null) {
+                continue;
+            }
+            GroupComputer computer = desc.getComputer();
+            if (computer instanceof DocumentGroupComputer
+                    && ((DocumentGroupComputer) computer).isAffectedBy(doc,
+                            modification)) {
+                log.debug("Invalidating the groups of " + computerName
+                        + " after a change of document " + doc.getId());
+                invalidateComputedGroups(computerName, null);
+                invalidateAfterCommit(computerName);
+            }
+        }
+    }
+
+    /**
+     * Invalidates all the cached groups of the given computer again once the
+     * current transaction commits, if any.
+     *
+     * @since 5.8
+     */
+    protected void invalidateAfterCommit(String computerName) {
+        if (!TransactionHelper.isTransactionActive()) {
+            return;
+        }
+        final Transaction transaction;
+        try {
+            transaction = TransactionHelper.lookupTransactionManager().getTransaction();
+        } catch (NamingException | SystemException e) {
+            log.error("Cannot get current transaction, computed groups "
+                    + "will not be invalidated after commit", e);
+            return;
+        }
+        if (transaction == null) {
+            return;
+        }
+        Set<String> computerNames = txInvalidations.get(transaction);
+        if (computerNames == null) {
+            // a transaction is only used by one thread at a time
+            computerNames = new HashSet<String>();
+            try {
+                transaction.registerSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() {
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        Set<String> names = txInvalidations.remove(transaction);
+                        if (names == null
+                                || status != Status.STATUS_COMMITTED) {
+                            return;
+                        }
+                        for (String name : names) {
+                            invalidateComputedGroups(name, null);
+                        }
+                    }
+                });
+            } catch (RollbackException | SystemException e) {
+                log.error("Cannot register transaction synchronization, "
+                        + "computed groups will not be invalidated after "
+                        + "commit", e);
+                return;
+            }
+            txInvalidations.put(transaction, computerNames);
+        }
+        computerNames.add(computerName);
+    }
+
+    /**
+     * Invalidates the cached groups of the given user for all computers.
+     *
+     * @since 5.8
+     */
+    public void invalidateComputedGroups(String username) {
+        for (String computerName : caches.keySet()) {
+            invalidateComputedGroups(computerName, username);
+        }
+    }
+
+    protected void invalidatePrincipals(String username) {
+        UserManager userManager = Framework.getLocalService(UserManager.class);
+        if (userManager instanceof UserManagerImpl) {
+            ((UserManagerImpl) userManager).invalidatePrincipals(username);
+        }
+    }
+
+    protected void invalidatePrincipals(Collection<String> usernames) {
+        UserManager userManager = Framework.getLocalService(UserManager.class);
+        if (!usernames.isEmpty() && userManager instanceof UserManagerImpl) {
+            ((UserManagerImpl) userManager).invalidatePrincipals(usernames);
+        }
+    }
+
     @Override
     public List<String> computeGroupsForUser(NuxeoPrincipalImpl nuxeoPrincipal) {
 
         List<String> userGroups = new ArrayList<String>();
         try {
             for (String computerName : computerNames) {
-                userGroups.addAll(computers.get(computerName).getComputer().getGroupsForUser(
+                userGroups.addAll(getGroupsForUser(computerName,
                         nuxeoPrincipal));
             }
         } catch (Exception e) {
@@ -280,6 +615,13 @@ public class ComputedGroupsServiceImpl extends DefaultComponent implements
     @Override
     public void deactivate(ComponentContext context) throws Exception {
         super.deactivate(context);
-
+        synchronized (this) {
+            if (precomputeScheduler != null) {
+                precomputeScheduler.shutdownNow();
+                precomputeScheduler = null;
+            }
+        }
+        pendingPrecomputes.clear();
+        caches.clear();
     }
 }
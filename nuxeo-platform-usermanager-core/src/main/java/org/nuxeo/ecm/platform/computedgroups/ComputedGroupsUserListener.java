@@ -0,0 +1,49 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.computedgroups;
+
+import org.nuxeo.ecm.platform.usermanager.UserManagerImpl;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.services.event.Event;
+import org.nuxeo.runtime.services.event.EventListener;
+
+/**
+ * Event listener that drops the cached computed groups of a user when the
+ * user changes, as the groups may be computed from the user profile.
+ *
+ * @since 5.8
+ */
+public class ComputedGroupsUserListener implements EventListener {
+
+    @Override
+    public boolean aboutToHandleEvent(Event event) {
+        return false;
+    }
+
+    @Override
+    public void handleEvent(Event event) {
+        if (!UserManagerImpl.USERCHANGED_EVENT_ID.equals(event.getId())
+                || !(event.getData() instanceof String)) {
+            return;
+        }
+        ComputedGroupsService service = Framework.getLocalService(ComputedGroupsService.class);
+        if (service instanceof ComputedGroupsServiceImpl) {
+            ((ComputedGroupsServiceImpl) service).invalidateComputedGroups((String) event.getData());
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.computedgroups;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * {@link GroupComputer} computing groups from documents.
+ * <p>
+ * When the groups computed by such a computer are cached, they are
+ * invalidated each time a document it depends on is created, modified or
+ * removed.
+ *
+ * @since 5.8
+ */
+public interface DocumentGroupComputer extends GroupComputer {
+
+    /**
+     * Returns {@code true} if the change of the given document may change
+     * the groups computed for some users.
+     *
+     * @param doc the created, modified or removed document
+     * @param modification {@code true} if the document is being modified, in
+     *            which case only its dirty properties need to be checked
+     */
+    boolean isAffectedBy(DocumentModel doc, boolean modification)
+            throws ClientException;
+
+}
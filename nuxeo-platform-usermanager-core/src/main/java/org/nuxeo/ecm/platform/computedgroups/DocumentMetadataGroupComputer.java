@@ -19,14 +19,22 @@ package org.nuxeo.ecm.platform.computedgroups;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.IterableQueryResult;
 import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.api.model.Property;
+import org.nuxeo.ecm.core.api.model.PropertyNotFoundException;
 import org.nuxeo.ecm.core.api.repository.RepositoryManager;
 import org.nuxeo.ecm.platform.usermanager.NuxeoPrincipalImpl;
 import org.nuxeo.runtime.api.Framework;
@@ -37,16 +45,36 @@ import org.nuxeo.runtime.api.Framework;
  *
  * @since 5.7.3
  */
-public class DocumentMetadataGroupComputer extends AbstractGroupComputer {
+public class DocumentMetadataGroupComputer extends AbstractGroupComputer
+        implements DocumentGroupComputer {
 
     public static final Log log = LogFactory.getLog(DocumentMetadataGroupComputer.class);
 
+    // prefixed property names, such as dc:creator
+    protected static final Pattern PROPERTY_PATTERN = Pattern.compile("(?<![\\w:])([a-zA-Z][\\w-]*):([a-zA-Z_][\\w-]*)");
+
+    protected static final String SYSTEM_PROPERTY_PREFIX = "ecm";
+
     private String groupPattern;
 
     private String whereClause;
 
     private String xpath;
 
+    /**
+     * The document properties the groups are computed from, the system
+     * properties excepted.
+     */
+    protected final Set<String> watchedProperties;
+
+    /**
+     * The property whose values give the group ids, {@code null} if the xpath
+     * is a system property.
+     *
+     * @since 5.8
+     */
+    protected final String xpathProperty;
+
     public DocumentMetadataGroupComputer(String whereClause,
             String groupPattern, String xpath) throws ClientException {
         this.whereClause = whereClause;
@@ -57,6 +85,20 @@ public class DocumentMetadataGroupComputer extends AbstractGroupComputer {
             throw new ClientException(
                     "Bad Contribution Document Metadata Computer Group Configuration");
         }
+        watchedProperties = new LinkedHashSet<String>();
+        Matcher matcher = PROPERTY_PATTERN.matcher(xpath + ' ' + whereClause);
+        while (matcher.find()) {
+            if (!SYSTEM_PROPERTY_PREFIX.equals(matcher.group(1))) {
+                watchedProperties.add(matcher.group());
+            }
+        }
+        matcher = PROPERTY_PATTERN.matcher(String.valueOf(xpath));
+        if (matcher.matches()
+                && !SYSTEM_PROPERTY_PREFIX.equals(matcher.group(1))) {
+            xpathProperty = xpath;
+        } else {
+            xpathProperty = null;
+        }
     }
 
     @Override
@@ -106,6 +148,68 @@ public class DocumentMetadataGroupComputer extends AbstractGroupComputer {
         return false;
     }
 
+    /**
+     * A document affects the computed groups if one of the properties used by
+     * the where clause or the xpath is changed. Created or removed documents
+     * affect them if they have a value for one of these properties. In both
+     * cases, documents without a value for the xpath give no group, so they
+     * do not affect them unless this value is being changed.
+     */
+    @Override
+    public boolean isAffectedBy(DocumentModel doc, boolean modification)
+            throws ClientException {
+        if (xpathProperty != null && !givesGroup(doc, modification)) {
+            return false;
+        }
+        if (watchedProperties.isEmpty()) {
+            // only system properties, any new or removed document may match
+            return !modification;
+        }
+        for (String name : watchedProperties) {
+            Property property;
+            try {
+                property = doc.getProperty(name);
+            } catch (PropertyNotFoundException e) {
+                // not a property of this document
+                continue;
+            }
+            if (modification ? property.isDirty()
+                    : !isEmpty(property.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected boolean givesGroup(DocumentModel doc, boolean modification)
+            throws ClientException {
+        Property property;
+        try {
+            property = doc.getProperty(xpathProperty);
+        } catch (PropertyNotFoundException e) {
+            return false;
+        }
+        // a modified value may have been removed
+        return (modification && property.isDirty())
+                || !isEmpty(property.getValue());
+    }
+
+    protected static boolean isEmpty(Object value) {
+        if (value == null) {
+            return true;
+        }
+        if (value instanceof String) {
+            return ((String) value).isEmpty();
+        }
+        if (value instanceof Object[]) {
+            return ((Object[]) value).length == 0;
+        }
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).isEmpty();
+        }
+        return false;
+    }
+
     protected class GetDocumentsFromUsername extends UnrestrictedSessionRunner {
         private static final String QUERY_PATTERN = "SELECT %s "
                 + "FROM Document %s";
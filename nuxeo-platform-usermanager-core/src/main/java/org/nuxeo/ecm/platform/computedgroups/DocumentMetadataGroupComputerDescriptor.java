@@ -60,8 +60,11 @@ public class DocumentMetadataGroupComputerDescriptor extends
 
     @Override
     public GroupComputer getComputer() throws ClientException {
-        return new DocumentMetadataGroupComputer(whereClause, groupPattern,
-                xpathSelector);
+        if (groupComputer == null) {
+            groupComputer = new DocumentMetadataGroupComputer(whereClause,
+                    groupPattern, xpathSelector);
+        }
+        return groupComputer;
     };
 
 }
@@ -47,6 +47,38 @@ public class GroupComputerDescriptor implements Serializable {
     @XNode("@enabled")
     protected boolean enabled = true;
 
+    /**
+     * @since 5.8
+     */
+    public static final int DEFAULT_CACHE_MAX_SIZE = 1000;
+
+    /**
+     * @since 5.8
+     */
+    public static final int DEFAULT_CACHE_TIMEOUT = 300;
+
+    /**
+     * @since 5.8
+     */
+    public static final int DEFAULT_PRECOMPUTE_DELAY = 10;
+
+    @XNode("cacheEnable")
+    protected boolean cacheEnabled;
+
+    // in seconds
+    @XNode("cacheTimeout")
+    protected Integer cacheTimeout;
+
+    @XNode("cacheMaxSize")
+    protected Integer cacheMaxSize;
+
+    @XNode("precompute")
+    protected boolean precompute;
+
+    // in seconds
+    @XNode("precomputeDelay")
+    protected Integer precomputeDelay;
+
     public String getName() {
         if (name != null) {
             return name;
@@ -75,4 +107,58 @@ public class GroupComputerDescriptor implements Serializable {
         return groupComputer;
     }
 
+    /**
+     * Returns {@code true} if the groups computed for each user are cached.
+     *
+     * @since 5.8
+     */
+    public boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+
+    /**
+     * Returns the time in seconds the groups computed for a user are cached,
+     * or the interval between two refreshes when they are precomputed. 0
+     * means till invalidation.
+     *
+     * @since 5.8
+     */
+    public int getCacheTimeout() {
+        return cacheTimeout == null ? DEFAULT_CACHE_TIMEOUT
+                : cacheTimeout.intValue();
+    }
+
+    /**
+     * Returns the maximum number of users whose groups are cached.
+     *
+     * @since 5.8
+     */
+    public int getCacheMaxSize() {
+        return cacheMaxSize == null ? DEFAULT_CACHE_MAX_SIZE
+                : cacheMaxSize.intValue();
+    }
+
+    /**
+     * Returns {@code true} if the groups of all users are computed in the
+     * background when the application starts and when the cache is
+     * invalidated, instead of when a principal is built.
+     *
+     * @since 5.8
+     */
+    public boolean isPrecompute() {
+        return cacheEnabled && precompute;
+    }
+
+    /**
+     * Returns the time in seconds the precomputation waits after an
+     * invalidation, so that the invalidations following in the meantime are
+     * handled by a single pass.
+     *
+     * @since 5.8
+     */
+    public int getPrecomputeDelay() {
+        return precomputeDelay == null ? DEFAULT_PRECOMPUTE_DELAY
+                : precomputeDelay.intValue();
+    }
+
 }
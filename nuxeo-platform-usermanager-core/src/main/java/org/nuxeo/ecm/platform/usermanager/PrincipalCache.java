@@ -0,0 +1,196 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.directory.BoundedExpiringMap;
+
+/**
+ * Bounded cache of the principals built by the user manager, keyed by tenant
+ * and user name.
+ * <p>
+ * The cached principals are never handed out: callers get a copy, so that
+ * they can change it without affecting the other callers. Concurrent misses
+ * on the same principal only build it once, and entries expire after a time
+ * out so that changes not notified to this node are eventually seen.
+ *
+ * @since 5.8
+ */
+public class PrincipalCache {
+
+    /**
+     * Builds the principal on cache misses.
+     */
+    public interface PrincipalSource {
+
+        /**
+         * Returns the principal, or {@code null} if the user does not exist.
+         */
+        NuxeoPrincipal getPrincipalFromSource(String username)
+                throws ClientException;
+
+    }
+
+    protected static final char KEY_SEPARATOR = '\0';
+
+    protected final BoundedExpiringMap<String, NuxeoPrincipal> principals;
+
+    protected final ConcurrentMap<String, FutureTask<NuxeoPrincipal>> loads = new ConcurrentHashMap<String, FutureTask<NuxeoPrincipal>>();
+
+    /**
+     * @param maxSize the maximum number of principals kept in cache, the
+     *            least recently used ones get evicted
+     * @param timeout the time in seconds a principal is kept in cache, 0 to
+     *            keep it till invalidation
+     */
+    public PrincipalCache(int maxSize, int timeout) {
+        principals = new BoundedExpiringMap<String, NuxeoPrincipal>(maxSize,
+                timeout, TimeUnit.SECONDS) {
+            @Override
+            protected long nanoTime() {
+                return PrincipalCache.this.nanoTime();
+            }
+        };
+    }
+
+    /**
+     * Returns the current time in nanoseconds used for expiration,
+     * {@link System#nanoTime()} by default.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Returns a copy of the cached principal, building it with the given
+     * source if needed.
+     *
+     * @param tenant the tenant of the user, or {@code null} for the default
+     *            user directory
+     */
+    public NuxeoPrincipal getPrincipal(String tenant, final String username,
+            final PrincipalSource source) throws ClientException {
+        String key = (tenant == null ? "" : tenant) + KEY_SEPARATOR
+                + username;
+        synchronized (this) {
+            NuxeoPrincipal cached = principals.get(key);
+            if (cached != null) {
+                return copy(cached);
+            }
+        }
+        FutureTask<NuxeoPrincipal> task = new FutureTask<NuxeoPrincipal>(
+                new Callable<NuxeoPrincipal>() {
+                    @Override
+                    public NuxeoPrincipal call() throws Exception {
+                        return source.getPrincipalFromSource(username);
+                    }
+                });
+        FutureTask<NuxeoPrincipal> running = loads.putIfAbsent(key, task);
+        if (running != null) {
+            return copy(waitFor(running));
+        }
+        task.run();
+        NuxeoPrincipal principal;
+        try {
+            principal = waitFor(task);
+        } catch (ClientException | RuntimeException e) {
+            // the failure must not be shared with later callers
+            loads.remove(key, task);
+            throw e;
+        }
+        synchronized (this) {
+            // only store the principal if no invalidation occurred while it
+            // was built
+            if (loads.remove(key, task) && isCacheable(principal)) {
+                principals.put(key, principal);
+            }
+        }
+        return copy(principal);
+    }
+
+    /**
+     * Only plain {@link NuxeoPrincipalImpl} instances can be copied, other
+     * principals are not cached.
+     */
+    protected boolean isCacheable(NuxeoPrincipal principal) {
+        return principal != null
+                && principal.getClass() == NuxeoPrincipalImpl.class;
+    }
+
+    protected NuxeoPrincipal copy(NuxeoPrincipal principal)
+            throws ClientException {
+        return NuxeoPrincipalImpl.copy(principal);
+    }
+
+    protected NuxeoPrincipal waitFor(FutureTask<NuxeoPrincipal> task)
+            throws ClientException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ClientException) {
+                throw (ClientException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ClientException(cause);
+        }
+    }
+
+    /**
+     * Removes the principals of the given user, for all tenants.
+     */
+    public synchronized void invalidate(String username) {
+        String suffix = KEY_SEPARATOR + username;
+        Iterator<String> it = principals.keySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (key.regionMatches(true, key.length() - suffix.length(),
+                    suffix, 0, suffix.length())) {
+                it.remove();
+            }
+        }
+        // pending loads may have read the user before the change
+        loads.clear();
+    }
+
+    /**
+     * Removes all the principals, for instance when a group changes.
+     */
+    public synchronized void invalidateAll() {
+        principals.clear();
+        loads.clear();
+    }
+
+    public synchronized int size() {
+        return principals.size();
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.reload.ReloadEventNames;
+import org.nuxeo.runtime.services.event.Event;
+import org.nuxeo.runtime.services.event.EventListener;
+
+/**
+ * Event listener that flushes the {@link UserManagerImpl} caches on reload,
+ * as the permissions and directories they are computed from may have changed.
+ *
+ * @since 5.8
+ */
+public class UserManagerCacheFlusher implements EventListener {
+
+    private static final Log log = LogFactory.getLog(UserManagerCacheFlusher.class);
+
+    @Override
+    public boolean aboutToHandleEvent(Event event) {
+        return false;
+    }
+
+    @Override
+    public void handleEvent(Event event) {
+        if (!ReloadEventNames.FLUSH_EVENT_ID.equals(event.getId())) {
+            return;
+        }
+        try {
+            UserManager userManager = Framework.getLocalService(UserManager.class);
+            if (userManager instanceof UserManagerImpl) {
+                ((UserManagerImpl) userManager).flushCaches();
+            }
+        } catch (Exception e) {
+            log.error("Error while flushing the user manager caches", e);
+        }
+    }
+
+}
@@ -23,14 +23,20 @@ import java.io.Serializable;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -52,6 +58,8 @@ import org.nuxeo.ecm.core.api.security.ACP;
 import org.nuxeo.ecm.core.api.security.PermissionProvider;
 import org.nuxeo.ecm.core.api.security.SecurityConstants;
 import org.nuxeo.ecm.directory.BaseSession;
+import org.nuxeo.ecm.directory.BoundedExpiringMap;
+import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
@@ -64,7 +72,8 @@ import org.nuxeo.runtime.services.event.EventService;
 /**
  * Standard implementation of the Nuxeo UserManager.
  */
-public class UserManagerImpl implements UserManager, MultiTenantUserManager {
+public class UserManagerImpl implements UserManager, MultiTenantUserManager,
+        GroupClosureIndexProvider {
 
     private static final long serialVersionUID = 1L;
 
@@ -94,6 +103,45 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
     public static final String VIRTUAL_FIELD_FILTER_PREFIX = "__";
 
+    /**
+     * Default time in seconds after which a group of the group index is
+     * loaded again.
+     *
+     * @since 5.8
+     */
+    public static final int DEFAULT_GROUP_CLOSURE_INDEX_TIMEOUT = 300;
+
+    /**
+     * Default maximum number of principals kept in cache, the cache is
+     * disabled by default as it is only invalidated by the changes made
+     * through the user manager of the same node.
+     *
+     * @since 5.8
+     */
+    public static final int DEFAULT_PRINCIPAL_CACHE_MAX_SIZE = 0;
+
+    /**
+     * Default time in seconds a principal is kept in cache.
+     *
+     * @since 5.8
+     */
+    public static final int DEFAULT_PRINCIPAL_CACHE_TIMEOUT = 60;
+
+    /**
+     * Default maximum number of expanded ACE principals kept in cache for
+     * {@link #getUsersForPermission}.
+     *
+     * @since 5.8
+     */
+    public static final int DEFAULT_PERMISSION_USERS_CACHE_MAX_SIZE = 100;
+
+    /**
+     * Default time in seconds an expanded ACE principal is kept in cache.
+     *
+     * @since 5.8
+     */
+    public static final int DEFAULT_PERMISSION_USERS_CACHE_TIMEOUT = 60;
+
     protected final DirectoryService dirService;
 
     public UserMultiTenantManagement multiTenantManagement = new DefaultUserMultiTenantManagement();
@@ -157,6 +205,45 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
     protected final Map<String, VirtualUserDescriptor> virtualUsers;
 
+    /**
+     * @since 5.8
+     */
+    protected GroupClosureIndex groupClosureIndex;
+
+    /**
+     * @since 5.8
+     */
+    protected PrincipalCache principalCache;
+
+    /**
+     * Leaf permissions of each permission, flushed on reload.
+     *
+     * @since 5.8
+     */
+    protected final ConcurrentMap<String, Set<String>> leafPermissions = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * All the permissions, granted by {@link SecurityConstants#EVERYTHING}.
+     *
+     * @since 5.8
+     */
+    protected volatile Set<String> allPermissions;
+
+    /**
+     * Users of the ACE principals expanded by {@link #getUsersForPermission},
+     * keyed by tenant and principal, in least recently used order.
+     *
+     * @since 5.8
+     */
+    protected BoundedExpiringMap<String, List<String>> permissionUsersCache;
+
+    /**
+     * Incremented on each invalidation of the permission users cache.
+     *
+     * @since 5.8
+     */
+    protected volatile long permissionUsersCacheGeneration;
+
     public UserManagerImpl() {
         dirService = Framework.getLocalService(DirectoryService.class);
         virtualUsers = new HashMap<String, VirtualUserDescriptor>();
@@ -204,6 +291,51 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
         digestAuthDirectory = descriptor.digestAuthDirectory;
         digestAuthRealm = descriptor.digestAuthRealm;
 
+        groupClosureIndex = null;
+        if (Boolean.TRUE.equals(descriptor.groupClosureIndexEnabled)) {
+            int timeout = DEFAULT_GROUP_CLOSURE_INDEX_TIMEOUT;
+            if (descriptor.groupClosureIndexTimeout != null) {
+                timeout = descriptor.groupClosureIndexTimeout.intValue();
+            }
+            int maxSize = GroupClosureIndex.DEFAULT_MAX_SIZE;
+            if (descriptor.groupClosureIndexMaxSize != null) {
+                maxSize = descriptor.groupClosureIndexMaxSize.intValue();
+            }
+            groupClosureIndex = new GroupClosureIndex(
+                    new GroupClosureIndex.GroupLoader() {
+                        @Override
+                        public NuxeoGroup loadGroup(String groupName)
+                                throws ClientException {
+                            return getGroup(groupName);
+                        }
+                    }, timeout * 1000L, maxSize);
+        }
+
+        int principalCacheMaxSize = DEFAULT_PRINCIPAL_CACHE_MAX_SIZE;
+        if (descriptor.principalCacheMaxSize != null) {
+            principalCacheMaxSize = descriptor.principalCacheMaxSize.intValue();
+        }
+        int principalCacheTimeout = DEFAULT_PRINCIPAL_CACHE_TIMEOUT;
+        if (descriptor.principalCacheTimeout != null) {
+            principalCacheTimeout = descriptor.principalCacheTimeout.intValue();
+        }
+        principalCache = null;
+        if (principalCacheMaxSize > 0) {
+            principalCache = new PrincipalCache(principalCacheMaxSize,
+                    principalCacheTimeout);
+        }
+
+        final int permissionUsersCacheMaxSize = descriptor.permissionUsersCacheMaxSize != null ? descriptor.permissionUsersCacheMaxSize.intValue()
+                : DEFAULT_PERMISSION_USERS_CACHE_MAX_SIZE;
+        int permissionUsersCacheTimeout = descriptor.permissionUsersCacheTimeout != null ? descriptor.permissionUsersCacheTimeout.intValue()
+                : DEFAULT_PERMISSION_USERS_CACHE_TIMEOUT;
+        permissionUsersCache = null;
+        if (permissionUsersCacheMaxSize > 0) {
+            permissionUsersCache = new BoundedExpiringMap<String, List<String>>(
+                    permissionUsersCacheMaxSize, permissionUsersCacheTimeout,
+                    TimeUnit.SECONDS);
+        }
+
         userConfig = new UserConfig();
         userConfig.emailKey = userEmailField;
         userConfig.schemaName = userSchemaName;
@@ -644,12 +776,17 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
     protected void appendSubgroups(String groupId, Set<String> groups,
             DocumentModel context) throws ClientException {
+        // the index loads groups without context
+        GroupClosureIndex index = context == null ? getGroupClosureIndex()
+                : null;
+        if (index != null) {
+            groups.addAll(index.getDescendantGroups(groupId));
+            return;
+        }
         List<String> groupsToAppend = getGroupsInGroup(groupId, context);
-        groups.addAll(groupsToAppend);
         for (String subgroupId : groupsToAppend) {
-            groups.add(subgroupId);
             // avoiding infinite loop
-            if (!groups.contains(subgroupId)) {
+            if (groups.add(subgroupId)) {
                 appendSubgroups(subgroupId, groups, context);
             }
         }
@@ -747,6 +884,11 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
      * sure principals cache is reset.
      */
     protected void notifyUserChanged(String userName) throws ClientException {
+        if (principalCache != null) {
+            principalCache.invalidate(userName);
+        }
+        // users of groups and everyone may have changed
+        invalidatePermissionUsersCache();
         notify(userName, USERCHANGED_EVENT_ID);
     }
 
@@ -755,6 +897,14 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
      * sure principals cache is reset.
      */
     protected void notifyGroupChanged(String groupName) throws ClientException {
+        if (groupClosureIndex != null) {
+            groupClosureIndex.invalidate(groupName);
+        }
+        if (principalCache != null) {
+            // group membership of any principal may have changed
+            principalCache.invalidateAll();
+        }
+        invalidatePermissionUsersCache();
         notify(groupName, GROUPCHANGED_EVENT_ID);
     }
 
@@ -1037,6 +1187,42 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
         updateUser(principal.getModel());
     }
 
+    /**
+     * Returns the group index, or {@code null} if the group directory is
+     * multi-tenant as the index is shared by all the tenants.
+     */
+    @Override
+    public GroupClosureIndex getGroupClosureIndex() {
+        if (groupClosureIndex == null || isGroupDirectoryMultiTenant()) {
+            return null;
+        }
+        return groupClosureIndex;
+    }
+
+    /**
+     * @since 5.8
+     */
+    protected boolean isGroupDirectoryMultiTenant() {
+        return isMultiTenantDirectory(groupDirectoryName);
+    }
+
+    /**
+     * Checks if a directory is multi-tenant, assuming it is if this cannot be
+     * checked.
+     *
+     * @since 5.8
+     */
+    protected boolean isMultiTenantDirectory(String directoryName) {
+        try {
+            Directory directory = dirService.getDirectory(directoryName);
+            return directory != null && directory.isMultiTenant();
+        } catch (DirectoryException e) {
+            log.debug("Cannot check if directory " + directoryName
+                    + " is multi-tenant", e);
+            return true;
+        }
+    }
+
     @Override
     public List<String> getAdministratorsGroups() {
         return administratorGroups;
@@ -1044,23 +1230,121 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
     protected List<String> getLeafPermissions(String perm)
             throws ClientException {
-        ArrayList<String> permissions = new ArrayList<String>();
-        PermissionProvider permissionProvider;
-        try {
-            permissionProvider = Framework.getService(PermissionProvider.class);
-        } catch (Exception e) {
-            throw new Error("An unexpected error occured", e);
+        return new ArrayList<String>(getLeafPermissionSet(perm));
+    }
+
+    /**
+     * Returns the leaf permissions of a permission, computed once until the
+     * next reload.
+     *
+     * @since 5.8
+     */
+    protected Set<String> getLeafPermissionSet(String perm)
+            throws ClientException {
+        Set<String> permissions = leafPermissions.get(perm);
+        if (permissions == null) {
+            permissions = new LinkedHashSet<String>();
+            addLeafPermissions(getPermissionProvider(), perm, permissions,
+                    new HashSet<String>());
+            permissions = Collections.unmodifiableSet(permissions);
+            leafPermissions.put(perm, permissions);
+        }
+        return permissions;
+    }
+
+    protected void addLeafPermissions(PermissionProvider permissionProvider,
+            String perm, Set<String> permissions, Set<String> visited)
+            throws ClientException {
+        if (!visited.add(perm)) {
+            return;
         }
         String[] subpermissions = permissionProvider.getSubPermissions(perm);
         if (subpermissions == null || subpermissions.length <= 0) {
             // it's a leaf
             permissions.add(perm);
-            return permissions;
+            return;
         }
         for (String subperm : subpermissions) {
-            permissions.addAll(getLeafPermissions(subperm));
+            addLeafPermissions(permissionProvider, subperm, permissions,
+                    visited);
         }
-        return permissions;
+    }
+
+    /**
+     * Returns the leaf permissions granted by an ACE permission.
+     *
+     * @since 5.8
+     */
+    protected Set<String> getAcePermissions(String acePermission)
+            throws ClientException {
+        // Everything is a special permission (not compound)
+        if (SecurityConstants.EVERYTHING.equals(acePermission)) {
+            Set<String> permissions = allPermissions;
+            if (permissions == null) {
+                permissions = Collections.unmodifiableSet(new HashSet<String>(
+                        Arrays.asList(getPermissionProvider().getPermissions())));
+                allPermissions = permissions;
+            }
+            return permissions;
+        }
+        return getLeafPermissionSet(acePermission);
+    }
+
+    protected PermissionProvider getPermissionProvider() {
+        try {
+            return Framework.getService(PermissionProvider.class);
+        } catch (Exception e) {
+            throw new Error("An unexpected error occured", e);
+        }
+    }
+
+    /**
+     * Flushes the caches depending on contributions, for instance after a hot
+     * reload.
+     *
+     * @since 5.8
+     */
+    public void flushCaches() {
+        leafPermissions.clear();
+        allPermissions = null;
+        invalidatePermissionUsersCache();
+        if (principalCache != null) {
+            principalCache.invalidateAll();
+        }
+        if (groupClosureIndex != null) {
+            groupClosureIndex.invalidateAll();
+        }
+    }
+
+    /**
+     * Drops the cached principals of the given user, or of all users if
+     * {@code null}, for instance when the groups computed for them changed.
+     *
+     * @since 5.8
+     */
+    public void invalidatePrincipals(String username) {
+        if (principalCache != null) {
+            if (username == null) {
+                principalCache.invalidateAll();
+            } else {
+                principalCache.invalidate(username);
+            }
+        }
+        invalidatePermissionUsersCache();
+    }
+
+    /**
+     * Drops the cached principals of the given users.
+     *
+     * @since 5.8
+     */
+    public void invalidatePrincipals(Collection<String> usernames) {
+        if (principalCache != null) {
+            for (String username : usernames) {
+                principalCache.invalidate(username);
+            }
+        }
+        invalidatePermissionUsersCache();
     }
 
     @Override
@@ -1282,11 +1566,53 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
     }
 
     @Override
-    public NuxeoPrincipal getPrincipal(String username, DocumentModel context)
-            throws ClientException {
+    public NuxeoPrincipal getPrincipal(String username,
+            final DocumentModel context) throws ClientException {
         if (username == null) {
             return null;
         }
+        // the tenant of a multi-tenant directory is not known here
+        if (principalCache == null
+                || isMultiTenantDirectory(userDirectoryName)) {
+            return loadPrincipal(username, context);
+        }
+        String tenant = null;
+        if (context != null) {
+            tenant = getDirectoryName(userDirectoryName, context);
+            if (tenant == null) {
+                return loadPrincipal(username, context);
+            }
+        }
+        return principalCache.getPrincipal(tenant, username,
+                new PrincipalCache.PrincipalSource() {
+                    @Override
+                    public NuxeoPrincipal getPrincipalFromSource(
+                            String username) throws ClientException {
+                        return loadPrincipal(username, context);
+                    }
+                });
+    }
+
+    /**
+     * Returns the name of the actual directory used for the given context, or
+     * {@code null} if there is none.
+     *
+     * @since 5.8
+     */
+    protected String getDirectoryName(String directoryName,
+            DocumentModel context) throws DirectoryException {
+        Directory directory = dirService.getDirectory(directoryName, context);
+        return directory == null ? null : directory.getName();
+    }
+
+    /**
+     * Builds the principal of a user, without going through the principal
+     * cache.
+     *
+     * @since 5.8
+     */
+    protected NuxeoPrincipal loadPrincipal(String username,
+            DocumentModel context) throws ClientException {
         String anonymousUserId = getAnonymousUserId();
         if (username.equals(anonymousUserId)) {
             return makeAnonymousPrincipal();
@@ -1557,35 +1883,19 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
     @Override
     public String[] getUsersForPermission(String perm, ACP acp,
             DocumentModel context) {
-        // using a hashset to avoid duplicates
-        HashSet<String> usernames = new HashSet<String>();
-
         ACL merged = acp.getMergedACLs("merged");
         // The list of permission that is has "perm" as its (compound)
         // permission
         ArrayList<ACE> filteredACEbyPerm = new ArrayList<ACE>();
 
-        List<String> currentPermissions = null;
-
         try {
-            currentPermissions = getLeafPermissions(perm);
+            Set<String> currentPermissions = getLeafPermissionSet(perm);
 
             for (ACE ace : merged.getACEs()) {
                 // Checking if the permission contains the permission we want to
                 // check (we use the security service method for coumpound
                 // permissions)
-                List<String> acePermissions;
-
-                acePermissions = getLeafPermissions(ace.getPermission());
-                // Everything is a special permission (not compound)
-                if (SecurityConstants.EVERYTHING.equals(ace.getPermission())) {
-                    try {
-                        acePermissions = Arrays.asList(Framework.getService(
-                                PermissionProvider.class).getPermissions());
-                    } catch (Exception e) {
-                        throw new Error("An unexpected error occured", e);
-                    }
-                }
+                Set<String> acePermissions = getAcePermissions(ace.getPermission());
 
                 if (acePermissions.containsAll(currentPermissions)) {
                     // special case: everybody perm grant false, don't take in
@@ -1602,43 +1912,120 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
             throw new Error("An unexpected error occured", e2);
         }
 
+        // user names are numbered so that grants and denials of large groups
+        // are combined as bit sets
+        Map<String, Integer> userIds = new HashMap<String, Integer>();
+        List<String> userNames = new ArrayList<String>();
+        Map<String, BitSet> aceUsers = new HashMap<String, BitSet>();
+        BitSet usernames = new BitSet();
         for (ACE ace : filteredACEbyPerm) {
-            try {
-                String aceUsername = ace.getUsername();
-                List<String> users = null;
-                // If everyone, add/remove all the users
-                if (SecurityConstants.EVERYONE.equals(aceUsername)) {
-                    users = getUserIds();
+            String aceUsername = ace.getUsername();
+            BitSet users = aceUsers.get(aceUsername);
+            if (users == null) {
+                List<String> names;
+                try {
+                    names = getUsersForAce(aceUsername, context);
+                } catch (ClientException e) {
+                    // Unexpected: throwing a runtime exception
+                    throw new Error(
+                            "An unexpected error occured while getting user ids",
+                            e);
                 }
-                // if a group, add/remove all the user from the group (and
-                // subgroups)
-                if (users == null) {
-                    NuxeoGroup group;
-                    group = getGroup(aceUsername, context);
-                    if (group != null) {
-                        users = getUsersInGroupAndSubGroups(aceUsername,
-                                context);
+                users = new BitSet();
+                for (String name : names) {
+                    Integer id = userIds.get(name);
+                    if (id == null) {
+                        id = Integer.valueOf(userNames.size());
+                        userIds.put(name, id);
+                        userNames.add(name);
                     }
-
+                    users.set(id.intValue());
                 }
-                // otherwise, add the user
-                if (users == null) {
-                    users = new ArrayList<String>();
-                    users.add(aceUsername);
+                aceUsers.put(aceUsername, users);
+            }
+            if (ace.isGranted()) {
+                usernames.or(users);
+            } else {
+                usernames.andNot(users);
+            }
+        }
+        String[] result = new String[usernames.cardinality()];
+        int i = 0;
+        for (int id = usernames.nextSetBit(0); id >= 0; id = usernames.nextSetBit(id + 1)) {
+            result[i++] = userNames.get(id);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the users an ACE principal stands for: all the users for
+     * everyone, the users of a group and its sub-groups, or the user itself.
+     * <p>
+     * The result is cached until a user or group changes or the cache times
+     * out. It is not cached for multi-tenant user or group directories, as
+     * the result then depends on the tenant of the current user.
+     *
+     * @since 5.8
+     */
+    protected List<String> getUsersForAce(String aceUsername,
+            DocumentModel context) throws ClientException {
+        String key = null;
+        if (permissionUsersCache != null
+                && !isMultiTenantDirectory(userDirectoryName)
+                && !isMultiTenantDirectory(groupDirectoryName)) {
+            String tenant = context == null ? ""
+                    : getDirectoryName(groupDirectoryName, context);
+            if (tenant != null) {
+                key = tenant + '\0' + aceUsername;
+                synchronized (permissionUsersCache) {
+                    List<String> cached = permissionUsersCache.get(key);
+                    if (cached != null) {
+                        return cached;
+                    }
                 }
-                if (ace.isGranted()) {
-                    usernames.addAll(users);
-                } else {
-                    usernames.removeAll(users);
+            }
+        }
+        long generation = permissionUsersCacheGeneration;
+        List<String> users = null;
+        // If everyone, add/remove all the users
+        if (SecurityConstants.EVERYONE.equals(aceUsername)) {
+            users = getUserIds();
+        }
+        // if a group, add/remove all the user from the group (and
+        // subgroups)
+        if (users == null) {
+            NuxeoGroup group = getGroup(aceUsername, context);
+            if (group != null) {
+                users = getUsersInGroupAndSubGroups(aceUsername, context);
+            }
+        }
+        // otherwise, add the user
+        if (users == null) {
+            users = Collections.singletonList(aceUsername);
+        }
+        users = Collections.unmodifiableList(users);
+        if (key != null) {
+            synchronized (permissionUsersCache) {
+                // do not store users computed before an invalidation
+                if (generation == permissionUsersCacheGeneration) {
+                    permissionUsersCache.put(key, users);
                 }
-            } catch (ClientException e) {
-                // Unexpected: throwing a runtime exception
-                throw new Error(
-                        "An unexpected error occured while getting user ids", e);
             }
+        }
+        return users;
+    }
 
+    /**
+     * @since 5.8
+     */
+    protected void invalidatePermissionUsersCache() {
+        BoundedExpiringMap<String, List<String>> cache = permissionUsersCache;
+        if (cache != null) {
+            synchronized (cache) {
+                permissionUsersCacheGeneration++;
+                cache.clear();
+            }
         }
-        return usernames.toArray(new String[usernames.size()]);
     }
 
 }
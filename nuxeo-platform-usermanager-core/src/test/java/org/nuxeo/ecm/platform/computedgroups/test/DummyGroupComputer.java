@@ -25,6 +25,9 @@ import org.nuxeo.ecm.platform.usermanager.NuxeoPrincipalImpl;
 
 public class DummyGroupComputer extends AbstractGroupComputer {
 
+    // number of calls to getGroupsForUser
+    public static int computations;
+
     List<String> grpNames = new ArrayList<String>();
 
     public DummyGroupComputer() {
@@ -35,6 +38,7 @@ public class DummyGroupComputer extends AbstractGroupComputer {
     public List<String> getGroupsForUser(NuxeoPrincipalImpl nuxeoPrincipal)
             throws Exception {
 
+        computations++;
         List<String> grps = new ArrayList<String>();
         if (nuxeoPrincipal.getName().contains("1")) {
             grps.add("Grp1");
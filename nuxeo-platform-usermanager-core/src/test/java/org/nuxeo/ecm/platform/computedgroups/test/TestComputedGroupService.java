@@ -184,6 +184,67 @@ public class TestComputedGroupService extends NXRuntimeTestCase {
         assertEquals(2, group.getMemberUsers().size());
     }
 
+    @Test
+    public void testCache() throws Exception {
+
+        deployContrib("org.nuxeo.ecm.platform.usermanager.tests", "computedgroups-contrib.xml");
+        deployBundle("org.nuxeo.ecm.core.schema");
+        deployBundle("org.nuxeo.ecm.core.api");
+        deployBundle("org.nuxeo.ecm.core");
+        deployBundle("org.nuxeo.ecm.platform.usermanager.api");
+        deployBundle("org.nuxeo.ecm.platform.usermanager");
+        deployBundle("org.nuxeo.ecm.directory.api");
+        deployBundle("org.nuxeo.ecm.directory.types.contrib");
+        deployBundle("org.nuxeo.ecm.directory");
+        deployBundle("org.nuxeo.ecm.directory.sql");
+
+        deployContrib("org.nuxeo.ecm.platform.usermanager.tests",
+                "test-usermanagerimpl/directory-config.xml");
+
+        UserManager um = Framework.getLocalService(UserManager.class);
+        DocumentModel userModel = um.getBareUserModel();
+        userModel.setProperty("user", "username", "User1");
+        um.createUser(userModel);
+        userModel.setProperty("user", "username", "User12");
+        um.createUser(userModel);
+        userModel.setProperty("user", "username", "User2");
+        um.createUser(userModel);
+
+        ComputedGroupsServiceImpl cgs = (ComputedGroupsServiceImpl) Framework.getLocalService(ComputedGroupsService.class);
+        assertTrue(cgs.getComputerDescriptors().get(0).isCacheEnabled());
+        cgs.invalidateComputedGroups("dummy", null);
+        DummyGroupComputer.computations = 0;
+
+        NuxeoPrincipalImpl nxPrincipal = new NuxeoPrincipalImpl("User12");
+        assertEquals(2, cgs.computeGroupsForUser(nxPrincipal).size());
+        assertEquals(2, cgs.computeGroupsForUser(nxPrincipal).size());
+        assertEquals(1, DummyGroupComputer.computations);
+
+        cgs.invalidateComputedGroups("dummy", "user12");
+        assertEquals(2, cgs.computeGroupsForUser(nxPrincipal).size());
+        assertEquals(2, DummyGroupComputer.computations);
+
+        // modifying the user through the user manager invalidates its groups
+        userModel = um.getUserModel("User12");
+        userModel.setProperty("user", "company", "Nuxeo");
+        um.updateUser(userModel);
+        assertEquals(2, cgs.computeGroupsForUser(nxPrincipal).size());
+        assertEquals(3, DummyGroupComputer.computations);
+
+        // the groups of all users get computed once
+        cgs.invalidateComputedGroups("dummy", null);
+        DummyGroupComputer.computations = 0;
+        cgs.precompute("dummy");
+        int nbUsers = um.getUserIds().size();
+        assertEquals(nbUsers, DummyGroupComputer.computations);
+        assertEquals(0, cgs.precompute("dummy"));
+        um.getPrincipal("User1");
+        um.getPrincipal("User2");
+        assertEquals(1, cgs.computeGroupsForUser(
+                new NuxeoPrincipalImpl("User2")).size());
+        assertEquals(nbUsers, DummyGroupComputer.computations);
+    }
+
     @Test
     public void testCompanyComputer() throws Exception {
         deployContrib("org.nuxeo.ecm.platform.usermanager.tests",
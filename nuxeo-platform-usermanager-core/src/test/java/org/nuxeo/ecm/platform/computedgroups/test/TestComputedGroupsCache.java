@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.computedgroups.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.nuxeo.ecm.platform.computedgroups.ComputedGroupsCache;
+
+public class TestComputedGroupsCache {
+
+    protected static final List<String> GROUPS = Arrays.asList("Grp1", "Grp2");
+
+    // time seen by the cache, in nanoseconds
+    protected long now;
+
+    @Test
+    public void testCopies() throws Exception {
+        ComputedGroupsCache cache = new ComputedGroupsCache(10, 0);
+        assertNull(cache.get("User1"));
+        assertTrue(cache.put("User1", GROUPS, cache.getGeneration()));
+        List<String> groups = cache.get("User1");
+        assertEquals(GROUPS, groups);
+        groups.add("Grp3");
+        assertEquals(GROUPS, cache.get("User1"));
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        ComputedGroupsCache cache = new ComputedGroupsCache(10, 0);
+        cache.put("User1", GROUPS, cache.getGeneration());
+        cache.put("User2", GROUPS, cache.getGeneration());
+
+        // groups computed before an invalidation are not stored
+        long generation = cache.getGeneration();
+        cache.invalidate("user1");
+        assertNull(cache.get("User1"));
+        assertFalse(cache.put("User1", GROUPS, generation));
+        assertNull(cache.get("User1"));
+        assertEquals(GROUPS, cache.get("User2"));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testStaleGroups() throws Exception {
+        ComputedGroupsCache cache = new ComputedGroupsCache(10, 0);
+        cache.put("User1", GROUPS, cache.getGeneration());
+        assertTrue(cache.isFresh("User1"));
+
+        // stale groups are served till computed again
+        cache.markStale();
+        assertFalse(cache.isFresh("User1"));
+        assertEquals(GROUPS, cache.get("User1"));
+        cache.put("User1", Arrays.asList("Grp1"), cache.getGeneration());
+        assertTrue(cache.isFresh("User1"));
+        assertEquals(Arrays.asList("Grp1"), cache.get("User1"));
+    }
+
+    @Test
+    public void testEvictionAndExpiration() throws Exception {
+        ComputedGroupsCache cache = new ComputedGroupsCache(2, 1) {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+        };
+        cache.put("User1", GROUPS, cache.getGeneration());
+        cache.put("User2", GROUPS, cache.getGeneration());
+        cache.get("User1");
+        cache.put("User3", GROUPS, cache.getGeneration());
+        assertEquals(2, cache.size());
+        // User2 was the least recently used one
+        assertNull(cache.get("User2"));
+        assertEquals(GROUPS, cache.get("User1"));
+
+        now += TimeUnit.MILLISECONDS.toNanos(999);
+        assertTrue(cache.isFresh("User1"));
+        now += TimeUnit.MILLISECONDS.toNanos(2);
+        assertFalse(cache.isFresh("User1"));
+        assertNull(cache.get("User1"));
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.computedgroups.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.core.test.TransactionalFeature;
+import org.nuxeo.ecm.platform.computedgroups.ComputedGroupsService;
+import org.nuxeo.ecm.platform.computedgroups.ComputedGroupsServiceImpl;
+import org.nuxeo.ecm.platform.computedgroups.DocumentGroupComputer;
+import org.nuxeo.ecm.platform.usermanager.NuxeoPrincipalImpl;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.LocalDeploy;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+import com.google.inject.Inject;
+
+/**
+ * Checks that the cached groups computed from documents follow the changes of
+ * these documents.
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ TransactionalFeature.class, CoreFeature.class })
+@Deploy({ "org.nuxeo.ecm.directory.api", "org.nuxeo.ecm.directory",
+        "org.nuxeo.ecm.platform.usermanager.api",
+        "org.nuxeo.ecm.platform.usermanager" })
+@LocalDeploy("org.nuxeo.ecm.platform.usermanager.tests:documentmetadata-computedgroups-contrib.xml")
+public class TestDocumentMetadataGroupComputer {
+
+    @Inject
+    protected CoreSession session;
+
+    protected ComputedGroupsServiceImpl cgs;
+
+    @Before
+    public void setUp() throws Exception {
+        cgs = (ComputedGroupsServiceImpl) Framework.getLocalService(ComputedGroupsService.class);
+    }
+
+    protected DocumentGroupComputer getComputer() throws Exception {
+        return (DocumentGroupComputer) cgs.getComputerDescriptors().get(0).getComputer();
+    }
+
+    protected DocumentModel createFile(String name, String creator,
+            String title) throws Exception {
+        DocumentModel doc = session.createDocumentModel("/", name, "File");
+        doc.setPropertyValue("dc:creator", creator);
+        doc.setPropertyValue("dc:title", title);
+        doc = session.createDocument(doc);
+        session.save();
+        return doc;
+    }
+
+    protected void nextTransaction() {
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+    }
+
+    @Test
+    public void testIsAffectedBy() throws Exception {
+        DocumentGroupComputer computer = getComputer();
+
+        // new documents only matter if they give a group
+        DocumentModel doc = session.createDocumentModel("/", "untitled",
+                "File");
+        doc.setPropertyValue("dc:creator", "carol");
+        assertFalse(computer.isAffectedBy(doc, false));
+        doc.setPropertyValue("dc:title", "alpha");
+        assertTrue(computer.isAffectedBy(doc, false));
+
+        doc = createFile("file", "carol", "alpha");
+        doc = session.getDocument(doc.getRef());
+        assertFalse(computer.isAffectedBy(doc, true));
+        doc.setPropertyValue("dc:description", "not watched");
+        assertFalse(computer.isAffectedBy(doc, true));
+        doc.setPropertyValue("dc:creator", "alice");
+        assertTrue(computer.isAffectedBy(doc, true));
+
+        doc = session.getDocument(doc.getRef());
+        doc.setPropertyValue("dc:title", "beta");
+        assertTrue(computer.isAffectedBy(doc, true));
+
+        // the group given by the old value goes away
+        doc = session.getDocument(doc.getRef());
+        doc.setPropertyValue("dc:title", null);
+        assertTrue(computer.isAffectedBy(doc, true));
+
+        // documents without title never give a group
+        doc = createFile("untitled", "carol", null);
+        doc = session.getDocument(doc.getRef());
+        doc.setPropertyValue("dc:creator", "alice");
+        assertFalse(computer.isAffectedBy(doc, true));
+    }
+
+    @Test
+    public void testGroupsFollowDocumentChanges() throws Exception {
+        NuxeoPrincipalImpl bob = new NuxeoPrincipalImpl("bob");
+        assertEquals(Collections.emptyList(), cgs.computeGroupsForUser(bob));
+
+        DocumentModel doc = createFile("file", "bob", "alpha");
+        nextTransaction();
+        assertEquals(Arrays.asList("title_alpha"),
+                cgs.computeGroupsForUser(bob));
+
+        // modify the watched xpath, the groups computed before the commit
+        // may come from the old state and are invalidated again after it
+        doc = session.getDocument(doc.getRef());
+        doc.setPropertyValue("dc:title", "beta");
+        session.saveDocument(doc);
+        session.save();
+        cgs.computeGroupsForUser(bob);
+        nextTransaction();
+        assertEquals(Arrays.asList("title_beta"),
+                cgs.computeGroupsForUser(bob));
+
+        // removing the document removes its group
+        session.removeDocument(doc.getRef());
+        session.save();
+        nextTransaction();
+        assertEquals(Collections.emptyList(), cgs.computeGroupsForUser(bob));
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.runtime.test.NXRuntimeTestCase;
+
+public class TestPrincipalCache extends NXRuntimeTestCase {
+
+    protected static class CountingSource implements
+            PrincipalCache.PrincipalSource {
+
+        protected final AtomicInteger loads = new AtomicInteger();
+
+        protected CountDownLatch latch;
+
+        @Override
+        public NuxeoPrincipal getPrincipalFromSource(String username)
+                throws ClientException {
+            loads.incrementAndGet();
+            if (latch != null) {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new ClientException(e);
+                }
+            }
+            if (username.startsWith("missing")) {
+                return null;
+            }
+            NuxeoPrincipalImpl principal = new NuxeoPrincipalImpl(username,
+                    false, false, false);
+            principal.setVirtualGroups(Arrays.asList("members"), false);
+            principal.allGroups = new ArrayList<String>(
+                    Arrays.asList("members"));
+            return principal;
+        }
+    }
+
+    protected PrincipalCache cache;
+
+    protected CountingSource source;
+
+    // time seen by the cache, in nanoseconds
+    protected long now;
+
+    protected PrincipalCache newCache(int maxSize, int timeout) {
+        return new PrincipalCache(maxSize, timeout) {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+        };
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        deployBundle("org.nuxeo.ecm.core.schema");
+        deployBundle("org.nuxeo.ecm.core");
+        deployBundle("org.nuxeo.ecm.directory.types.contrib");
+        cache = newCache(100, 0);
+        source = new CountingSource();
+    }
+
+    @Test
+    public void testHitsAndCopies() throws Exception {
+        NuxeoPrincipal p1 = cache.getPrincipal(null, "bob", source);
+        NuxeoPrincipal p2 = cache.getPrincipal(null, "bob", source);
+        assertEquals(1, source.loads.get());
+        assertNotSame(p1, p2);
+        assertEquals("bob", p2.getName());
+
+        // changing a principal does not change the cached one
+        p1.setFirstName("Robert");
+        ((NuxeoPrincipalImpl) p1).allGroups.add("administrators");
+        NuxeoPrincipal p3 = cache.getPrincipal(null, "bob", source);
+        assertNull(p3.getFirstName());
+        assertEquals(Arrays.asList("members"), p3.getAllGroups());
+
+        // tenants are cached separately
+        cache.getPrincipal("userDirectory_tenanta", "bob", source);
+        assertEquals(2, source.loads.get());
+        assertEquals(2, cache.size());
+
+        // missing users are not cached
+        assertNull(cache.getPrincipal(null, "missing", source));
+        assertNull(cache.getPrincipal(null, "missing", source));
+        assertEquals(4, source.loads.get());
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        cache.getPrincipal(null, "bob", source);
+        cache.getPrincipal("userDirectory_tenanta", "bob", source);
+        cache.getPrincipal(null, "alice", source);
+        cache.invalidate("bob");
+        assertEquals(1, cache.size());
+        cache.getPrincipal(null, "alice", source);
+        assertEquals(3, source.loads.get());
+        cache.getPrincipal(null, "bob", source);
+        assertEquals(4, source.loads.get());
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        cache.getPrincipal(null, "alice", source);
+        assertEquals(5, source.loads.get());
+    }
+
+    @Test
+    public void testEvictionAndExpiration() throws Exception {
+        cache = newCache(2, 1);
+        cache.getPrincipal(null, "u1", source);
+        cache.getPrincipal(null, "u2", source);
+        cache.getPrincipal(null, "u1", source);
+        cache.getPrincipal(null, "u3", source);
+        assertEquals(2, cache.size());
+        // u2 was the least recently used one
+        cache.getPrincipal(null, "u1", source);
+        assertEquals(3, source.loads.get());
+        cache.getPrincipal(null, "u2", source);
+        assertEquals(4, source.loads.get());
+
+        now += TimeUnit.MILLISECONDS.toNanos(999);
+        cache.getPrincipal(null, "u2", source);
+        assertEquals(4, source.loads.get());
+        now += TimeUnit.MILLISECONDS.toNanos(2);
+        cache.getPrincipal(null, "u2", source);
+        assertEquals(5, source.loads.get());
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        source.latch = new CountDownLatch(1);
+        int nbThreads = 10;
+        final CountDownLatch started = new CountDownLatch(nbThreads);
+        final List<NuxeoPrincipal> results = Collections.synchronizedList(new ArrayList<NuxeoPrincipal>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < nbThreads; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        results.add(cache.getPrincipal(null, "bob", source));
+                    } catch (ClientException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        started.await(10, TimeUnit.SECONDS);
+        // give the threads a chance to register on the pending load
+        Thread.sleep(200);
+        source.latch.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals(nbThreads, results.size());
+        for (NuxeoPrincipal result : results) {
+            assertEquals("bob", result.getName());
+        }
+        assertEquals(1, source.loads.get());
+        assertEquals(1, cache.size());
+    }
+
+}
@@ -22,6 +22,7 @@ package org.nuxeo.ecm.platform.usermanager;
 import static org.junit.Assert.*;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -629,6 +630,66 @@ public class TestUserManager extends NXRuntimeTestCase {
         assertEquals(expectedUsersInGroup2, usersInGroupAndSubGroups2);
     }
 
+    @Test
+    public void testNestedGroupsAndRegrouping() throws Exception {
+        deleteTestObjects();
+
+        DocumentModel u1 = getUser("test_u1");
+        userManager.createUser(u1);
+        DocumentModel g1 = getGroup("test_g1");
+        DocumentModel g2 = getGroup("test_g2");
+        DocumentModel g3 = getGroup("test_g3");
+        g1.setProperty("group", "members", Arrays.asList("test_u1"));
+        userManager.createGroup(g1);
+        g2.setProperty("group", "subGroups", Arrays.asList("test_g1"));
+        userManager.createGroup(g2);
+        g3.setProperty("group", "subGroups", Arrays.asList("test_g2"));
+        userManager.createGroup(g3);
+
+        NuxeoPrincipal principal = userManager.getPrincipal("test_u1");
+        assertTrue(principal.isMemberOf("test_g2"));
+        assertTrue(principal.isMemberOf("test_g3"));
+        assertEquals(Arrays.asList("test_u1"),
+                userManager.getUsersInGroupAndSubGroups("test_g3"));
+
+        // detach test_g2 from test_g3
+        g3 = userManager.getGroupModel("test_g3");
+        g3.setProperty("group", "subGroups", new ArrayList<String>());
+        userManager.updateGroup(g3);
+
+        principal = userManager.getPrincipal("test_u1");
+        assertTrue(principal.isMemberOf("test_g2"));
+        assertFalse(principal.isMemberOf("test_g3"));
+        assertTrue(userManager.getUsersInGroupAndSubGroups("test_g3").isEmpty());
+    }
+
+    @Test
+    public void testPrincipalCacheInvalidation() throws Exception {
+        deleteTestObjects();
+        DocumentModel user = getUser("test_u1");
+        user.setProperty("user", "firstName", "fname1");
+        userManager.createUser(user);
+
+        NuxeoPrincipal p1 = userManager.getPrincipal("test_u1");
+        NuxeoPrincipal p2 = userManager.getPrincipal("test_u1");
+        assertNotSame(p1, p2);
+        p1.setFirstName("changed");
+        assertEquals("fname1", userManager.getPrincipal("test_u1").getFirstName());
+
+        // user change
+        user = userManager.getUserModel("test_u1");
+        user.setProperty("user", "firstName", "fname2");
+        userManager.updateUser(user);
+        assertEquals("fname2", userManager.getPrincipal("test_u1").getFirstName());
+
+        // group change
+        assertFalse(userManager.getPrincipal("test_u1").isMemberOf("test_g1"));
+        DocumentModel g1 = getGroup("test_g1");
+        g1.setProperty("group", "members", Arrays.asList("test_u1"));
+        userManager.createGroup(g1);
+        assertTrue(userManager.getPrincipal("test_u1").isMemberOf("test_g1"));
+    }
+
     @Test
     public void testDeletePrincipal() throws Exception {
         deleteTestObjects();
@@ -1046,6 +1107,36 @@ public class TestUserManager extends NXRuntimeTestCase {
                 users);
     }
 
+    /**
+     * Testing getUsernamesForPermission after the users of a group changed.
+     */
+    @Test
+    public void testGetUsernamesForPermissionAfterGroupUpdate()
+            throws Exception {
+        initTestGetUsernamesForPermission();
+
+        ACPImpl acp = new ACPImpl();
+        ACLImpl acl = new ACLImpl();
+        acl.add(new ACE("group3", SecurityConstants.READ, true));
+        acl.add(new ACE("stef", SecurityConstants.READ, true));
+        acl.add(new ACE("group2", SecurityConstants.READ, false));
+        acp.addACL(acl);
+
+        List<String> users = Arrays.asList(userManager.getUsersForPermission(
+                SecurityConstants.READ, acp));
+        Collections.sort(users);
+        assertEquals(Arrays.asList("jdoe", "stef"), users);
+
+        // stef is now denied through group2
+        DocumentModel g2 = userManager.getGroupModel("group2");
+        g2.setProperty("group", "members",
+                Arrays.asList("alex", "bree", "stef"));
+        userManager.updateGroup(g2);
+        users = Arrays.asList(userManager.getUsersForPermission(
+                SecurityConstants.READ, acp));
+        assertEquals(Arrays.asList("jdoe"), users);
+    }
+
     @Test
     public void testUsersAndGroupsWithSpaces() throws Exception {
 
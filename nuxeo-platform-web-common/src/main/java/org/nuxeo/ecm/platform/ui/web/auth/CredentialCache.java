@@ -0,0 +1,331 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.auth;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.login.LoginContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.platform.api.login.UserIdentificationInfo;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * Cache of the credentials recently verified by the
+ * {@link NuxeoAuthenticationFilter} for stateless authentication, so that
+ * requests presenting the same credentials reuse the authenticated principal
+ * instead of logging in again against the directories.
+ * <p>
+ * The cache is disabled unless the {@value #MAX_SIZE_PROPERTY} property is
+ * set. Passwords are never stored: entries keep a SHA-256 hash of the password
+ * salted with a random secret generated for this cache. Entries expire after
+ * {@value #TIMEOUT_PROPERTY} seconds and are dropped as soon as the user
+ * manager notifies a change of the user or of a group.
+ *
+ * @since 5.8
+ */
+public class CredentialCache {
+
+    private static final Log log = LogFactory.getLog(CredentialCache.class);
+
+    /**
+     * Maximum number of verified credentials kept, 0 (the default) disables
+     * the cache.
+     */
+    public static final String MAX_SIZE_PROPERTY = "org.nuxeo.ecm.platform.ui.web.auth.credentialCache.maxSize";
+
+    /**
+     * Time in seconds verified credentials are kept.
+     */
+    public static final String TIMEOUT_PROPERTY = "org.nuxeo.ecm.platform.ui.web.auth.credentialCache.timeout";
+
+    public static final int DEFAULT_TIMEOUT = 30;
+
+    protected static final char KEY_SEPARATOR = '\0';
+
+    protected static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static volatile CredentialCache instance;
+
+    /**
+     * Returns the shared cache, configured from the framework properties.
+     */
+    public static CredentialCache getInstance() {
+        CredentialCache cache = instance;
+        if (cache == null) {
+            synchronized (CredentialCache.class) {
+                cache = instance;
+                if (cache == null) {
+                    cache = new CredentialCache(
+                            getIntProperty(MAX_SIZE_PROPERTY, 0),
+                            getIntProperty(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT));
+                    instance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    protected static int getIntProperty(String name, int defaultValue) {
+        if (Framework.getRuntime() == null) {
+            return defaultValue;
+        }
+        String value = Framework.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.error("Invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * A verified credential.
+     */
+    public static class Entry {
+
+        protected final byte[] passwordHash;
+
+        protected final Principal principal;
+
+        protected final LoginContext loginContext;
+
+        // nanoTime() based expiration
+        protected final long expiration;
+
+        protected Entry(byte[] passwordHash, Principal principal,
+                LoginContext loginContext, long expiration) {
+            this.passwordHash = passwordHash;
+            this.principal = principal;
+            this.loginContext = loginContext;
+            this.expiration = expiration;
+        }
+
+        public Principal getPrincipal() {
+            return principal;
+        }
+
+        public LoginContext getLoginContext() {
+            return loginContext;
+        }
+
+        protected boolean isExpired(long now) {
+            return now - expiration > 0;
+        }
+    }
+
+    protected final int maxSize;
+
+    protected final int timeout;
+
+    protected final byte[] salt = new byte[32];
+
+    protected final Map<String, Entry> entries;
+
+    /**
+     * Incremented on each invalidation, so that credentials verified before
+     * an invalidation are not stored.
+     */
+    protected long generation;
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final Counter hitCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "authentication", "credential-cache", "hits"));
+
+    protected final Counter missCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "authentication", "credential-cache", "misses"));
+
+    protected final Counter invalidationCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "authentication", "credential-cache",
+            "invalidations"));
+
+    /**
+     * @param maxSize the maximum number of verified credentials kept, 0 to
+     *            disable the cache
+     * @param timeout the time in seconds verified credentials are kept, a
+     *            value lower or equal to 0 means the default time out
+     */
+    public CredentialCache(int maxSize, int timeout) {
+        this.maxSize = maxSize;
+        this.timeout = timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+        new SecureRandom().nextBytes(salt);
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > CredentialCache.this.maxSize;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Returns the current time in nanoseconds used for expiration,
+     * {@link System#nanoTime()} by default.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Checks whether the given identification can be cached: only user name
+     * and password credentials are.
+     */
+    public boolean isCacheable(UserIdentificationInfo userInfo) {
+        return isEnabled() && userInfo != null
+                && userInfo.getUserName() != null
+                && userInfo.getPassword() != null;
+    }
+
+    protected String getKey(String securityDomain,
+            UserIdentificationInfo userInfo) {
+        StringBuilder key = new StringBuilder();
+        key.append(securityDomain).append(KEY_SEPARATOR);
+        if (userInfo.getLoginPluginName() != null) {
+            key.append(userInfo.getLoginPluginName());
+        }
+        key.append(KEY_SEPARATOR).append(userInfo.getUserName());
+        return key.toString();
+    }
+
+    protected byte[] hash(String password) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update(salt);
+        return digest.digest(password.getBytes(UTF_8));
+    }
+
+    /**
+     * Returns the verified credential matching the given identification, or
+     * {@code null} if there is none.
+     */
+    public Entry get(String securityDomain, UserIdentificationInfo userInfo) {
+        if (!isCacheable(userInfo)) {
+            return null;
+        }
+        String key = getKey(securityDomain, userInfo);
+        byte[] passwordHash = hash(userInfo.getPassword());
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.isExpired(nanoTime())) {
+                entries.remove(key);
+                entry = null;
+            }
+            // a different password is a miss, the entry is kept for the
+            // requests presenting the right one
+            if (entry != null
+                    && MessageDigest.isEqual(entry.passwordHash, passwordHash)) {
+                hitCount.inc();
+                return entry;
+            }
+        }
+        missCount.inc();
+        return null;
+    }
+
+    /**
+     * Returns the current generation, to be passed to
+     * {@link #put(String, UserIdentificationInfo, Principal, LoginContext, long)}
+     * once the credentials are verified.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Stores verified credentials, unless an invalidation occurred since the
+     * given generation.
+     */
+    public void put(String securityDomain, UserIdentificationInfo userInfo,
+            Principal principal, LoginContext loginContext, long generation) {
+        if (!isCacheable(userInfo) || principal == null) {
+            return;
+        }
+        String key = getKey(securityDomain, userInfo);
+        byte[] passwordHash = hash(userInfo.getPassword());
+        long expiration = nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        synchronized (this) {
+            if (generation == this.generation) {
+                entries.put(key, new Entry(passwordHash, principal,
+                        loginContext, expiration));
+            }
+        }
+    }
+
+    /**
+     * Drops the credentials of the given user, for instance after a password
+     * change or a deletion.
+     */
+    public synchronized void invalidate(String username) {
+        generation++;
+        invalidationCount.inc();
+        if (username == null) {
+            return;
+        }
+        String suffix = KEY_SEPARATOR + username;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> mapEntry = it.next();
+            String key = mapEntry.getKey();
+            if (key.regionMatches(true, key.length() - suffix.length(),
+                    suffix, 0, suffix.length())
+                    || username.equalsIgnoreCase(mapEntry.getValue().principal.getName())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all the credentials, for instance after a group change.
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        invalidationCount.inc();
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+}
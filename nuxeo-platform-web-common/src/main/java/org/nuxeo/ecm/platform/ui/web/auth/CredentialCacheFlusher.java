@@ -0,0 +1,54 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.auth;
+
+import org.nuxeo.runtime.services.event.Event;
+import org.nuxeo.runtime.services.event.EventListener;
+
+/**
+ * Listens to the user manager changes to drop the verified credentials of the
+ * {@link CredentialCache}: the credentials of a user when it is modified or
+ * deleted, and all of them when a group changes.
+ *
+ * @since 5.8
+ */
+public class CredentialCacheFlusher implements EventListener {
+
+    public static final String USERCHANGED_EVENT_ID = "user_changed";
+
+    public static final String GROUPCHANGED_EVENT_ID = "group_changed";
+
+    @Override
+    public boolean aboutToHandleEvent(Event event) {
+        return false;
+    }
+
+    @Override
+    public void handleEvent(Event event) {
+        CredentialCache cache = CredentialCache.getInstance();
+        if (!cache.isEnabled()) {
+            return;
+        }
+        String eventId = event.getId();
+        if (USERCHANGED_EVENT_ID.equals(eventId)) {
+            cache.invalidate((String) event.getData());
+        } else if (GROUPCHANGED_EVENT_ID.equals(eventId)) {
+            cache.invalidateAll();
+        }
+    }
+
+}
@@ -46,6 +46,7 @@ import java.security.Principal;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -88,6 +89,7 @@ import org.nuxeo.ecm.platform.ui.web.auth.service.AuthenticationPluginDescriptor
 import org.nuxeo.ecm.platform.ui.web.auth.service.NuxeoAuthFilterChain;
 import org.nuxeo.ecm.platform.ui.web.auth.service.OpenUrlDescriptor;
 import org.nuxeo.ecm.platform.ui.web.auth.service.PluggableAuthenticationService;
+import org.nuxeo.ecm.platform.usermanager.NuxeoPrincipalImpl;
 import org.nuxeo.ecm.platform.usermanager.UserManager;
 import org.nuxeo.ecm.platform.web.common.session.NuxeoHttpSessionMonitor;
 import org.nuxeo.runtime.api.Framework;
@@ -127,6 +129,34 @@ public class NuxeoAuthenticationFilter implements Filter {
 
     protected static Boolean isLoginSynchronized;
 
+    /**
+     * Property making synchronized logins only serialize the logins of a same
+     * user name instead of all of them. Only safe if the login modules don't
+     * share state between users.
+     *
+     * @since 5.8
+     */
+    public static final String LOGIN_LOCK_PER_USER_PROPERTY = "org.nuxeo.ecm.platform.ui.web.auth.NuxeoAuthenticationFilter.isLoginLockPerUser";
+
+    protected static Boolean isLoginLockPerUser;
+
+    /**
+     * Number of locks used when login is synchronized per user: logins of a
+     * same user name are serialized, logins of different user names mostly
+     * run concurrently.
+     *
+     * @since 5.8
+     */
+    protected static final int LOGIN_LOCK_STRIPES = 64;
+
+    protected static final Object[] loginLocks = new Object[LOGIN_LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < LOGIN_LOCK_STRIPES; i++) {
+            loginLocks[i] = new Object();
+        }
+    }
+
     /** Used internally as a marker. */
     protected static final Principal DIRECTORY_ERROR_PRINCIPAL = new PrincipalImpl(
             "__DIRECTORY_ERROR__\0\0\0");
@@ -273,22 +303,112 @@ public class NuxeoAuthenticationFilter implements Filter {
             return isLoginSynchronized = !Boolean.parseBoolean(Framework.getProperty("org.nuxeo.ecm.platform.ui.web.auth.NuxeoAuthenticationFilter.isLoginNotSynchronized", "true"));
         }
     }
+    /**
+     * Returns the credential cache to use for the given identification, or
+     * {@code null} if it must not be cached. Only stateless authentications
+     * outside of an HTTP session use the cache.
+     *
+     * @since 5.8
+     */
+    protected CredentialCache getCredentialCache(
+            UserIdentificationInfo userInfo, HttpServletRequest httpRequest) {
+        CredentialCache credentialCache = CredentialCache.getInstance();
+        if (!credentialCache.isCacheable(userInfo)
+                || httpRequest.getSession(false) != null
+                || needSessionSaving(userInfo)) {
+            return null;
+        }
+        return credentialCache;
+    }
+
+    /**
+     * @since 5.8
+     */
+    protected static boolean isLoginLockPerUser() {
+        if (isLoginLockPerUser != null) {
+            return isLoginLockPerUser;
+        }
+        if (Framework.getRuntime() == null) {
+            return false;
+        }
+        synchronized (NuxeoAuthenticationFilter.class) {
+            if (isLoginLockPerUser != null) {
+                return isLoginLockPerUser;
+            }
+            return isLoginLockPerUser = Boolean.valueOf(Framework.isBooleanPropertyTrue(LOGIN_LOCK_PER_USER_PROPERTY));
+        }
+    }
+
+    /**
+     * Returns the lock serializing the logins of the given user name: a
+     * global lock by default, as login modules may share state between users
+     * (JAAS or {@link ClientLoginModule} stacks of the container), or a lock
+     * per user name if {@value #LOGIN_LOCK_PER_USER_PROPERTY} is true.
+     *
+     * @since 5.8
+     */
+    protected static Object getLoginLock(String username) {
+        if (!isLoginLockPerUser()) {
+            return NuxeoAuthenticationFilter.class;
+        }
+        int hash = username == null ? 0
+                : username.toLowerCase(Locale.ENGLISH).hashCode();
+        // spread the high bits, as user names often share a common prefix
+        hash ^= (hash >>> 16);
+        return loginLocks[(hash & Integer.MAX_VALUE) % LOGIN_LOCK_STRIPES];
+    }
+
+    /**
+     * Logs in the given login context, serializing the logins when login is
+     * synchronized, see {@link #getLoginLock(String)}.
+     *
+     * @since 5.8
+     */
+    protected static void login(LoginContext loginContext, String username)
+            throws LoginException {
+        if (isLoginSynchronized()) {
+            synchronized (getLoginLock(username)) {
+                loginContext.login();
+            }
+        } else {
+            loginContext.login();
+        }
+    }
+
     protected Principal doAuthenticate(
             CachableUserIdentificationInfo cachableUserIdent,
             HttpServletRequest httpRequest) {
 
+        CredentialCache credentialCache = getCredentialCache(
+                cachableUserIdent.getUserInfo(), httpRequest);
+        long credentialCacheGeneration = 0;
+        UserIdentificationInfo verifiedUserInfo = null;
+        if (credentialCache != null) {
+            CredentialCache.Entry entry = credentialCache.get(securityDomain,
+                    cachableUserIdent.getUserInfo());
+            if (entry != null) {
+                try {
+                    return doAuthenticateFromCache(cachableUserIdent, entry,
+                            httpRequest);
+                } catch (ClientException e) {
+                    log.debug("Cannot copy cached principal, "
+                            + "authenticating again", e);
+                }
+            }
+            credentialCacheGeneration = credentialCache.getGeneration();
+            // keep the presented credentials, the user name is replaced by
+            // the principal name after login
+            verifiedUserInfo = new UserIdentificationInfo(
+                    cachableUserIdent.getUserInfo());
+            verifiedUserInfo.setLoginPluginName(cachableUserIdent.getUserInfo().getLoginPluginName());
+        }
+
         LoginContext loginContext;
         try {
             CallbackHandler handler = service.getCallbackHandler(cachableUserIdent.getUserInfo());
             loginContext = new LoginContext(securityDomain, handler);
 
-            if (isLoginSynchronized()) {
-                synchronized (NuxeoAuthenticationFilter.class) {
-                    loginContext.login();
-                }
-            } else {
-                loginContext.login();
-            }
+            login(loginContext, cachableUserIdent.getUserInfo().getUserName());
 
             Principal principal = (Principal) loginContext.getSubject().getPrincipals().toArray()[0];
             cachableUserIdent.setPrincipal(principal);
@@ -298,6 +418,11 @@ public class NuxeoAuthenticationFilter implements Filter {
             cachableUserIdent.getUserInfo().setUserName(principal.getName());
 
             logAuthenticationAttempt(cachableUserIdent.getUserInfo(), true);
+
+            if (credentialCache != null) {
+                credentialCache.put(securityDomain, verifiedUserInfo,
+                        principal, loginContext, credentialCacheGeneration);
+            }
         } catch (LoginException e) {
             log.info("Login failed for "
                     + cachableUserIdent.getUserInfo().getUserName());
@@ -327,6 +452,32 @@ public class NuxeoAuthenticationFilter implements Filter {
         return cachableUserIdent.getPrincipal();
     }
 
+    /**
+     * Authenticates with credentials already verified by a previous request,
+     * without going through the login modules. Each request gets its own copy
+     * of the cached principal, which is mutable.
+     *
+     * @since 5.8
+     */
+    protected Principal doAuthenticateFromCache(
+            CachableUserIdentificationInfo cachableUserIdent,
+            CredentialCache.Entry entry, HttpServletRequest httpRequest)
+            throws ClientException {
+        Principal principal = entry.getPrincipal();
+        if (principal instanceof NuxeoPrincipal) {
+            principal = NuxeoPrincipalImpl.copy((NuxeoPrincipal) principal);
+        }
+        cachableUserIdent.setPrincipal(principal);
+        cachableUserIdent.setAlreadyAuthenticated(true);
+        cachableUserIdent.getUserInfo().setUserName(principal.getName());
+        cachableUserIdent.setLoginContext(entry.getLoginContext());
+        logAuthenticationAttempt(cachableUserIdent.getUserInfo(), true);
+        httpRequest.setAttribute(LOGINCONTEXT_KEY, entry.getLoginContext());
+        service.onAuthenticatedSessionCreated(httpRequest, null,
+                cachableUserIdent);
+        return principal;
+    }
+
     private boolean switchUser(ServletRequest request,
             ServletResponse response, FilterChain chain) throws IOException {
         HttpServletRequest httpRequest = (HttpServletRequest) request;
@@ -1117,13 +1268,7 @@ public class NuxeoAuthenticationFilter implements Filter {
         LoginContext loginContext = new LoginContext(LOGIN_DOMAIN,
                 callbackHandler);
 
-        if (isLoginSynchronized()) {
-            synchronized (NuxeoAuthenticationFilter.class) {
-                loginContext.login();
-            }
-        } else {
-            loginContext.login();
-        }
+        login(loginContext, username);
         return loginContext;
     }
 
@@ -0,0 +1,248 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.download;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.runtime.model.ComponentInstance;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+/**
+ * Default implementation of the {@link BlobETagService}, asking the
+ * contributed strategies in order.
+ *
+ * @since 5.8
+ */
+public class BlobETagComponent extends DefaultComponent implements
+        BlobETagService {
+
+    private static final Log log = LogFactory.getLog(BlobETagComponent.class);
+
+    public static final String STRATEGIES_EP = "strategies";
+
+    protected final Map<String, BlobETagStrategyDescriptor> descriptors = new LinkedHashMap<String, BlobETagStrategyDescriptor>();
+
+    protected volatile List<BlobETagStrategy> strategies = Collections.emptyList();
+
+    @Override
+    public void registerContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor)
+            throws Exception {
+        if (STRATEGIES_EP.equals(extensionPoint)) {
+            BlobETagStrategyDescriptor desc = (BlobETagStrategyDescriptor) contribution;
+            synchronized (descriptors) {
+                BlobETagStrategyDescriptor existing = descriptors.get(desc.getName());
+                if (existing != null) {
+                    existing.merge(desc);
+                } else {
+                    descriptors.put(desc.getName(), desc);
+                }
+                strategies = computeStrategies();
+            }
+        }
+    }
+
+    @Override
+    public void unregisterContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor)
+            throws Exception {
+        if (STRATEGIES_EP.equals(extensionPoint)) {
+            BlobETagStrategyDescriptor desc = (BlobETagStrategyDescriptor) contribution;
+            synchronized (descriptors) {
+                descriptors.remove(desc.getName());
+                strategies = computeStrategies();
+            }
+        }
+    }
+
+    protected List<BlobETagStrategy> computeStrategies() {
+        List<BlobETagStrategyDescriptor> enabled = new ArrayList<BlobETagStrategyDescriptor>();
+        for (BlobETagStrategyDescriptor desc : descriptors.values()) {
+            if (desc.isEnabled()) {
+                enabled.add(desc);
+            }
+        }
+        Collections.sort(enabled, new Comparator<BlobETagStrategyDescriptor>() {
+            @Override
+            public int compare(BlobETagStrategyDescriptor d1,
+                    BlobETagStrategyDescriptor d2) {
+                int o1 = d1.getOrder();
+                int o2 = d2.getOrder();
+                return o1 < o2 ? -1 : (o1 == o2 ? 0 : 1);
+            }
+        });
+        List<BlobETagStrategy> list = new ArrayList<BlobETagStrategy>(
+                enabled.size());
+        for (BlobETagStrategyDescriptor desc : enabled) {
+            list.add(desc.newStrategy());
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    public List<BlobETagStrategy> getStrategies() {
+        return strategies;
+    }
+
+    @Override
+    public String getETag(Blob blob) {
+        if (blob == null) {
+            return null;
+        }
+        for (BlobETagStrategy strategy : strategies) {
+            try {
+                String etag = strategy.getETag(blob);
+                if (etag != null) {
+                    return etag;
+                }
+            } catch (IOException e) {
+                log.warn("Cannot compute ETag using " + strategy + ": "
+                        + e.getMessage());
+                log.debug(e, e);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long getLastModified(Blob blob) {
+        if (blob == null) {
+            return -1;
+        }
+        for (BlobETagStrategy strategy : strategies) {
+            long lastModified = strategy.getLastModified(blob);
+            if (lastModified >= 0) {
+                return lastModified;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean checkNotModified(HttpServletRequest req,
+            HttpServletResponse resp, Blob blob) throws IOException {
+        return checkNotModified(req, resp, getETag(blob),
+                getLastModified(blob));
+    }
+
+    @Override
+    public boolean checkNotModified(HttpServletRequest req,
+            HttpServletResponse resp, String etag, long lastModified)
+            throws IOException {
+        if (etag != null) {
+            resp.setHeader("ETag", quote(etag));
+        }
+        if (lastModified >= 0) {
+            resp.setDateHeader("Last-Modified", lastModified);
+        }
+        boolean notModified;
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // takes precedence over If-Modified-Since
+            notModified = isETagMatching(ifNoneMatch, etag);
+        } else {
+            notModified = isNotModifiedSince(getDateHeader(req,
+                    "If-Modified-Since"), lastModified);
+        }
+        if (notModified) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return notModified;
+    }
+
+    /**
+     * Returns the value of the {@code ETag} header for the entity tag, weak
+     * tags keeping their prefix outside the quotes.
+     */
+    public static String quote(String etag) {
+        if (etag.startsWith(WEAK_PREFIX)) {
+            return WEAK_PREFIX + '"' + etag.substring(WEAK_PREFIX.length())
+                    + '"';
+        }
+        return '"' + etag + '"';
+    }
+
+    /**
+     * Checks whether an {@code If-None-Match} header matches the entity tag,
+     * using the weak comparison.
+     */
+    public static boolean isETagMatching(String ifNoneMatch, String etag) {
+        if (etag == null) {
+            return false;
+        }
+        if (etag.startsWith(WEAK_PREFIX)) {
+            etag = etag.substring(WEAK_PREFIX.length());
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if ("*".equals(tag)) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.length() > 1 && tag.startsWith("\"") && tag.endsWith("\"")) {
+                tag = tag.substring(1, tag.length() - 1);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the content was not modified since the date of an
+     * {@code If-Modified-Since} header, dates having a one second precision.
+     */
+    public static boolean isNotModifiedSince(long ifModifiedSince,
+            long lastModified) {
+        if (ifModifiedSince < 0 || lastModified < 0) {
+            return false;
+        }
+        return lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    protected static long getDateHeader(HttpServletRequest req, String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            // not a date
+            return -1;
+        }
+    }
+
+    @Override
+    public <T> T getAdapter(Class<T> adapter) {
+        if (BlobETagService.class.equals(adapter)) {
+            return adapter.cast(this);
+        }
+        return super.getAdapter(adapter);
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.download;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Service computing validators for blobs and answering conditional requests
+ * ({@code If-None-Match} and {@code If-Modified-Since}), so that servlets
+ * serving blobs do not send content the client already has.
+ *
+ * @since 5.8
+ */
+public interface BlobETagService {
+
+    /**
+     * Prefix of weak entity tags, which cannot be used for byte ranges.
+     */
+    String WEAK_PREFIX = "W/";
+
+    /**
+     * Returns an entity tag for the content of the blob, without quotes, or
+     * {@code null} if no strategy applies to the blob. Weak tags are
+     * prefixed with {@link #WEAK_PREFIX}.
+     */
+    String getETag(Blob blob);
+
+    /**
+     * Returns the last modification time of the blob in milliseconds, or
+     * {@code -1} if unknown.
+     */
+    long getLastModified(Blob blob);
+
+    /**
+     * Sets the {@code ETag} and {@code Last-Modified} headers of the response
+     * for the blob, and answers with a {@code 304 Not Modified} status if the
+     * conditions of the request show that the client has the current
+     * content.
+     * <p>
+     * Must be called before anything is written to the response.
+     *
+     * @return {@code true} if the response is complete and the content must
+     *         not be sent
+     */
+    boolean checkNotModified(HttpServletRequest req, HttpServletResponse resp,
+            Blob blob) throws IOException;
+
+    /**
+     * Same as {@link #checkNotModified(HttpServletRequest, HttpServletResponse, Blob)}
+     * with validators already computed, {@code null} and {@code -1} standing
+     * for missing ones.
+     */
+    boolean checkNotModified(HttpServletRequest req, HttpServletResponse resp,
+            String etag, long lastModified) throws IOException;
+
+}
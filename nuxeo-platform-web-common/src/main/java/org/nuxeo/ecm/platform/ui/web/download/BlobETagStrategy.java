@@ -0,0 +1,54 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.download;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Computes the validators of a blob, used to answer conditional requests.
+ * <p>
+ * Strategies are contributed to the {@link BlobETagService}, which asks them
+ * in order until one applies to the blob.
+ *
+ * @since 5.8
+ */
+public interface BlobETagStrategy {
+
+    /**
+     * Initializes the strategy with the properties of its contribution.
+     */
+    void init(Map<String, String> properties);
+
+    /**
+     * Returns an entity tag for the content of the blob, without quotes, or
+     * {@code null} if this strategy does not apply to the blob.
+     * <p>
+     * The tag must be prefixed with {@link BlobETagService#WEAK_PREFIX} if it
+     * does not change each time the content does.
+     */
+    String getETag(Blob blob) throws IOException;
+
+    /**
+     * Returns the last modification time of the blob in milliseconds, or
+     * {@code -1} if unknown.
+     */
+    long getLastModified(Blob blob);
+
+}
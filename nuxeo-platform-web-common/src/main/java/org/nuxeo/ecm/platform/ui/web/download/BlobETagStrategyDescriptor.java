@@ -0,0 +1,94 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.download;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XNodeMap;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Contribution of a {@link BlobETagStrategy}.
+ * <p>
+ * A contribution with the name of an existing one overrides it, keeping its
+ * class and order if not specified, and merging its properties.
+ *
+ * @since 5.8
+ */
+@XObject("strategy")
+public class BlobETagStrategyDescriptor {
+
+    @XNode("@name")
+    protected String name;
+
+    @XNode("@class")
+    protected Class<? extends BlobETagStrategy> klass;
+
+    @XNode("@order")
+    protected Integer order;
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    @XNodeMap(value = "property", key = "@name", type = HashMap.class, componentType = String.class)
+    protected Map<String, String> properties = new HashMap<String, String>();
+
+    public String getName() {
+        return name;
+    }
+
+    public int getOrder() {
+        return order == null ? 0 : order.intValue();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    public void merge(BlobETagStrategyDescriptor other) {
+        if (other.klass != null) {
+            klass = other.klass;
+        }
+        if (other.order != null) {
+            order = other.order;
+        }
+        enabled = other.enabled;
+        properties.putAll(other.properties);
+    }
+
+    public BlobETagStrategy newStrategy() {
+        if (klass == null) {
+            throw new RuntimeException("No class for ETag strategy " + name);
+        }
+        BlobETagStrategy strategy;
+        try {
+            strategy = klass.newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException("Cannot create ETag strategy " + name,
+                    e);
+        }
+        strategy.init(properties);
+        return strategy;
+    }
+
+}
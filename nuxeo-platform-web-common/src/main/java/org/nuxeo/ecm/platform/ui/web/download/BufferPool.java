@@ -0,0 +1,75 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.download;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of fixed-size byte buffers, to avoid allocating a new large
+ * buffer for each download.
+ * <p>
+ * When the pool is empty a new buffer is allocated, and buffers released
+ * while the pool is full are left to the garbage collector.
+ *
+ * @since 5.8
+ */
+public class BufferPool {
+
+    protected final int bufferSize;
+
+    protected final BlockingQueue<byte[]> buffers;
+
+    public BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        buffers = new ArrayBlockingQueue<byte[]>(maxBuffers);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Gets a buffer from the pool, allocating a new one if none is available.
+     * <p>
+     * The buffer must be given back using {@link #release} once done.
+     */
+    public byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = new byte[bufferSize];
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool.
+     */
+    public void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Returns the number of buffers available in the pool.
+     */
+    public int size() {
+        return buffers.size();
+    }
+
+}
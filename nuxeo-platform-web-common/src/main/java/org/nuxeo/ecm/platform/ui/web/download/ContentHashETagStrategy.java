@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Uses a hash of the content of the blob.
+ * <p>
+ * The hash is computed for each request and not cached: the blobs reaching
+ * this strategy are new instances for each request, and have no stable key
+ * other than their content. Repository and file blobs, which have one, are
+ * handled by the previous strategies.
+ * <p>
+ * As the content has to be read, only blobs up to the size given by the
+ * {@code maxSize} property are hashed, and only if they are persistent, so
+ * that their content can be read again when sent.
+ *
+ * @since 5.8
+ */
+public class ContentHashETagStrategy implements BlobETagStrategy {
+
+    public static final String MAX_SIZE_PROP = "maxSize";
+
+    public static final long DEFAULT_MAX_SIZE = 1024 * 1024; // 1 MB
+
+    protected static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    protected long maxSize = DEFAULT_MAX_SIZE;
+
+    @Override
+    public void init(Map<String, String> properties) {
+        String value = properties.get(MAX_SIZE_PROP);
+        if (value != null) {
+            maxSize = Long.parseLong(value.trim());
+        }
+    }
+
+    @Override
+    public String getETag(Blob blob) throws IOException {
+        long length = blob.getLength();
+        if (length < 0 || length > maxSize || !blob.isPersistent()) {
+            return null;
+        }
+        return computeHash(blob);
+    }
+
+    protected String computeHash(Blob blob) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] buffer = new byte[8192];
+        InputStream in = blob.getStream();
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return toHexString(digest.digest());
+    }
+
+    protected static String toHexString(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public long getLastModified(Blob blob) {
+        return -1;
+    }
+
+}
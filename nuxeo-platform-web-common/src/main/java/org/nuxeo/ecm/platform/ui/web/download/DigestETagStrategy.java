@@ -0,0 +1,52 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.download;
+
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.storage.sql.Binary;
+import org.nuxeo.ecm.core.storage.sql.coremodel.SQLBlob;
+
+/**
+ * Uses the digest of the binary of blobs stored in the repository.
+ *
+ * @since 5.8
+ */
+public class DigestETagStrategy implements BlobETagStrategy {
+
+    @Override
+    public void init(Map<String, String> properties) {
+    }
+
+    @Override
+    public String getETag(Blob blob) {
+        if (blob instanceof SQLBlob) {
+            Binary binary = ((SQLBlob) blob).getBinary();
+            if (binary != null) {
+                return binary.getDigest();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long getLastModified(Blob blob) {
+        return -1;
+    }
+
+}
@@ -19,13 +19,21 @@
 
 package org.nuxeo.ecm.platform.ui.web.download;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -46,6 +54,7 @@ import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
 import org.nuxeo.ecm.core.api.model.PropertyNotFoundException;
 import org.nuxeo.ecm.core.api.repository.Repository;
 import org.nuxeo.ecm.core.api.repository.RepositoryManager;
+import org.nuxeo.ecm.core.storage.sql.Binary;
 import org.nuxeo.ecm.core.storage.sql.coremodel.SQLBlob;
 import org.nuxeo.ecm.platform.web.common.ServletHelper;
 import org.nuxeo.ecm.platform.web.common.exceptionhandling.ExceptionHelper;
@@ -70,6 +79,22 @@ public class DownloadServlet extends HttpServlet {
 
     protected static final int MIN_BUFFER_SIZE = 1024 * 64;
 
+    /**
+     * Maximum number of ranges served for a request, the whole content is
+     * sent for more.
+     *
+     * @since 5.8
+     */
+    protected static final int MAX_RANGES = 32;
+
+    /**
+     * Buffers used to copy blobs to the response.
+     *
+     * @since 5.8
+     */
+    protected static final BufferPool BUFFER_POOL = new BufferPool(
+            BUFFER_SIZE, 16);
+
     protected static final Blob BLOB_NOT_FOUND = new StringBlob("404");
 
     private static final long serialVersionUID = 986876871L;
@@ -269,20 +294,13 @@ public class DownloadServlet extends HttpServlet {
 
     private void downloadBlob(HttpServletRequest req, HttpServletResponse resp,
             Blob blob, String fileName) throws IOException, ServletException {
-        InputStream in = blob.getStream();
         OutputStream out = resp.getOutputStream();
         try {
 
-            String digest = null;
-            if (blob instanceof SQLBlob) {
-                digest = ((SQLBlob) blob).getBinary().getDigest();
-            }
-
-            String previousToken = req.getHeader("If-None-Match");
-            if (previousToken != null && previousToken.equals(digest)) {
-                resp.sendError(HttpServletResponse.SC_NOT_MODIFIED);
-            } else {
-                resp.setHeader("ETag", digest);
+            BlobETagService etagService = Framework.getLocalService(BlobETagService.class);
+            String etag = etagService.getETag(blob);
+            long lastModified = etagService.getLastModified(blob);
+            if (!etagService.checkNotModified(req, resp, etag, lastModified)) {
                 if (fileName == null || fileName.length() == 0) {
                     if (blob.getFilename() != null
                             && blob.getFilename().length() > 0) {
@@ -299,31 +317,43 @@ public class DownloadServlet extends HttpServlet {
 
                 long fileSize = blob.getLength();
                 if (fileSize > 0) {
+                    resp.setHeader("Accept-Ranges", "bytes");
                     String range = req.getHeader("Range");
-                    ByteRange byteRange = null;
-                    if (range != null) {
+                    List<ByteRange> byteRanges = null;
+                    if (range != null
+                            && isIfRangeMatching(req.getHeader("If-Range"),
+                                    etag)) {
                         try {
-                            byteRange = parseRange(range, fileSize);
+                            byteRanges = parseRanges(range, fileSize);
                         } catch (ClientException e) {
-                            log.error(e.getMessage(), e);
+                            // invalid ranges are ignored
+                            log.debug(e.getMessage());
                         }
                     }
-                    if (byteRange != null) {
-                        resp.setHeader("Accept-Ranges", "bytes");
+                    if (byteRanges == null) {
+                        setContentLength(resp, fileSize);
+                        writeBlob(blob, out,
+                                Collections.singletonList(new ByteRange(0,
+                                        fileSize - 1)), null, fileSize);
+                    } else if (byteRanges.isEmpty()) {
+                        resp.setHeader("Content-Range", "bytes */" + fileSize);
+                        resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    } else if (byteRanges.size() == 1) {
+                        ByteRange byteRange = byteRanges.get(0);
                         resp.setHeader("Content-Range",
                                 "bytes " + byteRange.getStart() + "-"
                                         + byteRange.getEnd() + "/" + fileSize);
-                        long length = byteRange.getLength();
-                        if (length < Integer.MAX_VALUE) {
-                            resp.setContentLength((int) length);
-                        }
+                        setContentLength(resp, byteRange.getLength());
                         resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
-                        writeStream(in, out, byteRange);
+                        writeBlob(blob, out, byteRanges, null, fileSize);
                     } else {
-                        if (fileSize < Integer.MAX_VALUE) {
-                            resp.setContentLength((int) fileSize);
-                        }
-                        writeStream(in, out, new ByteRange(0, fileSize - 1));
+                        MultipartByteRanges multipart = new MultipartByteRanges(
+                                blob.getMimeType(), fileSize);
+                        resp.setContentType(multipart.getContentType());
+                        setContentLength(resp,
+                                multipart.getContentLength(byteRanges));
+                        resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                        writeBlob(blob, out, byteRanges, multipart, fileSize);
                     }
                 }
             }
@@ -340,12 +370,45 @@ public class DownloadServlet extends HttpServlet {
                     handleClientDisconnect(ioe);
                 }
             }
-            if (in != null) {
-                in.close();
-            }
         }
     }
 
+    protected static void setContentLength(HttpServletResponse resp,
+            long length) {
+        if (length < Integer.MAX_VALUE) {
+            resp.setContentLength((int) length);
+        } else {
+            resp.setHeader("Content-Length", String.valueOf(length));
+        }
+    }
+
+    /**
+     * Checks whether the ranges of a request can be served, given its
+     * {@code If-Range} header.
+     * <p>
+     * Only strong entity tags are used as validators, as modification dates
+     * only have a one second precision: an {@code If-Range} date or a weak tag
+     * never matches, and the whole content is sent.
+     *
+     * @since 5.8
+     */
+    public static boolean isIfRangeMatching(String ifRange, String etag) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith(BlobETagService.WEAK_PREFIX) || etag == null
+                || etag.startsWith(BlobETagService.WEAK_PREFIX)) {
+            // weak validators cannot be used for ranges
+            return false;
+        }
+        if (ifRange.length() > 1 && ifRange.startsWith("\"")
+                && ifRange.endsWith("\"")) {
+            ifRange = ifRange.substring(1, ifRange.length() - 1);
+        }
+        return ifRange.equals(etag);
+    }
+
     public void handleClientDisconnect(IOException ioe) throws IOException {
         if (ExceptionHelper.isClientAbortError(ioe)) {
             log.debug("Client disconnected: " + ioe.getMessage());
@@ -375,20 +438,184 @@ public class DownloadServlet extends HttpServlet {
         }
     }
 
-    public static void writeStream(InputStream in, OutputStream out,
-            ByteRange range) throws IOException {
+    /**
+     * Returns the local file holding the content of the blob, or {@code null}
+     * if the blob is not file-backed.
+     *
+     * @since 5.8
+     */
+    protected static File getFile(Blob blob) {
+        File file = null;
+        if (blob instanceof FileBlob) {
+            file = ((FileBlob) blob).getFile();
+        } else if (blob instanceof SQLBlob) {
+            Binary binary = ((SQLBlob) blob).getBinary();
+            if (binary != null) {
+                file = binary.getFile();
+            }
+        }
+        if (file == null || !file.isFile()
+                || file.length() != blob.getLength()) {
+            // not a plain copy of the content (compressed or remote store)
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Writes the given ranges of the blob, as a multipart body if a
+     * {@link MultipartByteRanges} is given.
+     * <p>
+     * File-backed blobs are read from the file channel at the range positions
+     * and transferred directly if the output stream is itself a channel.
+     * Other blobs are read from their stream, which is reopened if a range
+     * starts before the current position.
+     *
+     * @since 5.8
+     */
+    public static void writeBlob(Blob blob, OutputStream out,
+            List<ByteRange> ranges, MultipartByteRanges multipart,
+            long fileSize) throws IOException {
         BufferingServletOutputStream.stopBuffering(out);
-        byte[] buffer = new byte[BUFFER_SIZE];
-        long read;
-        long offset = range.getStart();
-        in.skip(offset);
-        while (offset <= range.getEnd() && (read = in.read(buffer)) != -1) {
-            read = Math.min(read, range.getEnd() - offset + 1);
-            out.write(buffer, 0, (int) read);
-            out.flush();
-            offset += BUFFER_SIZE;
+        File file = getFile(blob);
+        if (file != null) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                WritableByteChannel target = getChannel(out);
+                for (ByteRange range : ranges) {
+                    if (multipart != null) {
+                        multipart.writePartHeader(out, range);
+                    }
+                    if (target != null) {
+                        transferRange(channel, target, range);
+                    } else {
+                        copyRange(channel, out, range);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } else {
+            InputStream in = null;
+            long position = 0;
+            try {
+                for (ByteRange range : ranges) {
+                    if (multipart != null) {
+                        multipart.writePartHeader(out, range);
+                    }
+                    if (in == null || range.getStart() < position) {
+                        if (in != null) {
+                            in.close();
+                        }
+                        in = blob.getStream();
+                        position = 0;
+                    }
+                    skipFully(in, range.getStart() - position);
+                    copy(in, out, range.getLength());
+                    position = range.getEnd() + 1;
+                }
+            } finally {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+        if (multipart != null) {
+            multipart.writeEnd(out);
+        }
+    }
+
+    /**
+     * Returns the channel to which a file can be transferred directly, or
+     * {@code null} if the stream is not one.
+     * <p>
+     * Wrapping a plain stream into a channel would make the transfer go
+     * through small intermediate copies, which is slower than reading the
+     * file into a large buffer.
+     */
+    protected static WritableByteChannel getChannel(OutputStream out) {
+        if (out instanceof WritableByteChannel) {
+            return (WritableByteChannel) out;
         }
+        return null;
+    }
 
+    protected static void transferRange(FileChannel channel,
+            WritableByteChannel target, ByteRange range) throws IOException {
+        long position = range.getStart();
+        long end = range.getEnd() + 1;
+        while (position < end) {
+            long count = channel.transferTo(position, end - position, target);
+            if (count <= 0) {
+                throw new EOFException("Unexpected end of file at "
+                        + position);
+            }
+            position += count;
+        }
+    }
+
+    protected static void copyRange(FileChannel channel, OutputStream out,
+            ByteRange range) throws IOException {
+        byte[] buffer = BUFFER_POOL.acquire();
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(buffer);
+            long position = range.getStart();
+            long end = range.getEnd() + 1;
+            while (position < end) {
+                buf.clear();
+                buf.limit((int) Math.min(buffer.length, end - position));
+                int read = channel.read(buf, position);
+                if (read == -1) {
+                    throw new EOFException("Unexpected end of file at "
+                            + position);
+                }
+                out.write(buffer, 0, read);
+                position += read;
+            }
+        } finally {
+            BUFFER_POOL.release(buffer);
+        }
+    }
+
+    protected static void skipFully(InputStream in, long count)
+            throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                // skip may stop early, make sure we are not at the end
+                if (in.read() == -1) {
+                    throw new EOFException("Unexpected end of stream");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    protected static void copy(InputStream in, OutputStream out, long length)
+            throws IOException {
+        byte[] buffer = BUFFER_POOL.acquire();
+        try {
+            while (length > 0) {
+                int read = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, length));
+                if (read == -1) {
+                    throw new EOFException("Unexpected end of stream");
+                }
+                out.write(buffer, 0, read);
+                length -= read;
+            }
+        } finally {
+            BUFFER_POOL.release(buffer);
+        }
+    }
+
+    public static void writeStream(InputStream in, OutputStream out,
+            ByteRange range) throws IOException {
+        BufferingServletOutputStream.stopBuffering(out);
+        skipFully(in, range.getStart());
+        copy(in, out, range.getLength());
     }
 
     public static ByteRange parseRange(String range, long fileSize)
@@ -397,30 +624,121 @@ public class DownloadServlet extends HttpServlet {
         if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
             throw new ClientException("Cannot parse range : " + range);
         }
-        int sepIndex = range.indexOf('-', 6);
+        ByteRange byteRange = parseRangeSpec(range.substring(6), range,
+                fileSize);
+        if (byteRange == null) {
+            throw new ClientException("Unsatisfiable range : " + range);
+        }
+        return byteRange;
+    }
+
+    /**
+     * Parses a {@code Range} header holding one or several byte ranges.
+     * <p>
+     * Invalid requests and requests with too many ranges are rejected. The
+     * ranges starting past the end of the file cannot be satisfied and are
+     * dropped, the returned list being empty if none can be. Overlapping or
+     * adjacent ranges are merged, so that no byte is sent twice.
+     *
+     * @since 5.8
+     */
+    public static List<ByteRange> parseRanges(String range, long fileSize)
+            throws ClientException {
+        if (!range.startsWith("bytes=")) {
+            throw new ClientException("Cannot parse range : " + range);
+        }
+        String[] specs = range.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            throw new ClientException("Too many ranges : " + range);
+        }
+        List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+        for (String spec : specs) {
+            ByteRange byteRange = parseRangeSpec(spec, range, fileSize);
+            if (byteRange != null) {
+                ranges.add(byteRange);
+            }
+        }
+        return mergeRanges(ranges);
+    }
+
+    /**
+     * Merges the overlapping or adjacent ranges of the given list.
+     * <p>
+     * The ranges are kept in the order of the request, a merged range taking
+     * the place of the first range it includes.
+     *
+     * @since 5.8
+     */
+    protected static List<ByteRange> mergeRanges(List<ByteRange> ranges) {
+        List<ByteRange> merged = new ArrayList<ByteRange>(ranges.size());
+        for (ByteRange range : ranges) {
+            int index = -1;
+            int i = 0;
+            while (i < merged.size()) {
+                ByteRange other = merged.get(i);
+                if (other.getStart() <= range.getEnd() + 1
+                        && range.getStart() <= other.getEnd() + 1) {
+                    range = new ByteRange(Math.min(range.getStart(),
+                            other.getStart()), Math.max(range.getEnd(),
+                            other.getEnd()));
+                    merged.remove(i);
+                    if (index < 0) {
+                        index = i;
+                    }
+                } else {
+                    i++;
+                }
+            }
+            merged.add(index < 0 ? merged.size() : index, range);
+        }
+        return merged;
+    }
+
+    /**
+     * Parses a byte range spec.
+     *
+     * @return the range, or {@code null} if it cannot be satisfied
+     */
+    protected static ByteRange parseRangeSpec(String spec, String range,
+            long fileSize) throws ClientException {
+        int sepIndex = spec.indexOf('-');
         if (sepIndex < 0) {
             throw new ClientException("Cannot parse range : " + range);
         }
-        String start = range.substring(6, sepIndex).trim();
-        String end = range.substring(sepIndex + 1).trim();
+        String start = spec.substring(0, sepIndex).trim();
+        String end = spec.substring(sepIndex + 1).trim();
         long rangeStart = 0;
         long rangeEnd = fileSize - 1;
-        if (start.isEmpty()) {
-            if (end.isEmpty()) {
-                throw new ClientException("Cannot parse range : " + range);
-            }
-            rangeStart = fileSize - Integer.parseInt(end);
-            if (rangeStart < 0) {
-                rangeStart = 0;
-            }
-        } else {
-            rangeStart = Integer.parseInt(start);
-            if (!end.isEmpty()) {
-                rangeEnd = Integer.parseInt(end);
+        try {
+            if (start.isEmpty()) {
+                if (end.isEmpty()) {
+                    throw new ClientException("Cannot parse range : " + range);
+                }
+                long suffixLength = Long.parseLong(end);
+                if (suffixLength < 0) {
+                    throw new ClientException("Cannot parse range : " + range);
+                }
+                if (suffixLength == 0) {
+                    return null;
+                }
+                rangeStart = Math.max(fileSize - suffixLength, 0);
+            } else {
+                rangeStart = Long.parseLong(start);
+                if (!end.isEmpty()) {
+                    long lastByte = Long.parseLong(end);
+                    if (lastByte < rangeStart) {
+                        throw new ClientException("Cannot parse range : "
+                                + range);
+                    }
+                    rangeEnd = Math.min(lastByte, fileSize - 1);
+                }
             }
+        } catch (NumberFormatException e) {
+            throw new ClientException("Cannot parse range : " + range, e);
         }
         if (rangeStart > rangeEnd) {
-            throw new ClientException("Cannot parse range : " + range);
+            // starts past the end of the file
+            return null;
         }
 
         return new ByteRange(rangeStart, rangeEnd);
@@ -428,9 +746,9 @@ public class DownloadServlet extends HttpServlet {
 
     public static class ByteRange {
 
-        private long start;
+        private final long start;
 
-        private long end;
+        private final long end;
 
         public ByteRange(long rangeStart, long rangeEnd) {
             start = rangeStart;
@@ -0,0 +1,73 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.download;
+
+import java.io.File;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+
+/**
+ * Uses the path, size and modification time of the file of file-backed
+ * blobs, without reading their content.
+ * <p>
+ * As the modification time may have a one second precision, the content can
+ * change without changing the tag, which is therefore weak: it is enough to
+ * answer {@code If-None-Match} but not {@code If-Range}.
+ *
+ * @since 5.8
+ */
+public class FileETagStrategy implements BlobETagStrategy {
+
+    @Override
+    public void init(Map<String, String> properties) {
+    }
+
+    protected File getFile(Blob blob) {
+        if (blob instanceof FileBlob) {
+            File file = ((FileBlob) blob).getFile();
+            if (file != null && file.isFile()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getETag(Blob blob) {
+        File file = getFile(blob);
+        if (file == null) {
+            return null;
+        }
+        return BlobETagService.WEAK_PREFIX
+                + Integer.toHexString(file.getAbsolutePath().hashCode()) + '-'
+                + Long.toHexString(file.length()) + '-'
+                + Long.toHexString(file.lastModified());
+    }
+
+    @Override
+    public long getLastModified(Blob blob) {
+        File file = getFile(blob);
+        if (file == null) {
+            return -1;
+        }
+        long lastModified = file.lastModified();
+        return lastModified == 0 ? -1 : lastModified;
+    }
+
+}
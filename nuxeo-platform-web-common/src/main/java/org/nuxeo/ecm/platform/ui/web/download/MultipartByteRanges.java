@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.download;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.UUID;
+
+import org.nuxeo.ecm.platform.ui.web.download.DownloadServlet.ByteRange;
+
+/**
+ * Writes the boundaries and part headers of a {@code multipart/byteranges}
+ * response body (RFC 2616 section 19.2).
+ *
+ * @since 5.8
+ */
+public class MultipartByteRanges {
+
+    protected static final Charset ASCII = Charset.forName("US-ASCII");
+
+    protected static final String CRLF = "\r\n";
+
+    protected final String boundary;
+
+    protected final String mimeType;
+
+    protected final long fileSize;
+
+    public MultipartByteRanges(String mimeType, long fileSize) {
+        this(UUID.randomUUID().toString().replace("-", ""), mimeType,
+                fileSize);
+    }
+
+    public MultipartByteRanges(String boundary, String mimeType,
+            long fileSize) {
+        this.boundary = boundary;
+        this.mimeType = mimeType;
+        this.fileSize = fileSize;
+    }
+
+    public String getBoundary() {
+        return boundary;
+    }
+
+    public String getContentType() {
+        return "multipart/byteranges; boundary=" + boundary;
+    }
+
+    protected byte[] getPartHeader(ByteRange range) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(CRLF).append("--").append(boundary).append(CRLF);
+        if (mimeType != null) {
+            buf.append("Content-Type: ").append(mimeType).append(CRLF);
+        }
+        buf.append("Content-Range: bytes ").append(range.getStart()).append(
+                '-').append(range.getEnd()).append('/').append(fileSize);
+        buf.append(CRLF).append(CRLF);
+        return buf.toString().getBytes(ASCII);
+    }
+
+    protected byte[] getEnd() {
+        return (CRLF + "--" + boundary + "--" + CRLF).getBytes(ASCII);
+    }
+
+    /**
+     * Computes the length of the whole body for the given ranges.
+     */
+    public long getContentLength(List<ByteRange> ranges) {
+        long length = 0;
+        for (ByteRange range : ranges) {
+            length += getPartHeader(range).length + range.getLength();
+        }
+        return length + getEnd().length;
+    }
+
+    public void writePartHeader(OutputStream out, ByteRange range)
+            throws IOException {
+        out.write(getPartHeader(range));
+    }
+
+    public void writeEnd(OutputStream out) throws IOException {
+        out.write(getEnd());
+    }
+
+}
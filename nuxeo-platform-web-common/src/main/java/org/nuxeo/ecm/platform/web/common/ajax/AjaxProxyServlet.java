@@ -19,9 +19,11 @@
 
 package org.nuxeo.ecm.platform.web.common.ajax;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -29,19 +31,21 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.platform.ui.web.cache.SimpleCacheFilter;
 import org.nuxeo.ecm.platform.web.common.ajax.service.AjaxProxyComponent;
 import org.nuxeo.ecm.platform.web.common.ajax.service.AjaxProxyService;
 import org.nuxeo.ecm.platform.web.common.ajax.service.ProxyURLConfigEntry;
-import org.nuxeo.ecm.platform.web.common.requestcontroller.service.LRUCachingMap;
 import org.nuxeo.runtime.api.Framework;
 
 /**
@@ -51,6 +55,10 @@ import org.nuxeo.runtime.api.Framework;
  * <p>
  * In order to avoid "open proxiying", only urls configured in the {@link AjaxProxyComponent}
  * via the extension point "proxyableURL" can be proxied.
+ * <p>
+ * Requests go through a shared pool of connections, and responses are
+ * streamed to the client. Responses of urls configured to use the cache are
+ * kept in a {@link ProxyResponseCache}.
  *
  * @author tiry
  */
@@ -58,11 +66,66 @@ public class AjaxProxyServlet extends HttpServlet {
 
     public static final String X_METHOD_HEADER = "X-Requested-Method";
 
+    /**
+     * Maximum number of connections to a given host.
+     *
+     * @since 5.8
+     */
+    public static final String MAX_CONNECTIONS_PER_HOST_PROPERTY = "org.nuxeo.ecm.platform.web.common.ajax.maxConnectionsPerHost";
+
+    /**
+     * Maximum number of connections to all hosts.
+     *
+     * @since 5.8
+     */
+    public static final String MAX_CONNECTIONS_PROPERTY = "org.nuxeo.ecm.platform.web.common.ajax.maxConnections";
+
+    /**
+     * Time in milliseconds to wait for a connection, to the host or from the
+     * pool.
+     *
+     * @since 5.8
+     */
+    public static final String CONNECTION_TIMEOUT_PROPERTY = "org.nuxeo.ecm.platform.web.common.ajax.connectionTimeout";
+
+    /**
+     * Time in milliseconds to wait for data from the host.
+     *
+     * @since 5.8
+     */
+    public static final String SOCKET_TIMEOUT_PROPERTY = "org.nuxeo.ecm.platform.web.common.ajax.socketTimeout";
+
+    /**
+     * Maximum total size in bytes of the cached responses.
+     *
+     * @since 5.8
+     */
+    public static final String CACHE_MAX_SIZE_PROPERTY = "org.nuxeo.ecm.platform.web.common.ajax.cache.maxSize";
+
+    /**
+     * Maximum size in bytes of a cached response.
+     *
+     * @since 5.8
+     */
+    public static final String CACHE_MAX_ENTRY_SIZE_PROPERTY = "org.nuxeo.ecm.platform.web.common.ajax.cache.maxEntrySize";
+
+    /**
+     * Time in seconds responses are cached when they don't have a
+     * {@code max-age}.
+     *
+     * @since 5.8
+     */
+    public static final String CACHE_TIMEOUT_PROPERTY = "org.nuxeo.ecm.platform.web.common.ajax.cache.timeout";
+
+    protected static final int BUFFER_SIZE = 8192;
+
     protected static AjaxProxyService service;
 
-    protected static Map<String, String> requestsCache = new LRUCachingMap<String, String>(250);
+    protected static volatile MultiThreadedHttpConnectionManager connectionManager;
 
-    protected static final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock();
+    protected static volatile HttpClient httpClient;
+
+    protected static volatile ProxyResponseCache responseCache;
 
     private static final long serialVersionUID = 1L;
 
@@ -75,6 +138,102 @@ public class AjaxProxyServlet extends HttpServlet {
         return service;
     }
 
+    protected static int getIntProperty(String name, int defaultValue) {
+        if (Framework.getRuntime() == null) {
+            return defaultValue;
+        }
+        String value = Framework.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.error("Invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the client shared by all proxied requests, configured from the
+     * framework properties.
+     *
+     * @since 5.8
+     */
+    protected static HttpClient getHttpClient() {
+        HttpClient client = httpClient;
+        if (client == null) {
+            synchronized (AjaxProxyServlet.class) {
+                client = httpClient;
+                if (client == null) {
+                    int connectionTimeout = getIntProperty(
+                            CONNECTION_TIMEOUT_PROPERTY, 10000);
+                    MultiThreadedHttpConnectionManager manager = new MultiThreadedHttpConnectionManager();
+                    HttpConnectionManagerParams params = manager.getParams();
+                    params.setDefaultMaxConnectionsPerHost(getIntProperty(
+                            MAX_CONNECTIONS_PER_HOST_PROPERTY, 20));
+                    params.setMaxTotalConnections(getIntProperty(
+                            MAX_CONNECTIONS_PROPERTY, 100));
+                    params.setConnectionTimeout(connectionTimeout);
+                    params.setSoTimeout(getIntProperty(
+                            SOCKET_TIMEOUT_PROPERTY, 30000));
+                    client = new HttpClient(manager);
+                    client.getParams().setConnectionManagerTimeout(
+                            connectionTimeout);
+                    connectionManager = manager;
+                    httpClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Returns the cache of proxied responses, configured from the framework
+     * properties.
+     *
+     * @since 5.8
+     */
+    protected static ProxyResponseCache getResponseCache() {
+        ProxyResponseCache cache = responseCache;
+        if (cache == null) {
+            synchronized (AjaxProxyServlet.class) {
+                cache = responseCache;
+                if (cache == null) {
+                    cache = new ProxyResponseCache(getIntProperty(
+                            CACHE_MAX_SIZE_PROPERTY, 10 * 1024 * 1024),
+                            getIntProperty(CACHE_MAX_ENTRY_SIZE_PROPERTY,
+                                    1024 * 1024), getIntProperty(
+                                    CACHE_TIMEOUT_PROPERTY, 300));
+                    responseCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Closes the pooled connections.
+     *
+     * @since 5.8
+     */
+    protected static void shutdown() {
+        synchronized (AjaxProxyServlet.class) {
+            if (connectionManager != null) {
+                connectionManager.shutdown();
+            }
+            connectionManager = null;
+            httpClient = null;
+            responseCache = null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        shutdown();
+        super.destroy();
+    }
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         handleProxy(req.getMethod(), req, resp);
@@ -109,53 +268,40 @@ public class AjaxProxyServlet extends HttpServlet {
             return;
         }
 
-        String body = null;
-        String cacheKey = targetURL;
-
-        if (entry.useCache()) {
-            if (entry.useCache()) {
-                cacheKey += getSessionId(req);
-            }
-            try {
-                cacheLock.readLock().lock();
-                body = requestsCache.get(cacheKey);
-            } finally {
-                cacheLock.readLock().unlock();
+        // only idempotent requests are cached, and per-session entries only
+        // when there is a session
+        String cacheKey = null;
+        if (entry.useCache() && "GET".equals(method)) {
+            if (entry.isCachePerSession()) {
+                String sessionId = getSessionId(req);
+                if (sessionId != null) {
+                    cacheKey = targetURL + sessionId;
+                }
+            } else {
+                cacheKey = targetURL;
             }
         }
-
-        boolean foundInCache = true;
-        if (body == null) {
-            foundInCache = false;
-            body = doRequest(method, targetURL, req);
-        }
-
-        if (!foundInCache && entry.useCache()) {
-            try {
-                cacheLock.writeLock().lock();
-                requestsCache.put(cacheKey, body);
-            } finally {
-                cacheLock.writeLock().unlock();
+        if (cacheKey != null) {
+            ProxyResponseCache.Entry cached = getResponseCache().get(cacheKey);
+            if (cached != null) {
+                setResponseHeaders(resp, cached.getStatus(),
+                        getContentType(requestType, cached.getContentType()), cache);
+                resp.getOutputStream().write(cached.getBody());
+                return;
             }
         }
 
-        if (requestType.equals("text")) {
-            resp.setContentType("text/plain");
-        } else if (requestType.equals("xml")) {
-            resp.setContentType("text/xml");
-        }
-
-        if (cache != null) {
-            SimpleCacheFilter.addCacheHeader(resp, cache);
-        }
-
-        resp.getWriter().write(body);
-        resp.setStatus(HttpServletResponse.SC_OK);
+        doRequest(method, targetURL, req, resp, requestType, cache, cacheKey,
+                !entry.isCachePerSession());
     }
 
     protected static String getSessionId(HttpServletRequest req) {
         String jSessionId = null;
-        for (Cookie cookie : req.getCookies()) {
+        Cookie[] cookies = req.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
             if ("JSESSIONID".equalsIgnoreCase(cookie.getName())) {
                 jSessionId = cookie.getValue();
                 break;
@@ -164,8 +310,7 @@ public class AjaxProxyServlet extends HttpServlet {
         return jSessionId;
     }
 
-    protected static String doRequest(String method, String targetURL, HttpServletRequest req) throws IOException {
-        HttpClient client = new HttpClient();
+    protected static HttpMethod createMethod(String method, String targetURL, HttpServletRequest req) throws IOException {
         HttpMethod httpMethod;
 
         if ("GET".equals(method)) {
@@ -184,11 +329,109 @@ public class AjaxProxyServlet extends HttpServlet {
         for (String paramName : params.keySet()) {
             httpMethod.getParams().setParameter(paramName, params.get(paramName));
         }
+        return httpMethod;
+    }
+
+    /**
+     * Sends the request to the target url and streams the response to the
+     * client, keeping it in the cache if a cache key is given.
+     *
+     * @param shared whether the cached response is shared between sessions
+     * @since 5.8
+     */
+    protected static void doRequest(String method, String targetURL, HttpServletRequest req, HttpServletResponse resp,
+            String requestType, String cache, String cacheKey, boolean shared) throws IOException {
+        HttpMethod httpMethod = createMethod(method, targetURL, req);
+        try {
+            int status = getHttpClient().executeMethod(httpMethod);
+            Header contentTypeHeader = httpMethod.getResponseHeader("Content-Type");
+            String upstreamContentType = contentTypeHeader == null ? null : contentTypeHeader.getValue();
+            setResponseHeaders(resp, status, getContentType(requestType, upstreamContentType), cache);
+
+            boolean cacheable = cacheKey != null && status == HttpServletResponse.SC_OK;
+            ProxyResponseCache responseCache = cacheable ? getResponseCache() : null;
+            InputStream in = httpMethod.getResponseBodyAsStream();
+            byte[] body;
+            if (in == null) {
+                body = new byte[0];
+            } else {
+                body = copy(in, resp.getOutputStream(), cacheable ? responseCache.getMaxEntrySize() : -1);
+            }
+            if (cacheable && body != null) {
+                Header cacheControl = httpMethod.getResponseHeader("Cache-Control");
+                long timeToLive = ProxyResponseCache.getTimeToLive(
+                        cacheControl == null ? null : cacheControl.getValue(),
+                        responseCache.getDefaultTimeToLive(), shared);
+                responseCache.put(cacheKey, status, upstreamContentType, body, timeToLive);
+            }
+        } finally {
+            httpMethod.releaseConnection();
+        }
+    }
 
-        client.executeMethod(httpMethod);
-        String body = httpMethod.getResponseBodyAsString();
-        httpMethod.releaseConnection();
-        return body;
+    /**
+     * Copies the stream to the output, keeping a copy of the data if it is
+     * not larger than the given size.
+     *
+     * @param maxKept the maximum size of the data to keep, {@code -1} to keep
+     *            nothing
+     * @return the data, or {@code null} if not kept
+     * @since 5.8
+     */
+    protected static byte[] copy(InputStream in, OutputStream out, int maxKept) throws IOException {
+        ByteArrayOutputStream kept = maxKept >= 0 ? new ByteArrayOutputStream() : null;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            if (kept != null) {
+                if (kept.size() + read > maxKept) {
+                    kept = null;
+                } else {
+                    kept.write(buffer, 0, read);
+                }
+            }
+        }
+        return kept == null ? null : kept.toByteArray();
+    }
+
+    /**
+     * Returns the content type for the requested type, keeping the charset of
+     * the proxied response.
+     *
+     * @since 5.8
+     */
+    protected static String getContentType(String requestType, String contentType) {
+        String type;
+        if (requestType.equals("text")) {
+            type = "text/plain";
+        } else if (requestType.equals("xml")) {
+            type = "text/xml";
+        } else {
+            return contentType;
+        }
+        if (contentType != null) {
+            int index = contentType.toLowerCase().indexOf("charset=");
+            if (index >= 0) {
+                String charset = contentType.substring(index + 8);
+                int end = charset.indexOf(';');
+                if (end >= 0) {
+                    charset = charset.substring(0, end);
+                }
+                type += "; charset=" + charset.trim();
+            }
+        }
+        return type;
+    }
+
+    protected static void setResponseHeaders(HttpServletResponse resp, int status, String contentType, String cache) {
+        resp.setStatus(status);
+        if (contentType != null) {
+            resp.setContentType(contentType);
+        }
+        if (cache != null) {
+            SimpleCacheFilter.addCacheHeader(resp, cache);
+        }
     }
 
 }
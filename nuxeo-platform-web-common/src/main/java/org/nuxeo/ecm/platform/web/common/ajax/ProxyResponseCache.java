@@ -0,0 +1,264 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.web.common.ajax;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the responses of the {@link AjaxProxyServlet}, bounded by the total
+ * size of the cached bodies.
+ * <p>
+ * Entries expire according to the {@code Cache-Control} header of the
+ * proxied response, and the least recently used ones are evicted when the
+ * cache is full.
+ *
+ * @since 5.8
+ */
+public class ProxyResponseCache {
+
+    /**
+     * A cached response.
+     */
+    public static class Entry {
+
+        protected final int status;
+
+        protected final String contentType;
+
+        protected final byte[] body;
+
+        // nanoTime() based expiration
+        protected final long expiration;
+
+        protected Entry(int status, String contentType, byte[] body,
+                long expiration) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+            this.expiration = expiration;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the content type of the proxied response.
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        protected boolean isExpired(long now) {
+            return now - expiration >= 0;
+        }
+    }
+
+    protected final long maxSize;
+
+    protected final int maxEntrySize;
+
+    protected final int defaultTimeToLive;
+
+    // access-ordered, get mutates it as well
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+
+    protected long size;
+
+    /**
+     * @param maxSize the maximum total size of the cached bodies, in bytes
+     * @param maxEntrySize the maximum size of a cached body, in bytes
+     * @param defaultTimeToLive the time in seconds responses without
+     *            {@code max-age} are kept
+     */
+    public ProxyResponseCache(long maxSize, int maxEntrySize,
+            int defaultTimeToLive) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = (int) Math.min(maxEntrySize, maxSize);
+        this.defaultTimeToLive = defaultTimeToLive;
+    }
+
+    /**
+     * Returns the maximum size of a cached body, larger responses are not
+     * cached.
+     */
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    public int getDefaultTimeToLive() {
+        return defaultTimeToLive;
+    }
+
+    /**
+     * Returns the current time in nanoseconds used for expiration,
+     * {@link System#nanoTime()} by default.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    protected static long getSize(String key, Entry entry) {
+        return entry.body.length + 2L * key.length();
+    }
+
+    /**
+     * Returns the cached response for the key, or {@code null} if missing or
+     * expired.
+     */
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.isExpired(nanoTime())) {
+            remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Caches a response for the given time.
+     *
+     * @return {@code true} if the response was cached, {@code false} if it is
+     *         too large or must not be kept
+     */
+    public boolean put(String key, int status, String contentType,
+            byte[] body, long timeToLive) {
+        if (timeToLive <= 0 || body.length > maxEntrySize) {
+            return false;
+        }
+        Entry entry = new Entry(status, contentType, body, nanoTime()
+                + TimeUnit.SECONDS.toNanos(timeToLive));
+        long entrySize = getSize(key, entry);
+        if (entrySize > maxSize) {
+            return false;
+        }
+        synchronized (this) {
+            remove(key);
+            evict(maxSize - entrySize);
+            entries.put(key, entry);
+            size += entrySize;
+        }
+        return true;
+    }
+
+    protected void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= getSize(key, entry);
+        }
+    }
+
+    /**
+     * Removes expired entries, then the least recently used ones until the
+     * size is under the limit.
+     */
+    protected void evict(long limit) {
+        if (size <= limit) {
+            return;
+        }
+        long now = nanoTime();
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Entry> es = it.next();
+            if (es.getValue().isExpired(now)) {
+                it.remove();
+                size -= getSize(es.getKey(), es.getValue());
+            }
+        }
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext()
+                && size > limit;) {
+            Map.Entry<String, Entry> es = it.next();
+            it.remove();
+            size -= getSize(es.getKey(), es.getValue());
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the size of the cached entries, in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Computes the time in seconds a response can be cached from its
+     * {@code Cache-Control} header.
+     *
+     * @param cacheControl the header value, or {@code null}
+     * @param defaultTimeToLive the time used if the header gives no age
+     * @param shared whether the cached response is shared between users, in
+     *            which case {@code private} responses are not cached
+     * @return the time to live, {@code 0} if the response must not be cached
+     */
+    public static long getTimeToLive(String cacheControl,
+            long defaultTimeToLive, boolean shared) {
+        if (cacheControl == null) {
+            return defaultTimeToLive;
+        }
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase();
+            if (directive.equals("no-store") || directive.startsWith("no-cache")
+                    || (shared && directive.startsWith("private"))) {
+                return 0;
+            } else if (directive.startsWith("max-age=")) {
+                maxAge = parseSeconds(directive.substring(8));
+            } else if (directive.startsWith("s-maxage=")) {
+                sharedMaxAge = parseSeconds(directive.substring(9));
+            }
+        }
+        if (shared && sharedMaxAge >= 0) {
+            return sharedMaxAge;
+        }
+        if (maxAge >= 0) {
+            return maxAge;
+        }
+        return defaultTimeToLive;
+    }
+
+    protected static long parseSeconds(String value) {
+        value = value.trim();
+        if (value.length() > 1 && value.startsWith("\"")
+                && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            // invalid ages are treated as stale
+            return 0;
+        }
+    }
+
+}
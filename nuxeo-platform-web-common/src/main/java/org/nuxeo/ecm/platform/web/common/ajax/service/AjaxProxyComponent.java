@@ -21,7 +21,6 @@ package org.nuxeo.ecm.platform.web.common.ajax.service;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,11 +41,10 @@ public class AjaxProxyComponent extends DefaultComponent implements AjaxProxySer
 
     protected static final Map<String, ProxyableURLDescriptor> urlDescriptors = new HashMap<String, ProxyableURLDescriptor>();
 
+    // access-ordered, get mutates it so all accesses are synchronized
     protected static final Map<String, ProxyURLConfigEntry> urlCache = new LRUCachingMap<String, ProxyURLConfigEntry>(
             250);
 
-    protected static final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock();
-
     private static final Log log = LogFactory.getLog(AjaxProxyComponent.class);
 
     @Override
@@ -67,24 +65,21 @@ public class AjaxProxyComponent extends DefaultComponent implements AjaxProxySer
         } else {
             urlDescriptors.put(desc.getName(), desc);
         }
+        synchronized (urlCache) {
+            urlCache.clear();
+        }
     }
 
     public ProxyURLConfigEntry getConfigForURL(String targetUrl) {
         ProxyURLConfigEntry entry = null;
 
-        try {
-            cacheLock.readLock().lock();
+        synchronized (urlCache) {
             entry = urlCache.get(targetUrl);
-        } finally {
-            cacheLock.readLock().unlock();
         }
         if (entry == null) {
             entry = computeConfigForURL(targetUrl);
-            try {
-                cacheLock.writeLock().lock();
+            synchronized (urlCache) {
                 urlCache.put(targetUrl, entry);
-            } finally {
-                cacheLock.writeLock().unlock();
             }
         }
         return entry;
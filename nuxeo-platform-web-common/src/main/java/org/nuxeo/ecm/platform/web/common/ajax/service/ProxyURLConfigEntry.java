@@ -51,4 +51,11 @@ public class ProxyURLConfigEntry {
         return useCache;
     }
 
+    /**
+     * @since 5.8
+     */
+    public boolean isCachePerSession() {
+        return cachePerSession;
+    }
+
 }
@@ -67,6 +67,8 @@ public class FilterConfigDescriptor implements Serializable {
 
     protected Pattern compiledPattern;
 
+    protected transient UriPattern uriPattern;
+
     public FilterConfigDescriptor() {
     }
 
@@ -131,9 +133,21 @@ public class FilterConfigDescriptor implements Serializable {
         return compiledPattern;
     }
 
+    /**
+     * @since 5.8
+     */
+    public UriPattern getUriPattern() {
+        if (uriPattern == null) {
+            uriPattern = new UriPattern(pattern);
+        }
+        return uriPattern;
+    }
+
     @XNode("pattern")
     public void setPattern(String pattern) {
         this.pattern = Framework.expandVars(pattern);
+        compiledPattern = null;
+        uriPattern = null;
     }
 
 }
@@ -74,9 +74,27 @@ public class NuxeoCorsFilterDescriptor implements Serializable, Cloneable {
 
     protected String pattern = "";
 
+    protected transient UriPattern uriPattern;
+
     @XNode("pattern")
     public void setPattern(String pattern) {
         this.pattern = Framework.expandVars(pattern);
+        uriPattern = null;
+    }
+
+    /**
+     * Returns the compiled pattern, or {@code null} if there is no pattern.
+     *
+     * @since 5.8
+     */
+    public UriPattern getUriPattern() {
+        if (StringUtils.isEmpty(pattern)) {
+            return null;
+        }
+        if (uriPattern == null) {
+            uriPattern = new UriPattern(pattern);
+        }
+        return uriPattern;
     }
 
     public FilterConfig buildFilterConfig() {
@@ -107,8 +125,15 @@ public class NuxeoCorsFilterDescriptor implements Serializable, Cloneable {
     }
 
     public boolean isMatching(HttpServletRequest request) {
-        return !StringUtils.isEmpty(pattern)
-                && request.getRequestURI().matches(pattern);
+        return isMatching(request.getRequestURI());
+    }
+
+    /**
+     * @since 5.8
+     */
+    public boolean isMatching(String uri) {
+        UriPattern uriPattern = getUriPattern();
+        return uriPattern != null && uriPattern.matches(uri);
     }
 
     public NuxeoCorsFilterDescriptor clone() throws CloneNotSupportedException {
@@ -153,6 +178,7 @@ public class NuxeoCorsFilterDescriptor implements Serializable, Cloneable {
 
         if (!StringUtils.isEmpty(o.pattern)) {
             pattern = o.pattern;
+            uriPattern = null;
         }
     }
 
@@ -17,9 +17,10 @@
 
 package org.nuxeo.ecm.platform.web.common.requestcontroller.service;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -34,7 +35,7 @@ import org.nuxeo.runtime.model.ContributionFragmentRegistry;
 public class NuxeoCorsFilterDescriptorRegistry extends
         ContributionFragmentRegistry<NuxeoCorsFilterDescriptor> {
 
-    protected Map<String, NuxeoCorsFilterDescriptor> descs = new HashMap<>();
+    protected Map<String, NuxeoCorsFilterDescriptor> descs = new LinkedHashMap<>();
 
     @Override
     public String getContributionId(NuxeoCorsFilterDescriptor contrib) {
@@ -76,11 +77,19 @@ public class NuxeoCorsFilterDescriptorRegistry extends
 
     public NuxeoCorsFilterDescriptor getFirstMatchingDescriptor(String uri) {
         for (NuxeoCorsFilterDescriptor filterDesc : descs.values()) {
-            Pattern pattern = Pattern.compile(filterDesc.pattern);
-            if (pattern.matcher(uri).matches()) {
+            if (filterDesc.isMatching(uri)) {
                 return filterDesc;
             }
         }
         return null;
     }
+
+    /**
+     * Returns the enabled descriptors, in registration order.
+     *
+     * @since 5.8
+     */
+    public List<NuxeoCorsFilterDescriptor> getDescriptors() {
+        return new ArrayList<>(descs.values());
+    }
 }
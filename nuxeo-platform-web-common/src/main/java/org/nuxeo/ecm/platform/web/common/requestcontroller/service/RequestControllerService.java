@@ -21,8 +21,6 @@ package org.nuxeo.ecm.platform.web.common.requestcontroller.service;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.servlet.FilterConfig;
 import javax.servlet.http.HttpServletRequest;
@@ -52,13 +50,25 @@ public class RequestControllerService extends DefaultComponent implements
 
     protected static final Map<String, FilterConfigDescriptor> denyPatterns = new LinkedHashMap<String, FilterConfigDescriptor>();
 
-    // @GuardedBy("itself")
-    protected static final Map<String, RequestFilterConfig> configCache = new LRUCachingMap<String, RequestFilterConfig>(
-            250);
+    protected static final NuxeoCorsFilterDescriptorRegistry corsFilterRegistry = new NuxeoCorsFilterDescriptorRegistry();
 
-    protected static final Map<String, FilterConfig> filterConfigCache = new LRUCachingMap<>(250);
+    /**
+     * Maximum number of URIs whose configuration is cached.
+     *
+     * @since 5.8
+     */
+    public static final int CACHE_SIZE = 250;
 
-    protected static final NuxeoCorsFilterDescriptorRegistry corsFilterRegistry = new NuxeoCorsFilterDescriptorRegistry();
+    protected static final RequestFilterConfig DENY_CONFIG = new RequestFilterConfigImpl(
+            false, false, false, false, false, "");
+
+    // guards the contributions and the rebuild of the rules
+    protected static final Object rulesLock = new Object();
+
+    // compiled from the contributions on first use, reset by registrations
+    protected static volatile UriPatternRules<RequestFilterConfig> filterConfigRules;
+
+    protected static volatile UriPatternRules<FilterConfig> corsConfigRules;
 
     @Override
     public void registerContribution(Object contribution,
@@ -68,7 +78,10 @@ public class RequestControllerService extends DefaultComponent implements
             FilterConfigDescriptor desc = (FilterConfigDescriptor) contribution;
             registerFilterConfig(desc);
         } else if (CORS_CONFIG_EP.equals(extensionPoint)) {
-            corsFilterRegistry.addContribution((NuxeoCorsFilterDescriptor)contribution);
+            synchronized (rulesLock) {
+                corsFilterRegistry.addContribution((NuxeoCorsFilterDescriptor) contribution);
+                corsConfigRules = null;
+            }
         } else {
             log.error("Unknown ExtensionPoint " + extensionPoint);
         }
@@ -83,12 +96,15 @@ public class RequestControllerService extends DefaultComponent implements
     }
 
     public void registerFilterConfig(FilterConfigDescriptor desc) {
-        if (desc.isGrantRule()) {
-            grantPatterns.put(desc.getName(), desc);
-            log.debug("Registered grant filter config");
-        } else {
-            denyPatterns.put(desc.getName(), desc);
-            log.debug("Registered deny filter config");
+        synchronized (rulesLock) {
+            if (desc.isGrantRule()) {
+                grantPatterns.put(desc.getName(), desc);
+                log.debug("Registered grant filter config");
+            } else {
+                denyPatterns.put(desc.getName(), desc);
+                log.debug("Registered deny filter config");
+            }
+            filterConfigRules = null;
         }
     }
 
@@ -97,76 +113,89 @@ public class RequestControllerService extends DefaultComponent implements
             String extensionPoint, ComponentInstance contributor)
             throws Exception {
         if (CORS_CONFIG_EP.equals(extensionPoint)) {
-            corsFilterRegistry.removeContribution((NuxeoCorsFilterDescriptor) contribution);
+            synchronized (rulesLock) {
+                corsFilterRegistry.removeContribution((NuxeoCorsFilterDescriptor) contribution);
+                corsConfigRules = null;
+            }
         }
     }
 
-    /* Service interface */
-
-    @Override
-    public FilterConfig getCorsConfigForRequest(HttpServletRequest request) {
-        String uri = request.getRequestURI();
-        FilterConfig filterConfig = null;
-        synchronized (filterConfigCache) {
-            filterConfig = filterConfigCache.get(uri);
+    /**
+     * Returns the rules compiled from the filter configs, deny rules first.
+     *
+     * @since 5.8
+     */
+    protected UriPatternRules<RequestFilterConfig> getFilterConfigRules() {
+        UriPatternRules<RequestFilterConfig> rules = filterConfigRules;
+        if (rules != null) {
+            return rules;
+        }
+        synchronized (rulesLock) {
+            if (filterConfigRules == null) {
+                UriPatternRules.Builder<RequestFilterConfig> builder = new UriPatternRules.Builder<RequestFilterConfig>();
+                for (FilterConfigDescriptor desc : denyPatterns.values()) {
+                    builder.add(desc.getUriPattern(), DENY_CONFIG);
+                }
+                for (FilterConfigDescriptor desc : grantPatterns.values()) {
+                    builder.add(desc.getUriPattern(),
+                            new RequestFilterConfigImpl(desc.useSync(),
+                                    desc.useTx(), desc.useTxBuffered(),
+                                    desc.isCached(), desc.isPrivate(),
+                                    desc.getCacheTime()));
+                }
+                filterConfigRules = builder.build(CACHE_SIZE);
+            }
+            return filterConfigRules;
         }
+    }
 
-        if (filterConfig == null) {
-            filterConfig = computeCorsFilterConfigForUri(uri);
-            synchronized (filterConfigCache) {
-                filterConfigCache.put(uri, filterConfig);
+    /**
+     * Returns the rules compiled from the enabled CORS configs.
+     *
+     * @since 5.8
+     */
+    protected UriPatternRules<FilterConfig> getCorsConfigRules() {
+        UriPatternRules<FilterConfig> rules = corsConfigRules;
+        if (rules != null) {
+            return rules;
+        }
+        synchronized (rulesLock) {
+            if (corsConfigRules == null) {
+                UriPatternRules.Builder<FilterConfig> builder = new UriPatternRules.Builder<FilterConfig>();
+                for (NuxeoCorsFilterDescriptor desc : corsFilterRegistry.getDescriptors()) {
+                    UriPattern pattern = desc.getUriPattern();
+                    if (pattern != null) {
+                        builder.add(pattern, desc.buildFilterConfig());
+                    }
+                }
+                corsConfigRules = builder.build(CACHE_SIZE);
             }
+            return corsConfigRules;
         }
+    }
+
+    /* Service interface */
 
-        return filterConfig;
+    @Override
+    public FilterConfig getCorsConfigForRequest(HttpServletRequest request) {
+        return getCorsConfigRules().match(request.getRequestURI());
     }
 
     public FilterConfig computeCorsFilterConfigForUri(String uri) {
-        NuxeoCorsFilterDescriptor descriptor = corsFilterRegistry.getFirstMatchingDescriptor(uri);
-        return descriptor != null ? descriptor.buildFilterConfig() : null;
+        return getCorsConfigRules().matchUncached(uri);
     }
 
     public RequestFilterConfig getConfigForRequest(HttpServletRequest request) {
-        String uri = request.getRequestURI();
-        RequestFilterConfig config = null;
-
-        synchronized (configCache) {
-            config = configCache.get(uri);
-        }
-        if (config == null) {
-            config = computeConfigForRequest(uri);
-            synchronized (configCache) {
-                configCache.put(uri, config);
-            }
-        }
-        return config;
+        RequestFilterConfig config = getFilterConfigRules().match(
+                request.getRequestURI());
+        // deny by default
+        return config == null ? DENY_CONFIG : config;
     }
 
     public RequestFilterConfig computeConfigForRequest(String uri) {
-        // handle deny patterns
-        for (FilterConfigDescriptor desc : denyPatterns.values()) {
-            Pattern pat = desc.getCompiledPattern();
-            Matcher m = pat.matcher(uri);
-            if (m.matches()) {
-                return new RequestFilterConfigImpl(false, false, false, false,
-                        false, "");
-            }
-        }
-
-        // handle grant patterns
-        for (FilterConfigDescriptor desc : grantPatterns.values()) {
-            Pattern pat = desc.getCompiledPattern();
-            Matcher m = pat.matcher(uri);
-            if (m.matches()) {
-                return new RequestFilterConfigImpl(desc.useSync(),
-                        desc.useTx(), desc.useTxBuffered(), desc.isCached(),
-                        desc.isPrivate(), desc.getCacheTime());
-            }
-        }
-
-        // return deny by default
-        return new RequestFilterConfigImpl(false, false, false, false, false,
-                "");
+        RequestFilterConfig config = getFilterConfigRules().matchUncached(uri);
+        // deny by default
+        return config == null ? DENY_CONFIG : config;
     }
 
 }
@@ -0,0 +1,122 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.web.common.requestcontroller.service;
+
+import java.util.regex.Pattern;
+
+/**
+ * A compiled URI pattern, matching whole URIs against a regular expression.
+ * <p>
+ * The literal prefix the expression starts with is extracted so that URIs not
+ * starting with it are rejected without running the regular expression, and
+ * expressions without any special character are matched by string
+ * comparison.
+ *
+ * @since 5.8
+ */
+public class UriPattern {
+
+    protected static final String SPECIAL_CHARS = "\\[](){}.*+?^$|";
+
+    protected static final String QUANTIFIERS = "?*+{";
+
+    protected final String regex;
+
+    protected final String prefix;
+
+    // null for literal patterns
+    protected final Pattern pattern;
+
+    public UriPattern(String regex) {
+        this.regex = regex;
+        StringBuilder buf = new StringBuilder();
+        boolean literal = getLiteralPrefix(regex, buf);
+        prefix = buf.toString();
+        pattern = literal ? null : Pattern.compile(regex);
+    }
+
+    /**
+     * Appends the literal prefix of the given expression to the buffer.
+     *
+     * @return {@code true} if the whole expression is a literal
+     */
+    protected static boolean getLiteralPrefix(String regex, StringBuilder buf) {
+        if (regex.indexOf('|') >= 0) {
+            // alternatives may not share any prefix
+            return false;
+        }
+        int i = 0;
+        int length = regex.length();
+        while (i < length) {
+            char c = regex.charAt(i);
+            char literal;
+            int next;
+            if (c == '\\' && i + 1 < length
+                    && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                // escaped special character
+                literal = regex.charAt(i + 1);
+                next = i + 2;
+            } else if (SPECIAL_CHARS.indexOf(c) < 0) {
+                literal = c;
+                next = i + 1;
+            } else {
+                return false;
+            }
+            if (next < length && QUANTIFIERS.indexOf(regex.charAt(next)) >= 0) {
+                // the character may be repeated or absent
+                return false;
+            }
+            buf.append(literal);
+            i = next;
+        }
+        return true;
+    }
+
+    public String getRegex() {
+        return regex;
+    }
+
+    /**
+     * Returns the literal prefix of all the URIs matching this pattern.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Returns {@code true} if this pattern matches the given URI only.
+     */
+    public boolean isLiteral() {
+        return pattern == null;
+    }
+
+    /**
+     * Returns {@code true} if the whole URI matches this pattern.
+     */
+    public boolean matches(String uri) {
+        if (pattern == null) {
+            return prefix.equals(uri);
+        }
+        return uri.startsWith(prefix) && pattern.matcher(uri).matches();
+    }
+
+    @Override
+    public String toString() {
+        return regex;
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.web.common.requestcontroller.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable ordered list of {@link UriPattern} rules, returning the value of
+ * the first rule matching a URI.
+ * <p>
+ * The literal prefixes of the patterns are kept in a trie, so that only the
+ * rules whose prefix starts the URI are evaluated. The results are kept in a
+ * bounded concurrent cache, without any global lock: when the cache is full,
+ * part of it is evicted by the thread adding the entry.
+ *
+ * @param <T> the type of the values associated to the rules
+ * @since 5.8
+ */
+public class UriPatternRules<T> {
+
+    protected static final Object NO_MATCH = new Object();
+
+    /**
+     * Builder of the rules, in order of precedence.
+     */
+    public static class Builder<T> {
+
+        protected final List<UriPattern> patterns = new ArrayList<UriPattern>();
+
+        protected final List<T> values = new ArrayList<T>();
+
+        public Builder<T> add(UriPattern pattern, T value) {
+            patterns.add(pattern);
+            values.add(value);
+            return this;
+        }
+
+        public UriPatternRules<T> build(int maxCacheSize) {
+            return new UriPatternRules<T>(patterns, values, maxCacheSize);
+        }
+    }
+
+    /**
+     * Trie node, the children being sorted by character.
+     */
+    protected static class Node {
+
+        protected char[] chars = new char[0];
+
+        protected Node[] children = new Node[0];
+
+        // the rules whose prefix ends at this node
+        protected int[] rules = new int[0];
+
+        protected Node getChild(char c) {
+            int i = Arrays.binarySearch(chars, c);
+            return i < 0 ? null : children[i];
+        }
+    }
+
+    protected final UriPattern[] patterns;
+
+    protected final Object[] values;
+
+    protected final Node root;
+
+    protected final int maxCacheSize;
+
+    protected final ConcurrentMap<String, Object> cache = new ConcurrentHashMap<String, Object>();
+
+    protected final AtomicInteger cacheSize = new AtomicInteger();
+
+    protected final AtomicBoolean evicting = new AtomicBoolean();
+
+    protected UriPatternRules(List<UriPattern> patterns, List<T> values,
+            int maxCacheSize) {
+        this.patterns = patterns.toArray(new UriPattern[patterns.size()]);
+        this.values = values.toArray();
+        this.maxCacheSize = maxCacheSize;
+        root = buildTrie(this.patterns);
+    }
+
+    protected static Node buildTrie(UriPattern[] patterns) {
+        TrieBuilder root = new TrieBuilder();
+        for (int i = 0; i < patterns.length; i++) {
+            TrieBuilder node = root;
+            String prefix = patterns[i].getPrefix();
+            for (int j = 0; j < prefix.length(); j++) {
+                node = node.getOrCreateChild(prefix.charAt(j));
+            }
+            node.rules.add(Integer.valueOf(i));
+        }
+        return root.build();
+    }
+
+    protected static class TrieBuilder {
+
+        protected final TreeMap<Character, TrieBuilder> children = new TreeMap<Character, TrieBuilder>();
+
+        protected final List<Integer> rules = new ArrayList<Integer>();
+
+        protected TrieBuilder getOrCreateChild(char c) {
+            Character key = Character.valueOf(c);
+            TrieBuilder child = children.get(key);
+            if (child == null) {
+                child = new TrieBuilder();
+                children.put(key, child);
+            }
+            return child;
+        }
+
+        protected Node build() {
+            Node node = new Node();
+            node.chars = new char[children.size()];
+            node.children = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, TrieBuilder> es : children.entrySet()) {
+                node.chars[i] = es.getKey().charValue();
+                node.children[i] = es.getValue().build();
+                i++;
+            }
+            node.rules = new int[rules.size()];
+            for (i = 0; i < node.rules.length; i++) {
+                node.rules[i] = rules.get(i).intValue();
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Returns the value of the first rule matching the URI, or {@code null}
+     * if none matches.
+     */
+    @SuppressWarnings("unchecked")
+    public T match(String uri) {
+        Object value = cache.get(uri);
+        if (value == null) {
+            value = compute(uri);
+            if (maxCacheSize > 0 && cache.putIfAbsent(uri, value) == null
+                    && cacheSize.incrementAndGet() > maxCacheSize) {
+                evict();
+            }
+        }
+        return value == NO_MATCH ? null : (T) value;
+    }
+
+    /**
+     * Same as {@link #match(String)}, without using the cache.
+     */
+    @SuppressWarnings("unchecked")
+    public T matchUncached(String uri) {
+        Object value = compute(uri);
+        return value == NO_MATCH ? null : (T) value;
+    }
+
+    protected Object compute(String uri) {
+        int index = getMatchingRule(uri);
+        return index < 0 ? NO_MATCH : values[index];
+    }
+
+    /**
+     * Returns the index of the first rule matching the URI, or -1.
+     */
+    protected int getMatchingRule(String uri) {
+        // collect the rules whose prefix starts the URI
+        BitSet candidates = new BitSet(patterns.length);
+        Node node = root;
+        int i = 0;
+        while (node != null) {
+            for (int rule : node.rules) {
+                candidates.set(rule);
+            }
+            if (i == uri.length()) {
+                break;
+            }
+            node = node.getChild(uri.charAt(i++));
+        }
+        for (int rule = candidates.nextSetBit(0); rule >= 0; rule = candidates.nextSetBit(rule + 1)) {
+            if (patterns[rule].matches(uri)) {
+                return rule;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes a quarter of the cached entries, in no particular order.
+     */
+    protected void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            // another thread is already evicting
+            return;
+        }
+        try {
+            int target = maxCacheSize - maxCacheSize / 4;
+            Iterator<String> it = cache.keySet().iterator();
+            while (cacheSize.get() > target && it.hasNext()) {
+                if (cache.remove(it.next()) != null) {
+                    cacheSize.decrementAndGet();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    public int getCacheSize() {
+        return cacheSize.get();
+    }
+
+    public int size() {
+        return patterns.length;
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.SimplePrincipal;
+import org.nuxeo.ecm.platform.api.login.UserIdentificationInfo;
+
+public class TestCredentialCache {
+
+    protected static final String DOMAIN = NuxeoAuthenticationFilter.LOGIN_DOMAIN;
+
+    protected CredentialCache cache;
+
+    // time seen by the cache, in nanoseconds
+    protected long now;
+
+    @Before
+    public void setUp() {
+        cache = new CredentialCache(100, 60);
+    }
+
+    protected static UserIdentificationInfo getUserInfo(String username,
+            String password) {
+        return new UserIdentificationInfo(username, password);
+    }
+
+    protected void put(String username, String password, Principal principal) {
+        cache.put(DOMAIN, getUserInfo(username, password), principal, null,
+                cache.getGeneration());
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        CredentialCache disabled = new CredentialCache(0, 0);
+        UserIdentificationInfo userInfo = getUserInfo("bob", "secret");
+        disabled.put(DOMAIN, userInfo, new SimplePrincipal("bob"), null,
+                disabled.getGeneration());
+        assertNull(disabled.get(DOMAIN, userInfo));
+        assertEquals(0, disabled.size());
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        Principal bob = new SimplePrincipal("bob");
+        put("bob", "secret", bob);
+        assertSame(bob,
+                cache.get(DOMAIN, getUserInfo("bob", "secret")).getPrincipal());
+
+        // wrong password, other user, other domain or login plugin
+        assertNull(cache.get(DOMAIN, getUserInfo("bob", "Secret")));
+        assertNull(cache.get(DOMAIN, getUserInfo("alice", "secret")));
+        assertNull(cache.get("other-domain", getUserInfo("bob", "secret")));
+        UserIdentificationInfo tokenInfo = getUserInfo("bob", "secret");
+        tokenInfo.setLoginPluginName("TOKEN_AUTH");
+        assertNull(cache.get(DOMAIN, tokenInfo));
+
+        // a wrong password does not evict the verified one
+        assertNotNull(cache.get(DOMAIN, getUserInfo("bob", "secret")));
+
+        // credentials without password are not cached
+        put("alice", null, new SimplePrincipal("alice"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testInvalidation() {
+        put("bob", "secret", new SimplePrincipal("bob"));
+        put("alice", "secret", new SimplePrincipal("alice"));
+        cache.invalidate("BOB");
+        assertNull(cache.get(DOMAIN, getUserInfo("bob", "secret")));
+        assertNotNull(cache.get(DOMAIN, getUserInfo("alice", "secret")));
+
+        // credentials verified before an invalidation are not stored
+        long generation = cache.getGeneration();
+        cache.invalidate("bob");
+        cache.put(DOMAIN, getUserInfo("bob", "old"),
+                new SimplePrincipal("bob"), null, generation);
+        assertNull(cache.get(DOMAIN, getUserInfo("bob", "old")));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEvictionAndExpiration() throws Exception {
+        cache = new CredentialCache(2, 1) {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+        };
+        put("u1", "p", new SimplePrincipal("u1"));
+        put("u2", "p", new SimplePrincipal("u2"));
+        assertNotNull(cache.get(DOMAIN, getUserInfo("u1", "p")));
+        put("u3", "p", new SimplePrincipal("u3"));
+        // u2 was the least recently used one
+        assertNull(cache.get(DOMAIN, getUserInfo("u2", "p")));
+        assertEquals(2, cache.size());
+
+        now += TimeUnit.MILLISECONDS.toNanos(999);
+        assertNotNull(cache.get(DOMAIN, getUserInfo("u1", "p")));
+        now += TimeUnit.MILLISECONDS.toNanos(2);
+        assertNull(cache.get(DOMAIN, getUserInfo("u1", "p")));
+    }
+
+    @Test
+    public void testConcurrentLoad() throws Exception {
+        final int nbUsers = 50;
+        final int nbRequests = 2000;
+        for (int i = 0; i < nbUsers; i++) {
+            put("user" + i, "pwd" + i, new SimplePrincipal("user" + i));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int hits = 0;
+                        for (int i = 0; i < nbRequests; i++) {
+                            int user = i % nbUsers;
+                            CredentialCache.Entry entry = cache.get(DOMAIN,
+                                    getUserInfo("user" + user, "pwd" + user));
+                            if (entry != null
+                                    && entry.getPrincipal().getName().equals(
+                                            "user" + user)) {
+                                hits++;
+                            }
+                        }
+                        return Integer.valueOf(hits);
+                    }
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                assertEquals(nbRequests, future.get().intValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
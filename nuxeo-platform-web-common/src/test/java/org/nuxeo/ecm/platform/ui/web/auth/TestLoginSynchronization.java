@@ -0,0 +1,277 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.SimplePrincipal;
+
+/**
+ * Stress test of the logins done by {@link NuxeoAuthenticationFilter} when
+ * login is synchronized: the logins of a same user must never overlap. With
+ * a lock per user the logins of different users must run concurrently,
+ * otherwise no logins may overlap.
+ */
+public class TestLoginSynchronization {
+
+    private static final Log log = LogFactory.getLog(TestLoginSynchronization.class);
+
+    protected static final String DOMAIN = "test-login-synchronization";
+
+    protected static final int NB_THREADS = 200;
+
+    protected static final int NB_USERS = 50;
+
+    protected static final int LOGINS_PER_THREAD = 5;
+
+    // simulated time of a directory bind
+    protected static final long BIND_MILLIS = 5;
+
+    protected static final ConcurrentMap<String, AtomicInteger> activeLogins = new ConcurrentHashMap<String, AtomicInteger>();
+
+    protected static final AtomicInteger active = new AtomicInteger();
+
+    protected static final AtomicInteger maxActive = new AtomicInteger();
+
+    protected static final AtomicBoolean overlap = new AtomicBoolean();
+
+    /**
+     * Login module simulating a slow directory, recording the overlapping
+     * logins of a same user.
+     */
+    public static class SlowLoginModule implements LoginModule {
+
+        protected Subject subject;
+
+        protected CallbackHandler callbackHandler;
+
+        protected String username;
+
+        @Override
+        public void initialize(Subject subject,
+                CallbackHandler callbackHandler, Map<String, ?> sharedState,
+                Map<String, ?> options) {
+            this.subject = subject;
+            this.callbackHandler = callbackHandler;
+        }
+
+        @Override
+        public boolean login() throws LoginException {
+            NameCallback nc = new NameCallback("username");
+            try {
+                callbackHandler.handle(new Callback[] { nc });
+            } catch (Exception e) {
+                throw (LoginException) new LoginException(e.getMessage()).initCause(e);
+            }
+            username = nc.getName();
+            AtomicInteger count = activeLogins.get(username);
+            if (count == null) {
+                activeLogins.putIfAbsent(username, new AtomicInteger());
+                count = activeLogins.get(username);
+            }
+            if (count.incrementAndGet() > 1) {
+                overlap.set(true);
+            }
+            int current = active.incrementAndGet();
+            int max;
+            while (current > (max = maxActive.get())
+                    && !maxActive.compareAndSet(max, current)) {
+                // retry
+            }
+            try {
+                Thread.sleep(BIND_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LoginException("Interrupted");
+            } finally {
+                active.decrementAndGet();
+                count.decrementAndGet();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean commit() throws LoginException {
+            subject.getPrincipals().add(new SimplePrincipal(username));
+            return true;
+        }
+
+        @Override
+        public boolean abort() throws LoginException {
+            return true;
+        }
+
+        @Override
+        public boolean logout() throws LoginException {
+            subject.getPrincipals().clear();
+            return true;
+        }
+    }
+
+    protected static final Configuration configuration = new Configuration() {
+        @Override
+        public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+            return new AppConfigurationEntry[] { new AppConfigurationEntry(
+                    SlowLoginModule.class.getName(),
+                    LoginModuleControlFlag.REQUIRED,
+                    new HashMap<String, Object>()) };
+        }
+    };
+
+    @Before
+    public void setUp() {
+        NuxeoAuthenticationFilter.isLoginSynchronized = Boolean.TRUE;
+        NuxeoAuthenticationFilter.isLoginLockPerUser = Boolean.TRUE;
+        activeLogins.clear();
+        active.set(0);
+        maxActive.set(0);
+        overlap.set(false);
+    }
+
+    @After
+    public void tearDown() {
+        NuxeoAuthenticationFilter.isLoginSynchronized = null;
+        NuxeoAuthenticationFilter.isLoginLockPerUser = null;
+    }
+
+    @Test
+    public void testLoginLocks() {
+        assertSame(NuxeoAuthenticationFilter.getLoginLock("bob"),
+                NuxeoAuthenticationFilter.getLoginLock("BOB"));
+        assertSame(NuxeoAuthenticationFilter.getLoginLock(null),
+                NuxeoAuthenticationFilter.getLoginLock(null));
+        // user names are spread over the stripes
+        Set<Object> locks = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        for (int i = 0; i < NB_USERS; i++) {
+            locks.add(NuxeoAuthenticationFilter.getLoginLock("user" + i));
+        }
+        assertTrue("Too few locks: " + locks.size(), locks.size() > 10);
+    }
+
+    @Test
+    public void testGlobalLoginLock() throws Exception {
+        NuxeoAuthenticationFilter.isLoginLockPerUser = Boolean.FALSE;
+        assertSame(NuxeoAuthenticationFilter.getLoginLock("bob"),
+                NuxeoAuthenticationFilter.getLoginLock("alice"));
+        runConcurrentLogins(20);
+        assertFalse("Concurrent logins of a same user", overlap.get());
+        assertEquals(1, maxActive.get());
+    }
+
+    @Test
+    public void testConcurrentLogins() throws Exception {
+        runConcurrentLogins(NB_THREADS);
+        assertFalse("Concurrent logins of a same user", overlap.get());
+        // a global lock would keep this at 1
+        assertTrue("Logins were serialized: " + maxActive.get(),
+                maxActive.get() > 1);
+    }
+
+    protected void runConcurrentLogins(int nbThreads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>();
+            for (int t = 0; t < nbThreads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<List<Long>>() {
+                    @Override
+                    public List<Long> call() throws Exception {
+                        start.await();
+                        List<Long> latencies = new ArrayList<Long>();
+                        for (int i = 0; i < LOGINS_PER_THREAD; i++) {
+                            final String username = "user"
+                                    + ((thread + i) % NB_USERS);
+                            LoginContext loginContext = new LoginContext(
+                                    DOMAIN, new Subject(),
+                                    new CallbackHandler() {
+                                        @Override
+                                        public void handle(Callback[] callbacks) {
+                                            ((NameCallback) callbacks[0]).setName(username);
+                                        }
+                                    }, configuration);
+                            long begin = System.nanoTime();
+                            NuxeoAuthenticationFilter.login(loginContext,
+                                    username);
+                            latencies.add(Long.valueOf(System.nanoTime()
+                                    - begin));
+                            assertEquals(username,
+                                    loginContext.getSubject().getPrincipals().iterator().next().getName());
+                            loginContext.logout();
+                        }
+                        return latencies;
+                    }
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            List<Long> latencies = new ArrayList<Long>();
+            for (Future<List<Long>> future : futures) {
+                latencies.addAll(future.get(60, TimeUnit.SECONDS));
+            }
+            long elapsed = System.nanoTime() - begin;
+            Collections.sort(latencies);
+            long p99 = latencies.get((int) (latencies.size() * 0.99) - 1).longValue();
+            log.info(String.format(
+                    "%d logins in %d ms, p99 latency %d ms, max concurrent logins %d",
+                    latencies.size(), TimeUnit.NANOSECONDS.toMillis(elapsed),
+                    TimeUnit.NANOSECONDS.toMillis(p99), maxActive.get()));
+
+            assertEquals(nbThreads * LOGINS_PER_THREAD, latencies.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
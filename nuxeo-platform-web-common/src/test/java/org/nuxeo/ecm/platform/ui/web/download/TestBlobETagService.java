@@ -0,0 +1,206 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.api.impl.blob.StreamingBlob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.NXRuntimeTestCase;
+
+public class TestBlobETagService extends NXRuntimeTestCase {
+
+    private static final String WEB_BUNDLE = "org.nuxeo.ecm.platform.web.common";
+
+    private static final String WEB_BUNDLE_TEST = "org.nuxeo.ecm.platform.web.common.test";
+
+    // MD5 of "Hello, world!"
+    private static final String HELLO_MD5 = "6cd3556deb0da54bca060b4c39479839";
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        deployContrib(WEB_BUNDLE, "OSGI-INF/download-etag-framework.xml");
+        deployContrib(WEB_BUNDLE, "OSGI-INF/download-etag-contrib.xml");
+    }
+
+    protected BlobETagService getService() {
+        BlobETagService service = Framework.getLocalService(BlobETagService.class);
+        assertNotNull(service);
+        return service;
+    }
+
+    protected File createFile(String content) throws Exception {
+        File file = File.createTempFile("nxetag-", ".txt");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        file.setLastModified(1380000000000L);
+        return file;
+    }
+
+    @Test
+    public void testStrategies() throws Exception {
+        BlobETagService service = getService();
+        assertEquals(3,
+                ((BlobETagComponent) service).getStrategies().size());
+
+        // file blobs use the file metadata, in a weak tag
+        File file = createFile("Hello, world!");
+        Blob fileBlob = new FileBlob(file);
+        String etag = service.getETag(fileBlob);
+        assertNotNull(etag);
+        assertTrue(etag.startsWith(BlobETagService.WEAK_PREFIX));
+        assertFalse(DownloadServlet.isIfRangeMatching(
+                BlobETagComponent.quote(etag), etag));
+        assertEquals(1380000000000L, service.getLastModified(fileBlob));
+        file.setLastModified(1390000000000L);
+        assertFalse(etag.equals(service.getETag(fileBlob)));
+        file.delete();
+
+        // other blobs use a hash of their content
+        Blob stringBlob = new StringBlob("Hello, world!");
+        assertEquals(HELLO_MD5, service.getETag(stringBlob));
+        assertEquals(-1, service.getLastModified(stringBlob));
+        assertNull(service.getETag(null));
+    }
+
+    @Test
+    public void testOverride() throws Exception {
+        deployContrib(WEB_BUNDLE_TEST,
+                "OSGI-INF/test-download-etag-override.xml");
+        BlobETagService service = getService();
+        assertEquals(2,
+                ((BlobETagComponent) service).getStrategies().size());
+        File file = createFile("Hello, world!");
+        // hashed now that the file strategy is disabled
+        assertEquals(HELLO_MD5, service.getETag(new FileBlob(file)));
+        file.delete();
+        // too big to be hashed
+        char[] chars = new char[2048];
+        assertNull(service.getETag(new StringBlob(new String(chars))));
+    }
+
+    @Test
+    public void testContentHash() throws Exception {
+        ContentHashETagStrategy strategy = new ContentHashETagStrategy();
+        strategy.init(Collections.<String, String> emptyMap());
+        assertEquals(HELLO_MD5,
+                strategy.getETag(new StringBlob("Hello, world!")));
+        // the content of non-persistent blobs can only be read once
+        Blob blob = StreamingBlob.createFromStream(new ByteArrayInputStream(
+                "Hello, world!".getBytes("UTF-8")));
+        assertFalse(blob.isPersistent());
+        assertNull(strategy.getETag(blob));
+        assertEquals("Hello, world!", blob.getString());
+    }
+
+    protected HttpServletRequest getRequest(String ifNoneMatch,
+            long ifModifiedSince) {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+        when(req.getDateHeader("If-Modified-Since")).thenReturn(
+                ifModifiedSince);
+        return req;
+    }
+
+    @Test
+    public void testCheckNotModified() throws Exception {
+        BlobETagService service = getService();
+        Blob blob = new StringBlob("Hello, world!");
+
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        assertFalse(service.checkNotModified(getRequest(null, -1), resp, blob));
+        verify(resp).setHeader("ETag", '"' + HELLO_MD5 + '"');
+        verify(resp, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+        resp = mock(HttpServletResponse.class);
+        assertTrue(service.checkNotModified(
+                getRequest('"' + HELLO_MD5 + '"', -1), resp, blob));
+        verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+        resp = mock(HttpServletResponse.class);
+        assertFalse(service.checkNotModified(getRequest("\"other\"", -1),
+                resp, blob));
+
+        // If-None-Match takes precedence over If-Modified-Since
+        resp = mock(HttpServletResponse.class);
+        assertFalse(service.checkNotModified(getRequest("\"other\"", 2000),
+                resp, "abc", 1000));
+
+        resp = mock(HttpServletResponse.class);
+        assertTrue(service.checkNotModified(getRequest(null, 2000), resp,
+                null, 1500));
+        verify(resp).setDateHeader("Last-Modified", 1500);
+        verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+        resp = mock(HttpServletResponse.class);
+        assertFalse(service.checkNotModified(getRequest(null, 2000), resp,
+                null, 3000));
+        assertFalse(service.checkNotModified(getRequest(null, 2000), resp,
+                null, -1));
+    }
+
+    @Test
+    public void testETagMatching() throws Exception {
+        assertTrue(BlobETagComponent.isETagMatching("\"abc\"", "abc"));
+        assertTrue(BlobETagComponent.isETagMatching("abc", "abc"));
+        assertTrue(BlobETagComponent.isETagMatching("W/\"abc\"", "abc"));
+        assertTrue(BlobETagComponent.isETagMatching("\"x\", \"abc\"", "abc"));
+        assertTrue(BlobETagComponent.isETagMatching("*", "abc"));
+        assertFalse(BlobETagComponent.isETagMatching("\"abcd\"", "abc"));
+        assertFalse(BlobETagComponent.isETagMatching("*", null));
+        // weak comparison of weak tags
+        assertTrue(BlobETagComponent.isETagMatching("W/\"abc\"", "W/abc"));
+        assertTrue(BlobETagComponent.isETagMatching("\"abc\"", "W/abc"));
+        assertFalse(BlobETagComponent.isETagMatching("W/\"abd\"", "W/abc"));
+    }
+
+    @Test
+    public void testQuote() throws Exception {
+        assertEquals("\"abc\"", BlobETagComponent.quote("abc"));
+        assertEquals("W/\"abc\"", BlobETagComponent.quote("W/abc"));
+    }
+
+}
@@ -0,0 +1,327 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.web.common.ajax;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.runtime.test.NXRuntimeTestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestAjaxProxyServlet extends NXRuntimeTestCase {
+
+    private static final String WEB_BUNDLE = "org.nuxeo.ecm.platform.web.common";
+
+    private static final String WEB_BUNDLE_TEST = "org.nuxeo.ecm.platform.web.common.test";
+
+    protected static final int LARGE_SIZE = 3 * 1024 * 1024;
+
+    protected HttpServer server;
+
+    protected String baseURL;
+
+    protected final ConcurrentHashMap<String, AtomicInteger> hits = new ConcurrentHashMap<String, AtomicInteger>();
+
+    // time seen by the response cache, in nanoseconds
+    protected volatile long now;
+
+    protected final Set<Integer> clientPorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    /**
+     * In-process server answering with the body and Cache-Control header
+     * given by the last segment of the path.
+     */
+    protected class TestHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            hits.putIfAbsent(path, new AtomicInteger());
+            hits.get(path).incrementAndGet();
+            clientPorts.add(Integer.valueOf(exchange.getRemoteAddress().getPort()));
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            byte[] body;
+            int status = 200;
+            if (name.equals("large")) {
+                body = getLargeBody();
+            } else if (name.equals("missing")) {
+                body = "Not found".getBytes("UTF-8");
+                status = 404;
+            } else {
+                body = ("Hello " + name).getBytes("UTF-8");
+            }
+            if (name.equals("nostore")) {
+                exchange.getResponseHeaders().add("Cache-Control", "no-store");
+            } else if (name.equals("short")) {
+                exchange.getResponseHeaders().add("Cache-Control", "max-age=1");
+            }
+            exchange.getResponseHeaders().add("Content-Type",
+                    "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    protected static byte[] getLargeBody() {
+        byte[] body = new byte[LARGE_SIZE];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        return body;
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        deployContrib(WEB_BUNDLE, "OSGI-INF/ajax-proxy-framework.xml");
+        deployContrib(WEB_BUNDLE_TEST, "OSGI-INF/test-ajax-proxy-contrib.xml");
+        AjaxProxyServlet.service = null;
+        AjaxProxyServlet.shutdown();
+        AjaxProxyServlet.responseCache = new ProxyResponseCache(
+                10 * 1024 * 1024, 1024 * 1024, 60) {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+        };
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new TestHandler());
+        server.setExecutor(Executors.newFixedThreadPool(10));
+        server.start();
+        baseURL = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+        AjaxProxyServlet.shutdown();
+        AjaxProxyServlet.service = null;
+        super.tearDown();
+    }
+
+    protected static class CapturingOutputStream extends ServletOutputStream {
+
+        protected final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            out.write(b, off, len);
+        }
+    }
+
+    protected static class Result {
+
+        protected HttpServletResponse resp;
+
+        protected CapturingOutputStream out;
+
+        protected String getBody() throws IOException {
+            return out.out.toString("UTF-8");
+        }
+    }
+
+    protected Result proxy(String path, String type) throws Exception {
+        return proxy(path, type, null);
+    }
+
+    protected Result proxy(String path, String type, String sessionId)
+            throws Exception {
+        String url = baseURL + path;
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        if (sessionId != null) {
+            when(req.getCookies()).thenReturn(
+                    new Cookie[] { new Cookie("JSESSIONID", sessionId) });
+        }
+        when(req.getParameter("url")).thenReturn(url);
+        when(req.getParameter("type")).thenReturn(type);
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("url", new String[] { url });
+        when(req.getParameterMap()).thenReturn(params);
+        Result result = new Result();
+        result.resp = mock(HttpServletResponse.class);
+        result.out = new CapturingOutputStream();
+        when(result.resp.getOutputStream()).thenReturn(result.out);
+        AjaxProxyServlet.handleProxy("GET", req, result.resp);
+        return result;
+    }
+
+    protected int getHits(String path) {
+        AtomicInteger count = hits.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    @Test
+    public void testProxy() throws Exception {
+        Result result = proxy("/direct/world", null);
+        assertEquals("Hello world", result.getBody());
+        verify(result.resp).setStatus(200);
+        verify(result.resp).setContentType("text/plain; charset=UTF-8");
+
+        result = proxy("/direct/world", "xml");
+        verify(result.resp).setContentType("text/xml; charset=UTF-8");
+        result = proxy("/direct/world", "html");
+        verify(result.resp).setContentType("text/html; charset=UTF-8");
+
+        // status is passed through
+        result = proxy("/direct/missing", null);
+        verify(result.resp).setStatus(404);
+        assertEquals("Not found", result.getBody());
+
+        // not proxyable
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getParameter("url")).thenReturn(baseURL + "/other/world");
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        AjaxProxyServlet.handleProxy("GET", req, resp);
+        verify(resp).sendError(HttpServletResponse.SC_FORBIDDEN);
+        assertEquals(0, getHits("/other/world"));
+    }
+
+    @Test
+    public void testLargeResponseIsStreamed() throws Exception {
+        Result result = proxy("/cached/large", "binary");
+        assertArrayEquals(getLargeBody(), result.out.out.toByteArray());
+        // larger than the maximum entry size, so not cached
+        proxy("/cached/large", "binary");
+        assertEquals(2, getHits("/cached/large"));
+        assertEquals(0, AjaxProxyServlet.getResponseCache().getEntryCount());
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        assertEquals("Hello default", proxy("/cached/default", null).getBody());
+        Result result = proxy("/cached/default", "xml");
+        assertEquals("Hello default", result.getBody());
+        // content type is computed for each request
+        verify(result.resp).setContentType("text/xml; charset=UTF-8");
+        assertEquals(1, getHits("/cached/default"));
+
+        proxy("/cached/nostore", null);
+        proxy("/cached/nostore", null);
+        assertEquals(2, getHits("/cached/nostore"));
+
+        proxy("/cached/short", null);
+        proxy("/cached/short", null);
+        assertEquals(1, getHits("/cached/short"));
+        now += TimeUnit.MILLISECONDS.toNanos(1001);
+        proxy("/cached/short", null);
+        assertEquals(2, getHits("/cached/short"));
+
+        // errors are not cached
+        proxy("/cached/missing", null);
+        proxy("/cached/missing", null);
+        assertEquals(2, getHits("/cached/missing"));
+
+        // not cached without userCache
+        proxy("/direct/default", null);
+        proxy("/direct/default", null);
+        assertEquals(2, getHits("/direct/default"));
+    }
+
+    @Test
+    public void testCachePerSession() throws Exception {
+        assertEquals("Hello world",
+                proxy("/session/world", null, "s1").getBody());
+        proxy("/session/world", null, "s1");
+        assertEquals(1, getHits("/session/world"));
+        proxy("/session/world", null, "s2");
+        assertEquals(2, getHits("/session/world"));
+        assertEquals(2, AjaxProxyServlet.getResponseCache().getEntryCount());
+
+        // not cached without a session
+        proxy("/session/world", null);
+        proxy("/session/world", null);
+        assertEquals(4, getHits("/session/world"));
+        assertEquals(2, AjaxProxyServlet.getResponseCache().getEntryCount());
+    }
+
+    @Test
+    public void testPooledConnections() throws Exception {
+        assertSame(AjaxProxyServlet.getHttpClient(),
+                AjaxProxyServlet.getHttpClient());
+        int nbThreads = 5;
+        final int nbRequests = 20;
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < nbThreads; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < nbRequests; i++) {
+                            assertEquals("Hello pool",
+                                    proxy("/direct/pool", null).getBody());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(nbThreads * nbRequests, getHits("/direct/pool"));
+        // connections are reused
+        assertTrue(String.valueOf(clientPorts.size()),
+                clientPorts.size() <= nbThreads);
+    }
+
+}
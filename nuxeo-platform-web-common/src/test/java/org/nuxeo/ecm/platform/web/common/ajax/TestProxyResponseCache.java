@@ -0,0 +1,105 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.web.common.ajax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestProxyResponseCache {
+
+    // time seen by the cache, in nanoseconds
+    protected long now;
+
+    @Test
+    public void testBoundedBySize() throws Exception {
+        // keys of 2 chars count for 4 bytes
+        ProxyResponseCache cache = new ProxyResponseCache(300, 200, 60);
+        assertTrue(cache.put("k1", 200, "text/plain", new byte[96], 60));
+        assertTrue(cache.put("k2", 200, "text/plain", new byte[96], 60));
+        assertTrue(cache.put("k3", 200, "text/plain", new byte[96], 60));
+        assertEquals(300, cache.getSize());
+        // k1 becomes the most recently used one
+        assertNotNull(cache.get("k1"));
+        assertTrue(cache.put("k4", 200, "text/plain", new byte[146], 60));
+        assertEquals(2, cache.getEntryCount());
+        assertNull(cache.get("k2"));
+        assertNull(cache.get("k3"));
+        assertNotNull(cache.get("k1"));
+        assertEquals(250, cache.getSize());
+
+        // replacing an entry updates the size
+        assertTrue(cache.put("k1", 200, "text/plain", new byte[6], 60));
+        assertEquals(160, cache.getSize());
+
+        // too large
+        assertFalse(cache.put("k5", 200, "text/plain", new byte[201], 60));
+        assertNull(cache.get("k5"));
+        // not cacheable
+        assertFalse(cache.put("k6", 200, "text/plain", new byte[1], 0));
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        ProxyResponseCache cache = new ProxyResponseCache(1000, 1000, 60) {
+            @Override
+            protected long nanoTime() {
+                return now;
+            }
+        };
+        assertTrue(cache.put("k1", 200, "text/plain", new byte[10], 1));
+        now += TimeUnit.MILLISECONDS.toNanos(999);
+        assertNotNull(cache.get("k1"));
+        now += TimeUnit.MILLISECONDS.toNanos(2);
+        assertNull(cache.get("k1"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception {
+        assertEquals(300, ProxyResponseCache.getTimeToLive(null, 300, true));
+        assertEquals(60,
+                ProxyResponseCache.getTimeToLive("public, max-age=60", 300,
+                        true));
+        assertEquals(10, ProxyResponseCache.getTimeToLive(
+                "max-age=60, s-maxage=10", 300, true));
+        assertEquals(60, ProxyResponseCache.getTimeToLive(
+                "max-age=60, s-maxage=10", 300, false));
+        assertEquals(0, ProxyResponseCache.getTimeToLive("no-store", 300,
+                true));
+        assertEquals(0, ProxyResponseCache.getTimeToLive(
+                "no-cache=\"Set-Cookie\", max-age=60", 300, true));
+        assertEquals(0, ProxyResponseCache.getTimeToLive(
+                "private, max-age=60", 300, true));
+        assertEquals(60, ProxyResponseCache.getTimeToLive(
+                "private, max-age=60", 300, false));
+        assertEquals(0, ProxyResponseCache.getTimeToLive("max-age=abc", 300,
+                true));
+        assertEquals(300, ProxyResponseCache.getTimeToLive("public", 300,
+                true));
+    }
+
+}
@@ -114,6 +114,22 @@ public class TestService extends NXRuntimeTestCase {
         assertEquals("3000", config.getCacheTime());
     }
 
+    @Test
+    public void testRegistrationResetsRules() throws Exception {
+        RequestControllerService rcs = (RequestControllerService) Framework.getLocalService(RequestControllerManager.class);
+        String uri = "/nuxeo/registered/test";
+        assertFalse(rcs.computeConfigForRequest(uri).needTransaction());
+
+        rcs.registerFilterConfig("registered", "/nuxeo/registered/.*",
+                true, true, false, false, false, null);
+        assertTrue(rcs.computeConfigForRequest(uri).needTransaction());
+
+        rcs.registerFilterConfig("registeredDeny", "/nuxeo/registered/test",
+                false, true, false, false, false, null);
+        assertFalse(rcs.computeConfigForRequest(uri).needTransaction());
+        assertTrue(rcs.computeConfigForRequest("/nuxeo/registered/other").needTransaction());
+    }
+
     @Test
     public void testCorsContrib() throws Exception {
         deployContrib("org.nuxeo.ecm.platform.web.common",
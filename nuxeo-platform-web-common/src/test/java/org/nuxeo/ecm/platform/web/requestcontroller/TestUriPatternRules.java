@@ -0,0 +1,240 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.web.requestcontroller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.service.LRUCachingMap;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.service.UriPattern;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.service.UriPatternRules;
+
+public class TestUriPatternRules {
+
+    private static final Log log = LogFactory.getLog(TestUriPatternRules.class);
+
+    protected static UriPatternRules<String> build(int cacheSize,
+            String... patterns) {
+        UriPatternRules.Builder<String> builder = new UriPatternRules.Builder<String>();
+        for (String pattern : patterns) {
+            builder.add(new UriPattern(pattern), pattern);
+        }
+        return builder.build(cacheSize);
+    }
+
+    @Test
+    public void testPrefixes() throws Exception {
+        assertEquals("/nuxeo/site/", new UriPattern("/nuxeo/site/.*").getPrefix());
+        assertEquals("/nuxeo/site/files.", new UriPattern(
+                "/nuxeo/site/files\\..*").getPrefix());
+        assertEquals("/nuxeo/Test", new UriPattern("/nuxeo/Tests?").getPrefix());
+        assertEquals("/a", new UriPattern("/a\\d+").getPrefix());
+        assertEquals("", new UriPattern("/nuxeo/a|/nuxeo/b").getPrefix());
+        assertEquals("", new UriPattern("(?i)/nuxeo/.*").getPrefix());
+        assertTrue(new UriPattern("/nuxeo/login\\.jsp").isLiteral());
+        assertTrue(new UriPattern("/nuxeo/login\\.jsp").matches(
+                "/nuxeo/login.jsp"));
+        assertFalse(new UriPattern("/nuxeo/login\\.jsp").matches(
+                "/nuxeo/loginXjsp"));
+        assertTrue(new UriPattern("/nuxeo/Tests?").matches("/nuxeo/Test"));
+        assertTrue(new UriPattern("(?i)/nuxeo/.*").matches("/NUXEO/x"));
+    }
+
+    @Test
+    public void testFirstMatchingRule() throws Exception {
+        UriPatternRules<String> rules = build(10, "/nuxeo/site/files/.*",
+                ".*\\.js", "/nuxeo/site/.*", "/nuxeo/.*", "/nuxeo");
+        assertEquals("/nuxeo/site/files/.*",
+                rules.match("/nuxeo/site/files/a.js"));
+        assertEquals(".*\\.js", rules.match("/nuxeo/site/a.js"));
+        assertEquals("/nuxeo/site/.*", rules.match("/nuxeo/site/a"));
+        assertEquals("/nuxeo/.*", rules.match("/nuxeo/"));
+        assertEquals("/nuxeo", rules.match("/nuxeo"));
+        assertNull(rules.match("/other"));
+        // cached results, missing ones included
+        assertEquals("/nuxeo/site/.*", rules.match("/nuxeo/site/a"));
+        assertNull(rules.match("/other"));
+        assertEquals(6, rules.getCacheSize());
+    }
+
+    @Test
+    public void testBoundedCache() throws Exception {
+        UriPatternRules<String> rules = build(100, "/nuxeo/.*");
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("/nuxeo/.*", rules.match("/nuxeo/" + i));
+            assertTrue(rules.getCacheSize() <= 100);
+        }
+    }
+
+    protected static String[] getPatterns() {
+        List<String> patterns = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            patterns.add("/nuxeo/app" + i + "/.*");
+            patterns.add("/nuxeo/site/api" + i + "/files/.*");
+        }
+        patterns.add(".*\\.css");
+        patterns.add("/nuxeo/nxfile/.*");
+        return patterns.toArray(new String[patterns.size()]);
+    }
+
+    protected static String[] getUris(int count) {
+        Random random = new Random(42);
+        String[] uris = new String[count];
+        for (int i = 0; i < count; i++) {
+            switch (random.nextInt(4)) {
+            case 0:
+                uris[i] = "/nuxeo/app" + random.nextInt(60) + "/page.xhtml";
+                break;
+            case 1:
+                uris[i] = "/nuxeo/site/api" + random.nextInt(60)
+                        + "/files/doc" + random.nextInt(100);
+                break;
+            case 2:
+                uris[i] = "/nuxeo/css/style" + random.nextInt(100) + ".css";
+                break;
+            default:
+                uris[i] = "/nuxeo/nxfile/default/" + random.nextInt(1000)
+                        + "/file:content";
+            }
+        }
+        return uris;
+    }
+
+    /**
+     * Linear evaluation behind a synchronized LRU cache, as done before the
+     * rules were compiled.
+     */
+    protected static class SynchronizedRules {
+
+        protected final List<Pattern> patterns = new ArrayList<Pattern>();
+
+        protected final Map<String, String> cache = new LRUCachingMap<String, String>(
+                250);
+
+        protected SynchronizedRules(String... patterns) {
+            for (String pattern : patterns) {
+                this.patterns.add(Pattern.compile(pattern));
+            }
+        }
+
+        protected String match(String uri) {
+            String value;
+            synchronized (cache) {
+                value = cache.get(uri);
+            }
+            if (value == null) {
+                value = "";
+                for (Pattern pattern : patterns) {
+                    if (pattern.matcher(uri).matches()) {
+                        value = pattern.pattern();
+                        break;
+                    }
+                }
+                synchronized (cache) {
+                    cache.put(uri, value);
+                }
+            }
+            return value.isEmpty() ? null : value;
+        }
+    }
+
+    @Test
+    public void testSameResultsAsLinearEvaluation() throws Exception {
+        String[] patterns = getPatterns();
+        UriPatternRules<String> rules = build(0, patterns);
+        SynchronizedRules linear = new SynchronizedRules(patterns);
+        for (String uri : getUris(5000)) {
+            assertEquals(uri, linear.match(uri), rules.match(uri));
+        }
+    }
+
+    protected static long run(int nbThreads, final String[] uris,
+            final UriMatcher matcher) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            long t0 = System.nanoTime();
+            for (int t = 0; t < nbThreads; t++) {
+                final int offset = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < uris.length; i++) {
+                            matcher.match(uris[(i + offset) % uris.length]);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            return (System.nanoTime() - t0) / 1000000;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    protected interface UriMatcher {
+        void match(String uri);
+    }
+
+    // benchmark only logging timings, disabled by default
+    @Test
+    @Ignore
+    public void testContention() throws Exception {
+        String[] patterns = getPatterns();
+        final UriPatternRules<String> rules = build(250, patterns);
+        final SynchronizedRules linear = new SynchronizedRules(patterns);
+        final String[] uris = getUris(200000);
+        int nbThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        long linearTime = run(nbThreads, uris, new UriMatcher() {
+            @Override
+            public void match(String uri) {
+                linear.match(uri);
+            }
+        });
+        long rulesTime = run(nbThreads, uris, new UriMatcher() {
+            @Override
+            public void match(String uri) {
+                rules.match(uri);
+            }
+        });
+        log.info(String.format(
+                "%d threads matching %d URIs against %d patterns: "
+                        + "synchronized linear %d ms, compiled rules %d ms",
+                nbThreads, uris.length, patterns.length, linearTime,
+                rulesTime));
+    }
+
+}